@@ -33,7 +33,8 @@ import com.heinrichreimersoftware.materialdrawer.structure.DrawerItem;
 import com.ksy.ksyrecordsdk.com.ksy.ksyrecordsdk.config.DrawerItemConfigAdapter;
 import com.ksy.recordlib.service.core.KsyRecordClient;
 import com.ksy.recordlib.service.core.KsyRecordClientConfig;
-import com.ksy.recordlib.service.core.KsyRecordSender;
+import com.ksy.recordlib.service.core.KsyRecordSession;
+import com.ksy.recordlib.service.core.KsySenderMetrics;
 import com.ksy.recordlib.service.exception.KsyRecordException;
 import com.ksy.recordlib.service.util.Constants;
 import com.ksy.recordlib.service.util.OrientationActivity;
@@ -54,6 +55,24 @@ public class MainActivity extends AppCompatActivity implements OrientationActivi
     private RelativeLayout mContainer;
     private ImageView mImageView;
     private TextView bitrate;
+    private final KsySenderMetrics.Snapshot metricsSnapshot = new KsySenderMetrics.Snapshot();
+    private final StringBuilder metricsText = new StringBuilder(1024);
+    private final Runnable showMetrics = new Runnable() {
+        @Override
+        public void run() {
+            KsyRecordSession session = client.getSession();
+            if (session == null) {
+                return;
+            }
+            session.getSender().getMetrics().snapshot(metricsSnapshot);
+            metricsText.setLength(0);
+            metricsText.append("push url =").append(config.getUrl()).append('\n');
+            metricsSnapshot.appendTo(metricsText);
+            metricsText.append("\nrecord angle =").append(KsyRecordClientConfig.recordOrientation)
+                    .append(",preview angel =").append(KsyRecordClientConfig.previewOrientation);
+            bitrate.setText(metricsText);
+        }
+    };
     private DrawerItemConfigAdapter adapter;
     private DrawerView drawer;
     private ActionBarDrawerToggle drawerToggle;
@@ -141,13 +160,7 @@ public class MainActivity extends AppCompatActivity implements OrientationActivi
             timer.schedule(new TimerTask() {
                 @Override
                 public void run() {
-                    bitrate.postDelayed(new Runnable() {
-                        @Override
-                        public void run() {
-                            bitrate.setText("push url =" + config.getUrl() + "," + KsyRecordSender.getRecordInstance().getAVBitrate() + "record angle =" + KsyRecordClientConfig.recordOrientation + ",preview angel =" + KsyRecordClientConfig.previewOrientation);
-//                            bitrate.setText(KsyRecordSender.getRecordInstance().getAVBitrate() + "record angle =" + KsyRecordClientConfig.recordOrientation + ",preview angel =" + KsyRecordClientConfig.previewOrientation);
-                        }
-                    }, 1000);
+                    bitrate.post(showMetrics);
                 }
             }, 1000, 1000);
         }
@@ -240,8 +253,8 @@ public class MainActivity extends AppCompatActivity implements OrientationActivi
     }
 
     private void setupRecord() {
-        client = KsyRecordClient.getInstance(getApplicationContext());
-        client.setConfig(config);
+        client = new KsyRecordClient(getApplicationContext());
+        client.setClientConfig(config);
         client.setDisplayPreview(mSurfaceView);
         client.setCameraSizeChangedListener(mSurfaceView);
         client.setOrientationActivity(this);
@@ -0,0 +1,44 @@
+package com.ksy.recordlib.service.core;
+
+/**
+ * Wraps another policy so that audio is never dropped: audio gaps are far more
+ * noticeable than a frozen picture. Gop drops of the wrapped policy only
+ * remove video.
+ */
+public class AudioNeverDropPolicy implements DropPolicy {
+
+    private final DropPolicy policy;
+
+    public AudioNeverDropPolicy() {
+        this(new DropOldestGopPolicy());
+    }
+
+    public AudioNeverDropPolicy(DropPolicy policy) {
+        this.policy = policy;
+    }
+
+    @Override
+    public int onCongestion(int level, KsySenderQueue queue) {
+        int action = policy.onCongestion(level, queue);
+        if (action == DROP_AUDIO_HEAD) {
+            return DROP_NONE;
+        }
+        if (action == DROP_OLDEST_GOP) {
+            return DROP_OLDEST_VIDEO_GOP;
+        }
+        return action;
+    }
+
+    @Override
+    public int onFrame(KSYFlvData frame, int level) {
+        if (frame.type == KSYFlvData.FLV_TYTPE_AUDIO) {
+            return DROP_NONE;
+        }
+        return policy.onFrame(frame, level);
+    }
+
+    @Override
+    public String getName() {
+        return "audio-never-drop(" + policy.getName() + ")";
+    }
+}
@@ -0,0 +1,37 @@
+package com.ksy.recordlib.service.core;
+
+/**
+ * Best quality: under soft congestion only video frames with nal_ref_idc 0 are
+ * dropped, since no other frame is decoded from them. Skipping to the next
+ * keyframe and dropping whole gops are kept for hard congestion.
+ */
+public class DropNonReferenceFirstPolicy implements DropPolicy {
+
+    @Override
+    public int onCongestion(int level, KsySenderQueue queue) {
+        if (level != CONGESTION_HARD) {
+            return DROP_NONE;
+        }
+        KSYFlvData video = queue.peekVideo();
+        if (video != null && !video.isKeyframe()) {
+            return DROP_VIDEO_TO_NEXT_IDR;
+        }
+        if (queue.queuedKeyframes() > 1) {
+            return DROP_OLDEST_GOP;
+        }
+        return queue.isAudioOldest() ? DROP_AUDIO_HEAD : DROP_NONE;
+    }
+
+    @Override
+    public int onFrame(KSYFlvData frame, int level) {
+        if (level != CONGESTION_NONE && frame.type == KSYFlvData.FLV_TYPE_VIDEO && !frame.isReference()) {
+            return DROP_NON_REFERENCE;
+        }
+        return DROP_NONE;
+    }
+
+    @Override
+    public String getName() {
+        return "drop-non-reference-first";
+    }
+}
@@ -0,0 +1,31 @@
+package com.ksy.recordlib.service.core;
+
+/**
+ * Lowest latency: when congested throw away whole gops from the head of the
+ * queue, along with the audio they cover, as long as a newer keyframe is
+ * queued to restart decoding from.
+ */
+public class DropOldestGopPolicy implements DropPolicy {
+
+    @Override
+    public int onCongestion(int level, KsySenderQueue queue) {
+        if (queue.queuedKeyframes() > 1) {
+            return DROP_OLDEST_GOP;
+        }
+        KSYFlvData video = queue.peekVideo();
+        if (video != null && !video.isKeyframe()) {
+            return DROP_VIDEO_TO_NEXT_IDR;
+        }
+        return level == CONGESTION_HARD && queue.isAudioOldest() ? DROP_AUDIO_HEAD : DROP_NONE;
+    }
+
+    @Override
+    public int onFrame(KSYFlvData frame, int level) {
+        return DROP_NONE;
+    }
+
+    @Override
+    public String getName() {
+        return "drop-oldest-gop";
+    }
+}
@@ -0,0 +1,61 @@
+package com.ksy.recordlib.service.core;
+
+/**
+ * Decides which queued frames KsyRecordSender throws away when the uplink can
+ * not keep up.
+ * <p/>
+ * Both callbacks run on the sender thread and must decide in O(1): the
+ * returned action is carried out by KsySenderQueue using the keyframe index of
+ * the video queue, so no policy ever walks the queue itself.
+ */
+public interface DropPolicy {
+
+    int CONGESTION_NONE = 0;
+    int CONGESTION_SOFT = 1;
+    int CONGESTION_HARD = 2;
+
+    int DROP_NONE = 0;
+    /**
+     * drop queued non-keyframe video up to the next keyframe, keeps audio
+     */
+    int DROP_VIDEO_TO_NEXT_IDR = 1;
+    /**
+     * drop the oldest gop when a newer keyframe is queued, together with the audio it covers
+     */
+    int DROP_OLDEST_GOP = 2;
+    /**
+     * drop the oldest gop when a newer keyframe is queued, keeps audio
+     */
+    int DROP_OLDEST_VIDEO_GOP = 3;
+    /**
+     * drop the oldest queued audio frame
+     */
+    int DROP_AUDIO_HEAD = 4;
+    /**
+     * per frame: a video frame no other frame references
+     */
+    int DROP_NON_REFERENCE = 5;
+    /**
+     * per frame: a track queue was full when the frame was produced
+     */
+    int DROP_QUEUE_FULL = 6;
+
+    int DROP_REASON_COUNT = 7;
+
+    /**
+     * called before the next frame is taken from the queue while congested
+     *
+     * @param level CONGESTION_SOFT or CONGESTION_HARD
+     * @return one of the DROP_* queue actions, DROP_NONE to leave the queue alone
+     */
+    int onCongestion(int level, KsySenderQueue queue);
+
+    /**
+     * called for every frame taken from the queue
+     *
+     * @return the drop reason, DROP_NONE to send the frame
+     */
+    int onFrame(KSYFlvData frame, int level);
+
+    String getName();
+}
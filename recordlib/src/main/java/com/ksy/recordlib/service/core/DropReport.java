@@ -0,0 +1,89 @@
+package com.ksy.recordlib.service.core;
+
+/**
+ * Running account of the frames a DropPolicy made the sender throw away.
+ * Updated on the sender thread only.
+ */
+public class DropReport {
+
+    private final String policyName;
+    private final int[] reasonCount = new int[DropPolicy.DROP_REASON_COUNT];
+    private int videoFrames;
+    private int audioFrames;
+    private int keyframes;
+    private long videoBytes;
+    private long audioBytes;
+    private int lastDroppedDts;
+    private DropListener dropListener;
+
+    public interface DropListener {
+        /**
+         * called on the sender thread, the frame is recycled right after
+         */
+        void onFrameDropped(String policyName, KSYFlvData frame, int reason);
+    }
+
+    public DropReport(String policyName) {
+        this.policyName = policyName;
+    }
+
+    public void setDropListener(DropListener l) {
+        dropListener = l;
+    }
+
+    void onDrop(KSYFlvData frame, int reason) {
+        if (frame.type == KSYFlvData.FLV_TYPE_VIDEO) {
+            videoFrames++;
+            videoBytes += frame.size;
+            if (frame.isKeyframe()) {
+                keyframes++;
+            }
+        } else {
+            audioFrames++;
+            audioBytes += frame.size;
+        }
+        reasonCount[reason]++;
+        lastDroppedDts = frame.dts;
+        if (dropListener != null) {
+            dropListener.onFrameDropped(policyName, frame, reason);
+        }
+    }
+
+    public String getPolicyName() {
+        return policyName;
+    }
+
+    public int getReasonCount(int reason) {
+        return reasonCount[reason];
+    }
+
+    public int getVideoFrames() {
+        return videoFrames;
+    }
+
+    public int getAudioFrames() {
+        return audioFrames;
+    }
+
+    public int getKeyframes() {
+        return keyframes;
+    }
+
+    public long getVideoBytes() {
+        return videoBytes;
+    }
+
+    public long getAudioBytes() {
+        return audioBytes;
+    }
+
+    public int getLastDroppedDts() {
+        return lastDroppedDts;
+    }
+
+    @Override
+    public String toString() {
+        return policyName + " dropV=" + videoFrames + "(" + videoBytes + "B, key=" + keyframes + ")"
+                + " dropA=" + audioFrames + "(" + audioBytes + "B)";
+    }
+}
@@ -0,0 +1,35 @@
+package com.ksy.recordlib.service.core;
+
+/**
+ * Default policy: once congested, skip video to the next keyframe. Past the
+ * hard limit whole gops go from the head, with the audio they cover, while a
+ * newer keyframe is queued, and audio older than the queued video is shed.
+ */
+public class DropToNextIDRPolicy implements DropPolicy {
+
+    @Override
+    public int onCongestion(int level, KsySenderQueue queue) {
+        KSYFlvData video = queue.peekVideo();
+        if (video != null && !video.isKeyframe()) {
+            return DROP_VIDEO_TO_NEXT_IDR;
+        }
+        if (level != CONGESTION_HARD) {
+            return DROP_NONE;
+        }
+        if (queue.queuedKeyframes() > 1) {
+            return DROP_OLDEST_GOP;
+        }
+        // with a single gop queued only audio ahead of it shortens the queue
+        return queue.isAudioOldest() ? DROP_AUDIO_HEAD : DROP_NONE;
+    }
+
+    @Override
+    public int onFrame(KSYFlvData frame, int level) {
+        return DROP_NONE;
+    }
+
+    @Override
+    public String getName() {
+        return "drop-to-next-idr";
+    }
+}
@@ -0,0 +1,35 @@
+package com.ksy.recordlib.service.core;
+
+/**
+ * A transport that sends large tags in pieces and can slip other tags in
+ * between them, so audio does not wait behind a keyframe on a slow uplink.
+ * <p/>
+ * KsyRecordSender hands such a transport its audio queue as the
+ * PriorityTagSource. While a write() is in the middle of a tag larger than one
+ * piece, the transport polls the source between pieces and sends what it gets
+ * right away.
+ */
+public interface InterleavingTransport extends StreamTransport {
+
+    /**
+     * called on the thread inside write(), the one that owns the queue
+     */
+    interface PriorityTagSource {
+        /**
+         * @return a tag that is due now, null if none is
+         */
+        KSYFlvData pollPriorityTag();
+
+        /**
+         * the transport is done with a tag pollPriorityTag() returned
+         *
+         * @param result bytes written, -1 on failure
+         */
+        void onPriorityTagWritten(KSYFlvData tag, int result);
+    }
+
+    /**
+     * @param source null to stop interleaving
+     */
+    void setPriorityTagSource(PriorityTagSource source);
+}
@@ -1,5 +1,8 @@
 package com.ksy.recordlib.service.core;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 /**
  * Created by lixiaopeng on 15/7/6.
  */
@@ -9,19 +12,127 @@ public class KSYFlvData {
     public final static int FLV_TYTPE_AUDIO = 12;
     public final static int NALU_TYPE_IDR = 5;
 
+    private static final AtomicIntegerFieldUpdater<KSYFlvData> REF_COUNT =
+            AtomicIntegerFieldUpdater.newUpdater(KSYFlvData.class, "refCount");
+
+    // tags the last owner recycled, handed out again by obtain()
+    private static final int POOL_SIZE = 256;
+    private static final KSYFlvData[] pool = new KSYFlvData[POOL_SIZE];
+    private static int pooled;
+    private static volatile long created;
+
 
     public int dts;//解码时间戳
 
     public byte[] byteBuffer; //数据
 
+    public ByteBuffer directBuffer; //pooled data from KsyDirectBufferPool.forTags(), used instead of byteBuffer when set
+
     public int size; //字节长度
 
     public int type; //视频和音频的分类
 
     public int frameType;
 
+    public int nalRefIdc = 3; //nal_ref_idc, 0 means no other frame references this one
+
+    public boolean sequenceHeader; //AVC sequence header or AAC AudioSpecificConfig, needed again by every new session
+
+    private volatile int refCount = 1; //owners still holding the tag, the data goes back to the pool at 0
+
+    /**
+     * a tag from the pool, or a new one while the pool is empty; it has one
+     * owner and no data, like a new KSYFlvData()
+     */
+    public static KSYFlvData obtain() {
+        KSYFlvData tag = null;
+        synchronized (pool) {
+            if (pooled > 0) {
+                tag = pool[--pooled];
+                pool[pooled] = null;
+            }
+        }
+        if (tag == null) {
+            created++;
+            return new KSYFlvData();
+        }
+        tag.refCount = 1;
+        return tag;
+    }
+
+    /**
+     * tags obtain() had to create, flat once the pool covers what is in flight
+     */
+    public static long getCreated() {
+        return created;
+    }
+
+    /**
+     * owners still holding the tag, 0 once the last one recycled it
+     */
+    int getRefCount() {
+        return refCount;
+    }
+
     public boolean isKeyframe() {
         return frameType == NALU_TYPE_IDR;
     }
 
+    public boolean isReference() {
+        return nalRefIdc != 0;
+    }
+
+    /**
+     * copy the tag bytes to dst's position
+     */
+    public void copyTo(ByteBuffer dst) {
+        ByteBuffer buffer = directBuffer;
+        if (buffer != null) {
+            // destinations sharing the tag copy it concurrently, position and limit are not theirs to race on
+            synchronized (buffer) {
+                buffer.clear();
+                buffer.limit(size);
+                dst.put(buffer);
+            }
+        } else {
+            dst.put(byteBuffer, 0, size);
+        }
+    }
+
+    /**
+     * one more owner, e.g. the queue of another destination. Every owner calls recycle() once,
+     * nobody changes the tag once it is shared
+     */
+    public KSYFlvData retain() {
+        REF_COUNT.incrementAndGet(this);
+        return this;
+    }
+
+    /**
+     * give the data and the tag back to their pools once the last owner sent or
+     * dropped it, nobody may touch the tag afterwards
+     */
+    public void recycle() {
+        if (REF_COUNT.decrementAndGet(this) != 0) {
+            return;
+        }
+        ByteBuffer buffer = directBuffer;
+        if (buffer != null) {
+            directBuffer = null;
+            KsyDirectBufferPool.releaseToOwner(buffer);
+        }
+        byteBuffer = null;
+        dts = 0;
+        size = 0;
+        type = 0;
+        frameType = 0;
+        nalRefIdc = 3;
+        sequenceHeader = false;
+        synchronized (pool) {
+            if (pooled < POOL_SIZE) {
+                pool[pooled++] = this;
+            }
+        }
+    }
+
 }
@@ -0,0 +1,199 @@
+package com.ksy.recordlib.service.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-producer/single-consumer ring buffer of flv tags for one track.
+ * <p/>
+ * offer() may only be called from the producer thread, peek()/poll() only from
+ * the consumer thread. clear() may be called from any thread: it marks every
+ * tag enqueued so far as discarded and the consumer skips them lazily. Their
+ * slots stay taken until it has, a full ring stays full across a clear().
+ * <p/>
+ * Positions are the running sequence numbers of the tags ever offered. The ring
+ * also keeps an index of the positions of the queued keyframes so drop policies
+ * can find the next gop boundary without walking the queue, and keeps the queued
+ * byte count and last dts up to date on every offer/poll.
+ */
+public class KSYFlvRingBuffer {
+
+    private final KSYFlvData[] buffer;
+    private final long[] keyframes;
+    private final int mask;
+
+    // next slot to read, written by consumer only
+    private final AtomicLong head = new AtomicLong();
+    // next slot to write, written by producer only
+    private final AtomicLong tail = new AtomicLong();
+    // tags before this position have been discarded by clear()
+    private final AtomicLong clearMark = new AtomicLong();
+    // keyframe index, same ownership as head/tail
+    private final AtomicLong keyframeHead = new AtomicLong();
+    private final AtomicLong keyframeTail = new AtomicLong();
+    // bytes ever offered, written by producer only
+    private final AtomicLong offeredBytes = new AtomicLong();
+    // bytes ever polled or cleared, written by consumer only
+    private final AtomicLong removedBytes = new AtomicLong();
+    private volatile int lastDts;
+
+    /**
+     * @param capacity rounded up to the next power of two
+     */
+    public KSYFlvRingBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        buffer = new KSYFlvData[size];
+        keyframes = new long[size];
+        mask = size - 1;
+    }
+
+    /**
+     * @return false if the ring is full and the tag was not enqueued
+     */
+    public boolean offer(KSYFlvData data) {
+        long t = tail.get();
+        // cleared tags keep their slots until the consumer recycled them, so only its head frees room
+        if (t - head.get() >= buffer.length) {
+            return false;
+        }
+        buffer[(int) t & mask] = data;
+        if (data.type == KSYFlvData.FLV_TYPE_VIDEO && data.isKeyframe()) {
+            // every indexed keyframe is still in the ring, so the index can not overflow
+            long k = keyframeTail.get();
+            keyframes[(int) k & mask] = t;
+            keyframeTail.set(k + 1);
+        }
+        offeredBytes.set(offeredBytes.get() + data.size);
+        lastDts = data.dts;
+        // volatile store, so a consumer checking for work after parking sees it
+        tail.set(t + 1);
+        return true;
+    }
+
+    public KSYFlvData peek() {
+        long h = applyClear();
+        if (h >= tail.get()) {
+            return null;
+        }
+        return buffer[(int) h & mask];
+    }
+
+    public KSYFlvData poll() {
+        long h = applyClear();
+        if (h >= tail.get()) {
+            return null;
+        }
+        int index = (int) h & mask;
+        KSYFlvData data = buffer[index];
+        buffer[index] = null;
+        removedBytes.set(removedBytes.get() + data.size);
+        advanceHead(h + 1);
+        return data;
+    }
+
+    /**
+     * position of the next tag poll() would return, consumer thread only
+     */
+    public long headPosition() {
+        return applyClear();
+    }
+
+    /**
+     * @return position of the first queued keyframe at or after from, -1 if none is queued yet
+     */
+    public long nextKeyframe(long from) {
+        applyClear();
+        long kt = keyframeTail.get();
+        for (long k = keyframeHead.get(); k < kt; k++) {
+            long position = keyframes[(int) k & mask];
+            if (position >= from) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * number of keyframes currently queued
+     */
+    public int keyframeCount() {
+        applyClear();
+        return (int) (keyframeTail.get() - keyframeHead.get());
+    }
+
+    /**
+     * dts of the oldest queued tag, -1 if empty. Safe from any thread.
+     */
+    public int headDts() {
+        long h = Math.max(head.get(), clearMark.get());
+        if (h >= tail.get()) {
+            return -1;
+        }
+        KSYFlvData data = buffer[(int) h & mask];
+        // raced with the consumer taking it
+        return data != null ? data.dts : -1;
+    }
+
+    /**
+     * dts of the newest queued tag
+     */
+    public int lastDts() {
+        return lastDts;
+    }
+
+    public long bytes() {
+        long b = offeredBytes.get() - removedBytes.get();
+        return b > 0 ? b : 0;
+    }
+
+    public int size() {
+        long s = tail.get() - Math.max(head.get(), clearMark.get());
+        return s > 0 ? (int) s : 0;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    public void clear() {
+        long t = tail.get();
+        long mark = clearMark.get();
+        while (mark < t && !clearMark.compareAndSet(mark, t)) {
+            mark = clearMark.get();
+        }
+    }
+
+    private long applyClear() {
+        long h = head.get();
+        long mark = clearMark.get();
+        if (h < mark) {
+            long removed = 0;
+            while (h < mark) {
+                int index = (int) h & mask;
+                KSYFlvData data = buffer[index];
+                if (data != null) {
+                    removed += data.size;
+                    buffer[index] = null;
+                    data.recycle();
+                }
+                h++;
+            }
+            removedBytes.set(removedBytes.get() + removed);
+            advanceHead(h);
+        }
+        return h;
+    }
+
+    private void advanceHead(long h) {
+        head.set(h);
+        // keyframes behind the head leave the index with their tag
+        long k = keyframeHead.get();
+        long kt = keyframeTail.get();
+        while (k < kt && keyframes[(int) k & mask] < h) {
+            k++;
+        }
+        keyframeHead.set(k);
+    }
+}
@@ -0,0 +1,163 @@
+package com.ksy.recordlib.service.core;
+
+/**
+ * Closed-loop video bitrate controller.
+ * <p/>
+ * Fed once a second with what KsyRecordSender measured: bytes written, time
+ * spent inside write calls and how much media is still queued. The uplink is
+ * estimated from the write throughput; a growing queue means the uplink can
+ * not keep up with the encoder. The target drops multiplicatively as soon as
+ * the queue grows and only climbs back additively after several calm samples
+ * and a hold time, so it does not oscillate around the available bandwidth.
+ * <p/>
+ * MediaRecorder can not change its rate while recording, so the target only
+ * applies once the recorder is prepared again, see
+ * KsyMediaSource.setNextSessionBitrate(). A restart leaves a gap in the video,
+ * getEncoderRestartDelay() tells when one is worth it.
+ * <p/>
+ * Plain java, no android dependency, so it can be driven by BitrateSimulatorTest.
+ */
+public class KsyBitrateController {
+
+    // queue growth per sample treated as congestion
+    private static final int QUEUE_GROWTH_MS = 200;
+    // queue above this is congested whatever its trend
+    private static final int QUEUE_HIGH_MS = 1000;
+    // queue below this lets the target climb
+    private static final int QUEUE_LOW_MS = 300;
+    // calm samples in a row before each increase
+    private static final int INCREASE_SAMPLES = 3;
+    // no increase for this long after a decrease
+    private static final long INCREASE_HOLD_MS = 5000;
+    // smaller changes are not reported
+    private static final float MIN_CHANGE = 0.05f;
+    private static final float DECREASE_FACTOR = 0.75f;
+    private static final float INCREASE_STEP = 0.1f;
+    // share of the estimated uplink the video may use
+    private static final float BANDWIDTH_USAGE = 0.85f;
+    // a target this far off the encoder's rate is worth restarting it for
+    private static final float RESTART_BAND = 0.2f;
+    // and at most this often, every restart costs about a second of video
+    private static final long MIN_RESTART_INTERVAL_MS = 20000;
+    // except when the queue grows, the uplink can not wait that long
+    private static final long MIN_DECREASE_RESTART_INTERVAL_MS = 5000;
+
+    private final int minBitrate;
+    private final int maxBitrate;
+    private final int audioBitrate;
+    private int targetBitrate;
+    private float estimatedBandwidth;
+    private int lastQueueMs;
+    private int calmSamples;
+    private long lastDecreaseTime;
+    private BitrateListener bitrateListener;
+
+    public interface BitrateListener {
+        void onTargetBitrateChanged(int bitrate);
+    }
+
+    /**
+     * all bitrates in bits per second
+     */
+    public KsyBitrateController(int minBitrate, int maxBitrate, int startBitrate, int audioBitrate) {
+        this.minBitrate = minBitrate;
+        this.maxBitrate = maxBitrate;
+        this.audioBitrate = audioBitrate;
+        this.targetBitrate = clamp(startBitrate);
+        this.lastDecreaseTime = Long.MIN_VALUE / 2;
+    }
+
+    public void setBitrateListener(BitrateListener l) {
+        bitrateListener = l;
+    }
+
+    /**
+     * @param sentBytes bytes written to the transport during the period
+     * @param writeMs   time spent inside write calls during the period
+     * @param queueMs   media still queued at the end of the period
+     * @param nowMs     end of the period
+     * @return the target video bitrate
+     */
+    public int onSample(long sentBytes, long writeMs, int queueMs, long nowMs) {
+        if (writeMs > 0 && sentBytes > 0) {
+            float throughput = sentBytes * 8000f / writeMs;
+            if (estimatedBandwidth == 0 || throughput < estimatedBandwidth) {
+                // follow a falling uplink at once
+                estimatedBandwidth = throughput;
+            } else {
+                estimatedBandwidth = estimatedBandwidth * 0.7f + throughput * 0.3f;
+            }
+        }
+        float available = (estimatedBandwidth - audioBitrate) * BANDWIDTH_USAGE;
+        int growth = queueMs - lastQueueMs;
+        lastQueueMs = queueMs;
+
+        int newTarget = targetBitrate;
+        if (growth > QUEUE_GROWTH_MS || queueMs > QUEUE_HIGH_MS) {
+            newTarget = (int) (targetBitrate * DECREASE_FACTOR);
+            if (estimatedBandwidth > 0 && available < newTarget) {
+                newTarget = (int) available;
+            }
+            lastDecreaseTime = nowMs;
+            calmSamples = 0;
+        } else if (queueMs < QUEUE_LOW_MS && (estimatedBandwidth == 0 || available > targetBitrate)) {
+            calmSamples++;
+            if (calmSamples >= INCREASE_SAMPLES && nowMs - lastDecreaseTime >= INCREASE_HOLD_MS) {
+                newTarget = targetBitrate + (int) (maxBitrate * INCREASE_STEP);
+                if (estimatedBandwidth > 0 && available < newTarget) {
+                    newTarget = (int) available;
+                }
+                calmSamples = 0;
+            }
+        } else {
+            calmSamples = 0;
+        }
+        newTarget = clamp(newTarget);
+        if (Math.abs(newTarget - targetBitrate) >= targetBitrate * MIN_CHANGE
+                || (newTarget != targetBitrate && (newTarget == minBitrate || newTarget == maxBitrate))) {
+            targetBitrate = newTarget;
+            if (bitrateListener != null) {
+                bitrateListener.onTargetBitrateChanged(targetBitrate);
+            }
+        }
+        return targetBitrate;
+    }
+
+    public int getTargetBitrate() {
+        return targetBitrate;
+    }
+
+    /**
+     * when to prepare the encoder again at the target: once it is out of the
+     * band around the encoder's rate, and no sooner than MIN_RESTART_INTERVAL_MS
+     * after the last restart, MIN_DECREASE_RESTART_INTERVAL_MS for a lower rate
+     *
+     * @param encoderBitrate rate the running encoder was prepared with
+     * @param lastRestartMs  when it was prepared, on the clock of nowMs
+     * @return 0 to restart now, the ms left to wait, or -1 while the encoder's rate will do
+     */
+    public long getEncoderRestartDelay(int encoderBitrate, long lastRestartMs, long nowMs) {
+        if (Math.abs(targetBitrate - encoderBitrate) <= encoderBitrate * RESTART_BAND) {
+            return -1;
+        }
+        long interval = targetBitrate < encoderBitrate ? MIN_DECREASE_RESTART_INTERVAL_MS : MIN_RESTART_INTERVAL_MS;
+        return Math.max(0, lastRestartMs + interval - nowMs);
+    }
+
+    /**
+     * estimated uplink in bits per second, 0 before the first sample
+     */
+    public int getEstimatedBandwidth() {
+        return (int) estimatedBandwidth;
+    }
+
+    private int clamp(int bitrate) {
+        if (bitrate < minBitrate) {
+            return minBitrate;
+        }
+        if (bitrate > maxBitrate) {
+            return maxBitrate;
+        }
+        return bitrate;
+    }
+}
@@ -0,0 +1,333 @@
+package com.ksy.recordlib.service.core;
+
+import java.util.Random;
+
+/**
+ * Owns the connection of one sender and brings it back after failures.
+ * <p/>
+ * Connection attempts run on the supervisor's own thread, so the media threads
+ * keep enqueuing and the sender thread keeps trimming its queue meanwhile. A
+ * failed attempt or a lost connection is retried after a jittered exponential
+ * backoff, a network that comes back retries at once.
+ * <pre>
+ *   CLOSED -start-> CONNECTING -ok-> LIVE <-congested/recovered-> DEGRADED
+ *                    ^   |fail         |lost               |lost
+ *                    |   v             v                   v
+ *                    +-- BACKOFF <-----+-------------------+
+ * </pre>
+ * CLOSED is left by start() or startInBackground() only, the supervisor thread
+ * never leaves it on its own. Listener callbacks run on whichever thread made
+ * the transition, never while the supervisor holds its lock.
+ */
+public class KsyConnectionSupervisor {
+
+    public static final int STATE_CLOSED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_LIVE = 2;
+    public static final int STATE_DEGRADED = 3;
+    public static final int STATE_BACKOFF = 4;
+
+    private static final String[] STATE_NAMES = {"CLOSED", "CONNECTING", "LIVE", "DEGRADED", "BACKOFF"};
+
+    /**
+     * one blocking connection attempt: tear down what is left of the last session and open a new one
+     */
+    public interface Connector {
+        boolean connect();
+    }
+
+    public interface ConnectionListener {
+        void onConnectionStateChanged(int oldState, int newState);
+    }
+
+    private final Connector connector;
+    private final Object lock = new Object();
+    private final Random random = new Random();
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private volatile int state = STATE_CLOSED;
+    private volatile ConnectionListener connectionListener;
+    private Thread thread;
+    private int attempt;
+    private long retryAt;
+    private boolean networkAvailable = true;
+    // when the last live session was lost, 0 while live
+    private long failedAt;
+    private volatile long lastRecoveryMs = -1;
+    private volatile int recoveries;
+    private volatile int attempts;
+
+    public KsyConnectionSupervisor(Connector connector, long baseDelayMs, long maxDelayMs) {
+        this.connector = connector;
+        this.baseDelayMs = Math.max(1, baseDelayMs);
+        this.maxDelayMs = Math.max(this.baseDelayMs, maxDelayMs);
+    }
+
+    public void setConnectionListener(ConnectionListener l) {
+        connectionListener = l;
+    }
+
+    public static String stateName(int state) {
+        return STATE_NAMES[state];
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public boolean isLive() {
+        int s = state;
+        return s == STATE_LIVE || s == STATE_DEGRADED;
+    }
+
+    /**
+     * time from losing the last session to the next successful connect, -1 before the first recovery
+     */
+    public long getLastRecoveryMs() {
+        return lastRecoveryMs;
+    }
+
+    public int getRecoveries() {
+        return recoveries;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    Thread getThread() {
+        synchronized (lock) {
+            return thread;
+        }
+    }
+
+    /**
+     * make the first attempt on the calling thread, later ones run on the supervisor thread
+     *
+     * @return whether the first attempt succeeded
+     */
+    public boolean start() {
+        synchronized (lock) {
+            if (state != STATE_CLOSED) {
+                return isLive();
+            }
+            reset();
+            state = STATE_CONNECTING;
+        }
+        fire(STATE_CLOSED, STATE_CONNECTING);
+        boolean ok = attempt();
+        thread.start();
+        return ok;
+    }
+
+    /**
+     * like start() but the first attempt runs on the supervisor thread too, for callers that must not block
+     */
+    public void startInBackground() {
+        synchronized (lock) {
+            if (state != STATE_CLOSED) {
+                return;
+            }
+            reset();
+            retryAt = System.currentTimeMillis();
+            state = STATE_BACKOFF;
+        }
+        fire(STATE_CLOSED, STATE_BACKOFF);
+        thread.start();
+    }
+
+    private void reset() {
+        attempt = 0;
+        failedAt = 0;
+        networkAvailable = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "KsyConnectionSupervisor");
+    }
+
+    /**
+     * the sender could not write, the session is gone
+     */
+    public void onConnectionLost() {
+        int old;
+        synchronized (lock) {
+            old = state;
+            if (old != STATE_LIVE && old != STATE_DEGRADED) {
+                return;
+            }
+            failedAt = System.currentTimeMillis();
+            attempt = 0;
+            scheduleRetryLocked();
+            lock.notifyAll();
+        }
+        fire(old, STATE_BACKOFF);
+    }
+
+    public void onNetworkLost() {
+        int old;
+        synchronized (lock) {
+            networkAvailable = false;
+            old = state;
+            if (old != STATE_LIVE && old != STATE_DEGRADED) {
+                return;
+            }
+            failedAt = System.currentTimeMillis();
+            // no retry until the network is back
+            retryAt = Long.MAX_VALUE;
+            state = STATE_BACKOFF;
+        }
+        fire(old, STATE_BACKOFF);
+    }
+
+    public void onNetworkAvailable() {
+        synchronized (lock) {
+            networkAvailable = true;
+            if (state == STATE_BACKOFF) {
+                attempt = 0;
+                retryAt = System.currentTimeMillis();
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * the sender is live but can not keep up, cheap when nothing changes
+     */
+    public void setDegraded(boolean degraded) {
+        int s = state;
+        if (degraded ? s != STATE_LIVE : s != STATE_DEGRADED) {
+            return;
+        }
+        int old;
+        int next = degraded ? STATE_DEGRADED : STATE_LIVE;
+        synchronized (lock) {
+            old = state;
+            if (old != (degraded ? STATE_LIVE : STATE_DEGRADED)) {
+                return;
+            }
+            state = next;
+        }
+        fire(old, next);
+    }
+
+    /**
+     * stop retrying, an attempt already running finishes but is not used
+     */
+    public void close() {
+        transition(STATE_CLOSED);
+    }
+
+    private void loop() {
+        while (true) {
+            boolean interrupted = false;
+            synchronized (lock) {
+                while (true) {
+                    // a start() after close() runs its own thread
+                    if (state == STATE_CLOSED || thread != Thread.currentThread()) {
+                        return;
+                    }
+                    if (state == STATE_BACKOFF && networkAvailable) {
+                        long wait = retryAt - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            break;
+                        }
+                        interrupted = !waitLocked(wait);
+                    } else {
+                        interrupted = !waitLocked(0);
+                    }
+                    if (interrupted) {
+                        break;
+                    }
+                }
+            }
+            if (interrupted) {
+                transition(STATE_CLOSED);
+                return;
+            }
+            if (transition(STATE_CONNECTING)) {
+                attempt();
+            }
+        }
+    }
+
+    private boolean attempt() {
+        attempts++;
+        boolean ok = connector.connect();
+        int old;
+        int next;
+        synchronized (lock) {
+            old = state;
+            if (old != STATE_CONNECTING) {
+                // closed meanwhile
+                return false;
+            }
+            if (ok) {
+                attempt = 0;
+                if (failedAt > 0) {
+                    lastRecoveryMs = System.currentTimeMillis() - failedAt;
+                    recoveries++;
+                    failedAt = 0;
+                }
+                state = STATE_LIVE;
+            } else {
+                if (failedAt == 0) {
+                    failedAt = System.currentTimeMillis();
+                }
+                scheduleRetryLocked();
+            }
+            next = state;
+        }
+        fire(old, next);
+        return ok;
+    }
+
+    /**
+     * equal jitter: uniformly between half and all of base * 2^attempt, capped
+     */
+    private void scheduleRetryLocked() {
+        long delay = attempt < 30 ? Math.min(maxDelayMs, baseDelayMs << attempt) : maxDelayMs;
+        attempt++;
+        long half = delay / 2;
+        retryAt = System.currentTimeMillis() + half + (long) (random.nextDouble() * (delay - half));
+        state = STATE_BACKOFF;
+    }
+
+    /**
+     * @return false if the supervisor is closed or already in next
+     */
+    private boolean transition(int next) {
+        int old;
+        synchronized (lock) {
+            old = state;
+            if (old == STATE_CLOSED || old == next) {
+                return false;
+            }
+            state = next;
+            lock.notifyAll();
+        }
+        fire(old, next);
+        return true;
+    }
+
+    /**
+     * @return false if the thread was interrupted
+     */
+    private boolean waitLocked(long ms) {
+        try {
+            lock.wait(ms);
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    private void fire(int old, int next) {
+        ConnectionListener l = connectionListener;
+        if (l != null) {
+            l.onConnectionStateChanged(old, next);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.ksy.recordlib.service.core;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct ByteBuffers the media sources build flv tags into, so the
+ * sender can hand them to native without pinning or copying a java array.
+ * When the native library can only take arrays, forTags() returns a pool of
+ * heap buffers instead, so tags are not allocated per frame either way.
+ * <p/>
+ * Buffers are kept in power of two size classes, each class is a small stack
+ * guarded by its own lock: acquire() runs on the audio and video threads,
+ * release() on the sender thread, so contention stays low. Buffers larger
+ * than the biggest class are allocated on demand and left to the gc.
+ */
+public class KsyDirectBufferPool {
+
+    private static final int MIN_CLASS_SHIFT = 8;
+    private static final int MAX_CLASS_SHIFT = 20;
+    private static final int BUFFERS_PER_CLASS = 32;
+
+    private static final KsyDirectBufferPool defaultPool = new KsyDirectBufferPool(true);
+    private static final KsyDirectBufferPool heapPool = new KsyDirectBufferPool(false);
+
+    private final boolean direct;
+
+    private final ByteBuffer[][] free = new ByteBuffer[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1][BUFFERS_PER_CLASS];
+    private final int[] freeCount = new int[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+    // acquire() runs on both source threads
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+
+    public KsyDirectBufferPool(boolean direct) {
+        this.direct = direct;
+    }
+
+    public static KsyDirectBufferPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * the pool sources build tags from, direct while native can write direct buffers
+     */
+    public static KsyDirectBufferPool forTags() {
+        return KsyRecordSender.isDirectWriteSupported() ? defaultPool : heapPool;
+    }
+
+    /**
+     * hand a buffer from either shared pool back to the one it came from
+     */
+    static void releaseToOwner(ByteBuffer buffer) {
+        (buffer.isDirect() ? defaultPool : heapPool).release(buffer);
+    }
+
+    /**
+     * @return a buffer of this pool, direct or heap, with position 0 and limit size
+     */
+    public ByteBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = null;
+        if (sizeClass >= 0) {
+            ByteBuffer[] stack = free[sizeClass];
+            synchronized (stack) {
+                int count = freeCount[sizeClass];
+                if (count > 0) {
+                    buffer = stack[--count];
+                    stack[count] = null;
+                    freeCount[sizeClass] = count;
+                }
+            }
+        }
+        if (buffer == null) {
+            int capacity = sizeClass >= 0 ? 1 << (sizeClass + MIN_CLASS_SHIFT) : size;
+            buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+            allocated.incrementAndGet();
+        } else {
+            reused.incrementAndGet();
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * hand a buffer from acquire() back, the caller must not touch it afterwards
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.isDirect() != direct) {
+            return;
+        }
+        released.incrementAndGet();
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass < 0 || 1 << (sizeClass + MIN_CLASS_SHIFT) != capacity) {
+            return;
+        }
+        ByteBuffer[] stack = free[sizeClass];
+        synchronized (stack) {
+            int count = freeCount[sizeClass];
+            if (count < BUFFERS_PER_CLASS) {
+                stack[count] = buffer;
+                freeCount[sizeClass] = count + 1;
+            }
+        }
+    }
+
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    public long getReused() {
+        return reused.get();
+    }
+
+    /**
+     * buffers handed back, kept or not; equals allocated plus reused once every tag is recycled
+     */
+    public long getReleased() {
+        return released.get();
+    }
+
+    /**
+     * index of the smallest class holding size, -1 if none does
+     */
+    private static int sizeClass(int size) {
+        int shift = MIN_CLASS_SHIFT;
+        while (shift <= MAX_CLASS_SHIFT && 1 << shift < size) {
+            shift++;
+        }
+        return shift <= MAX_CLASS_SHIFT ? shift - MIN_CLASS_SHIFT : -1;
+    }
+}
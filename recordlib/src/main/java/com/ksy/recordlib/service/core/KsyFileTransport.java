@@ -0,0 +1,96 @@
+package com.ksy.recordlib.service.core;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes what the sender pushes to a local flv file instead of a server, the
+ * output url is the file path, optionally with a file:// prefix.
+ * <p/>
+ * Tags are stored exactly as sent, including whatever previous tag size the
+ * sources put behind them. KsyFlvFileSink writes a cleaned up archive instead.
+ */
+public class KsyFileTransport implements StreamTransport {
+
+    private static final String TAG = "KsyFileTransport";
+    private static final String FILE_SCHEME = "file://";
+    // signature, version 1, audio and video present, header size 9, previous tag size 0
+    private static final byte[] FILE_HEADER = {'F', 'L', 'V', 1, 5, 0, 0, 0, 9, 0, 0, 0, 0};
+
+    private String path;
+    private FileChannel channel;
+    private boolean append;
+
+    @Override
+    public int setOutputUrl(String url) {
+        path = url != null && url.startsWith(FILE_SCHEME) ? url.substring(FILE_SCHEME.length()) : url;
+        append = false;
+        return path != null ? 0 : -1;
+    }
+
+    /**
+     * the first open() starts a new file, reopening after a failure appends to it
+     */
+    @Override
+    public int open() {
+        close();
+        try {
+            RandomAccessFile file = new RandomAccessFile(path, "rw");
+            channel = file.getChannel();
+            if (append) {
+                channel.position(channel.size());
+            } else {
+                file.setLength(0);
+                channel.write(ByteBuffer.wrap(FILE_HEADER));
+                append = true;
+            }
+            return 0;
+        } catch (IOException e) {
+            Log.e(TAG, "open " + path + " failed " + e);
+            close();
+            return -1;
+        }
+    }
+
+    @Override
+    public int close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close " + path + " failed " + e);
+            }
+            channel = null;
+        }
+        return 0;
+    }
+
+    @Override
+    public int write(ByteBuffer buffer, int length) {
+        if (channel == null) {
+            return -1;
+        }
+        try {
+            synchronized (buffer) {
+                buffer.clear();
+                buffer.limit(length);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            return length;
+        } catch (IOException e) {
+            Log.e(TAG, "write " + path + " failed " + e);
+            return -1;
+        }
+    }
+
+    @Override
+    public int write(byte[] buffer, int length) {
+        return write(ByteBuffer.wrap(buffer), length);
+    }
+}
@@ -0,0 +1,261 @@
+package com.ksy.recordlib.service.core;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes every tag the sources produce to a local flv file, next to the live push.
+ * <p/>
+ * offer() is called by the audio and video threads before any drop policy sees
+ * the tag. It only retains the tag and puts it into a lock free queue, the file
+ * is written by the sink's own thread. Tags are gathered in a large direct buffer
+ * and written out in multiples of WRITE_ALIGNMENT bytes. Before every keyframe the
+ * buffer is written out completely and the file is synced, so a crash loses at
+ * most the gop being written.
+ * <p/>
+ * When the disk can not keep up the queue fills and offer() drops, the live push
+ * is never held up.
+ */
+public class KsyFlvFileSink {
+
+    private static final String TAG = "KsyFlvFileSink";
+
+    private static final int TRACK_QUEUE_CAPACITY = 512;
+    private static final int WRITE_ALIGNMENT = 64 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 16 * WRITE_ALIGNMENT;
+    private static final int TAG_HEADER_SIZE = 11;
+    private static final int TIMESTAMP_OFFSET = 4;
+    // signature, version 1, audio and video present, header size 9, previous tag size 0
+    private static final byte[] FILE_HEADER = {'F', 'L', 'V', 1, 5, 0, 0, 0, 9, 0, 0, 0, 0};
+
+    private final File file;
+    private final KsySenderQueue queue = new KsySenderQueue(TRACK_QUEUE_CAPACITY);
+    private volatile Thread thread;
+    private volatile boolean parked;
+    private volatile boolean stopping;
+    private volatile IOException error;
+
+    // sink thread only
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    private long filePosition;
+    private int tagsSinceSync;
+
+    private volatile long writtenTags;
+    private volatile long writtenBytes;
+    // both source threads drop
+    private final AtomicLong droppedTags = new AtomicLong();
+    private volatile int syncCount;
+
+    public KsyFlvFileSink(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * create or truncate the file and start the sink thread
+     */
+    public void start() throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("can not create " + dir);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        channel = raf.getChannel();
+        buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        buffer.put(FILE_HEADER);
+        filePosition = 0;
+        tagsSinceSync = 0;
+        stopping = false;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, TAG);
+        thread.start();
+    }
+
+    /**
+     * write out what is queued, sync and close the file on the sink thread, returns at once
+     */
+    public void stop() {
+        stopping = true;
+        Thread t = thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * wait for the sink thread to finish what stop() started
+     *
+     * @return false if it is still running after timeoutMs
+     */
+    public boolean awaitStop(long timeoutMs) throws InterruptedException {
+        Thread t = thread;
+        if (t == null) {
+            return true;
+        }
+        t.join(timeoutMs);
+        return !t.isAlive();
+    }
+
+    /**
+     * never blocks, the tag is dropped if the sink is behind or failed
+     *
+     * @return false if the tag was dropped
+     */
+    public boolean offer(KSYFlvData tag) {
+        if (stopping || error != null) {
+            droppedTags.incrementAndGet();
+            return false;
+        }
+        tag.retain();
+        boolean queued = tag.type == KSYFlvData.FLV_TYPE_VIDEO ? queue.offerVideo(tag) : queue.offerAudio(tag);
+        if (!queued) {
+            droppedTags.incrementAndGet();
+            tag.recycle();
+            return false;
+        }
+        if (parked) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    public long getWrittenTags() {
+        return writtenTags;
+    }
+
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    public long getDroppedTags() {
+        return droppedTags.get();
+    }
+
+    public int getSyncCount() {
+        return syncCount;
+    }
+
+    /**
+     * what stopped the sink, null while it is fine
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    private void loop() {
+        try {
+            while (true) {
+                KSYFlvData tag = queue.poll();
+                if (tag != null) {
+                    try {
+                        if (error == null) {
+                            append(tag);
+                        }
+                    } finally {
+                        tag.recycle();
+                    }
+                    continue;
+                }
+                if (stopping) {
+                    break;
+                }
+                parked = true;
+                if (queue.size() == 0 && !stopping) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+            }
+            if (error == null) {
+                flush(true);
+                channel.force(true);
+                syncCount++;
+            }
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            queue.clear();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close " + file + " failed " + e);
+            }
+            Log.d(TAG, file + ": " + writtenTags + " tags, " + writtenBytes + " bytes, " + droppedTags + " dropped");
+        }
+    }
+
+    private void append(KSYFlvData tag) {
+        try {
+            if (tag.type == KSYFlvData.FLV_TYPE_VIDEO && tag.isKeyframe() && !tag.sequenceHeader && tagsSinceSync > 0) {
+                // everything before a keyframe is a complete gop
+                flush(true);
+                channel.force(false);
+                syncCount++;
+                tagsSinceSync = 0;
+            }
+            if (buffer.remaining() < tag.size) {
+                flush(false);
+                if (buffer.remaining() < tag.size) {
+                    flush(true);
+                    if (buffer.capacity() < tag.size) {
+                        buffer = ByteBuffer.allocateDirect((tag.size / WRITE_ALIGNMENT + 1) * WRITE_ALIGNMENT);
+                    }
+                }
+            }
+            int start = buffer.position();
+            tag.copyTo(buffer);
+            // the copy is ours: take the dts the sender settled on and a previous tag size
+            // that follows the spec, whatever the source put there
+            buffer.put(start + TIMESTAMP_OFFSET, (byte) (tag.dts >> 16));
+            buffer.put(start + TIMESTAMP_OFFSET + 1, (byte) (tag.dts >> 8));
+            buffer.put(start + TIMESTAMP_OFFSET + 2, (byte) tag.dts);
+            buffer.put(start + TIMESTAMP_OFFSET + 3, (byte) (tag.dts >> 24));
+            int dataSize = (buffer.get(start + 1) & 0xff) << 16 | (buffer.get(start + 2) & 0xff) << 8 | buffer.get(start + 3) & 0xff;
+            buffer.putInt(start + tag.size - 4, TAG_HEADER_SIZE + dataSize);
+            tagsSinceSync++;
+            writtenTags++;
+            writtenBytes += tag.size;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * @param all false to keep back what does not fill a whole WRITE_ALIGNMENT block of the file
+     */
+    private void flush(boolean all) throws IOException {
+        int length = buffer.position();
+        int count = all ? length : (int) ((filePosition + length) / WRITE_ALIGNMENT * WRITE_ALIGNMENT - filePosition);
+        if (count <= 0) {
+            return;
+        }
+        buffer.flip();
+        buffer.limit(count);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        filePosition += count;
+        buffer.limit(length);
+        buffer.compact();
+    }
+
+    private void fail(IOException e) {
+        Log.e(TAG, "writing " + file + " failed, archiving stops " + e);
+        error = e;
+    }
+}
@@ -0,0 +1,171 @@
+package com.ksy.recordlib.service.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Copies of the latest sequence headers and of the video tags sent since the
+ * last keyframe, so a new rtmp session can be primed without restarting the
+ * encoders.
+ * <p/>
+ * The sender feeds every tag it wrote successfully through onSent() and, after
+ * a reconnect, writes replay() ahead of the first queued tag. The copies are
+ * owned by the cache: the tags themselves go back to their pool once sent.
+ * <p/>
+ * Sender thread only.
+ */
+public class KsyGopCache {
+
+    private static final int TIMESTAMP_OFFSET = 4;
+
+    private final int maxBytes;
+    private byte[] videoHeader;
+    private int videoHeaderSize;
+    private byte[] audioHeader;
+    private int audioHeaderSize;
+
+    private ByteBuffer gop = ByteBuffer.allocate(64 * 1024);
+    private int[] tagOffsets = new int[64];
+    private int[] tagDts = new int[64];
+    private int tagCount;
+    // false from a gop that outgrew maxBytes until the next keyframe
+    private boolean gopValid;
+
+    /**
+     * @param maxBytes largest gop kept, a longer one is not replayed
+     */
+    public KsyGopCache(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void onSent(KSYFlvData tag) {
+        if (tag.sequenceHeader) {
+            if (tag.type == KSYFlvData.FLV_TYPE_VIDEO) {
+                videoHeader = copy(tag, videoHeader);
+                videoHeaderSize = tag.size;
+            } else {
+                audioHeader = copy(tag, audioHeader);
+                audioHeaderSize = tag.size;
+            }
+            return;
+        }
+        if (tag.type != KSYFlvData.FLV_TYPE_VIDEO) {
+            return;
+        }
+        if (tag.isKeyframe()) {
+            gop.clear();
+            tagCount = 0;
+            gopValid = true;
+        }
+        if (!gopValid) {
+            return;
+        }
+        int offset = gop.position();
+        if (offset + tag.size > maxBytes) {
+            gopValid = false;
+            tagCount = 0;
+            return;
+        }
+        if (offset + tag.size > gop.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.min(maxBytes, Math.max(gop.capacity() * 2, offset + tag.size)));
+            gop.flip();
+            grown.put(gop);
+            gop = grown;
+        }
+        if (tagCount == tagOffsets.length) {
+            tagOffsets = grow(tagOffsets);
+            tagDts = grow(tagDts);
+        }
+        tagOffsets[tagCount] = offset;
+        tagDts[tagCount] = tag.dts;
+        tagCount++;
+        tag.copyTo(gop);
+    }
+
+    public void clear() {
+        videoHeader = null;
+        audioHeader = null;
+        gop.clear();
+        tagCount = 0;
+        gopValid = false;
+    }
+
+    /**
+     * bytes replay() writes
+     */
+    public int replaySize() {
+        int size = gop.position();
+        if (videoHeader != null) {
+            size += videoHeaderSize;
+        }
+        if (audioHeader != null) {
+            size += audioHeaderSize;
+        }
+        return size;
+    }
+
+    public int replayTags() {
+        return tagCount + (videoHeader != null ? 1 : 0) + (audioHeader != null ? 1 : 0);
+    }
+
+    /**
+     * write both sequence headers and the cached gop to dst. The gop is shifted so its
+     * last tag lands just before nextDts and the headers take the dts of its first tag,
+     * so the new session sees one contiguous timeline however long the outage was.
+     *
+     * @param nextDts dts of the first tag sent after the replay
+     * @return bytes written
+     */
+    public int replay(ByteBuffer dst, int nextDts) {
+        int start = dst.position();
+        int shift = 0;
+        int headerDts = nextDts;
+        if (tagCount > 0) {
+            shift = nextDts - 1 - tagDts[tagCount - 1];
+            if (tagDts[0] + shift < 0) {
+                shift = -tagDts[0];
+            }
+            headerDts = tagDts[0] + shift;
+        }
+        if (headerDts < 0) {
+            headerDts = 0;
+        }
+        if (videoHeader != null) {
+            putTag(dst, videoHeader, 0, videoHeaderSize, headerDts);
+        }
+        if (audioHeader != null) {
+            putTag(dst, audioHeader, 0, audioHeaderSize, headerDts);
+        }
+        byte[] data = gop.array();
+        for (int i = 0; i < tagCount; i++) {
+            int end = i + 1 < tagCount ? tagOffsets[i + 1] : gop.position();
+            putTag(dst, data, tagOffsets[i], end - tagOffsets[i], tagDts[i] + shift);
+        }
+        return dst.position() - start;
+    }
+
+    private static void putTag(ByteBuffer dst, byte[] tag, int offset, int size, int dts) {
+        int tagStart = dst.position();
+        dst.put(tag, offset, size);
+        // flv keeps the low 24 bits first and the extended byte last
+        dst.put(tagStart + TIMESTAMP_OFFSET, (byte) (dts >> 16));
+        dst.put(tagStart + TIMESTAMP_OFFSET + 1, (byte) (dts >> 8));
+        dst.put(tagStart + TIMESTAMP_OFFSET + 2, (byte) dts);
+        dst.put(tagStart + TIMESTAMP_OFFSET + 3, (byte) (dts >> 24));
+    }
+
+    private static byte[] copy(KSYFlvData tag, byte[] reuse) {
+        byte[] copy = reuse != null && reuse.length >= tag.size ? reuse : new byte[tag.size];
+        tag.copyTo(ByteBuffer.wrap(copy));
+        return copy;
+    }
+
+    private static int[] grow(int[] array) {
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
@@ -0,0 +1,70 @@
+package com.ksy.recordlib.service.core;
+
+import android.util.Log;
+
+import com.ksy.recordlib.service.util.Constants;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The native rtmp push. The natives are bound to KsyRecordSender and keep their
+ * session in its mNativeRTMP, so this transport only ever serves its owner.
+ */
+public class KsyJniTransport implements StreamTransport {
+
+    private static final String TAG = "KsyJniTransport";
+
+    private final KsyRecordSender owner;
+    // for heap copies of direct buffers once _writeDirect turned out to be missing
+    private byte[] heapScratch;
+
+    KsyJniTransport(KsyRecordSender owner) {
+        this.owner = owner;
+    }
+
+    @Override
+    public int setOutputUrl(String url) {
+        return owner._set_output_url(url);
+    }
+
+    @Override
+    public int open() {
+        return owner._open();
+    }
+
+    @Override
+    public int close() {
+        return owner._close();
+    }
+
+    /**
+     * direct buffers cross jni as they are, anything else as a java array
+     */
+    @Override
+    public int write(ByteBuffer buffer, int length) {
+        if (buffer.isDirect() && KsyRecordSender.isDirectWriteSupported()) {
+            try {
+                return owner._writeDirect(buffer, 0, length);
+            } catch (UnsatisfiedLinkError e) {
+                KsyRecordSender.disableDirectWrite();
+                Log.w(TAG, "native library has no _writeDirect, falling back to byte[] writes");
+            }
+        }
+        if (buffer.hasArray()) {
+            return owner._write(buffer.array(), length);
+        }
+        if (heapScratch == null || heapScratch.length < length) {
+            heapScratch = new byte[Math.max(length, Constants.CONFIG_SEND_BATCH_BYTES)];
+        }
+        synchronized (buffer) {
+            buffer.clear();
+            buffer.get(heapScratch, 0, length);
+        }
+        return owner._write(heapScratch, length);
+    }
+
+    @Override
+    public int write(byte[] buffer, int length) {
+        return owner._write(buffer, length);
+    }
+}
@@ -5,6 +5,7 @@ import android.util.Log;
 import com.ksy.recordlib.service.util.Constants;
 import com.ksy.recordlib.service.util.OnClientErrorListener;
 
+import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -17,9 +18,13 @@ public abstract class KsyMediaSource implements Runnable {
     protected Thread thread;
     protected FileInputStream is;
     protected FileChannel inputChannel;
-    protected byte[] header = new byte[4];
+    // the pipe is read in bulk into this buffer, parsers take their units from it in place
+    private ByteBuffer readBuffer;
+    private ByteBuffer readSlice;
+    private long readOffset;
     protected long ts = 0;
-    protected static ClockSync sync = new ClockSync();
+    // the clock of the sender this source feeds
+    protected ClockSync sync;
     protected OnClientErrorListener onClientErrorListener;
     protected boolean mRunning = false;
 
@@ -31,32 +36,147 @@ public abstract class KsyMediaSource implements Runnable {
 
     public abstract void release();
 
+    /**
+     * bits per second the encoder starts at the next time it is prepared, the
+     * running encoder keeps its rate. sources that can not set their rate ignore it.
+     */
+    public void setNextSessionBitrate(int bitrate) {
+    }
 
-    protected int fill(byte[] buffer, int offset, int length) throws IOException {
-        int sum = 0, len;
-        while (sum < length) {
-            len = is.read(buffer, offset + sum, length - sum);
-            if (len < 0) {
-                throw new IOException("End of stream");
-            } else sum += len;
+
+    /**
+     * read from in through the shared read buffer from now on, whatever an
+     * earlier stream left in the buffer is dropped
+     *
+     * @param capacity the starting size of the buffer, it grows for units that do not fit
+     */
+    protected void openReader(FileInputStream in, int capacity) {
+        is = in;
+        inputChannel = in.getChannel();
+        if (readBuffer == null || readBuffer.capacity() < capacity) {
+            readBuffer = ByteBuffer.allocateDirect(capacity);
+            readSlice = readBuffer.duplicate();
+        }
+        // empty, position is the parse position and limit the end of what was read
+        readBuffer.clear().limit(0);
+        readOffset = 0;
+    }
+
+    /**
+     * make sure length bytes from the parse position are in the read buffer.
+     * Reads go into all the free space behind the data, a pipe fills up to
+     * its own size, 64KB on Linux, per read.
+     */
+    protected void require(int length) throws IOException {
+        if (!prefetch(length)) {
+            throw new EOFException("End of stream");
         }
-        return sum;
     }
 
-    protected int readIntoBuffer(ByteBuffer byteBuffer, int length) throws IOException {
-        int sum = 0, len;
-        if (byteBuffer.position() + length > byteBuffer.capacity()) {
-            byteBuffer.limit(byteBuffer.capacity());
-        } else {
-            byteBuffer.limit(byteBuffer.position() + length);
+    /**
+     * require() for a look ahead the stream may not have
+     *
+     * @return false when the stream ended first, what it had is buffered
+     */
+    protected boolean prefetch(int length) throws IOException {
+        ByteBuffer b = readBuffer;
+        if (b.remaining() >= length) {
+            return true;
+        }
+        if (length > b.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(length, b.capacity() * 2));
+            readOffset += b.position();
+            bigger.put(b).flip();
+            readBuffer = b = bigger;
+            readSlice = b.duplicate();
+        } else if (b.position() + length > b.capacity()) {
+            readOffset += b.position();
+            b.compact().flip();
         }
-        while (sum < length) {
-            len = inputChannel.read(byteBuffer);
+        int start = b.position();
+        while (b.remaining() < length) {
+            b.position(b.limit()).limit(b.capacity());
+            int len = inputChannel.read(b);
+            b.limit(b.position()).position(start);
             if (len < 0) {
-                throw new IOException("End of stream");
-            } else sum += len;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * unsigned byte at offset from the parse position, require() it first
+     */
+    protected int peek(int offset) {
+        return readBuffer.get(readBuffer.position() + offset) & 0xff;
+    }
+
+    /**
+     * big endian int at offset from the parse position, require() it first
+     */
+    protected int peekInt(int offset) {
+        return readBuffer.getInt(readBuffer.position() + offset);
+    }
+
+    /**
+     * bytes in the read buffer from the parse position, without reading
+     */
+    protected int buffered() {
+        return readBuffer.remaining();
+    }
+
+    protected void skip(int length) {
+        readBuffer.position(readBuffer.position() + length);
+    }
+
+    /**
+     * skip length bytes of the stream, buffered or not
+     */
+    protected void discard(long length) throws IOException {
+        while (length > 0) {
+            require(1);
+            int n = (int) Math.min(length, readBuffer.remaining());
+            skip(n);
+            length -= n;
         }
-        return sum;
+    }
+
+    /**
+     * the next length bytes without copying them, valid until the next require();
+     * require() them first
+     */
+    protected ByteBuffer slice(int length) {
+        int start = readBuffer.position();
+        readSlice.clear();
+        readSlice.position(start).limit(start + length);
+        readBuffer.position(start + length);
+        return readSlice;
+    }
+
+    /**
+     * bytes of the stream before the parse position
+     */
+    protected long streamOffset() {
+        return readOffset + readBuffer.position();
+    }
+
+    /**
+     * the 11 byte flv tag header at frame's position: type, 24 bit data size,
+     * timestamp low 24 bits then the extended byte, stream id 0
+     */
+    protected static void putTagHeader(ByteBuffer frame, int type, int dataSize, long ts) {
+        frame.put((byte) type);
+        frame.put((byte) (dataSize >> 16));
+        frame.put((byte) (dataSize >> 8));
+        frame.put((byte) dataSize);
+        frame.put((byte) (ts >> 16));
+        frame.put((byte) (ts >> 8));
+        frame.put((byte) ts);
+        frame.put((byte) (ts >> 24));
+        frame.put((byte) 0);
+        frame.put((byte) 0);
+        frame.put((byte) 0);
     }
 
     public static class ClockSync {
@@ -67,9 +187,14 @@ public abstract class KsyMediaSource implements Runnable {
         private int avDistance = 0;
         private boolean inited = false;
         private double lastTS = 0;
-        public String lastMessage;
+        private long lastDelta = 0;
         long average = 0;
         private boolean forceSyncFlag = false;
+        private final KsyRecordSender sender;
+
+        public ClockSync(KsyRecordSender sender) {
+            this.sender = sender;
+        }
 
         public long getTime() {
             long d;
@@ -107,18 +232,48 @@ public abstract class KsyMediaSource implements Runnable {
                     lastTS += (average + delta);
                 }
             }
-            lastMessage = String.format("sync: avDis=%d delta=%d lastTs=%.1f avg=%d", avDistance, delta, lastTS, average);
+            lastDelta = delta;
             return (long) lastTS;
         }
 
+        public int getAvDistance() {
+            return avDistance;
+        }
+
+        public long getLastDelta() {
+            return lastDelta;
+        }
+
+        public long getAverage() {
+            return average;
+        }
+
+        /**
+         * built on demand, getTime() runs per video frame and stays free of formatting
+         */
+        @Override
+        public String toString() {
+            return "sync: avDis=" + avDistance + " delta=" + lastDelta + " lastTs=" + (long) lastTS + " avg=" + average;
+        }
+
         public void clear() {
             inited = false;
         }
 
+        /**
+         * forget the last recording, clear() keeps the av distance and a pending forced sync
+         */
+        public void reset() {
+            inited = false;
+            avDistance = 0;
+            lastDelta = 0;
+            forceSyncFlag = false;
+        }
+
         public void setAvDistance(int avDistance) {
             if (forceSyncFlag) {
                 lastTS += avDistance;
-                KsyRecordSender.getRecordInstance().clearData();
+                sender.clearData();
                 forceSyncFlag = false;
             } else {
                 this.avDistance = avDistance;
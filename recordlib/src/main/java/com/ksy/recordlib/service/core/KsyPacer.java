@@ -0,0 +1,180 @@
+package com.ksy.recordlib.service.core;
+
+/**
+ * Maps tag dts to wall clock deadlines for the sender.
+ * <p/>
+ * The first tag anchors dts to System.nanoTime(), every later tag is due at
+ * its dts on that clock. The distance between the two is the lag, positive
+ * when the sender is behind:
+ * <ul>
+ * <li>normal: the lag is within bounds, the tag is due at its deadline</li>
+ * <li>catch up: the sender is behind by more than the burst allowance, tags go
+ * out at catchUpSpeed times real time until the backlog is drained. Up to the
+ * burst allowance of wall time the sender spent stalled is spent at once.</li>
+ * <li>slow down: dts runs ahead of the clock by more than MAX_LEAD_MS, tags go
+ * out slower than real time instead of stalling the sender in one long wait</li>
+ * </ul>
+ * A lag beyond RESYNC_MS is a timestamp discontinuity and re-anchors the clock.
+ * <p/>
+ * Not thread safe, the sender thread owns it. Plain java so it can be driven with
+ * a fake clock.
+ */
+public class KsyPacer {
+
+    public static final int MODE_NORMAL = 0;
+    public static final int MODE_CATCH_UP = 1;
+    public static final int MODE_SLOW_DOWN = 2;
+
+    private static final long MS = 1000000L;
+    // dts ahead of the clock by more than this is paced slower than real time
+    private static final int MAX_LEAD_MS = 200;
+    private static final float SLOW_DOWN_SPEED = 0.8f;
+    private static final int RESYNC_MS = 5000;
+    // longer gaps between tags are timestamp jumps, not media time
+    private static final int MAX_STEP_MS = 100;
+
+    private final long burstNanos;
+    private final float catchUpSpeed;
+
+    private boolean started;
+    private long offsetNanos;
+    private long lastTarget;
+    private int lastDts;
+    private int mode = MODE_NORMAL;
+    private long lagNanos;
+
+    private long pacedCount;
+    private long jitterSumNanos;
+    private long maxJitterNanos;
+    private int resyncCount;
+
+    /**
+     * @param burstMs      backlog sent without pacing after a stall
+     * @param catchUpSpeed how much faster than real time a larger backlog drains, above 1
+     */
+    public KsyPacer(int burstMs, float catchUpSpeed) {
+        this.burstNanos = burstMs * MS;
+        this.catchUpSpeed = catchUpSpeed > 1 ? catchUpSpeed : 1;
+    }
+
+    /**
+     * re-anchor on the next tag
+     */
+    public void reset() {
+        started = false;
+        mode = MODE_NORMAL;
+        lagNanos = 0;
+    }
+
+    /**
+     * @return the System.nanoTime() the tag is due at, at or before nowNanos if it is due already
+     */
+    public long deadline(int dts, long nowNanos) {
+        if (!started) {
+            anchor(dts, nowNanos);
+            return nowNanos;
+        }
+        long deadline = offsetNanos + dts * MS;
+        long lag = nowNanos - deadline;
+        if (lag > RESYNC_MS * MS || -lag > RESYNC_MS * MS) {
+            resyncCount++;
+            anchor(dts, nowNanos);
+            return nowNanos;
+        }
+        lagNanos = lag;
+        mode = modeFor(lag);
+        long target = target(dts, deadline, mode, nowNanos);
+        lastTarget = target;
+        lastDts = dts;
+        return target;
+    }
+
+    /**
+     * what deadline() would return for the tag, without taking it: the anchor,
+     * mode and lag stay as they are
+     */
+    public long peekDeadline(int dts, long nowNanos) {
+        if (!started) {
+            return nowNanos;
+        }
+        long deadline = offsetNanos + dts * MS;
+        long lag = nowNanos - deadline;
+        if (lag > RESYNC_MS * MS || -lag > RESYNC_MS * MS) {
+            return nowNanos;
+        }
+        return target(dts, deadline, modeFor(lag), nowNanos);
+    }
+
+    private int modeFor(long lag) {
+        if (lag > burstNanos) {
+            return MODE_CATCH_UP;
+        }
+        return -lag > MAX_LEAD_MS * MS ? MODE_SLOW_DOWN : MODE_NORMAL;
+    }
+
+    private long target(int dts, long deadline, int mode, long nowNanos) {
+        long step = dts > lastDts ? Math.min(dts - lastDts, MAX_STEP_MS) * MS : 0;
+        // up to the burst allowance of unused time goes out at once
+        long previous = Math.max(lastTarget, nowNanos - burstNanos);
+        if (mode == MODE_CATCH_UP) {
+            return previous + (long) (step / catchUpSpeed);
+        }
+        if (mode == MODE_SLOW_DOWN) {
+            return Math.min(previous + (long) (step / SLOW_DOWN_SPEED), deadline);
+        }
+        return deadline;
+    }
+
+    /**
+     * record how late a tag that had to wait actually went out
+     */
+    public void onPaced(long deadlineNanos, long sentNanos) {
+        long jitter = sentNanos - deadlineNanos;
+        if (jitter < 0) {
+            jitter = 0;
+        }
+        pacedCount++;
+        jitterSumNanos += jitter;
+        if (jitter > maxJitterNanos) {
+            maxJitterNanos = jitter;
+        }
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * positive when the sender is behind the clock
+     */
+    public int getLagMs() {
+        return (int) (lagNanos / MS);
+    }
+
+    public long getAvgJitterUs() {
+        return pacedCount > 0 ? jitterSumNanos / pacedCount / 1000 : 0;
+    }
+
+    public long getMaxJitterUs() {
+        return maxJitterNanos / 1000;
+    }
+
+    public int getResyncCount() {
+        return resyncCount;
+    }
+
+    @Override
+    public String toString() {
+        return "pace=" + (mode == MODE_CATCH_UP ? "catchup" : mode == MODE_SLOW_DOWN ? "slowdown" : "normal")
+                + " lag=" + getLagMs() + "ms jitter=" + getAvgJitterUs() + "/" + getMaxJitterUs() + "us resync=" + resyncCount;
+    }
+
+    private void anchor(int dts, long nowNanos) {
+        started = true;
+        offsetNanos = nowNanos - dts * MS;
+        lastTarget = nowNanos;
+        lastDts = dts;
+        mode = MODE_NORMAL;
+        lagNanos = 0;
+    }
+}
@@ -22,8 +22,10 @@ import com.ksy.recordlib.service.recoder.RecoderVideoTempSource;
 import com.ksy.recordlib.service.rtmp.KSYRtmpFlvClient;
 import com.ksy.recordlib.service.util.CameraUtil;
 import com.ksy.recordlib.service.util.Constants;
+import com.ksy.recordlib.service.util.MP4Config;
 import com.ksy.recordlib.service.util.OnClientErrorListener;
 import com.ksy.recordlib.service.util.OrientationActivity;
+import com.ksy.recordlib.service.util.PrefUtil;
 
 import java.io.IOException;
 import java.util.List;
@@ -40,10 +42,12 @@ public class KsyRecordClient implements KsyRecord, OnClientErrorListener {
 
     private static final String TAG = "KsyRecordClient";
     private static KsyRecordClient mInstance;
+    // set through the deprecated static setConfig(), for the getInstance() client
+    private static KsyRecordClientConfig mDefaultConfig;
     private RecordHandler mRecordHandler;
     private Context mContext;
     private int mEncodeMode = Constants.ENCODE_MODE_MEDIA_RECORDER;
-    private static KsyRecordClientConfig mConfig;
+    private KsyRecordClientConfig mConfig;
     private Camera mCamera;
     private KSYRtmpFlvClient mKsyRtmpFlvClient;
     private SurfaceView mSurfaceView;
@@ -51,8 +55,16 @@ public class KsyRecordClient implements KsyRecord, OnClientErrorListener {
     private RecoderVideoSource mVideoSource;
     private KsyMediaSource mAudioSource;
     private KsyMediaSource mVideoTempSource;
+    // sps and pps the next video source starts with, from this client's probe or the cache
+    private MP4Config mMp4Config;
+    // cache key of the setup mMp4Config is to be checked for, null when a probe of this setup found it
+    private String mCachedParameterSetKey;
+    // rate the running recorder was prepared with and when, for the adaptive bitrate
+    private int mEncoderBitrate;
+    private long mEncoderStartMs;
 
-    private KsyRecordSender ksyRecordSender;
+    // the stream of this client, kept across stop and start while the config stays
+    private KsyRecordSession session;
 
     private OrientationActivity orientationActivity;
 
@@ -72,7 +84,6 @@ public class KsyRecordClient implements KsyRecord, OnClientErrorListener {
     public static final int NETWORK_WIFI = 1;
     public static final int NETWORK_MOBILE = 0;
     private volatile boolean mSwitchCameraLock = false;
-    public static long startWaitTIme, startTime;
 
     private boolean isCanTurnLightFlag = false;
 
@@ -115,15 +126,22 @@ public class KsyRecordClient implements KsyRecord, OnClientErrorListener {
         }
     }
 
-    private KsyRecordClient() {
-    }
-
-    private KsyRecordClient(Context context) {
+    /**
+     * a client of its own, with nothing shared with other clients; build it on the main thread
+     */
+    public KsyRecordClient(Context context) {
         this.mContext = context;
         mRecordHandler = new RecordHandler();
-        ksyRecordSender = KsyRecordSender.getRecordInstance();
-        ksyRecordSender.setStateMonitor(mRecordHandler);
-        ksyRecordSender.setSenderListener(new KsyRecordSender.SenderListener() {
+
+        // Remove old network monitor
+        // NetworkMonitor.start(context);
+    }
+
+    private KsyRecordSession newSession() {
+        KsyRecordSession s = new KsyRecordSession(mConfig);
+        KsyRecordSender sender = s.getSender();
+        sender.setStateMonitor(mRecordHandler);
+        sender.setSenderListener(new KsyRecordSender.SenderListener() {
             @Override
             public void onStartComplete() {
                 if (startListener != null) {
@@ -138,9 +156,14 @@ public class KsyRecordClient implements KsyRecord, OnClientErrorListener {
                 }
             }
         });
+        return s;
+    }
 
-        // Remove old network monitor
-        // NetworkMonitor.start(context);
+    /**
+     * the current session, null before the first startRecord() after setClientConfig()
+     */
+    public KsyRecordSession getSession() {
+        return session;
     }
 
     public void registerNetworkMonitor() {
@@ -156,9 +179,14 @@ public class KsyRecordClient implements KsyRecord, OnClientErrorListener {
         }
     }
 
+    /**
+     * @deprecated one client per process, build clients with new KsyRecordClient(context)
+     */
+    @Deprecated
     public static KsyRecordClient getInstance(Context context) {
         if (mInstance == null) {
             mInstance = new KsyRecordClient(context);
+            mInstance.mConfig = mDefaultConfig;
         }
         return mInstance;
     }
@@ -234,11 +262,14 @@ public class KsyRecordClient implements KsyRecord, OnClientErrorListener {
         if (clientState == STATE.RECORDING) {
             return;
         }
-        startTime = System.currentTimeMillis();
         mEncodeMode = judgeEncodeMode(mContext);
         try {
             mConfig.setOrientationActivity(orientationActivity);
-            ksyRecordSender.start(mContext);
+            if (session == null || session.getConfig() != mConfig) {
+                session = newSession();
+            }
+            // a restarted session begins with a clean timeline
+            session.start(mContext);
         } catch (IOException e) {
             e.printStackTrace();
             Log.e(Constants.LOG_TAG, "startRecord() : e =" + e);
@@ -265,13 +296,89 @@ public class KsyRecordClient implements KsyRecord, OnClientErrorListener {
 
 
     private void setUpMp4Config(RecordHandler mRecordHandler) {
+        if (useCachedMp4Config()) {
+            // an earlier probe with this setup left its sps and pps, the video source checks them
+            startRecordStep();
+            return;
+        }
         if (setUpCamera(true) && (mVideoTempSource == null)) {
-            mVideoTempSource = new RecoderVideoTempSource(mCamera, mConfig, mSurfaceView, mRecordHandler, mContext);
+            mVideoTempSource = new RecoderVideoTempSource(mCamera, session, mSurfaceView, mRecordHandler, mContext);
             mVideoTempSource.setOnClientErrorListener(this);
             mVideoTempSource.start();
         }
     }
 
+    /**
+     * take the cached parameter sets of the current setup for the next video
+     * source, false when there are none
+     */
+    private boolean useCachedMp4Config() {
+        String key = mConfig.getParameterSetKey();
+        MP4Config cached = PrefUtil.getCachedMp4Config(mContext, key);
+        if (cached == null) {
+            mCachedParameterSetKey = null;
+            return false;
+        }
+        Log.d(TAG, "mp4config from cache, no probe");
+        mMp4Config = cached;
+        mCachedParameterSetKey = key;
+        return true;
+    }
+
+    /**
+     * corrects or drops the cache entry a stream did not go with, so the next
+     * start has the right parameter sets or probes again, and has the handler
+     * pick up what the source found
+     */
+    private class CachedParameterSetCheck implements RecoderVideoSource.ParameterSetListener {
+        private final String key;
+        private final RecoderVideoSource source;
+        // the in-band sets the source went on with, null when it stopped
+        private MP4Config inBand;
+
+        CachedParameterSetCheck(String key, RecoderVideoSource source) {
+            this.key = key;
+            this.source = source;
+        }
+
+        @Override
+        public void onParameterSetsChecked(boolean confirmed, byte[] sps, byte[] pps) {
+            if (confirmed) {
+                return;
+            }
+            if (sps != null && pps != null) {
+                inBand = new MP4Config(sps, pps);
+                PrefUtil.saveCachedMp4Config(mContext, key, inBand);
+            } else {
+                PrefUtil.removeCachedMp4Config(mContext, key);
+            }
+            mRecordHandler.obtainMessage(Constants.MESSAGE_PARAMETER_SETS_REJECTED, this).sendToTarget();
+        }
+    }
+
+    /**
+     * the video source found its parameter sets do not go with its stream. It
+     * went on with in-band ones, the next source starts with those; without
+     * them it stopped, and the probe runs for this setup now.
+     */
+    private void onParameterSetsRejected(CachedParameterSetCheck check) {
+        if (check.source != mVideoSource || clientState != STATE.RECORDING) {
+            return;
+        }
+        if (check.inBand != null) {
+            mMp4Config = check.inBand;
+            return;
+        }
+        Log.w(TAG, "parameter sets rejected, probing");
+        mVideoSource.close();
+        mVideoSource = null;
+        if (mCamera != null) {
+            mCamera.release();
+            mCamera = null;
+        }
+        setUpMp4Config(mRecordHandler);
+    }
+
     private void startRtmpFlvClient() throws KsyRecordException {
         mKsyRtmpFlvClient = new KSYRtmpFlvClient(mConfig.getUrl());
         try {
@@ -424,13 +531,25 @@ public class KsyRecordClient implements KsyRecord, OnClientErrorListener {
         Log.d(Constants.LOG_TAG, "DealWithMediaRecorder");
         // Video Source
         if (mVideoSource == null) {
-            mVideoSource = new RecoderVideoSource(mCamera, mConfig, mSurfaceView, mRecordHandler, mContext);
+            mVideoSource = new RecoderVideoSource(mCamera, session, mSurfaceView, mRecordHandler, mContext);
             mVideoSource.setOnClientErrorListener(this);
+            // what the uplink allowed so far
+            int bitrate = session.getSender().getTargetBitrate();
+            if (bitrate > 0) {
+                mVideoSource.setNextSessionBitrate(bitrate);
+            }
+            mEncoderBitrate = bitrate > 0 ? bitrate : mConfig.getVideoBitRate();
+            mEncoderStartMs = System.currentTimeMillis();
+            mVideoSource.setParameterSets(mMp4Config);
+            if (mCachedParameterSetKey != null) {
+                mVideoSource.setParameterSetListener(new CachedParameterSetCheck(mCachedParameterSetKey, mVideoSource));
+                mCachedParameterSetKey = null;
+            }
             mVideoSource.start();
         }
         // Audio Source
         if (mAudioSource == null) {
-            mAudioSource = new RecoderAudioSource(mConfig, mRecordHandler, mContext);
+            mAudioSource = new RecoderAudioSource(session, mRecordHandler, mContext);
             mAudioSource.setOnClientErrorListener(this);
             mAudioSource.start();
         }
@@ -466,6 +585,7 @@ public class KsyRecordClient implements KsyRecord, OnClientErrorListener {
         if ((clientState != STATE.RECORDING || mSwitchCameraLock) && (!ignoreState)) {
             return false;
         }
+        mRecordHandler.removeMessages(Constants.MESSAGE_SENDER_TARGET_BITRATE);
         if (mVideoSource != null) {
             mVideoSource.stop();
             mVideoSource = null;
@@ -486,7 +606,9 @@ public class KsyRecordClient implements KsyRecord, OnClientErrorListener {
             }
             mCamera = null;
         }
-        ksyRecordSender.disconnect();
+        if (session != null) {
+            session.stop();
+        }
         clientState = STATE.STOP;
         isCanTurnLightFlag = false;
         return true;
@@ -522,31 +644,72 @@ public class KsyRecordClient implements KsyRecord, OnClientErrorListener {
             if (mSwitchCameraStateListener != null) {
                 mSwitchCameraStateListener.onSwitchCameraDisable();
             }
-            if (mVideoSource != null) {
-                mVideoSource.close();
-                mVideoSource = null;
-            }
-            if (mVideoTempSource != null) {
-                mVideoTempSource.release();
-                mVideoTempSource = null;
-            }
-            if (mCamera != null) {
-                mCamera.release();
-                mCamera = null;
-            }
             if (mConfig.getCameraType() == Camera.CameraInfo.CAMERA_FACING_BACK) {
                 mConfig.setmCameraType(Camera.CameraInfo.CAMERA_FACING_FRONT);
             } else {
                 mConfig.setmCameraType(Camera.CameraInfo.CAMERA_FACING_BACK);
             }
-            RecoderVideoSource.sync.setForceSyncFlay(true);
-            startRecordStep();
-            KsyRecordSender.getRecordInstance().needResetTs = true;
+            restartVideoSource();
         } else {
             //current is switching
         }
     }
 
+    /**
+     * open the camera and prepare the recorder again, at the sender's target
+     * bitrate; MESSAGE_SWITCH_CAMERA_FINISH releases mSwitchCameraLock
+     */
+    private void restartVideoSource() {
+        if (mVideoSource != null) {
+            mVideoSource.close();
+            mVideoSource = null;
+        }
+        if (mVideoTempSource != null) {
+            mVideoTempSource.release();
+            mVideoTempSource = null;
+        }
+        if (mCamera != null) {
+            mCamera.release();
+            mCamera = null;
+        }
+        session.getClock().setForceSyncFlay(true);
+        // the camera's parameter sets if a probe ever found them, else the ones in use
+        // go on, checked against its stream all the same
+        if (!useCachedMp4Config()) {
+            mCachedParameterSetKey = mConfig.getParameterSetKey();
+        }
+        startRecordStep();
+        session.getSender().needResetTs = true;
+    }
+
+    /**
+     * MediaRecorder can not change its rate while recording: prepare it again
+     * once the sender's target is far enough off and the last restart long
+     * enough ago, see KsyBitrateController.getEncoderRestartDelay()
+     */
+    private void onTargetBitrateChanged() {
+        mRecordHandler.removeMessages(Constants.MESSAGE_SENDER_TARGET_BITRATE);
+        KsyBitrateController controller = session != null ? session.getSender().getBitrateController() : null;
+        if (controller == null || clientState != STATE.RECORDING || mVideoSource == null) {
+            return;
+        }
+        if (mSwitchCameraLock) {
+            // a camera switch or start is under way and takes the target up, check again after it
+            mRecordHandler.sendEmptyMessageDelayed(Constants.MESSAGE_SENDER_TARGET_BITRATE, 1000);
+            return;
+        }
+        long delay = controller.getEncoderRestartDelay(mEncoderBitrate, mEncoderStartMs, System.currentTimeMillis());
+        if (delay > 0) {
+            mRecordHandler.sendEmptyMessageDelayed(Constants.MESSAGE_SENDER_TARGET_BITRATE, delay);
+        } else if (delay == 0) {
+            Log.d(TAG, "video bitrate " + mEncoderBitrate + " to " + controller.getTargetBitrate() + ", restarting the recorder");
+            turnLight(false);
+            mSwitchCameraLock = true;
+            isCanTurnLightFlag = false;
+            restartVideoSource();
+        }
+    }
+
     @Override
     public int getNewtWorkStatusType() {
         return 0;
@@ -578,8 +741,15 @@ public class KsyRecordClient implements KsyRecord, OnClientErrorListener {
                 case Constants.MESSAGE_MP4CONFIG_FINISH:
                     //release();
                     // just release tem
+                    mVideoTempSource = null;
+                    if (msg.obj != null) {
+                        mMp4Config = (MP4Config) msg.obj;
+                    }
                     startRecordStep();
                     break;
+                case Constants.MESSAGE_PARAMETER_SETS_REJECTED:
+                    onParameterSetsRejected((CachedParameterSetCheck) msg.obj);
+                    break;
                 case Constants.MESSAGE_MP4CONFIG_START_PREVIEW:
                     break;
                 case Constants.MESSAGE_SWITCH_CAMERA_FINISH:
@@ -592,6 +762,9 @@ public class KsyRecordClient implements KsyRecord, OnClientErrorListener {
 
                     }
                     break;
+                case Constants.MESSAGE_SENDER_TARGET_BITRATE:
+                    onTargetBitrateChanged();
+                    break;
                 case Constants.MESSAGE_SENDER_PUSH_FAILED:
                     Log.d(TAG, "server send push fail");
                     if (mPushStreamStateListener != null) {
@@ -604,8 +777,23 @@ public class KsyRecordClient implements KsyRecord, OnClientErrorListener {
         }
     }
 
+    /**
+     * a new config takes effect with the next startRecord(), in a new session
+     */
+    public void setClientConfig(KsyRecordClientConfig mConfig) {
+        this.mConfig = mConfig;
+    }
+
+    /**
+     * @deprecated configures the getInstance() client only, set the config of
+     * a client built with new KsyRecordClient(context) with setClientConfig()
+     */
+    @Deprecated
     public static void setConfig(KsyRecordClientConfig mConfig) {
-        KsyRecordClient.mConfig = mConfig;
+        mDefaultConfig = mConfig;
+        if (mInstance != null) {
+            mInstance.setClientConfig(mConfig);
+        }
     }
 
 }
@@ -3,6 +3,7 @@ package com.ksy.recordlib.service.core;
 import android.hardware.Camera;
 import android.media.CamcorderProfile;
 import android.media.MediaRecorder;
+import android.os.Build;
 
 import com.ksy.recordlib.service.exception.KsyRecordException;
 import com.ksy.recordlib.service.util.CameraUtil;
@@ -30,10 +31,24 @@ public class KsyRecordClientConfig {
     int mVideoEncoder;
     int mVideoProfile;
     int cameraOriention;
+    int mMaxBufferedDurationMs;
+    long mMaxBufferedBytes;
+    boolean mAdaptiveBitrate;
+    int mMinVideoBitRate;
+    int mMaxVideoBitRate;
+    int mSendBatchBytes;
+    int mSendBatchLatencyMs;
+    int mPacerBurstMs;
+    float mPacerCatchUpSpeed;
+    int mGopCacheMaxBytes;
+    int mReconnectBaseDelayMs;
+    int mReconnectMaxDelayMs;
     public static int recordOrientation;
     public static int previewOrientation;
 
     String mUrl;
+    String[] mBackupUrls;
+    String mArchivePath;
 
     OrientationActivity orientationActivity;
 
@@ -51,6 +66,8 @@ public class KsyRecordClientConfig {
         mVideoEncoder = builder.mVideoEncorder;
         mVideoProfile = builder.mVideoProfile;
         mUrl = builder.mUrl;
+        mBackupUrls = builder.mBackupUrls;
+        mArchivePath = builder.mArchivePath;
         if (mVideoProfile >= 0) {
             int cameraId = -1;
             int numberOfCameras = Camera.getNumberOfCameras();
@@ -79,6 +96,23 @@ public class KsyRecordClientConfig {
         mVideoBitRate = builder.mVideoBitRate;
         mVideoWidth = builder.mVideoWidth > 0 ? builder.mVideoWidth : mVideoWidth;
         mVideoHeight = builder.mVideoHeigh > 0 ? builder.mVideoHeigh : mVideoHeight;
+        mMaxBufferedDurationMs = builder.mMaxBufferedDurationMs;
+        if (builder.mMaxBufferedBytes > 0) {
+            mMaxBufferedBytes = builder.mMaxBufferedBytes;
+        } else {
+            // twice what the configured bitrates produce during mMaxBufferedDurationMs, leaves room for keyframes
+            mMaxBufferedBytes = (long) (mVideoBitRate + mAudioBitRate) / 8 * mMaxBufferedDurationMs / 1000 * 2;
+        }
+        mAdaptiveBitrate = builder.mAdaptiveBitrate;
+        mMaxVideoBitRate = builder.mMaxVideoBitRate > 0 ? builder.mMaxVideoBitRate : mVideoBitRate;
+        mMinVideoBitRate = builder.mMinVideoBitRate > 0 ? builder.mMinVideoBitRate : mMaxVideoBitRate / 4;
+        mSendBatchBytes = builder.mSendBatchBytes;
+        mSendBatchLatencyMs = builder.mSendBatchLatencyMs;
+        mPacerBurstMs = builder.mPacerBurstMs;
+        mPacerCatchUpSpeed = builder.mPacerCatchUpSpeed;
+        mGopCacheMaxBytes = builder.mGopCacheMaxBytes;
+        mReconnectBaseDelayMs = builder.mReconnectBaseDelayMs;
+        mReconnectMaxDelayMs = builder.mReconnectMaxDelayMs;
     }
 
     public int getCameraType() {
@@ -133,6 +167,71 @@ public class KsyRecordClientConfig {
         return mUrl;
     }
 
+    /**
+     * what the encoder's sps and pps depend on: the device and its firmware,
+     * the camera, encoder, profile, size, bitrate and frame rate
+     */
+    public String getParameterSetKey() {
+        return Build.FINGERPRINT + "/" + mCameraType + "/" + mVideoEncoder + "/" + mVideoProfile + "/"
+                + mVideoWidth + "x" + mVideoHeight + "/" + mVideoBitRate + "/" + mVideoFrameRate;
+    }
+
+    public String[] getBackupUrls() {
+        return mBackupUrls;
+    }
+
+    public String getArchivePath() {
+        return mArchivePath;
+    }
+
+    public int getMaxBufferedDurationMs() {
+        return mMaxBufferedDurationMs;
+    }
+
+    public long getMaxBufferedBytes() {
+        return mMaxBufferedBytes;
+    }
+
+    public boolean isAdaptiveBitrate() {
+        return mAdaptiveBitrate;
+    }
+
+    public int getMinVideoBitRate() {
+        return mMinVideoBitRate;
+    }
+
+    public int getMaxVideoBitRate() {
+        return mMaxVideoBitRate;
+    }
+
+    public int getSendBatchBytes() {
+        return mSendBatchBytes;
+    }
+
+    public int getSendBatchLatencyMs() {
+        return mSendBatchLatencyMs;
+    }
+
+    public int getPacerBurstMs() {
+        return mPacerBurstMs;
+    }
+
+    public float getPacerCatchUpSpeed() {
+        return mPacerCatchUpSpeed;
+    }
+
+    public int getGopCacheMaxBytes() {
+        return mGopCacheMaxBytes;
+    }
+
+    public int getReconnectBaseDelayMs() {
+        return mReconnectBaseDelayMs;
+    }
+
+    public int getReconnectMaxDelayMs() {
+        return mReconnectMaxDelayMs;
+    }
+
     public KsyRecordClientConfig setmCameraType(int mCameraType) {
         this.mCameraType = mCameraType;
         return this;
@@ -274,7 +373,21 @@ public class KsyRecordClientConfig {
         private int mVideoHeigh;
         private int mVideoEncorder = MediaRecorder.VideoEncoder.H264;
         private int mVideoProfile = -1;
+        private int mMaxBufferedDurationMs = Constants.CONFIG_MAX_BUFFERED_DURATION_MS;
+        private long mMaxBufferedBytes = 0;
+        private boolean mAdaptiveBitrate = false;
+        private int mMinVideoBitRate = 0;
+        private int mMaxVideoBitRate = 0;
+        private int mSendBatchBytes = Constants.CONFIG_SEND_BATCH_BYTES;
+        private int mSendBatchLatencyMs = Constants.CONFIG_SEND_BATCH_LATENCY_MS;
+        private int mPacerBurstMs = Constants.CONFIG_PACER_BURST_MS;
+        private float mPacerCatchUpSpeed = Constants.CONFIG_PACER_CATCH_UP_SPEED;
+        private int mGopCacheMaxBytes = Constants.CONFIG_GOP_CACHE_MAX_BYTES;
+        private int mReconnectBaseDelayMs = Constants.CONFIG_RECONNECT_BASE_DELAY_MS;
+        private int mReconnectMaxDelayMs = Constants.CONFIG_RECONNECT_MAX_DELAY_MS;
         private String mUrl;
+        private String[] mBackupUrls = new String[0];
+        private String mArchivePath;
 
         public KsyRecordClientConfig build() {
             return new KsyRecordClientConfig(this);
@@ -289,6 +402,33 @@ public class KsyRecordClientConfig {
             return this;
         }
 
+        public String[] getBackupUrls() {
+            return mBackupUrls;
+        }
+
+        /**
+         * push the same encoded stream to one more ingest, with its own queue and reconnects
+         */
+        public Builder addBackupUrl(String url) {
+            String[] urls = new String[mBackupUrls.length + 1];
+            System.arraycopy(mBackupUrls, 0, urls, 0, mBackupUrls.length);
+            urls[mBackupUrls.length] = url;
+            mBackupUrls = urls;
+            return this;
+        }
+
+        public String getArchivePath() {
+            return mArchivePath;
+        }
+
+        /**
+         * also write every encoded frame to this flv file, whatever the uplink drops. null for no archive
+         */
+        public Builder setArchivePath(String mArchivePath) {
+            this.mArchivePath = mArchivePath;
+            return this;
+        }
+
         public int getCameraType() {
             return mCameraType;
         }
@@ -396,6 +536,153 @@ public class KsyRecordClientConfig {
             this.mVideoProfile = mVideoProfile;
             return this;
         }
+
+        public int getMaxBufferedDurationMs() {
+            return mMaxBufferedDurationMs;
+        }
+
+        /**
+         * the sender starts dropping once the queued media (last dts - first dts) exceeds this
+         */
+        public Builder setMaxBufferedDurationMs(int mMaxBufferedDurationMs) {
+            this.mMaxBufferedDurationMs = mMaxBufferedDurationMs;
+            return this;
+        }
+
+        public long getMaxBufferedBytes() {
+            return mMaxBufferedBytes;
+        }
+
+        /**
+         * the sender starts dropping once the queued tags exceed this many bytes,
+         * 0 derives it from the configured bitrates
+         */
+        public Builder setMaxBufferedBytes(long mMaxBufferedBytes) {
+            this.mMaxBufferedBytes = mMaxBufferedBytes;
+            return this;
+        }
+
+        public boolean isAdaptiveBitrate() {
+            return mAdaptiveBitrate;
+        }
+
+        /**
+         * let the sender track the uplink and the client prepare the recorder
+         * again at the bitrate it allows, at most every few seconds since each
+         * restart leaves a gap in the video
+         */
+        public Builder setAdaptiveBitrate(boolean mAdaptiveBitrate) {
+            this.mAdaptiveBitrate = mAdaptiveBitrate;
+            return this;
+        }
+
+        public int getMinVideoBitRate() {
+            return mMinVideoBitRate;
+        }
+
+        /**
+         * lowest adaptive video bitrate, 0 means a quarter of the max
+         */
+        public Builder setMinVideoBitRate(int mMinVideoBitRate) {
+            this.mMinVideoBitRate = mMinVideoBitRate;
+            return this;
+        }
+
+        public int getMaxVideoBitRate() {
+            return mMaxVideoBitRate;
+        }
+
+        /**
+         * highest adaptive video bitrate, 0 means the video bitrate
+         */
+        public Builder setMaxVideoBitRate(int mMaxVideoBitRate) {
+            this.mMaxVideoBitRate = mMaxVideoBitRate;
+            return this;
+        }
+
+        public int getSendBatchBytes() {
+            return mSendBatchBytes;
+        }
+
+        /**
+         * the sender gathers ready tags into one write up to this many bytes, 0 writes every tag alone
+         */
+        public Builder setSendBatchBytes(int mSendBatchBytes) {
+            this.mSendBatchBytes = mSendBatchBytes;
+            return this;
+        }
+
+        public int getSendBatchLatencyMs() {
+            return mSendBatchLatencyMs;
+        }
+
+        /**
+         * longest a gathered tag waits for the batch to fill up
+         */
+        public Builder setSendBatchLatencyMs(int mSendBatchLatencyMs) {
+            this.mSendBatchLatencyMs = mSendBatchLatencyMs;
+            return this;
+        }
+
+        public int getPacerBurstMs() {
+            return mPacerBurstMs;
+        }
+
+        /**
+         * after a stall the sender may send this much of the backlog without pacing
+         */
+        public Builder setPacerBurstMs(int mPacerBurstMs) {
+            this.mPacerBurstMs = mPacerBurstMs;
+            return this;
+        }
+
+        public float getPacerCatchUpSpeed() {
+            return mPacerCatchUpSpeed;
+        }
+
+        /**
+         * how much faster than real time the sender drains a backlog beyond the burst
+         */
+        public Builder setPacerCatchUpSpeed(float mPacerCatchUpSpeed) {
+            this.mPacerCatchUpSpeed = mPacerCatchUpSpeed;
+            return this;
+        }
+
+        public int getGopCacheMaxBytes() {
+            return mGopCacheMaxBytes;
+        }
+
+        /**
+         * largest gop the sender keeps to replay after a reconnect, 0 turns the replay off
+         */
+        public Builder setGopCacheMaxBytes(int mGopCacheMaxBytes) {
+            this.mGopCacheMaxBytes = mGopCacheMaxBytes;
+            return this;
+        }
+
+        public int getReconnectBaseDelayMs() {
+            return mReconnectBaseDelayMs;
+        }
+
+        /**
+         * wait before the first retry of a lost connection, doubled on every failed attempt
+         */
+        public Builder setReconnectBaseDelayMs(int mReconnectBaseDelayMs) {
+            this.mReconnectBaseDelayMs = mReconnectBaseDelayMs;
+            return this;
+        }
+
+        public int getReconnectMaxDelayMs() {
+            return mReconnectMaxDelayMs;
+        }
+
+        /**
+         * upper bound of the wait between two reconnect attempts
+         */
+        public Builder setReconnectMaxDelayMs(int mReconnectMaxDelayMs) {
+            this.mReconnectMaxDelayMs = mReconnectMaxDelayMs;
+            return this;
+        }
     }
 
 
@@ -11,9 +11,10 @@ import com.ksy.recordlib.service.util.Constants;
 import com.ksy.recordlib.service.util.NetworkMonitor;
 import com.ksy.recordlib.service.util.URLConverter;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.Comparator;
-import java.util.PriorityQueue;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Created by eflakemac on 15/6/26.
@@ -24,29 +25,57 @@ public class KsyRecordSender {
 
     private String TAG = "KsyRecordSender";
 
-    private Thread worker;
+    private volatile Thread worker;
     private String mUrl;
-    private boolean connected = false;
+    private volatile boolean connected = false;
+    private volatile boolean workerParked = false;
 
     //    private LinkedList<KSYFlvData> recordQueue;
-    private PriorityQueue<KSYFlvData> recordPQueue;
+    private final KsySenderQueue recordQueue = new KsySenderQueue(TRACK_QUEUE_CAPACITY);
+    private volatile DropPolicy dropPolicy;
+    // the policy dropReport belongs to, sender thread only
+    private DropPolicy activeDropPolicy;
+    private volatile DropReport dropReport;
+    // congestion thresholds, soft congestion starts at 3/4 of them
+    private volatile int maxBufferedDurationMs = Constants.CONFIG_MAX_BUFFERED_DURATION_MS;
+    private volatile long maxBufferedBytes = Long.MAX_VALUE;
+    // null unless adaptive bitrate is configured, sender thread only after setConfig
+    private volatile KsyBitrateController bitrateController;
+    // gathering write, tags ready back to back leave in one _write call
+    private volatile int sendBatchBytes = Constants.CONFIG_SEND_BATCH_BYTES;
+    private volatile int sendBatchLatencyMs = Constants.CONFIG_SEND_BATCH_LATENCY_MS;
+    // sender thread only, tags are copied into batchBuffer only once a second one joins
+    private KSYFlvData[] batchFrames = new KSYFlvData[16];
+    private ByteBuffer batchBuffer;
+    private int batchLength;
+    private int batchTags;
+    private int batchVideoBytes;
+    private int batchAudioBytes;
+    private int batchVideoTags;
+    private long batchStartTime;
+    private final KsySenderMetrics metrics = new KsySenderMetrics();
+    // video timestamps of the sources feeding this sender
+    private final KsyMediaSource.ClockSync clock = new KsyMediaSource.ClockSync(this);
+    // getAVBitrate() only
+    private final KsySenderMetrics.Snapshot legacySnapshot = new KsySenderMetrics.Snapshot();
 
-    private Object mutex = new Object();
     private Context mContext;
 
     private static final int FIRST_OPEN = 3;
-    private static final int FROM_AUDIO = 8;
-    private static final int FROM_VIDEO = 6;
+    // addToQueue() track arguments
+    public static final int FROM_AUDIO = 8;
+    public static final int FROM_VIDEO = 6;
 
-    private static volatile int frame_video;
-    private static volatile int frame_audio;
-
-    private static final int LEVEL1_QUEUE_SIZE = 200;
-    private static final int LEVEL2_QUEUE_SIZE = 150;
+    private static final int TRACK_QUEUE_CAPACITY = 512;
+    // a worker stuck in a write longer than this is left behind, closing the transport should end it sooner
+    private static final int WORKER_STOP_TIMEOUT_MS = 2000;
     private static final int MIN_QUEUE_BUFFER = 1;
 
 
-    private static KsyRecordSender ksyRecordSenderInstance = new KsyRecordSender();
+    private static KsyRecordSender ksyRecordSenderInstance;
+
+    // cleared when the loaded native library predates _writeDirect
+    private static volatile boolean directWriteSupported = true;
 
     /**
      * this is instantaneous value of video/audio bitrate
@@ -68,18 +97,40 @@ public class KsyRecordSender {
     private long lastSendAudioDts;
     private long lastSendVideoTs;
     private long lastSendAudioTs;
-    private int dropAudioCount;
-    private int dropVideoCount;
-
-    private int lastAddAudioTs = 0;
-    private int lastAddVideoTs = 0;
+    private volatile int lastAddAudioTs = 0;
+    private volatile int lastAddVideoTs = 0;
 
-    private boolean inited = false;
-    private long ideaStartTime;
-    private long systemStartTime;
+    private volatile boolean inited = false;
+    // start() of the current recording and how long its first video sequence header took
+    private long startedAt;
+    private volatile long startWaitMs;
+    // sender thread only, replaced by setConfig through pendingPacer
+    private volatile KsyPacer pacer = new KsyPacer(Constants.CONFIG_PACER_BURST_MS, Constants.CONFIG_PACER_CATCH_UP_SPEED);
+    private volatile KsyPacer pendingPacer;
+    // sender thread only, null when the replay is turned off
+    private KsyGopCache gopCache = new KsyGopCache(Constants.CONFIG_GOP_CACHE_MAX_BYTES);
+    private volatile int gopCacheMaxBytes = Constants.CONFIG_GOP_CACHE_MAX_BYTES;
+    // set by reconnect(), the worker primes the new session before its next tag
+    private volatile boolean replayPending = false;
+    // one rtmp session at a time: the worker writes and the supervisor reconnects under it
+    private final Object nativeLock = new Object();
+    // whether _close has something to close, guarded by nativeLock
+    private boolean sessionOpened;
+    private volatile KsyConnectionSupervisor supervisor;
+    private volatile KsyConnectionSupervisor.ConnectionListener connectionListener;
+    private volatile int reconnectBaseDelayMs = Constants.CONFIG_RECONNECT_BASE_DELAY_MS;
+    private volatile int reconnectMaxDelayMs = Constants.CONFIG_RECONNECT_MAX_DELAY_MS;
+    // null on the primary, backup destinations are fed and driven by it
+    private final KsyRecordSender primary;
+    private final StreamTransport transport;
+    // backup destinations, replaced as a whole so addToQueue reads them without a lock
+    private volatile KsyRecordSender[] destinations = new KsyRecordSender[0];
+    private boolean receiverRegistered;
+    private volatile String archivePath;
+    // local copy of everything the sources produce, primary only
+    private volatile KsyFlvFileSink archive;
 
-    public boolean needResetTs = false;
-    private volatile boolean dropNoneIDRFrame = false;
+    public volatile boolean needResetTs = false;
     private SenderListener senderListener;
     private KsyRecordClient.RecordHandler recordHandler;
 
@@ -95,42 +146,412 @@ public class KsyRecordSender {
         }
     };
 
+    private final KsyConnectionSupervisor.Connector rtmpConnector = new KsyConnectionSupervisor.Connector() {
+        @Override
+        public boolean connect() {
+            synchronized (nativeLock) {
+                if (sessionOpened) {
+                    Log.e(TAG, "close .." + transport.close());
+                }
+                Log.e(TAG, "_set_output_url .." + transport.setOutputUrl(mUrl));
+                int result = transport.open();
+                sessionOpened = true;
+                Log.e(TAG, "opens result ..>" + result);
+                return result == 0;
+            }
+        }
+    };
+
+    private final KsyConnectionSupervisor.ConnectionListener supervisorListener = new KsyConnectionSupervisor.ConnectionListener() {
+        @Override
+        public void onConnectionStateChanged(int oldState, int newState) {
+            Log.d(TAG, "connection " + KsyConnectionSupervisor.stateName(oldState) + " -> " + KsyConnectionSupervisor.stateName(newState));
+            metrics.set(KsySenderMetrics.GAUGE_CONNECTION_STATE, newState);
+            if (oldState == KsyConnectionSupervisor.STATE_CONNECTING) {
+                if (newState == KsyConnectionSupervisor.STATE_LIVE) {
+                    KsyConnectionSupervisor s = supervisor;
+                    if (s != null && s.getRecoveries() > 0) {
+                        metrics.increment(KsySenderMetrics.COUNTER_RECONNECTS);
+                        metrics.set(KsySenderMetrics.GAUGE_LAST_RECOVERY_MS, s.getLastRecoveryMs());
+                        Log.e(TAG, "recovered in " + s.getLastRecoveryMs() + "ms");
+                    }
+                    // before connected, the worker must not send a tag ahead of the replay
+                    replayPending = true;
+                    post(notifyStartComplete);
+                } else if (newState == KsyConnectionSupervisor.STATE_BACKOFF) {
+                    post(notifyStartFailed);
+                }
+            }
+            setConnected(newState == KsyConnectionSupervisor.STATE_LIVE || newState == KsyConnectionSupervisor.STATE_DEGRADED);
+            KsyConnectionSupervisor.ConnectionListener l = connectionListener;
+            if (l != null) {
+                l.onConnectionStateChanged(oldState, newState);
+            }
+        }
+    };
+
+    // the supervisor calls back on its own thread, the start listener expects the main thread
+    private final Runnable notifyStartComplete = new Runnable() {
+        @Override
+        public void run() {
+            if (senderListener != null) {
+                senderListener.onStartComplete();
+            }
+        }
+    };
+
+    private final Runnable notifyStartFailed = new Runnable() {
+        @Override
+        public void run() {
+            if (senderListener != null) {
+                senderListener.onStartFailed();
+            }
+        }
+    };
+
     static {
-        System.loadLibrary("rtmp");
-        Log.i(Constants.LOG_TAG, "rtmp.so loaded");
-        System.loadLibrary("ksyrtmpstream");
-        Log.i(Constants.LOG_TAG, "ksyrtmp.so loaded");
+        try {
+            System.loadLibrary("rtmp");
+            Log.i(Constants.LOG_TAG, "rtmp.so loaded");
+            System.loadLibrary("ksyrtmpstream");
+            Log.i(Constants.LOG_TAG, "ksyrtmp.so loaded");
+        } catch (UnsatisfiedLinkError e) {
+            // no native push here, senders on another StreamTransport still work
+            Log.e(Constants.LOG_TAG, "rtmp libraries not loaded " + e);
+        }
     }
 
-    private KsyRecordSender() {
-        recordPQueue = new PriorityQueue<>(10, new Comparator<KSYFlvData>() {
-            @Override
-            public int compare(KSYFlvData lhs, KSYFlvData rhs) {
-                return lhs.dts - rhs.dts;
+    // audio an interleaving transport slips in between the pieces of a keyframe, sender thread only
+    private final InterleavingTransport.PriorityTagSource priorityAudio = new InterleavingTransport.PriorityTagSource() {
+        @Override
+        public KSYFlvData pollPriorityTag() {
+            KSYFlvData audio = recordQueue.peekAudio();
+            if (audio == null || !inited) {
+                return null;
+            }
+            // audio is still paced, only what is due jumps ahead
+            long now = System.nanoTime();
+            // the pacer only advances when the sender takes a tag itself
+            if (pacer.peekDeadline(audio.dts, now) > now) {
+                return null;
+            }
+            audio = recordQueue.pollAudio();
+            lastSendAudioTs = audio.dts;
+            lastSendAudioDts = audio.dts;
+            return audio;
+        }
+
+        @Override
+        public void onPriorityTagWritten(KSYFlvData tag, int result) {
+            if (result != -1) {
+                metrics.increment(KsySenderMetrics.COUNTER_AUDIO_TAGS_SENT);
+                metrics.add(KsySenderMetrics.COUNTER_AUDIO_BYTES_SENT, tag.size);
+                metrics.increment(KsySenderMetrics.COUNTER_INTERLEAVED_AUDIO_TAGS);
+                KsyGopCache cache = gopCache;
+                if (cache != null) {
+                    cache.onSent(tag);
+                }
             }
-        });
+            tag.recycle();
+        }
+    };
+
+    private KsyRecordSender() {
+        this(null, null);
+    }
+
+    /**
+     * a sender of its own on the given transport, null for the native push;
+     * KsyRecordSession builds one per session
+     */
+    public KsyRecordSender(StreamTransport transport) {
+        this(null, transport);
+    }
+
+    private KsyRecordSender(KsyRecordSender primary, StreamTransport transport) {
+        this.primary = primary;
+        this.transport = transport != null ? transport : new KsyJniTransport(this);
+        if (this.transport instanceof InterleavingTransport) {
+            ((InterleavingTransport) this.transport).setPriorityTagSource(priorityAudio);
+        }
+        setDropPolicy(new DropToNextIDRPolicy());
+        recordQueue.setMetrics(metrics);
     }
 
     public void setSenderListener(SenderListener l) {
         senderListener = l;
     }
 
+    /**
+     * every connection state change, called on the thread that made it: the caller of
+     * setRecorderData(), the sender thread or the supervisor thread
+     */
+    public void setConnectionListener(KsyConnectionSupervisor.ConnectionListener l) {
+        connectionListener = l;
+    }
+
+    /**
+     * one of the KsyConnectionSupervisor states
+     */
+    public int getConnectionState() {
+        KsyConnectionSupervisor s = supervisor;
+        return s != null ? s.getState() : KsyConnectionSupervisor.STATE_CLOSED;
+    }
+
+    /**
+     * how long the last reconnect took from losing the session, -1 if there was none yet
+     */
+    public long getLastRecoveryMs() {
+        KsyConnectionSupervisor s = supervisor;
+        return s != null ? s.getLastRecoveryMs() : -1;
+    }
+
+    /**
+     * video bitrate the adaptive controller recommends for the uplink, 0 when
+     * the config does not ask for one
+     */
+    public int getTargetBitrate() {
+        KsyBitrateController controller = bitrateController;
+        return controller != null ? controller.getTargetBitrate() : 0;
+    }
+
+    /**
+     * null when the config does not ask for an adaptive bitrate
+     */
+    public KsyBitrateController getBitrateController() {
+        return bitrateController;
+    }
+
+
+    /**
+     * takes effect before the next frame is sent, the drop report starts over
+     */
+    public void setDropPolicy(DropPolicy policy) {
+        dropPolicy = policy;
+    }
+
+    public void setConfig(KsyRecordClientConfig config) {
+        maxBufferedDurationMs = config.getMaxBufferedDurationMs();
+        maxBufferedBytes = config.getMaxBufferedBytes() > 0 ? config.getMaxBufferedBytes() : Long.MAX_VALUE;
+        sendBatchBytes = config.getSendBatchBytes();
+        sendBatchLatencyMs = config.getSendBatchLatencyMs();
+        pendingPacer = new KsyPacer(config.getPacerBurstMs(), config.getPacerCatchUpSpeed());
+        gopCacheMaxBytes = config.getGopCacheMaxBytes();
+        reconnectBaseDelayMs = config.getReconnectBaseDelayMs();
+        reconnectMaxDelayMs = config.getReconnectMaxDelayMs();
+        archivePath = primary == null ? config.getArchivePath() : null;
+        // the encoders are shared, only the primary may steer their bitrate
+        if (config.isAdaptiveBitrate() && primary == null) {
+            KsyBitrateController controller = new KsyBitrateController(config.getMinVideoBitRate(),
+                    config.getMaxVideoBitRate(), config.getVideoBitRate(), config.getAudioBitRate());
+            controller.setBitrateListener(new KsyBitrateController.BitrateListener() {
+                @Override
+                public void onTargetBitrateChanged(int bitrate) {
+                    Log.d(TAG, "target video bitrate " + bitrate);
+                    // the client decides whether it is worth preparing the recorder again
+                    KsyRecordClient.RecordHandler handler = recordHandler;
+                    if (handler != null) {
+                        handler.sendEmptyMessage(Constants.MESSAGE_SENDER_TARGET_BITRATE);
+                    }
+                }
+            });
+            bitrateController = controller;
+        } else {
+            bitrateController = null;
+        }
+        if (primary == null) {
+            removeDestinations();
+            String[] urls = config.getBackupUrls();
+            if (urls != null) {
+                for (String url : urls) {
+                    addDestination(url).setConfig(config);
+                }
+            }
+        }
+    }
+
+    /**
+     * push every tag this sender gets to one more url as well. The destination has its own
+     * queue, drop policy, pacing and reconnects and shares the tags by reference, so a slow
+     * one only ever drops its own frames. It starts and connects along with this sender,
+     * disconnect() removes it again.
+     *
+     * @return the destination, for its metrics, listeners and policies
+     */
+    public KsyRecordSender addDestination(String url) {
+        return addDestination(url, null);
+    }
+
+    /**
+     * @param transport null for the native push
+     */
+    public synchronized KsyRecordSender addDestination(String url, StreamTransport transport) {
+        if (primary != null) {
+            throw new IllegalStateException("destinations can not have destinations");
+        }
+        KsyRecordSender destination = new KsyRecordSender(this, transport);
+        destination.mUrl = URLConverter.convertUrl(url);
+        KsyRecordSender[] grown = new KsyRecordSender[destinations.length + 1];
+        System.arraycopy(destinations, 0, grown, 0, destinations.length);
+        grown[destinations.length] = destination;
+        destinations = grown;
+        if (worker != null) {
+            destination.startWorker();
+        }
+        if (supervisor != null) {
+            destination.openSession(true);
+        }
+        return destination;
+    }
+
+    public synchronized void removeDestination(KsyRecordSender destination) {
+        KsyRecordSender[] current = destinations;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == destination) {
+                KsyRecordSender[] shrunk = new KsyRecordSender[current.length - 1];
+                System.arraycopy(current, 0, shrunk, 0, i);
+                System.arraycopy(current, i + 1, shrunk, i, shrunk.length - i);
+                destinations = shrunk;
+                destination.disconnect();
+                return;
+            }
+        }
+    }
+
+    public KsyRecordSender[] getDestinations() {
+        return destinations.clone();
+    }
+
+    private synchronized void removeDestinations() {
+        KsyRecordSender[] current = destinations;
+        destinations = new KsyRecordSender[0];
+        for (KsyRecordSender destination : current) {
+            destination.disconnect();
+        }
+    }
+
+    public DropReport getDropReport() {
+        return dropReport;
+    }
+
+    /**
+     * sender counters, gauges and histograms, see KsySenderMetrics.snapshot()
+     */
+    public KsySenderMetrics getMetrics() {
+        return metrics;
+    }
 
-    public static KsyRecordSender getRecordInstance() {
+    /**
+     * the clock the video source stamps its frames with, kept in line with the audio by addToQueue()
+     */
+    public KsyMediaSource.ClockSync getClock() {
+        return clock;
+    }
+
+    /**
+     * @deprecated one sender per process, use the sender of a KsyRecordSession
+     */
+    @Deprecated
+    public static synchronized KsyRecordSender getRecordInstance() {
+        if (ksyRecordSenderInstance == null) {
+            ksyRecordSenderInstance = new KsyRecordSender();
+        }
         return ksyRecordSenderInstance;
     }
 
+    /**
+     * ms from start() to the latest video sequence header, 0 before the first one
+     */
+    public long getStartWaitMs() {
+        return startWaitMs;
+    }
+
+    /**
+     * whether sources should build tags into KsyDirectBufferPool buffers,
+     * turns false for good once the native library turns out not to have _writeDirect
+     */
+    public static boolean isDirectWriteSupported() {
+        return directWriteSupported;
+    }
+
+    static void disableDirectWrite() {
+        directWriteSupported = false;
+    }
+
+    public StreamTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @deprecated builds a new string on every call, read getMetrics() into a Snapshot instead
+     */
+    @Deprecated
     public String getAVBitrate() {
-        return "\nwait=" + KsyRecordClient.startWaitTIme + " curTransferVideoBr=" + currentVideoBitrate +
-                ", curTransferAudiobr:" + currentAudioBitrate +
-                "\n,vFps =" + vidoeFps.getSpeed() + " aFps=" + audioFps.getSpeed() + " dropA:" + dropAudioCount + " dropV" + dropVideoCount +
-                "\n, lastStAudioTs:" + lastSendAudioTs + "stAvDist=" + (lastSendAudioTs - lastSendVideoDts) + ",size=" + recordPQueue.size() + "\nf_v=" + frame_video + " f_a=" + frame_audio + "\n" + KsyMediaSource.sync.lastMessage;
+        synchronized (legacySnapshot) {
+            metrics.snapshot(legacySnapshot);
+            StringBuilder sb = new StringBuilder(512);
+            sb.append("\nwait=").append(startWaitMs).append('\n');
+            return legacySnapshot.appendTo(sb).append('\n').append(pacer).append('\n').append(clock).toString();
+        }
     }
 
+    /**
+     * @param pContext null to not follow network changes, e.g. off device
+     */
     public void start(Context pContext) throws IOException {
-        IntentFilter filter = new IntentFilter(Constants.NETWORK_STATE_CHANGED);
-        LocalBroadcastManager.getInstance(pContext).registerReceiver(receiver, filter);
+        if (pContext != null) {
+            IntentFilter filter = new IntentFilter(Constants.NETWORK_STATE_CHANGED);
+            LocalBroadcastManager.getInstance(pContext).registerReceiver(receiver, filter);
+            receiverRegistered = true;
+        }
         mContext = pContext;
+        startedAt = System.currentTimeMillis();
+        startWaitMs = 0;
+        startArchive();
+        startWorker();
+        for (KsyRecordSender destination : destinations) {
+            destination.startWorker();
+        }
+    }
+
+    /**
+     * the live push goes on without the archive if its file can not be opened
+     */
+    private void startArchive() {
+        KsyFlvFileSink old = archive;
+        if (old != null) {
+            old.stop();
+        }
+        String path = archivePath;
+        KsyFlvFileSink sink = null;
+        if (path != null) {
+            sink = new KsyFlvFileSink(new File(path));
+            try {
+                sink.start();
+            } catch (IOException e) {
+                Log.e(TAG, "archive " + path + " not started " + e);
+                sink = null;
+            }
+        }
+        archive = sink;
+    }
+
+    /**
+     * the local flv copy of the current recording, null without KsyRecordClientConfig.Builder.setArchivePath()
+     */
+    public KsyFlvFileSink getArchive() {
+        return archive;
+    }
+
+    private void startWorker() {
+        // the previous worker must be gone before the rings are reset under it
+        stopWorker();
+        // the worker is not running yet, nothing of a previous recording gets replayed
+        if (gopCache != null) {
+            gopCache.clear();
+        }
+        replayPending = false;
+        resetTimeline();
         worker = new Thread(new Runnable() {
             @Override
             public void run() {
@@ -139,96 +560,383 @@ public class KsyRecordSender {
                 } catch (Exception e) {
                     Log.e(Constants.LOG_TAG, "worker: thread exception. e＝" + e);
                     e.printStackTrace();
+                } finally {
+                    releaseHeld();
                 }
             }
-        });
+        }, "ksy-sender");
         worker.start();
     }
 
+    /**
+     * interrupt the worker and wait for it, unless called by the worker itself
+     */
+    private void stopWorker() {
+        Thread w = worker;
+        if (w == null || w == Thread.currentThread() || !w.isAlive()) {
+            return;
+        }
+        w.interrupt();
+        try {
+            w.join(WORKER_STOP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (w.isAlive()) {
+            Log.w(TAG, "worker did not stop within " + WORKER_STOP_TIMEOUT_MS + "ms");
+        }
+    }
+
+    /**
+     * on the way out of the worker: nothing consumes the tags it still holds
+     * once it is gone, so they go back to the pool here
+     */
+    private void releaseHeld() {
+        for (int i = 0; i < batchTags; i++) {
+            batchFrames[i].recycle();
+            batchFrames[i] = null;
+        }
+        batchLength = 0;
+        batchTags = 0;
+        batchVideoTags = 0;
+        batchVideoBytes = 0;
+        batchAudioBytes = 0;
+        // clear() is only carried out by the consumer, which is this thread
+        recordQueue.clear();
+        KSYFlvData left;
+        while ((left = recordQueue.poll()) != null) {
+            left.recycle();
+        }
+        if (gopCache != null) {
+            gopCache.clear();
+        }
+    }
+
     private void cycle() throws InterruptedException {
         while (!Thread.interrupted()) {
-            while (!connected) {
-                Thread.sleep(10);
-            }
-            if (frame_video > MIN_QUEUE_BUFFER && frame_audio > MIN_QUEUE_BUFFER || recordPQueue.size() > 30) {
-                KSYFlvData ksyFlv = null;
-                synchronized (mutex) {
-                    if (recordPQueue.size() > 0) {
-                        ksyFlv = recordPQueue.remove();
-                    } else {
-                        frame_audio = 0;
-                        frame_video = 0;
-                        continue;
-                    }
-                }
-                if (ksyFlv.type == KSYFlvData.FLV_TYPE_VIDEO) {
-                    frame_video--;
-                    lastSendVideoTs = ksyFlv.dts;
-                } else if (ksyFlv.type == KSYFlvData.FLV_TYTPE_AUDIO) {
-                    frame_audio--;
-                    lastSendAudioTs = ksyFlv.dts;
-                }
-                if (needDropFrame(ksyFlv)) {
-                    statDropFrame(ksyFlv);
-                } else {
-                    lastRefreshTime = System.currentTimeMillis();
+            // with a batch pending only take what is ready right now, the batch leaves once nothing is
+            KSYFlvData ksyFlv = awaitNext(batchLength == 0 || !connected);
+            if (ksyFlv == null) {
+                flushBatch();
+                continue;
+            }
+            if (replayPending) {
+                replayPending = false;
+                // tags held in the batch while disconnected go first
+                replayGop(batchTags > 0 ? batchFrames[0].dts : ksyFlv.dts);
+            }
+            if (ksyFlv.type == KSYFlvData.FLV_TYPE_VIDEO) {
+                lastSendVideoTs = ksyFlv.dts;
+            } else if (ksyFlv.type == KSYFlvData.FLV_TYTPE_AUDIO) {
+                lastSendAudioTs = ksyFlv.dts;
+            }
+            int dropReason = needDropFrame(ksyFlv);
+            if (dropReason != DropPolicy.DROP_NONE) {
+                statDropFrame(ksyFlv, dropReason);
+            } else {
+                try {
                     waiting(ksyFlv);
-//                    Log.e(TAG, "ksyFlv ts=" + ksyFlv.dts + " size=" + ksyFlv.size + " type=" + (ksyFlv.type == KSYFlvData.FLV_TYTPE_AUDIO ? "==ADO==" : "**VDO**"));
-                    int w = _write(ksyFlv.byteBuffer, ksyFlv.byteBuffer.length);
-                    statBitrate(w, ksyFlv.type);
+                } catch (InterruptedException e) {
+                    ksyFlv.recycle();
+                    throw e;
+                }
+//                Log.e(TAG, "ksyFlv ts=" + ksyFlv.dts + " size=" + ksyFlv.size + " type=" + (ksyFlv.type == KSYFlvData.FLV_TYTPE_AUDIO ? "==ADO==" : "**VDO**"));
+                appendToBatch(ksyFlv);
+                if (ksyFlv.isKeyframe() || batchLength >= sendBatchBytes
+                        || System.currentTimeMillis() - batchStartTime >= sendBatchLatencyMs) {
+                    flushBatch();
                 }
             }
         }
     }
 
-    private boolean needDropFrame(KSYFlvData ksyFlv) {
-        boolean dropFrame = false;
-        int queueSize = recordPQueue.size();
-        int dts = ksyFlv.dts;
-        if (queueSize > LEVEL2_QUEUE_SIZE || (dropNoneIDRFrame && ksyFlv.type == KSYFlvData.FLV_TYPE_VIDEO)) {
-            dropFrame = true;
+    private void appendToBatch(KSYFlvData ksyFlv) {
+        int length = ksyFlv.size;
+        if (batchTags == batchFrames.length) {
+            KSYFlvData[] grown = new KSYFlvData[batchFrames.length * 2];
+            System.arraycopy(batchFrames, 0, grown, 0, batchTags);
+            batchFrames = grown;
+        }
+        if (batchLength == 0) {
+            batchStartTime = System.currentTimeMillis();
         }
+        batchFrames[batchTags++] = ksyFlv;
+        batchLength += length;
         if (ksyFlv.type == KSYFlvData.FLV_TYPE_VIDEO) {
-            lastSendVideoDts = dts;
-            if (ksyFlv.isKeyframe()) {
-                dropNoneIDRFrame = false;
-                dropFrame = false;
-            }
-            if (dropFrame) {
-                dropNoneIDRFrame = true;
+            batchVideoTags++;
+            batchVideoBytes += length;
+        } else {
+            batchAudioBytes += length;
+        }
+    }
+
+    /**
+     * one _write for every gathered tag, rtmp splits the buffer back into tags
+     */
+    private void flushBatch() {
+        if (batchLength == 0) {
+            return;
+        }
+        // the stats only time the write itself, not pacing
+        lastRefreshTime = System.currentTimeMillis();
+        int w;
+        KSYFlvData lone = batchTags == 1 ? batchFrames[0] : null;
+        synchronized (nativeLock) {
+            if (lone != null && lone.directBuffer == null) {
+                w = transport.write(lone.byteBuffer, batchLength);
+            } else {
+                // a lone direct tag goes out from where its source built it
+                w = write(lone != null ? lone.directBuffer : gatherBatch(), batchLength);
             }
+        }
+        metrics.record(KsySenderMetrics.HISTOGRAM_WRITE_LATENCY_MS, System.currentTimeMillis() - lastRefreshTime);
+        metrics.record(KsySenderMetrics.HISTOGRAM_QUEUE_MS, recordQueue.durationMs());
+        metrics.increment(KsySenderMetrics.COUNTER_WRITES);
+        if (w == -1) {
+            metrics.increment(KsySenderMetrics.COUNTER_WRITE_FAILURES);
         } else {
-            lastSendAudioDts = dts;
+            metrics.add(KsySenderMetrics.COUNTER_VIDEO_TAGS_SENT, batchVideoTags);
+            metrics.add(KsySenderMetrics.COUNTER_AUDIO_TAGS_SENT, batchTags - batchVideoTags);
+            metrics.add(KsySenderMetrics.COUNTER_VIDEO_BYTES_SENT, batchVideoBytes);
+            metrics.add(KsySenderMetrics.COUNTER_AUDIO_BYTES_SENT, batchAudioBytes);
+            KsyGopCache cache = checkGopCache();
+            if (cache != null) {
+                for (int i = 0; i < batchTags; i++) {
+                    cache.onSent(batchFrames[i]);
+                }
+            }
         }
-        return dropFrame;
+        statBitrate(w, batchVideoBytes, batchAudioBytes);
+        for (int i = 0; i < batchTags; i++) {
+            batchFrames[i].recycle();
+            batchFrames[i] = null;
+        }
+        batchLength = 0;
+        batchTags = 0;
+        batchVideoTags = 0;
+        batchVideoBytes = 0;
+        batchAudioBytes = 0;
+    }
+
+    private KsyGopCache checkGopCache() {
+        int maxBytes = gopCacheMaxBytes;
+        if (maxBytes <= 0) {
+            gopCache = null;
+        } else if (gopCache == null || gopCache.getMaxBytes() != maxBytes) {
+            gopCache = new KsyGopCache(maxBytes);
+        }
+        return gopCache;
+    }
+
+    /**
+     * a new session never saw the sequence headers, send them again with the
+     * last gop so the tags still queued can be decoded right away
+     */
+    private void replayGop(int nextDts) {
+        KsyGopCache cache = gopCache;
+        if (cache == null || cache.replayTags() == 0) {
+            return;
+        }
+        ByteBuffer replay = scratchBuffer(cache.replaySize());
+        int length = cache.replay(replay, nextDts);
+        lastRefreshTime = System.currentTimeMillis();
+        int w;
+        synchronized (nativeLock) {
+            w = write(replay, length);
+        }
+        metrics.increment(KsySenderMetrics.COUNTER_WRITES);
+        metrics.increment(KsySenderMetrics.COUNTER_GOP_REPLAYS);
+        Log.d(TAG, "replayed " + cache.replayTags() + " tags, " + length + " bytes before dts " + nextDts);
+        if (w == -1) {
+            metrics.increment(KsySenderMetrics.COUNTER_WRITE_FAILURES);
+            statBitrate(w, 0, 0);
+        }
+    }
+
+    /**
+     * batchBuffer cleared and at least capacity large, direct when native can take it
+     */
+    private ByteBuffer scratchBuffer(int capacity) {
+        ByteBuffer buffer = batchBuffer;
+        if (buffer == null || buffer.capacity() < capacity || buffer.isDirect() != directWriteSupported) {
+            capacity = Math.max(capacity, sendBatchBytes);
+            buffer = directWriteSupported ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+            batchBuffer = buffer;
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private ByteBuffer gatherBatch() {
+        ByteBuffer batch = scratchBuffer(batchLength);
+        for (int i = 0; i < batchTags; i++) {
+            batchFrames[i].copyTo(batch);
+        }
+        return batch;
+    }
+
+    private int write(ByteBuffer buffer, int length) {
+        return transport.write(buffer, length);
+    }
+
+    /**
+     * park until a frame is sendable or the connection state changes,
+     * letting the drop policy trim the queue on the way when it is congested
+     *
+     * @param block false to return null instead of parking
+     */
+    private KSYFlvData awaitNext(boolean block) throws InterruptedException {
+        while (true) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            checkDropPolicy();
+            updateQueueGauges();
+            int level = congestionLevel();
+            KsyConnectionSupervisor s = supervisor;
+            if (s != null) {
+                s.setDegraded(level != DropPolicy.CONGESTION_NONE);
+            }
+            if (level != DropPolicy.CONGESTION_NONE && recordQueue.apply(dropPolicy.onCongestion(level, recordQueue)) > 0) {
+                continue;
+            }
+            if (connected && isSendable()) {
+                KSYFlvData next = recordQueue.poll();
+                if (next != null) {
+                    return next;
+                }
+            }
+            if (!block) {
+                return null;
+            }
+            workerParked = true;
+            // the policy had nothing to drop, only a new frame or a connection change can alter that
+            if (!hasWork()) {
+                LockSupport.park(this);
+                metrics.increment(KsySenderMetrics.COUNTER_WORKER_WAKEUPS);
+            }
+            workerParked = false;
+        }
+    }
+
+    private void checkDropPolicy() {
+        DropPolicy policy = dropPolicy;
+        if (policy != activeDropPolicy) {
+            activeDropPolicy = policy;
+            dropReport = new DropReport(policy.getName());
+            recordQueue.setDropReport(dropReport);
+        }
+    }
+
+    /**
+     * O(1): the queue keeps its byte count and head/last dts up to date
+     */
+    private int congestionLevel() {
+        int duration = recordQueue.durationMs();
+        long bytes = recordQueue.bytes();
+        if (duration > maxBufferedDurationMs || bytes > maxBufferedBytes) {
+            return DropPolicy.CONGESTION_HARD;
+        }
+        if (duration * 4L > maxBufferedDurationMs * 3L || bytes > maxBufferedBytes / 4 * 3) {
+            return DropPolicy.CONGESTION_SOFT;
+        }
+        return DropPolicy.CONGESTION_NONE;
+    }
+
+    private boolean hasWork() {
+        return connected && isSendable();
+    }
+
+    private boolean isSendable() {
+        return recordQueue.videoSize() > MIN_QUEUE_BUFFER && recordQueue.audioSize() > MIN_QUEUE_BUFFER || recordQueue.size() > 30;
+    }
+
+    private void wakeWorker() {
+        Thread w = worker;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+    }
+
+    private void setConnected(boolean connected) {
+        this.connected = connected;
+        wakeWorker();
+    }
+
+    Thread getWorker() {
+        return worker;
+    }
+
+    public long getWorkerWakeups() {
+        return metrics.get(KsySenderMetrics.COUNTER_WORKER_WAKEUPS);
+    }
+
+    /**
+     * number of _write calls, each carries one or more tags
+     */
+    public long getWriteCount() {
+        return metrics.get(KsySenderMetrics.COUNTER_WRITES);
+    }
+
+    public long getWrittenTags() {
+        return metrics.get(KsySenderMetrics.COUNTER_VIDEO_TAGS_SENT) + metrics.get(KsySenderMetrics.COUNTER_AUDIO_TAGS_SENT);
     }
 
-    private void statDropFrame(KSYFlvData dropped) {
-        if (dropped.type == KSYFlvData.FLV_TYPE_VIDEO) {
-            dropVideoCount++;
-        } else if (dropped.type == KSYFlvData.FLV_TYTPE_AUDIO) {
-            dropAudioCount++;
+    /**
+     * O(1), safe from the producer threads too
+     */
+    private void updateQueueGauges() {
+        int duration = recordQueue.durationMs();
+        metrics.set(KsySenderMetrics.GAUGE_QUEUE_FRAMES, recordQueue.size());
+        metrics.set(KsySenderMetrics.GAUGE_QUEUE_VIDEO_FRAMES, recordQueue.videoSize());
+        metrics.set(KsySenderMetrics.GAUGE_QUEUE_AUDIO_FRAMES, recordQueue.audioSize());
+        metrics.set(KsySenderMetrics.GAUGE_QUEUE_BYTES, recordQueue.bytes());
+        metrics.set(KsySenderMetrics.GAUGE_QUEUE_MS, duration);
+    }
+
+    private int needDropFrame(KSYFlvData ksyFlv) {
+        if (ksyFlv.type == KSYFlvData.FLV_TYPE_VIDEO) {
+            lastSendVideoDts = ksyFlv.dts;
+        } else {
+            lastSendAudioDts = ksyFlv.dts;
         }
+        return dropPolicy.onFrame(ksyFlv, congestionLevel());
+    }
+
+    private void statDropFrame(KSYFlvData dropped, int reason) {
+        recordQueue.drop(dropped, reason);
         Log.d(TAG, "drop frame !!" + dropped.isKeyframe());
     }
 
-    private void statBitrate(int sent, int type) {
+    /**
+     * a batch carries both tracks, the write time is shared out by bytes
+     */
+    private void statBitrate(int sent, int videoBytes, int audioBytes) {
         if (sent == -1) {
-            connected = false;
+            setConnected(false);
+            KsyConnectionSupervisor s = supervisor;
+            if (s != null) {
+                s.onConnectionLost();
+            }
             Log.e(TAG, "statBitrate send frame failed!");
-            recordHandler.sendEmptyMessage(Constants.MESSAGE_SENDER_PUSH_FAILED);
+            // destinations have no handler, their failures only show in their own metrics
+            if (recordHandler != null) {
+                recordHandler.sendEmptyMessage(Constants.MESSAGE_SENDER_PUSH_FAILED);
+            }
         } else {
             long time = System.currentTimeMillis() - lastRefreshTime;
             long escape = System.currentTimeMillis() - last_stat_time;
             time = time == 0 ? 1 : time;
-            if (type == 11) {
+            long videoShare = time * videoBytes / (videoBytes + audioBytes);
+            if (videoBytes > 0) {
                 currentVideoBitrate = sent / (time);
-                videoByteSum += sent;
-                videoTime += time;
-            } else if (type == 12) {
+                videoByteSum += videoBytes;
+                videoTime += videoShare;
+            }
+            if (audioBytes > 0) {
                 currentAudioBitrate = sent / (time);
-                audioByteSum += sent;
-                audioTime += time;
+                audioByteSum += audioBytes;
+                audioTime += time - videoShare;
             }
             if (time > 500) {
                 Log.e(TAG, "statBitrate time > 500ms network maybe poor! Time use:" + time);
@@ -238,6 +946,19 @@ public class KsyRecordSender {
                 encodeAudioBitrate = (float) audioByteSum / escape;
                 avgInstantaneousVideoBitrate = (float) videoByteSum / videoTime;
                 avgInstantaneousAudioBitrate = (float) audioByteSum / audioTime;
+                KsyBitrateController controller = bitrateController;
+                if (controller != null) {
+                    controller.onSample(videoByteSum + audioByteSum, videoTime + audioTime,
+                            recordQueue.durationMs(), System.currentTimeMillis());
+                    metrics.set(KsySenderMetrics.GAUGE_TARGET_VIDEO_BPS, controller.getTargetBitrate());
+                }
+                // bytes per ms to bits per second
+                metrics.set(KsySenderMetrics.GAUGE_ENCODE_VIDEO_BPS, (long) (encodeVideoBitrate * 8000));
+                metrics.set(KsySenderMetrics.GAUGE_ENCODE_AUDIO_BPS, (long) (encodeAudioBitrate * 8000));
+                metrics.set(KsySenderMetrics.GAUGE_TRANSFER_VIDEO_BPS, (long) (avgInstantaneousVideoBitrate * 8000));
+                metrics.set(KsySenderMetrics.GAUGE_TRANSFER_AUDIO_BPS, (long) (avgInstantaneousAudioBitrate * 8000));
+                metrics.set(KsySenderMetrics.GAUGE_INPUT_VIDEO_FPS, (long) vidoeFps.getSpeed());
+                metrics.set(KsySenderMetrics.GAUGE_INPUT_AUDIO_FPS, (long) audioFps.getSpeed());
                 videoByteSum = 0;
                 videoTime = 0;
                 audioByteSum = 0;
@@ -247,119 +968,125 @@ public class KsyRecordSender {
         }
     }
 
-    private void removeToNextIDRFrame(PriorityQueue<KSYFlvData> recordPQueue) {
-        if (recordPQueue.size() > 0) {
-            KSYFlvData data = recordPQueue.remove();
-            if (data.type == KSYFlvData.FLV_TYPE_VIDEO) {
-                if (data.isKeyframe()) {
-                    recordPQueue.add(data);
-                } else {
-                    removeToNextIDRFrame(recordPQueue);
-                    Log.e(TAG, "removeToNextIDRFrame Video!!! .." + recordPQueue.size());
-                    frame_video--;
-                }
-            } else {
-                Log.e(TAG, "removeToNextIDRFrame Audio*** .." + recordPQueue.size());
-                removeToNextIDRFrame(recordPQueue);
-                recordPQueue.add(data);
-            }
-        }
-    }
-
-    private void removeQueue(PriorityQueue<KSYFlvData> recordPQueue) {
-        if (recordPQueue.size() > 0) {
-            KSYFlvData data = recordPQueue.remove();
-            if (data.type == KSYFlvData.FLV_TYPE_VIDEO) {
-                if (data.isKeyframe()) {
-                    removeQueue(recordPQueue);
-                    recordPQueue.add(data);
-                } else {
-                    removeToNextIDRFrame(recordPQueue);
-                    frame_video--;
-                }
-            } else {
-                frame_audio--;
-            }
-        }
-    }
-
     //send data to server
-    public synchronized void addToQueue(KSYFlvData ksyFlvData, int k) {
+    // called from the audio and video threads, each one only ever feeds its own track queue
+    public void addToQueue(KSYFlvData ksyFlvData, int k) {
         if (ksyFlvData == null) {
             return;
         }
         if (ksyFlvData.size <= 0) {
             return;
         }
-        KsyMediaSource.sync.setAvDistance(lastAddAudioTs - lastAddVideoTs);
-        // add video data
-        synchronized (mutex) {
-            if (recordPQueue.size() > LEVEL1_QUEUE_SIZE) {
-                removeQueue(recordPQueue);
-            }
-            if (k == FROM_VIDEO) { //视频数据
-                if (needResetTs) {
-                    KsyMediaSource.sync.resetTs(lastAddAudioTs);
-                    Log.d(Constants.LOG_TAG, "lastAddAudioTs = " + lastAddAudioTs);
-                    Log.d(Constants.LOG_TAG, "lastAddVideoTs = " + lastAddVideoTs);
-                    Log.d(Constants.LOG_TAG, "ksyFlvData.dts = " + ksyFlvData.dts);
-                    needResetTs = false;
-                    lastAddVideoTs = lastAddAudioTs;
-                    ksyFlvData.dts = lastAddVideoTs;
-                }
-                vidoeFps.tickTock();
-                frame_video++;
-                lastAddVideoTs = ksyFlvData.dts;
+        if (k == FROM_VIDEO && ksyFlvData.sequenceHeader) {
+            startWaitMs = System.currentTimeMillis() - startedAt;
+        }
+        clock.setAvDistance(lastAddAudioTs - lastAddVideoTs);
+        if (k == FROM_VIDEO && needResetTs) {
+            clock.resetTs(lastAddAudioTs);
+            Log.d(Constants.LOG_TAG, "lastAddAudioTs = " + lastAddAudioTs);
+            Log.d(Constants.LOG_TAG, "lastAddVideoTs = " + lastAddVideoTs);
+            Log.d(Constants.LOG_TAG, "ksyFlvData.dts = " + ksyFlvData.dts);
+            needResetTs = false;
+            lastAddVideoTs = lastAddAudioTs;
+            ksyFlvData.dts = lastAddVideoTs;
+        }
+        KsyFlvFileSink sink = archive;
+        if (sink != null) {
+            // ahead of every drop policy, the sink takes its own reference
+            sink.offer(ksyFlvData);
+        }
+        // the tag is shared from here on, every destination owns a reference before any of them can send it
+        KsyRecordSender[] targets = destinations;
+        for (int i = 0; i < targets.length; i++) {
+            ksyFlvData.retain();
+        }
+        enqueue(ksyFlvData, k);
+        for (KsyRecordSender destination : targets) {
+            destination.enqueue(ksyFlvData, k);
+        }
+    }
+
+    /**
+     * never blocks: a full queue drops the tag, whatever the other destinations do
+     */
+    private void enqueue(KSYFlvData ksyFlvData, int k) {
+        metrics.set(KsySenderMetrics.GAUGE_AV_DISTANCE_MS, lastAddAudioTs - lastAddVideoTs);
+        boolean queued = false;
+        if (k == FROM_VIDEO) { //视频数据
+            vidoeFps.tickTock();
+            lastAddVideoTs = ksyFlvData.dts;
 //                Log.d(Constants.LOG_TAG, "video_enqueue = " + ksyFlvData.dts + " " + ksyFlvData.isKeyframe());
-            } else if (k == FROM_AUDIO) {//音频数据
-                audioFps.tickTock();
-                frame_audio++;
-                lastAddAudioTs = ksyFlvData.dts;
-            }
-            recordPQueue.add(ksyFlvData);
+            queued = recordQueue.offerVideo(ksyFlvData);
+        } else if (k == FROM_AUDIO) {//音频数据
+            audioFps.tickTock();
+            lastAddAudioTs = ksyFlvData.dts;
+            queued = recordQueue.offerAudio(ksyFlvData);
         }
+        if (!queued) {
+            // the sender thread owns the drop report, only the metrics see it
+            metrics.onDrop(ksyFlvData, DropPolicy.DROP_QUEUE_FULL);
+            Log.d(TAG, "drop frame, queue full !!" + ksyFlvData.isKeyframe());
+            ksyFlvData.recycle();
+        } else if (workerParked && (hasWork() || congestionLevel() == DropPolicy.CONGESTION_HARD)) {
+            // a hard congested queue gets one more trim attempt per new frame, connected or not
+            wakeWorker();
+        }
+        updateQueueGauges();
     }
 
 
-    private synchronized void onNetworkChanged() {
+    private void onNetworkChanged() {
         Log.e(TAG, "onNetworkChanged .." + NetworkMonitor.networkConnected());
         if (NetworkMonitor.networkConnected()) {
             reconnect();
         } else {
             pauseSend();
         }
+        for (KsyRecordSender destination : destinations) {
+            destination.onNetworkChanged();
+        }
     }
 
+    /**
+     * the supervisor retries right away instead of waiting out its backoff
+     */
     private void reconnect() {
-        if (!connected) {
+        KsyConnectionSupervisor s = supervisor;
+        if (s != null) {
             Log.e(TAG, "reconnecting ...");
-            Log.e(TAG, "close .." + _close());
-            Log.e(TAG, "_set_output_url .." + _set_output_url(mUrl));
-            int result = _open();
-            connected = result == 0;
-            if (connected) {
-                senderListener.onStartComplete();
-            } else {
-                senderListener.onStartFailed();
-            }
-            Log.e(TAG, "opens result ..>" + result);
+            s.onNetworkAvailable();
         }
     }
 
     private void pauseSend() {
-        connected = false;
+        setConnected(false);
+        KsyConnectionSupervisor s = supervisor;
+        if (s != null) {
+            s.onNetworkLost();
+        }
     }
 
     public void disconnect() {
-        _close();
-        if (worker.isAlive()) {
-            worker.interrupt();
+        removeDestinations();
+        KsyFlvFileSink sink = archive;
+        if (sink != null) {
+            // keeps its file open until what is queued is written
+            sink.stop();
+        }
+        KsyConnectionSupervisor s = supervisor;
+        supervisor = null;
+        if (s != null) {
+            s.close();
+        }
+        // not under nativeLock, closing the socket is what unblocks a stuck _write
+        transport.close();
+        stopWorker();
+        recordQueue.clear();
+        setConnected(false);
+        if (receiverRegistered) {
+            receiverRegistered = false;
+            LocalBroadcastManager.getInstance(mContext).unregisterReceiver(receiver);
         }
-        recordPQueue.clear();
-        frame_video = 0;
-        frame_audio = 0;
-        connected = false;
-        LocalBroadcastManager.getInstance(mContext).unregisterReceiver(receiver);
     }
 
     public void setRecorderData(String url, int j) {
@@ -367,50 +1094,115 @@ public class KsyRecordSender {
             return;
         }
         mUrl = URLConverter.convertUrl(url);
-        int i = _set_output_url(mUrl);
-        Log.e(TAG, "_set_output_url .." + i + " url=" + mUrl);
         //3视频  0音频
         if (j == FIRST_OPEN) {
-            int k = _open();
-            connected = k == 0;
-            if (connected) {
-                senderListener.onStartComplete();
-            } else {
-                senderListener.onStartFailed();
+            connect();
+        } else {
+            synchronized (nativeLock) {
+                int i = transport.setOutputUrl(mUrl);
+                Log.e(TAG, "_set_output_url .." + i + " url=" + mUrl);
             }
-            Log.e(TAG, "connected .. open result=" + k);
         }
     }
 
+    /**
+     * open the session to url, the first attempt runs on the calling thread
+     */
+    public void connect(String url) {
+        mUrl = URLConverter.convertUrl(url);
+        connect();
+    }
+
+    private void connect() {
+        openSession(false);
+        // a slow backup ingest must not hold up the video thread
+        for (KsyRecordSender destination : destinations) {
+            destination.openSession(true);
+        }
+    }
+
+    /**
+     * @param inBackground false runs the first attempt right here, a failed one is retried with backoff either way
+     */
+    private void openSession(boolean inBackground) {
+        KsyConnectionSupervisor old = supervisor;
+        if (old != null) {
+            old.close();
+        }
+        KsyConnectionSupervisor s = new KsyConnectionSupervisor(rtmpConnector, reconnectBaseDelayMs, reconnectMaxDelayMs);
+        s.setConnectionListener(supervisorListener);
+        supervisor = s;
+        if (inBackground) {
+            s.startInBackground();
+        } else {
+            boolean opened = s.start();
+            Log.e(TAG, "connected .. open result=" + opened + " url=" + mUrl);
+        }
+    }
+
+    private void post(Runnable r) {
+        KsyRecordClient.RecordHandler handler = recordHandler;
+        if (handler != null) {
+            handler.post(r);
+        }
+    }
+
+    /**
+     * hold an audio tag back until its deadline, parking once instead of polling the clock
+     */
     public void waiting(KSYFlvData ksyFlvData) throws InterruptedException {
         if (ksyFlvData.type != KSYFlvData.FLV_TYTPE_AUDIO) {
             return;
         }
-        long ts = ksyFlvData.dts;
+        KsyPacer next = pendingPacer;
+        if (next != null) {
+            pendingPacer = null;
+            pacer = next;
+        }
         if (!inited) {
-            ideaStartTime = ts;
-            systemStartTime = System.currentTimeMillis();
+            pacer.reset();
             inited = true;
-            return;
         }
-        long ideaTime = System.currentTimeMillis() - systemStartTime + ideaStartTime;
-        if (Math.abs(ideaTime - ts) > 100) {
-            inited = false;
+        long deadline = pacer.deadline(ksyFlvData.dts, System.nanoTime());
+        metrics.set(KsySenderMetrics.GAUGE_PACER_LAG_MS, pacer.getLagMs());
+        long delay = deadline - System.nanoTime();
+        if (delay <= 0) {
             return;
         }
-        while (ts > ideaTime) {
-            Thread.sleep(1);
-            ideaTime = System.currentTimeMillis() - systemStartTime + ideaStartTime;
+        while (delay > 0) {
+            // producers unpark the worker too, so park again until the deadline
+            LockSupport.parkNanos(this, delay);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            delay = deadline - System.nanoTime();
         }
+        pacer.onPaced(deadline, System.nanoTime());
+        metrics.set(KsySenderMetrics.GAUGE_PACER_MAX_JITTER_US, pacer.getMaxJitterUs());
+    }
+
+    /**
+     * a restarted sender begins like a new one, with no timestamps of the last recording
+     */
+    private void resetTimeline() {
+        recordQueue.clear();
+        inited = false;
+        needResetTs = false;
+        lastAddAudioTs = 0;
+        lastAddVideoTs = 0;
+        lastSendAudioTs = 0;
+        lastSendVideoTs = 0;
+        lastSendAudioDts = 0;
+        lastSendVideoDts = 0;
+        clock.reset();
     }
 
     public void clearData() {
-        synchronized (mutex) {
-            recordPQueue.clear();
-            frame_video = 0;
-            frame_audio = 0;
-        }
+        recordQueue.clear();
         inited = false;
+        for (KsyRecordSender destination : destinations) {
+            destination.clearData();
+        }
     }
 
     public interface SenderListener {
@@ -420,13 +1212,16 @@ public class KsyRecordSender {
     }
 
 
-    private native int _set_output_url(String url);
+    // bound to this class by name, KsyJniTransport calls them
+    native int _set_output_url(String url);
+
+    native int _open();
 
-    private native int _open();
+    native int _close();
 
-    private native int _close();
+    native int _write(byte[] buffer, int size);
 
-    private native int _write(byte[] buffer, int size);
+    native int _writeDirect(ByteBuffer buffer, int offset, int size);
 
     public void setStateMonitor(KsyRecordClient.RecordHandler recordHandler) {
         this.recordHandler = recordHandler;
@@ -0,0 +1,64 @@
+package com.ksy.recordlib.service.core;
+
+import android.content.Context;
+
+import java.io.IOException;
+
+/**
+ * One stream: its config and the sender that owns the queues, the worker
+ * thread and the clock the sources stamp their frames with.
+ * <p/>
+ * Nothing of a session is static, so sessions can run side by side, e.g. a
+ * preview and a publishing one, and a stopped session starts again without
+ * the timeline of its last recording. The sources of a recording are built
+ * against a session and feed its sender only.
+ */
+public class KsyRecordSession {
+
+    private final KsyRecordClientConfig config;
+    private final KsyRecordSender sender;
+
+    /**
+     * a session on the native rtmp push
+     */
+    public KsyRecordSession(KsyRecordClientConfig config) {
+        this(config, null);
+    }
+
+    /**
+     * @param transport null for the native rtmp push
+     */
+    public KsyRecordSession(KsyRecordClientConfig config, StreamTransport transport) {
+        this.config = config;
+        sender = new KsyRecordSender(transport);
+    }
+
+    public KsyRecordClientConfig getConfig() {
+        return config;
+    }
+
+    public KsyRecordSender getSender() {
+        return sender;
+    }
+
+    public KsyMediaSource.ClockSync getClock() {
+        return sender.getClock();
+    }
+
+    /**
+     * apply the config and start the sender, the sources come after
+     *
+     * @param context null for headless sessions, without network change events
+     */
+    public void start(Context context) throws IOException {
+        sender.setConfig(config);
+        sender.start(context);
+    }
+
+    /**
+     * disconnect the sender, start() may follow
+     */
+    public void stop() {
+        sender.disconnect();
+    }
+}
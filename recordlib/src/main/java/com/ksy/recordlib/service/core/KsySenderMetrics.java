@@ -0,0 +1,210 @@
+package com.ksy.recordlib.service.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters, gauges and fixed-bucket histograms of a KsyRecordSender.
+ * <p/>
+ * Every metric is a primitive slot addressed by one of the constants below, so
+ * updating one never allocates. snapshot() copies all slots into a Snapshot the
+ * reader allocated once, from any thread and without locks. Each value is read
+ * atomically, the snapshot as a whole is not one consistent cut.
+ */
+public class KsySenderMetrics {
+
+    // counters, only ever go up
+    public static final int COUNTER_VIDEO_TAGS_SENT = 0;
+    public static final int COUNTER_AUDIO_TAGS_SENT = 1;
+    public static final int COUNTER_VIDEO_BYTES_SENT = 2;
+    public static final int COUNTER_AUDIO_BYTES_SENT = 3;
+    public static final int COUNTER_WRITES = 4;
+    public static final int COUNTER_WRITE_FAILURES = 5;
+    public static final int COUNTER_VIDEO_DROPS = 6;
+    public static final int COUNTER_AUDIO_DROPS = 7;
+    public static final int COUNTER_WORKER_WAKEUPS = 8;
+    public static final int COUNTER_GOP_REPLAYS = 9;
+    public static final int COUNTER_RECONNECTS = 10;
+    // audio tags an InterleavingTransport sent in between the pieces of a larger tag
+    public static final int COUNTER_INTERLEAVED_AUDIO_TAGS = 11;
+    // garbage in the recorder's streams the sources skipped to find their way back
+    public static final int COUNTER_VIDEO_PARSE_ERRORS = 12;
+    public static final int COUNTER_AUDIO_PARSE_ERRORS = 13;
+    // one counter per DropPolicy reason follows
+    public static final int COUNTER_DROP_REASON_BASE = 14;
+    public static final int COUNTER_COUNT = COUNTER_DROP_REASON_BASE + DropPolicy.DROP_REASON_COUNT;
+
+    // gauges, last value set
+    public static final int GAUGE_QUEUE_FRAMES = 0;
+    public static final int GAUGE_QUEUE_VIDEO_FRAMES = 1;
+    public static final int GAUGE_QUEUE_AUDIO_FRAMES = 2;
+    public static final int GAUGE_QUEUE_BYTES = 3;
+    public static final int GAUGE_QUEUE_MS = 4;
+    public static final int GAUGE_AV_DISTANCE_MS = 5;
+    public static final int GAUGE_ENCODE_VIDEO_BPS = 6;
+    public static final int GAUGE_ENCODE_AUDIO_BPS = 7;
+    public static final int GAUGE_TRANSFER_VIDEO_BPS = 8;
+    public static final int GAUGE_TRANSFER_AUDIO_BPS = 9;
+    public static final int GAUGE_TARGET_VIDEO_BPS = 10;
+    public static final int GAUGE_INPUT_VIDEO_FPS = 11;
+    public static final int GAUGE_INPUT_AUDIO_FPS = 12;
+    public static final int GAUGE_PACER_LAG_MS = 13;
+    public static final int GAUGE_PACER_MAX_JITTER_US = 14;
+    // one of the KsyConnectionSupervisor states
+    public static final int GAUGE_CONNECTION_STATE = 15;
+    public static final int GAUGE_LAST_RECOVERY_MS = 16;
+    public static final int GAUGE_COUNT = 17;
+
+    public static final int HISTOGRAM_WRITE_LATENCY_MS = 0;
+    public static final int HISTOGRAM_QUEUE_MS = 1;
+    public static final int HISTOGRAM_COUNT = 2;
+
+    /**
+     * inclusive upper bounds of the buckets, one more bucket takes everything above
+     */
+    public static final long[] WRITE_LATENCY_BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000};
+    public static final long[] QUEUE_MS_BOUNDS = {50, 100, 200, 500, 1000, 2000, 3000, 5000};
+
+    static final String[] COUNTER_NAMES = {
+            "vTags", "aTags", "vBytes", "aBytes", "writes", "writeFail", "vDrop", "aDrop", "wakeups", "replays", "reconnects",
+            "interleavedA", "vParseErr", "aParseErr", "drop:none", "drop:nextIdr", "drop:oldestGop", "drop:oldestVGop", "drop:audioHead", "drop:nonRef", "drop:queueFull"};
+    static final String[] GAUGE_NAMES = {
+            "qFrames", "qVideo", "qAudio", "qBytes", "qMs", "avDist", "encV", "encA", "trV", "trA", "targetV",
+            "vFps", "aFps", "paceLag", "paceJitterUs", "conn", "recoverMs"};
+    static final String[] HISTOGRAM_NAMES = {"writeMs", "queueMs"};
+    private static final long[][] HISTOGRAM_BOUNDS = {WRITE_LATENCY_BOUNDS, QUEUE_MS_BOUNDS};
+
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTER_COUNT);
+    private final AtomicLongArray gauges = new AtomicLongArray(GAUGE_COUNT);
+    private final AtomicLongArray[] histograms = new AtomicLongArray[HISTOGRAM_COUNT];
+
+    public KsySenderMetrics() {
+        for (int i = 0; i < HISTOGRAM_COUNT; i++) {
+            histograms[i] = new AtomicLongArray(HISTOGRAM_BOUNDS[i].length + 1);
+        }
+    }
+
+    public void increment(int counter) {
+        counters.incrementAndGet(counter);
+    }
+
+    public void add(int counter, long delta) {
+        counters.addAndGet(counter, delta);
+    }
+
+    public void set(int gauge, long value) {
+        gauges.set(gauge, value);
+    }
+
+    public void record(int histogram, long value) {
+        long[] bounds = HISTOGRAM_BOUNDS[histogram];
+        int bucket = 0;
+        while (bucket < bounds.length && value > bounds[bucket]) {
+            bucket++;
+        }
+        histograms[histogram].incrementAndGet(bucket);
+    }
+
+    public long get(int counter) {
+        return counters.get(counter);
+    }
+
+    public long getGauge(int gauge) {
+        return gauges.get(gauge);
+    }
+
+    void onDrop(KSYFlvData frame, int reason) {
+        counters.incrementAndGet(frame.type == KSYFlvData.FLV_TYPE_VIDEO ? COUNTER_VIDEO_DROPS : COUNTER_AUDIO_DROPS);
+        if (reason >= 0 && reason < DropPolicy.DROP_REASON_COUNT) {
+            counters.incrementAndGet(COUNTER_DROP_REASON_BASE + reason);
+        }
+    }
+
+    /**
+     * copy every metric into snapshot, allocates nothing
+     */
+    public void snapshot(Snapshot snapshot) {
+        snapshot.timeMs = System.currentTimeMillis();
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            snapshot.counters[i] = counters.get(i);
+        }
+        for (int i = 0; i < GAUGE_COUNT; i++) {
+            snapshot.gauges[i] = gauges.get(i);
+        }
+        for (int i = 0; i < HISTOGRAM_COUNT; i++) {
+            long[] buckets = snapshot.histograms[i];
+            for (int j = 0; j < buckets.length; j++) {
+                buckets[j] = histograms[i].get(j);
+            }
+        }
+    }
+
+    /**
+     * allocate once, fill as often as needed with KsySenderMetrics.snapshot()
+     */
+    public static class Snapshot {
+        public long timeMs;
+        public final long[] counters = new long[COUNTER_COUNT];
+        public final long[] gauges = new long[GAUGE_COUNT];
+        public final long[][] histograms = new long[HISTOGRAM_COUNT][];
+
+        public Snapshot() {
+            for (int i = 0; i < HISTOGRAM_COUNT; i++) {
+                histograms[i] = new long[HISTOGRAM_BOUNDS[i].length + 1];
+            }
+        }
+
+        /**
+         * value at or below which the given share (0-1) of a histogram's samples fall,
+         * Long.MAX_VALUE if it is in the overflow bucket, 0 if there are no samples
+         */
+        public long percentile(int histogram, float share) {
+            long[] buckets = histograms[histogram];
+            long total = 0;
+            for (long count : buckets) {
+                total += count;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long[] bounds = HISTOGRAM_BOUNDS[histogram];
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= total * share) {
+                    return i < bounds.length ? bounds[i] : Long.MAX_VALUE;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        /**
+         * human readable dump, allocation free once sb has grown large enough
+         */
+        public StringBuilder appendTo(StringBuilder sb) {
+            for (int i = 0; i < GAUGE_COUNT; i++) {
+                sb.append(GAUGE_NAMES[i]).append('=').append(gauges[i]).append(i % 4 == 3 ? '\n' : ' ');
+            }
+            sb.append('\n');
+            for (int i = 0; i < COUNTER_COUNT; i++) {
+                if (i >= COUNTER_DROP_REASON_BASE && counters[i] == 0) {
+                    continue;
+                }
+                sb.append(COUNTER_NAMES[i]).append('=').append(counters[i]).append(' ');
+            }
+            for (int i = 0; i < HISTOGRAM_COUNT; i++) {
+                long[] bounds = HISTOGRAM_BOUNDS[i];
+                sb.append('\n').append(HISTOGRAM_NAMES[i]).append(':');
+                for (int j = 0; j < histograms[i].length; j++) {
+                    sb.append(' ');
+                    if (j < bounds.length) {
+                        sb.append("<=").append(bounds[j]);
+                    } else {
+                        sb.append('>').append(bounds[bounds.length - 1]);
+                    }
+                    sb.append(':').append(histograms[i][j]);
+                }
+            }
+            return sb;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.ksy.recordlib.service.core;
+
+/**
+ * Audio and video ring buffers of the sender, merged by dts on the way out.
+ * <p/>
+ * offerVideo()/offerAudio() are called by the video and audio threads. The
+ * size(), bytes() and durationMs() gauges are safe from any thread, every other
+ * method is for the sender thread only.
+ */
+public class KsySenderQueue {
+
+    private final KSYFlvRingBuffer videoQueue;
+    private final KSYFlvRingBuffer audioQueue;
+    private DropReport dropReport;
+    private KsySenderMetrics metrics;
+    // set once video had to be dropped past the last queued frame
+    private boolean skipVideoUntilKeyframe = false;
+
+    public KsySenderQueue(int trackCapacity) {
+        videoQueue = new KSYFlvRingBuffer(trackCapacity);
+        audioQueue = new KSYFlvRingBuffer(trackCapacity);
+    }
+
+    void setDropReport(DropReport dropReport) {
+        this.dropReport = dropReport;
+    }
+
+    void setMetrics(KsySenderMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public boolean offerVideo(KSYFlvData data) {
+        return videoQueue.offer(data);
+    }
+
+    public boolean offerAudio(KSYFlvData data) {
+        return audioQueue.offer(data);
+    }
+
+    public int videoSize() {
+        return videoQueue.size();
+    }
+
+    public int audioSize() {
+        return audioQueue.size();
+    }
+
+    public int size() {
+        return videoQueue.size() + audioQueue.size();
+    }
+
+    public long bytes() {
+        return videoQueue.bytes() + audioQueue.bytes();
+    }
+
+    /**
+     * newest queued dts minus oldest queued dts over both tracks, 0 if empty
+     */
+    public int durationMs() {
+        int videoHead = videoQueue.headDts();
+        int audioHead = audioQueue.headDts();
+        int first;
+        int last;
+        if (videoHead < 0) {
+            if (audioHead < 0) {
+                return 0;
+            }
+            first = audioHead;
+            last = audioQueue.lastDts();
+        } else if (audioHead < 0) {
+            first = videoHead;
+            last = videoQueue.lastDts();
+        } else {
+            first = Math.min(videoHead, audioHead);
+            last = Math.max(videoQueue.lastDts(), audioQueue.lastDts());
+        }
+        return last > first ? last - first : 0;
+    }
+
+    /**
+     * true when the oldest queued frame is audio, the only case where dropping
+     * audio from the head brings durationMs() down
+     */
+    public boolean isAudioOldest() {
+        int audioHead = audioQueue.headDts();
+        if (audioHead < 0) {
+            return false;
+        }
+        int videoHead = videoQueue.headDts();
+        return videoHead < 0 || audioHead < videoHead;
+    }
+
+    public int queuedKeyframes() {
+        return videoQueue.keyframeCount();
+    }
+
+    public KSYFlvData peekVideo() {
+        return videoQueue.peek();
+    }
+
+    public KSYFlvData peekAudio() {
+        return audioQueue.peek();
+    }
+
+    /**
+     * two-way merge of the track queues by dts
+     */
+    public KSYFlvData peek() {
+        KSYFlvData video = videoQueue.peek();
+        KSYFlvData audio = audioQueue.peek();
+        if (video == null) {
+            return audio;
+        }
+        if (audio == null) {
+            return video;
+        }
+        return video.dts <= audio.dts ? video : audio;
+    }
+
+    /**
+     * next audio frame, ahead of whatever video is queued before it
+     */
+    public KSYFlvData pollAudio() {
+        return audioQueue.poll();
+    }
+
+    public KSYFlvData poll() {
+        while (true) {
+            KSYFlvData next = peek();
+            if (next == null) {
+                return null;
+            }
+            if (next.type != KSYFlvData.FLV_TYPE_VIDEO) {
+                return audioQueue.poll();
+            }
+            videoQueue.poll();
+            if (!skipVideoUntilKeyframe || next.isKeyframe()) {
+                skipVideoUntilKeyframe = false;
+                return next;
+            }
+            drop(next, DropPolicy.DROP_VIDEO_TO_NEXT_IDR);
+        }
+    }
+
+    public void clear() {
+        videoQueue.clear();
+        audioQueue.clear();
+    }
+
+    /**
+     * carry out a DropPolicy queue action
+     *
+     * @return number of frames dropped
+     */
+    int apply(int action) {
+        switch (action) {
+            case DropPolicy.DROP_VIDEO_TO_NEXT_IDR:
+                return dropVideoToNextKeyframe();
+            case DropPolicy.DROP_OLDEST_GOP:
+                return dropOldestGop(true);
+            case DropPolicy.DROP_OLDEST_VIDEO_GOP:
+                return dropOldestGop(false);
+            case DropPolicy.DROP_AUDIO_HEAD:
+                KSYFlvData audio = audioQueue.poll();
+                if (audio == null) {
+                    return 0;
+                }
+                drop(audio, action);
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    void drop(KSYFlvData frame, int reason) {
+        if (dropReport != null) {
+            dropReport.onDrop(frame, reason);
+        }
+        if (metrics != null) {
+            metrics.onDrop(frame, reason);
+        }
+        frame.recycle();
+    }
+
+    private int dropVideoToNextKeyframe() {
+        KSYFlvData head = videoQueue.peek();
+        if (head == null || head.isKeyframe()) {
+            return 0;
+        }
+        long keyframe = videoQueue.nextKeyframe(videoQueue.headPosition());
+        if (keyframe < 0) {
+            // the keyframe is not encoded yet, keep skipping video as it is polled
+            skipVideoUntilKeyframe = true;
+        }
+        return dropVideoTo(keyframe, DropPolicy.DROP_VIDEO_TO_NEXT_IDR);
+    }
+
+    private int dropOldestGop(boolean withAudio) {
+        long keyframe = videoQueue.nextKeyframe(videoQueue.headPosition() + 1);
+        if (keyframe < 0) {
+            return 0;
+        }
+        int reason = withAudio ? DropPolicy.DROP_OLDEST_GOP : DropPolicy.DROP_OLDEST_VIDEO_GOP;
+        int dropped = dropVideoTo(keyframe, reason);
+        KSYFlvData next = videoQueue.peek();
+        if (withAudio && next != null) {
+            KSYFlvData audio = audioQueue.peek();
+            while (audio != null && audio.dts < next.dts) {
+                drop(audioQueue.poll(), reason);
+                dropped++;
+                audio = audioQueue.peek();
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * @param position -1 to drop every queued video frame
+     */
+    private int dropVideoTo(long position, int reason) {
+        int dropped = 0;
+        while (position < 0 || videoQueue.headPosition() < position) {
+            KSYFlvData data = videoQueue.poll();
+            if (data == null) {
+                break;
+            }
+            drop(data, reason);
+            dropped++;
+        }
+        return dropped;
+    }
+}
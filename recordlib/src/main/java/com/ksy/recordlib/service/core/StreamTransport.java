@@ -0,0 +1,35 @@
+package com.ksy.recordlib.service.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where KsyRecordSender puts the flv tags it sends.
+ * <p/>
+ * The sender calls open() and close() from its connection supervisor and the
+ * write methods from its worker thread, never two of them at once. Return
+ * codes follow the native rtmp calls: 0 or a byte count for success, negative
+ * for failure. A failed write makes the sender drop the session and reconnect.
+ *
+ * @see KsyJniTransport the native rtmp push
+ */
+public interface StreamTransport {
+
+    int setOutputUrl(String url);
+
+    int open();
+
+    int close();
+
+    /**
+     * write bytes 0 to length of buffer. Tag buffers are shared between destinations,
+     * so position and limit may only be moved while holding the buffer's monitor.
+     *
+     * @return bytes written, -1 on failure
+     */
+    int write(ByteBuffer buffer, int length);
+
+    /**
+     * @return bytes written, -1 on failure
+     */
+    int write(byte[] buffer, int length);
+}
@@ -3,19 +3,22 @@ package com.ksy.recordlib.service.recoder;
 import android.content.Context;
 import android.media.MediaRecorder;
 import android.os.Environment;
-import android.os.Handler;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 import com.ksy.recordlib.service.core.KSYFlvData;
+import com.ksy.recordlib.service.core.KsyDirectBufferPool;
 import com.ksy.recordlib.service.core.KsyMediaSource;
 import com.ksy.recordlib.service.core.KsyRecordClient;
 import com.ksy.recordlib.service.core.KsyRecordClientConfig;
 import com.ksy.recordlib.service.core.KsyRecordSender;
+import com.ksy.recordlib.service.core.KsyRecordSession;
+import com.ksy.recordlib.service.core.KsySenderMetrics;
 import com.ksy.recordlib.service.util.Constants;
 import com.ksy.recordlib.service.util.OnClientErrorListener;
 
 import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -40,46 +43,53 @@ public class RecoderAudioSource extends KsyMediaSource implements MediaRecorder.
 
     private double delay = 0;
     private int length;
-    private byte[] content;
     private int sum;
     private int last_sum = 0;
-    private byte[] flvFrameByteArray;
-    private byte[] dataLengthArray;
-    private byte[] timestampArray;
-    private byte[] allFrameLengthArray;
     private int videoExtraSize = 2;
     private static final int FRAME_DEFINE_HEAD_LENGTH = 11;
     private static final int FRAME_DEFINE_FOOTER_LENGTH = 4;
     private static final int AUDIO_TAG = 0;
 
-    private byte[] judge_buffer;
+    // adts headers without and with crc
+    private static final int ADTS_HEADER_SIZE = 7;
+    private static final int ADTS_CRC_HEADER_SIZE = 9;
+    // adts frames are at most 8KB, a pipe's worth of them fits the read buffer
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private long skippedBytes;
+
     private boolean isWaitingParse = false;
-    private boolean isNeedLoop = true;
     private int recordsum = 0;
-    private byte[] buffer = new byte[100 * 1000];
     private boolean isWriteFlvInSdcard = false;
-    private byte[] special_content;
     private boolean isSpecialFrame = true;
     private byte aac_flag = (byte) 0xA2;
 
     private static final int FROM_AUDIO_DATA = 8;
     private KsyRecordSender ksyRecordSender;
-    private Handler delayHandler = new Handler();
     private boolean isFirstDelay = false;
 
-    public static long startAudioTime;
+    private long startAudioTime;
 
-    public RecoderAudioSource(KsyRecordClientConfig mConfig, KsyRecordClient.RecordHandler mRecordHandler, Context mContext) {
+    public RecoderAudioSource(KsyRecordSession session, KsyRecordClient.RecordHandler mRecordHandler, Context mContext) {
 //        super(mConfig.getUrl(), AUDIO_TAG);//TODO
-        this.mConfig = mConfig;
+        this.mConfig = session.getConfig();
         this.mRecordHandler = mRecordHandler;
         this.mContext = mContext;
         mRecorder = new MediaRecorder();
-        ksyRecordSender = KsyRecordSender.getRecordInstance();
+        ksyRecordSender = session.getSender();
         ksyRecordSender.setRecorderData(mConfig.getUrl(), AUDIO_TAG);
 
     }
 
+    /**
+     * a source without recorder or context, for parsing a stream handed to runFrom()
+     */
+    public RecoderAudioSource(KsyRecordClientConfig mConfig, KsyRecordSender sender) {
+        this.mConfig = mConfig;
+        ksyRecordSender = sender;
+        delay = 1024 * 1000 / mConfig.getAudioSampleRate();
+        aac_flag = (byte) 0xAF;
+    }
+
     @Override
     public void prepare() {
         mRecorder.setOnErrorListener(this);
@@ -152,105 +162,128 @@ public class RecoderAudioSource extends KsyMediaSource implements MediaRecorder.
     public void run() {
         prepare();
         if (mRunning) {
-            is = new FileInputStream(this.piple[0].getFileDescriptor());
+            openReader(new FileInputStream(this.piple[0].getFileDescriptor()), READ_BUFFER_SIZE);
         }
+        parseLoop();
+    }
+
+    /**
+     * parse an adts stream from in on the calling thread, until it ends or stop()
+     */
+    public void runFrom(FileInputStream in) {
+        openReader(in, READ_BUFFER_SIZE);
+        mRunning = true;
+        parseLoop();
+    }
+
+    private void parseLoop() {
         while (mRunning) {
-            // parse audio
-            isNeedLoop = true;
-            while (isNeedLoop) {
-                judge_buffer = new byte[2];
-                try {
-                    fill(judge_buffer, 0, 2);
-                    if (judge_buffer[0] == (byte) 0xff && (judge_buffer[1] & (byte) 0xF0) == (byte) 0xF0) {
-                        isNeedLoop = false;
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-            oldTime = System.currentTimeMillis();
-            // parse ADTS header
-            int header_type = judge_buffer[1] & (byte) 0x01;
-            int header_size = (header_type == 1 ? 7 : 9);
-            byte[] header_buffer_rest = new byte[header_size - 2];
             try {
-                fill(header_buffer_rest, 0, header_size - 2);
+                parseAndSend();
+            } catch (EOFException e) {
+                // the recorder closed its end of the pipe
+                mRunning = false;
             } catch (IOException e) {
                 e.printStackTrace();
             }
-            int length = ((header_buffer_rest[1] & 0x00000003) << 11) | (header_buffer_rest[2] << 3) | ((header_buffer_rest[3] >> 5) & (byte) 0x07);
-            int profile = (header_buffer_rest[0] & (byte) 0xc0) >> 6;
-            int sfi = (header_buffer_rest[0] & (byte) 0x3c) >> 2;
-            int ch = ((header_buffer_rest[0] & (byte) 0x01) << 6) | ((header_buffer_rest[1] & (byte) 0xc0) >> 6);
-            int x = (((profile + 1) & 0x1f) << 11) | ((sfi & 0x0f) << 7) | ((ch & 0x0f) << 3);
-            special_content = intToByteArrayTwoByte(x);
-            int frame_length = length - header_size;
-            byte[] frame_content = new byte[frame_length];
-            try {
-                fill(frame_content, 0, frame_length);
-            } catch (IOException e) {
-                e.printStackTrace();
+        }
+    }
+
+    private void parseAndSend() throws IOException {
+        int headerSize = syncFrame();
+        int payloadLength = adtsFrameLength(0) - headerSize;
+        int profile = (peek(2) & 0xc0) >> 6;
+        int sfi = (peek(2) & 0x3c) >> 2;
+        int ch = (peek(2) & 0x01) << 2 | (peek(3) & 0xc0) >> 6;
+        skip(headerSize);
+        // make flv
+        ts += delay;
+        boolean sequenceHeader = isSpecialFrame;
+        // the sequence header carries the AudioSpecificConfig instead of the first frame
+        int dataLength = sequenceHeader ? 2 : payloadLength;
+        int frameTotalLength = FRAME_DEFINE_HEAD_LENGTH + dataLength + videoExtraSize + FRAME_DEFINE_FOOTER_LENGTH;
+        // pooled, and off-heap when native can take it from there; the sender recycles it once sent
+        ByteBuffer frame = KsyDirectBufferPool.forTags().acquire(frameTotalLength);
+        putTagHeader(frame, FRAME_DEFINE_TYPE_AUDIO, dataLength + videoExtraSize, ts);
+        // add extra
+        frame.put(aac_flag);//(byte) 0xAF;
+        if (sequenceHeader) {
+            frame.put((byte) 0x00);
+            // object type, frequency index and channels of the stream, 0x1210 for 44100Hz stereo LC
+            int config = ((profile + 1) & 0x1f) << 11 | sfi << 7 | ch << 3;
+            frame.put((byte) (config >> 8));
+            frame.put((byte) config);
+            skip(payloadLength);
+            isSpecialFrame = false;
+        } else {
+            frame.put((byte) 0x01);
+            frame.put(slice(payloadLength));
+        }
+        frame.putInt(frameTotalLength);
+
+        //添加音频数据到队列
+        KSYFlvData ksyAudio = KSYFlvData.obtain();
+        ksyAudio.directBuffer = frame;
+        ksyAudio.size = frameTotalLength;
+        ksyAudio.dts = (int) ts;
+        ksyAudio.type = 12;
+        ksyAudio.sequenceHeader = sequenceHeader;
+        ksyRecordSender.addToQueue(ksyAudio, FROM_AUDIO_DATA);
+    }
+
+    /**
+     * move the parse position to the next adts header whose whole frame is
+     * buffered. A header counts when its layer is 0, its frequency index is
+     * valid and its frame_length covers the header; when the buffer already
+     * holds the bytes after the frame, they have to start the next header too.
+     *
+     * @return the header size, 9 when protection_absent is clear and a crc follows
+     */
+    private int syncFrame() throws IOException {
+        int skipped = 0;
+        while (true) {
+            require(ADTS_HEADER_SIZE);
+            int last = buffered() - ADTS_HEADER_SIZE;
+            int p = 0;
+            while (p <= last && !isAdtsSync(p)) {
+                p++;
             }
-            if (isSpecialFrame) {
-                //AAC_AudioSpecificConfig use 1210 as default temporary
-                frame_content = new byte[]{
-                        0x12, 0x10
-                };
-                frame_length = frame_content.length;
+            skip(p);
+            skipped += p;
+            if (p > last) {
+                continue;
             }
-            // make flv
-            ts += delay;
-            flvFrameByteArray = new byte[FRAME_DEFINE_HEAD_LENGTH + frame_length + videoExtraSize + FRAME_DEFINE_FOOTER_LENGTH];
-            flvFrameByteArray[0] = (byte) FRAME_DEFINE_TYPE_AUDIO;
-            dataLengthArray = intToByteArray(frame_length + videoExtraSize);
-            flvFrameByteArray[1] = dataLengthArray[0];
-            flvFrameByteArray[2] = dataLengthArray[1];
-            flvFrameByteArray[3] = dataLengthArray[2];
-            timestampArray = longToByteArray(ts);
-            flvFrameByteArray[4] = timestampArray[1];
-            flvFrameByteArray[5] = timestampArray[2];
-            flvFrameByteArray[6] = timestampArray[3];
-            flvFrameByteArray[7] = timestampArray[0];
-            flvFrameByteArray[8] = (byte) 0;
-            flvFrameByteArray[9] = (byte) 0;
-            flvFrameByteArray[10] = (byte) 0;
-            // add extra
-            for (int i = 0; i < frame_length + videoExtraSize; i++) {
-                if (i < videoExtraSize) {
-                    if (i == 0) {
-                        flvFrameByteArray[11 + i] = aac_flag;//(byte) 0xAF;
-                    } else if (i == 1) {
-                        if (isSpecialFrame) {
-                            flvFrameByteArray[11 + i] = (byte) 0x00;
-                            isSpecialFrame = false;
-
-                        } else {
-                            flvFrameByteArray[11 + i] = (byte) 0x01;
-                            //isSpecialFrame = true;
-                        }
-                    } else {
-
-                    }
-                } else {
-                    flvFrameByteArray[FRAME_DEFINE_HEAD_LENGTH + videoExtraSize + i - videoExtraSize] = frame_content[i - videoExtraSize];
-                }
+            int headerSize = (peek(1) & 0x01) != 0 ? ADTS_HEADER_SIZE : ADTS_CRC_HEADER_SIZE;
+            int frameLength = adtsFrameLength(0);
+            if ((peek(2) & 0x3c) >> 2 > 12 || frameLength <= headerSize) {
+                skip(1);
+                skipped++;
+                continue;
             }
-            allFrameLengthArray = intToByteArrayFull(FRAME_DEFINE_HEAD_LENGTH + frame_length + videoExtraSize + FRAME_DEFINE_FOOTER_LENGTH);
-            flvFrameByteArray[FRAME_DEFINE_HEAD_LENGTH + frame_length + videoExtraSize] = allFrameLengthArray[0];
-            flvFrameByteArray[FRAME_DEFINE_HEAD_LENGTH + frame_length + videoExtraSize + 1] = allFrameLengthArray[1];
-            flvFrameByteArray[FRAME_DEFINE_HEAD_LENGTH + frame_length + videoExtraSize + 2] = allFrameLengthArray[2];
-            flvFrameByteArray[FRAME_DEFINE_HEAD_LENGTH + frame_length + videoExtraSize + 3] = allFrameLengthArray[3];
-
-            //添加音频数据到队列
-            KSYFlvData ksyAudio = new KSYFlvData();
-            ksyAudio.byteBuffer = flvFrameByteArray;
-            ksyAudio.size = flvFrameByteArray.length;
-            ksyAudio.dts = (int) ts;
-            ksyAudio.type = 12;
-            ksyRecordSender.addToQueue(ksyAudio, FROM_AUDIO_DATA);
-            isSpecialFrame = false;
+            require(frameLength);
+            if (frameLength + 1 < buffered() && !isAdtsSync(frameLength)) {
+                skip(1);
+                skipped++;
+                continue;
+            }
+            if (skipped > 0) {
+                skippedBytes += skipped;
+                ksyRecordSender.getMetrics().increment(KsySenderMetrics.COUNTER_AUDIO_PARSE_ERRORS);
+                Log.w(Constants.LOG_TAG, "adts resync after " + skipped + " bytes, " + skippedBytes + " in total");
+            }
+            return headerSize;
         }
+    }
+
+    /**
+     * 12 bit sync word and layer 0 at offset from the parse position, the id bit may be mpeg-2 or mpeg-4
+     */
+    private boolean isAdtsSync(int offset) {
+        return peek(offset) == 0xff && (peek(offset + 1) & 0xf6) == 0xf0;
+    }
 
+    private int adtsFrameLength(int offset) {
+        return (peek(offset + 3) & 0x03) << 11 | peek(offset + 4) << 3 | peek(offset + 5) >> 5;
     }
 
     //delay
@@ -269,46 +302,6 @@ public class RecoderAudioSource extends KsyMediaSource implements MediaRecorder.
         last_sum += target.length;
     }
 
-    private byte[] longToByteArray(long ts) {
-        byte[] result = new byte[4];
-//        result[0] = new Long(ts >> 56 & 0xff).byteValue();
-//        result[1] = new Long(ts >> 48 & 0xff).byteValue();
-//        result[2] = new Long(ts >> 40 & 0xff).byteValue();
-//        result[3] = new Long(ts >> 32 & 0xff).byteValue();
-        result[0] = new Long(ts >> 24 & 0xff).byteValue();
-        result[1] = new Long(ts >> 16 & 0xff).byteValue();
-        result[2] = new Long(ts >> 8 & 0xff).byteValue();
-        result[3] = new Long(ts >> 0 & 0xff).byteValue();
-        return result;
-    }
-
-    private byte[] intToByteArray(int length) {
-        byte[] result = new byte[3];
-//        result[0] = (byte) ((length >> 24) & 0xFF);
-        result[0] = (byte) ((length >> 16) & 0xFF);
-        result[1] = (byte) ((length >> 8) & 0xFF);
-        result[2] = (byte) ((length >> 0) & 0xFF);
-        return result;
-    }
-
-    private byte[] intToByteArrayTwoByte(int length) {
-        byte[] result = new byte[2];
-//        result[0] = (byte) ((length >> 24) & 0xFF);
-//        result[0] = (byte) ((length >> 16) & 0xFF);
-        result[0] = (byte) ((length >> 8) & 0xFF);
-        result[1] = (byte) ((length >> 0) & 0xFF);
-        return result;
-    }
-
-    private byte[] intToByteArrayFull(int length) {
-        byte[] result = new byte[4];
-        result[0] = (byte) ((length >> 24) & 0xFF);
-        result[1] = (byte) ((length >> 16) & 0xFF);
-        result[2] = (byte) ((length >> 8) & 0xFF);
-        result[3] = (byte) ((length >> 0) & 0xFF);
-        return result;
-    }
-
     @Override
     public void onError(MediaRecorder mr, int what, int extra) {
         Log.d(Constants.LOG_TAG, "onError Message what = " + what + ",extra =" + extra);
@@ -10,15 +10,19 @@ import android.util.Log;
 import android.view.SurfaceView;
 
 import com.ksy.recordlib.service.core.KSYFlvData;
+import com.ksy.recordlib.service.core.KsyDirectBufferPool;
 import com.ksy.recordlib.service.core.KsyMediaSource;
 import com.ksy.recordlib.service.core.KsyRecordClient;
 import com.ksy.recordlib.service.core.KsyRecordClientConfig;
 import com.ksy.recordlib.service.core.KsyRecordSender;
+import com.ksy.recordlib.service.core.KsyRecordSession;
+import com.ksy.recordlib.service.core.KsySenderMetrics;
 import com.ksy.recordlib.service.util.Constants;
+import com.ksy.recordlib.service.util.MP4Config;
 import com.ksy.recordlib.service.util.OnClientErrorListener;
-import com.ksy.recordlib.service.util.PrefUtil;
 
 import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -43,6 +47,19 @@ public class RecoderVideoSource extends KsyMediaSource implements MediaRecorder.
     private static final int FRAME_DEFINE_TYPE_VIDEO = 9;
     private static final int FRAME_DEFINE_HEAD_LENGTH = 11;
     private static final int FRAME_DEFINE_FOOTER_LENGTH = 4;
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+    // "mdat" as a big endian int
+    private static final int BOX_MDAT = 0x6d646174;
+    private static final int BOX_HEADER_SIZE = 8;
+    private static final int BOX_LARGE_HEADER_SIZE = 16;
+    // nal units above max(this, two seconds at the bitrate) are taken for a corrupt length
+    private static final int MIN_MAX_NAL_LENGTH = 1024 * 1024;
+    private static final int NAL_SLICE = 1;
+    private static final int NAL_IDR = 5;
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+    // enough of a slice header, or of an sps up to its frame cropping
+    private static final int NAL_HEAD_SIZE = 64;
     private final KsyRecordClient.RecordHandler mHandler;
     private final Context mContext;
     private Camera mCamera;
@@ -52,16 +69,24 @@ public class RecoderVideoSource extends KsyMediaSource implements MediaRecorder.
     //    private long delay = 0;
     private int length;
     private int nalutype;
+    private int nalRefIdc;
     private String pps;
     private String sps;
     private String pl;
+    // raw parameter sets of a headless source, or the ones of setParameterSets() once decoded
+    private byte[] spsBytes;
+    private byte[] ppsBytes;
+    // set while the parameter sets are still to be checked against the stream
+    private ParameterSetListener parameterSetListener;
+    private boolean inBandParameterSets;
+    private boolean parameterSetsChanged;
+    // start of a nal unit without its header byte and emulation prevention bytes
+    private final byte[] nalHead = new byte[NAL_HEAD_SIZE];
+    // read position in nalHead and the bits loaded into it
+    private int headBit;
+    private int headEnd;
     //    private int sum = 0;
     private boolean isSpsFrameSended = false;
-    private ByteBuffer content;
-    private byte[] flvFrameByteArray;
-    private byte[] dataLengthArray;
-    private byte[] timestampArray;
-    private byte[] allFrameLengthArray;
     private int videoExtraSize = 5;
     private int last_sum = 0;
 
@@ -69,27 +94,89 @@ public class RecoderVideoSource extends KsyMediaSource implements MediaRecorder.
     private static final int FROM_VIDEO_DATA = 6;
     private KsyRecordSender ksyVideoSender;
 
-    private Byte kFlag;
-
-    public static long startVideoTime;
-
+    private byte kFlag;
+    private int maxNalLength;
+    private boolean inMdat;
+    // stream offset where the current mdat ends, -1 while it runs to the end of the stream
+    private long mdatEnd;
+
+    private long startVideoTime;
+
+    // bitrate for the next prepare(), 0 for the configured one
+    private volatile int nextSessionBitrate;
+
+
+    /**
+     * told on the parser thread once the parameter sets a source started with
+     * have been checked against the first units of its stream
+     */
+    public interface ParameterSetListener {
+        /**
+         * @param confirmed whether the stream goes with the parameter sets
+         * @param sps       the sps in effect when the stream carries its own
+         *                  parameter sets, null when it does not
+         * @param pps       the pps in effect, likewise
+         */
+        void onParameterSetsChecked(boolean confirmed, byte[] sps, byte[] pps);
+    }
 
-    public RecoderVideoSource(Camera mCamera, KsyRecordClientConfig mConfig, SurfaceView mSurfaceView, KsyRecordClient.RecordHandler mRecordHandler, Context mContext) {
+    public RecoderVideoSource(Camera mCamera, KsyRecordSession session, SurfaceView mSurfaceView, KsyRecordClient.RecordHandler mRecordHandler, Context mContext) {
         this.mCamera = mCamera;
-        this.mConfig = mConfig;
+        this.mConfig = session.getConfig();
         mRecorder = new MediaRecorder();
         mHandler = mRecordHandler;
         this.mContext = mContext;
 
-        ksyVideoSender = KsyRecordSender.getRecordInstance();
+        ksyVideoSender = session.getSender();
+        sync = ksyVideoSender.getClock();
         ksyVideoSender.setRecorderData(mConfig.getUrl(), VIDEO_TAG);
         Log.d(Constants.LOG_TAG, "test");
     }
 
+    /**
+     * a source without camera, recorder or context, for parsing a stream handed
+     * to runFrom(); sps and pps are the raw nal units of that stream
+     */
+    public RecoderVideoSource(KsyRecordClientConfig mConfig, KsyRecordSender sender, byte[] sps, byte[] pps) {
+        this.mConfig = mConfig;
+        mHandler = null;
+        mContext = null;
+        ksyVideoSender = sender;
+        sync = sender.getClock();
+        spsBytes = sps;
+        ppsBytes = pps;
+    }
+
+    /**
+     * the sps and pps of the probe or the cache the sequence header is built
+     * from; set before start()
+     */
+    public void setParameterSets(MP4Config config) {
+        if (config != null) {
+            pl = config.getProfileLevel();
+            sps = config.getB64SPS();
+            pps = config.getB64PPS();
+            spsBytes = null;
+            ppsBytes = null;
+        }
+    }
+
+    /**
+     * check the parameter sets this source starts with, e.g. cached ones of a
+     * start without probe, against its stream; set before start(). Sets the
+     * stream does not go with and does not bring in-band stop the source.
+     */
+    public void setParameterSetListener(ParameterSetListener listener) {
+        parameterSetListener = listener;
+    }
+
     @Override
     public void prepare() {
         mRecorder.setCamera(mCamera);
         mConfig.configMediaRecorder(mRecorder, KsyRecordClientConfig.MEDIA_SETP);
+        if (nextSessionBitrate > 0) {
+            mRecorder.setVideoEncodingBitRate(nextSessionBitrate);
+        }
         try {
             this.piple = ParcelFileDescriptor.createPipe();
         } catch (IOException e) {
@@ -114,6 +201,15 @@ public class RecoderVideoSource extends KsyMediaSource implements MediaRecorder.
         mHandler.sendEmptyMessage(Constants.MESSAGE_SWITCH_CAMERA_FINISH);
     }
 
+    /**
+     * MediaRecorder has no public call to change the bitrate while recording,
+     * the rate only applies from the next prepare()
+     */
+    @Override
+    public void setNextSessionBitrate(int bitrate) {
+        nextSessionBitrate = bitrate;
+    }
+
     @Override
     public void start() {
         if (!mRunning) {
@@ -168,46 +264,192 @@ public class RecoderVideoSource extends KsyMediaSource implements MediaRecorder.
     public void run() {
         prepare();
         if (mRunning) {
-            is = new FileInputStream(this.piple[0].getFileDescriptor());
-            inputChannel = is.getChannel();
-        }
-        while (mRunning) {
-            Log.d(Constants.LOG_TAG, "entering video loop");
-            // This will skip the MPEG4 header if this step fails we can't stream anything :(
-            try {
-                byte buffer[] = new byte[4];
-                // Skip all atoms preceding mdat atom
-                while (true) {  // box
-                    while (is.read() != 'm') ;
-                    is.read(buffer, 0, 3);
-                    if (buffer[0] == 'd' && buffer[1] == 'a' && buffer[2] == 't') break;
-                    //mdat
+            openStream(new FileInputStream(this.piple[0].getFileDescriptor()));
+        }
+        parseLoop();
+    }
+
+    /**
+     * parse an mp4 stream from in on the calling thread, until it ends or stop()
+     */
+    public void runFrom(FileInputStream in) {
+        openStream(in);
+        mRunning = true;
+        parseLoop();
+    }
+
+    private void openStream(FileInputStream in) {
+        openReader(in, readBufferSize());
+        maxNalLength = Math.max(MIN_MAX_NAL_LENGTH, mConfig.getVideoBitRate() / 4);
+        inMdat = false;
+        mdatEnd = -1;
+    }
+
+    private void parseLoop() {
+        Log.d(Constants.LOG_TAG, "entering video loop");
+        while (mRunning && !Thread.interrupted()) {
+            if (!inMdat) {
+                // This will skip the MPEG4 header if this step fails we can't stream anything :(
+                try {
+                    // Skip all atoms preceding mdat atom
+                    enterMdat();
+                } catch (EOFException e) {
+                    break;
+                } catch (IOException e) {
+                    Log.e(Constants.LOG_TAG, "Couldn't skip mp4 header :/");
+                    return;
+                }
+                if (spsBytes == null && (sps == null || pps == null)) {
+                    Log.e(Constants.LOG_TAG, "no sps and pps for the sequence header");
+                    return;
+                }
+            }
+            // Begin parse video data
+            parseAndSend();
+        }
+        Log.d(Constants.LOG_TAG, "exiting video loop");
+    }
+
+    /**
+     * half a second of video to start with, the reader grows for bigger units
+     */
+    private int readBufferSize() {
+        return Math.max(READ_BUFFER_SIZE, mConfig.getVideoBitRate() / 16);
+    }
+
+    /**
+     * walk the boxes from the parse position to the next mdat and move into its
+     * payload. ftyp, free, wide, a moov up front and whatever else comes first
+     * are skipped by their size, 32 bit or 64 bit largesize. An mdat of size 0,
+     * or the placeholder MediaRecorder leaves on a pipe, runs to the end of the
+     * stream. A box header that makes no sense is counted as a parse error and
+     * the bytes are scanned for "mdat" instead.
+     */
+    private void enterMdat() throws IOException {
+        while (true) {
+            require(BOX_HEADER_SIZE);
+            long boxStart = streamOffset();
+            long size = peekInt(0) & 0xffffffffL;
+            int type = peekInt(4);
+            int headerSize = BOX_HEADER_SIZE;
+            if (size == 1) {
+                require(BOX_LARGE_HEADER_SIZE);
+                size = (long) peekInt(8) << 32 | peekInt(12) & 0xffffffffL;
+                headerSize = BOX_LARGE_HEADER_SIZE;
+                if (size == 0) {
+                    size = -1;
                 }
-            } catch (IOException e) {
-                Log.e(Constants.LOG_TAG, "Couldn't skip mp4 header :/");
+            }
+            if (!isBoxType(type) || size > 0 && size < headerSize) {
+                parseError("no mp4 box at " + boxStart);
+                scanForMdat();
                 return;
             }
-            pl = PrefUtil.getMp4ConfigProfileLevel(mContext);
-            pps = PrefUtil.getMp4ConfigPps(mContext);
-            sps = PrefUtil.getMp4ConfigSps(mContext);
-
-            while (!Thread.interrupted()) {
-                // Begin parse video data
-                parseAndSend();
-               /* duration = System.currentTimeMillis() - oldTime;
-                stats.push(duration);
-                delay = stats.average();*/
-//                delay = 33;
+            skip(headerSize);
+            if (type == BOX_MDAT) {
+                mdatEnd = size > 0 ? boxStart + size : -1;
+                inMdat = true;
+                Log.d(Constants.LOG_TAG, "mdat at " + boxStart + (mdatEnd < 0 ? ", to the end of the stream" : ", " + size + " bytes"));
+                return;
             }
+            // a box other than mdat to the end of the stream leaves nothing for us
+            discard(size > 0 ? size - headerSize : Long.MAX_VALUE);
         }
-        Log.d(Constants.LOG_TAG, "exiting video loop");
     }
 
+    /**
+     * four printable ascii characters, what every top level box type is
+     */
+    private static boolean isBoxType(int type) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            int c = type >> shift & 0xff;
+            if (c < 0x20 || c > 0x7e) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-    private void parseAndSend() {
-        if (content == null) {
-            content = ByteBuffer.allocate(mConfig.getVideoBitRate() * 2);
+    /**
+     * move the parse position behind the next "mdat", scanning what is
+     * buffered; its size went by, so it runs to the end of the stream
+     */
+    private void scanForMdat() throws IOException {
+        while (true) {
+            require(4);
+            int last = buffered() - 4;
+            for (int i = 0; i <= last; i++) {
+                if (peekInt(i) == BOX_MDAT) {
+                    skip(i + 4);
+                    mdatEnd = -1;
+                    inMdat = true;
+                    return;
+                }
+            }
+            skip(last + 1);
+        }
+    }
+
+    /**
+     * whether a length prefixed nal unit can start at offset from the parse
+     * position: a length that fits the limit and the mdat, then a header with
+     * forbidden_zero_bit clear and a nal_unit_type of 1 to 23. The 5 bytes have
+     * to be buffered.
+     */
+    private boolean isNalStart(int offset) {
+        int nalLength = peekInt(offset);
+        if (nalLength <= 0 || nalLength > maxNalLength) {
+            return false;
+        }
+        if (mdatEnd >= 0 && streamOffset() + offset + 4 + nalLength > mdatEnd) {
+            return false;
         }
+        int nalHeader = peek(offset + 4);
+        int nalType = nalHeader & 0x1f;
+        return (nalHeader & 0x80) == 0 && nalType >= 1 && nalType <= 23;
+    }
+
+    /**
+     * skip ahead to the next plausible nal unit start that the unit behind it
+     * confirms, or to the end of the mdat
+     */
+    private void resyncNal() throws IOException {
+        long from = streamOffset();
+        skip(1);
+        while (true) {
+            long toEnd = mdatEnd >= 0 ? mdatEnd - streamOffset() : Long.MAX_VALUE;
+            if (toEnd <= 0) {
+                break;
+            }
+            require(5);
+            int last = (int) Math.min(buffered() - 5, toEnd - 1);
+            int p = 0;
+            for (; p <= last; p++) {
+                if (isNalStart(p)) {
+                    int next = p + 4 + peekInt(p);
+                    if (streamOffset() + next == mdatEnd) {
+                        break;
+                    }
+                    // random bytes pass for a start now and then, the unit behind has to pass too
+                    if (prefetch(next + 5) ? isNalStart(next) : buffered() == next) {
+                        break;
+                    }
+                }
+            }
+            skip(p);
+            if (p <= last) {
+                break;
+            }
+        }
+        parseError("bad nal length at " + from + ", skipped " + (streamOffset() - from) + " bytes");
+    }
+
+    private void parseError(String message) {
+        ksyVideoSender.getMetrics().increment(KsySenderMetrics.COUNTER_VIDEO_PARSE_ERRORS);
+        Log.w(Constants.LOG_TAG, message);
+    }
+
+    private void parseAndSend() {
         if (isSpsFrameSended) {
             parseVideo();
         } else {
@@ -215,13 +457,16 @@ public class RecoderVideoSource extends KsyMediaSource implements MediaRecorder.
 //            if (Math.abs(delay) > 2000) {
 //                delay = 0;
 //            }
-            content.clear();
             // Step One ,insert in header,sps & pps prefix & data
             byte[] sps_prefix = hexStringToBytes("0142C028FFE1");
-            byte[] sps_only = Base64.decode(sps.getBytes(), Base64.DEFAULT);
+            if (spsBytes == null) {
+                spsBytes = Base64.decode(sps.getBytes(), Base64.DEFAULT);
+                ppsBytes = Base64.decode(pps.getBytes(), Base64.DEFAULT);
+            }
+            byte[] sps_only = spsBytes;
             byte[] sps_length = intToByteArrayTwoByte(sps_only.length);
             byte[] pps_prefix = hexStringToBytes("01");
-            byte[] pps_only = Base64.decode(pps.getBytes(), Base64.DEFAULT);
+            byte[] pps_only = ppsBytes;
             byte[] pps_length = intToByteArrayTwoByte(pps_only.length);
             // Remove SEI Here
 //
@@ -246,6 +491,7 @@ public class RecoderVideoSource extends KsyMediaSource implements MediaRecorder.
 //                    + pps_only.length + pps_length.length + sei_length];
             byte[] sps_pps = new byte[sps_prefix.length + sps_length.length + sps_only.length + pps_prefix.length
                     + pps_only.length + pps_length.length];
+            last_sum = 0;
             fillArray(sps_pps, sps_prefix);
             fillArray(sps_pps, sps_length);
             fillArray(sps_pps, sps_only);
@@ -258,9 +504,8 @@ public class RecoderVideoSource extends KsyMediaSource implements MediaRecorder.
 //                fillArray(sps_pps, sei_only);
 //            }
             // build sps_pps end
-            content.put(sps_pps);
-            length = content.position();
-            makeFlvFrame(FRAME_TYPE_SPS);
+            length = sps_pps.length;
+            makeFlvFrame(FRAME_TYPE_SPS, ByteBuffer.wrap(sps_pps));
             isSpsFrameSended = true;
 
             // Send Sei Frame Here
@@ -286,30 +531,257 @@ public class RecoderVideoSource extends KsyMediaSource implements MediaRecorder.
 
     private void parseVideo() {
         try {
+            if (mdatEnd >= 0 && streamOffset() >= mdatEnd) {
+                // the boxes after this mdat come next
+                inMdat = false;
+                return;
+            }
             // 0-3 length,4 type
-            int headerResult = fill(header, 0, 4);
-//            Log.d(Constants.LOG_TAG, "header size = " + 4 + "header read result = " + headerResult);
-            length = (header[0] & 0xFF) << 24 | (header[1] & 0xFF) << 16 | (header[2] & 0xFF) << 8 | (header[3] & 0xFF);
-            if (length > mConfig.getVideoBitRate() * 5 || length < 0) {
+            require(5);
+            if (!isNalStart(0)) {
+                resyncNal();
                 return;
             }
-//            Log.d(Constants.LOG_TAG, "header length size = " + length + "content length");
-            content.clear();
-            int contentLength = readIntoBuffer(content, length);
-//            Log.d(Constants.LOG_TAG, "header length = " + length + "content length" + contentLength);
-            if (content.limit() > 0) {
-                kFlag = content.get(0);
-                nalutype = kFlag & 0x1F;
+            length = peekInt(0);
+            require(4 + length);
+            if (parameterSetListener != null && !checkParameterSets()) {
+                return;
             }
-            // Three types of flv video frame
-            makeFlvFrame(FRAME_TYPE_DATA);
-
+            skip(4);
+            kFlag = (byte) peek(0);
+            nalutype = kFlag & 0x1F;
+            nalRefIdc = (kFlag >> 5) & 0x03;
+            // Three types of flv video frame, the nal unit goes from the read buffer straight into the tag
+            makeFlvFrame(FRAME_TYPE_DATA, slice(length));
+
+        } catch (EOFException e) {
+            // the recorder closed its end of the pipe
+            mRunning = false;
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
 
+    /**
+     * check the parameter sets against the unit at the parse position, the
+     * first slice settles it. In-band sps and pps that differ byte for byte
+     * take over; false when the sequence header has to go out again ahead of
+     * this unit, or when there is nothing right to send it with and the source
+     * stops.
+     */
+    private boolean checkParameterSets() {
+        int type = peek(4) & 0x1f;
+        if (type == NAL_SPS || type == NAL_PPS) {
+            inBandParameterSets = true;
+            byte[] current = type == NAL_SPS ? spsBytes : ppsBytes;
+            boolean same = current.length == length;
+            for (int i = 0; same && i < length; i++) {
+                same = current[i] == (byte) peek(4 + i);
+            }
+            if (!same) {
+                byte[] live = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    live[i] = (byte) peek(4 + i);
+                }
+                if (type == NAL_SPS) {
+                    spsBytes = live;
+                } else {
+                    ppsBytes = live;
+                }
+                parameterSetsChanged = true;
+            }
+            return true;
+        }
+        if (type != NAL_SLICE && type != NAL_IDR) {
+            return true;
+        }
+        ParameterSetListener listener = parameterSetListener;
+        parameterSetListener = null;
+        boolean confirmed = !parameterSetsChanged && sliceGoesWithParameterSets();
+        if (confirmed) {
+            Log.d(Constants.LOG_TAG, "parameter sets confirmed by the stream");
+        } else {
+            Log.w(Constants.LOG_TAG, "parameter sets do not go with the stream"
+                    + (parameterSetsChanged ? ", taking the in-band ones" : inBandParameterSets ? "" : ", stopping"));
+        }
+        listener.onParameterSetsChecked(confirmed, inBandParameterSets ? spsBytes : null,
+                inBandParameterSets ? ppsBytes : null);
+        if (parameterSetsChanged) {
+            parameterSetsChanged = false;
+            isSpsFrameSended = false;
+            return false;
+        }
+        if (!confirmed && !inBandParameterSets) {
+            // a player could not decode a frame of it
+            mRunning = false;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * the fields of an sps a slice header is read with
+     */
+    private static class SpsFields {
+        int id;
+        // read up to the frame size
+        boolean sized;
+        boolean separateColourPlane;
+        int log2MaxFrameNum;
+        int widthInMbs;
+        int heightInMbs;
+        boolean frameMbsOnly;
+    }
+
+    /**
+     * the sps fields up to the frame size, not sized when it uses scaling
+     * lists or a pic_order_cnt_type 1 cycle there is no room for in nalHead
+     */
+    private SpsFields readSps(byte[] sps) {
+        startHead(loadNalHead(sps, 0, sps.length));
+        SpsFields fields = new SpsFields();
+        int profile = bits(8);
+        // the constraint flags and level_idc
+        bits(16);
+        fields.id = ue();
+        if (profile == 100 || profile == 110 || profile == 122 || profile == 244 || profile == 44
+                || profile == 83 || profile == 86 || profile == 118 || profile == 128 || profile == 138
+                || profile == 139 || profile == 134 || profile == 135) {
+            int chromaFormat = ue();
+            if (chromaFormat == 3) {
+                fields.separateColourPlane = bits(1) == 1;
+            }
+            // bit depths and qpprime_y_zero_transform_bypass_flag
+            ue();
+            ue();
+            bits(1);
+            if (bits(1) != 0) {
+                return fields;
+            }
+        }
+        fields.log2MaxFrameNum = ue() + 4;
+        int pocType = ue();
+        if (pocType == 0) {
+            ue();
+        } else if (pocType == 1) {
+            return fields;
+        }
+        // max_num_ref_frames, gaps_in_frame_num_value_allowed_flag
+        ue();
+        bits(1);
+        fields.widthInMbs = ue() + 1;
+        int heightInMapUnits = ue() + 1;
+        fields.frameMbsOnly = bits(1) == 1;
+        fields.heightInMbs = fields.frameMbsOnly ? heightInMapUnits : heightInMapUnits * 2;
+        fields.sized = headBit <= headEnd;
+        return fields;
+    }
+
+    /**
+     * whether the slice at the parse position can be read with the parameter
+     * sets of this source: it names their pps and that pps their sps, it lies
+     * within the sps frame, an IDR slice has a frame_num of 0 in the
+     * log2_max_frame_num bits of the sps, and the frame is the configured
+     * size. Most encoders number their only sps and pps 0, the ids alone
+     * hardly tell anything. What does not show in a slice header, the level
+     * or the vui, goes unchecked.
+     */
+    private boolean sliceGoesWithParameterSets() {
+        startHead(loadNalHead(ppsBytes, 0, ppsBytes.length));
+        int ppsId = ue();
+        int ppsSps = ue();
+        SpsFields sps = readSps(spsBytes);
+        startHead(loadNalHead(null, 4, length));
+        int firstMb = ue();
+        int sliceType = ue();
+        int slicePps = ue();
+        if (slicePps < 0 || slicePps != ppsId || ppsSps < 0 || ppsSps != sps.id) {
+            return false;
+        }
+        if (!sps.sized) {
+            Log.w(Constants.LOG_TAG, "sps read up to its id only, checking the ids");
+            return true;
+        }
+        if (firstMb < 0 || firstMb >= sps.widthInMbs * sps.heightInMbs || sliceType < 0 || sliceType > 9) {
+            return false;
+        }
+        int width = mConfig.getVideoWidth();
+        int height = mConfig.getVideoHeight();
+        if (width > 0 && height > 0
+                && (sps.widthInMbs != (width + 15) / 16 || sps.heightInMbs != (height + 15) / 16)) {
+            return false;
+        }
+        if ((peek(4) & 0x1f) == NAL_IDR) {
+            if (sps.separateColourPlane) {
+                bits(2);
+            }
+            return bits(sps.log2MaxFrameNum) == 0;
+        }
+        return true;
+    }
+
+    /**
+     * copy the start of a nal unit, from nal or from the read buffer at offset
+     * when nal is null, into nalHead without its header byte and emulation
+     * prevention bytes; returns the bytes copied
+     */
+    private int loadNalHead(byte[] nal, int offset, int length) {
+        int count = 0;
+        int zeros = 0;
+        for (int i = 1; i < length && count < nalHead.length; i++) {
+            int b = nal != null ? nal[offset + i] & 0xff : peek(offset + i);
+            if (zeros >= 2 && b == 3) {
+                zeros = 0;
+                continue;
+            }
+            nalHead[count++] = (byte) b;
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        return count;
+    }
+
+    /**
+     * read from the start of the count bytes loadNalHead() left in nalHead
+     */
+    private void startHead(int count) {
+        headBit = 0;
+        headEnd = count * 8;
+    }
+
+    /**
+     * the next n bits of nalHead, -1 once they run past what was loaded
+     */
+    private int bits(int n) {
+        if (headBit + n > headEnd) {
+            headBit = headEnd + 1;
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < n; i++, headBit++) {
+            value = value << 1 | nalHead[headBit >> 3] >> (7 - (headBit & 7)) & 1;
+        }
+        return value;
+    }
+
+    /**
+     * the next ue(v) of nalHead, -1 once it runs past what was loaded
+     */
+    private int ue() {
+        int zeros = 0;
+        while (headBit < headEnd && (nalHead[headBit >> 3] >> (7 - (headBit & 7)) & 1) == 0) {
+            zeros++;
+            headBit++;
+        }
+        if (zeros > 30 || headBit >= headEnd) {
+            headBit = headEnd + 1;
+            return -1;
+        }
+        headBit++;
+        int suffix = bits(zeros);
+        return suffix < 0 ? -1 : (1 << zeros) - 1 + suffix;
+    }
+
     private void fillArray(byte[] sps_pps, byte[] target) {
         for (int i = 0; i < target.length; i++) {
             sps_pps[last_sum + i] = target[i];
@@ -317,61 +789,37 @@ public class RecoderVideoSource extends KsyMediaSource implements MediaRecorder.
         last_sum += target.length;
     }
 
-    private void makeFlvFrame(int type) {
+    private void makeFlvFrame(int type, ByteBuffer data) {
         ts = sync.getTime();
         videoExtraSize = 5;
-        int frameTotalLength;
+        int dataSize;
         int degree = mConfig.getRecordOrientation();
         if (type == FRAME_TYPE_SPS) {
             ts = 0;
-            frameTotalLength = FRAME_DEFINE_HEAD_LENGTH + length + videoExtraSize + FRAME_DEFINE_FOOTER_LENGTH;
-            dataLengthArray = intToByteArray(length + videoExtraSize);
+            dataSize = length + videoExtraSize;
         } else if (degree == 0) {
-            frameTotalLength = FRAME_DEFINE_HEAD_LENGTH + length + videoExtraSize + 4 + FRAME_DEFINE_FOOTER_LENGTH;
-            dataLengthArray = intToByteArray(length + videoExtraSize + 4);
+            dataSize = length + videoExtraSize + 4;
         } else {
-            frameTotalLength = FRAME_DEFINE_HEAD_LENGTH + length + videoExtraSize + 11 + 4 + FRAME_DEFINE_FOOTER_LENGTH;
-            dataLengthArray = intToByteArray(length + videoExtraSize + 11 + 4);
-        }
-        flvFrameByteArray = new byte[frameTotalLength];
-        flvFrameByteArray[0] = (byte) FRAME_DEFINE_TYPE_VIDEO;
-        flvFrameByteArray[1] = dataLengthArray[0];
-        flvFrameByteArray[2] = dataLengthArray[1];
-        flvFrameByteArray[3] = dataLengthArray[2];
-        timestampArray = longToByteArray(ts);
-        flvFrameByteArray[4] = timestampArray[1];
-        flvFrameByteArray[5] = timestampArray[2];
-        flvFrameByteArray[6] = timestampArray[3];
-        flvFrameByteArray[7] = timestampArray[0];
-        flvFrameByteArray[8] = (byte) 0;
-        flvFrameByteArray[9] = (byte) 0;
-        flvFrameByteArray[10] = (byte) 0;
-        // added 5 extra bytes
-        for (int i = 0; i < videoExtraSize; i++) {
-            if (i == 0) {
-                //1 byte flag
-                flvFrameByteArray[FRAME_DEFINE_HEAD_LENGTH + i] = (byte) 23;
-            } else if (i == 1) {
-                if (type == FRAME_TYPE_SPS) {
-                    flvFrameByteArray[FRAME_DEFINE_HEAD_LENGTH + i] = (byte) 0;
-                } else {
-                    flvFrameByteArray[FRAME_DEFINE_HEAD_LENGTH + i] = (byte) 1;
-                }
-            } else if (i < 5) {
-                flvFrameByteArray[FRAME_DEFINE_HEAD_LENGTH + i] = (byte) 0;
-            }
+            dataSize = length + videoExtraSize + 11 + 4;
         }
+        int frameTotalLength = FRAME_DEFINE_HEAD_LENGTH + dataSize + FRAME_DEFINE_FOOTER_LENGTH;
+        // pooled, and off-heap when native can take it from there; the sender recycles it once sent
+        ByteBuffer frame = KsyDirectBufferPool.forTags().acquire(frameTotalLength);
+        putTagHeader(frame, FRAME_DEFINE_TYPE_VIDEO, dataSize, ts);
+        // added 5 extra bytes
+        //1 byte flag
+        frame.put((byte) 23);
+        frame.put(type == FRAME_TYPE_SPS ? (byte) 0 : (byte) 1);
+        frame.put((byte) 0);
+        frame.put((byte) 0);
+        frame.put((byte) 0);
         // Add Sei Content and Replace Data content here
-//        int pos = 0;
-        int pos = FRAME_DEFINE_HEAD_LENGTH + videoExtraSize;
         if (type != FRAME_TYPE_SPS) {
             if (degree != 0) {
                 // copy sei content
                 int sei_length = 7;
                 byte[] sei_content = SEI_ROTATION_0;
-                byte[] sei_length_array = intToByteArrayFull(sei_length);
-                System.arraycopy(sei_length_array, 0, flvFrameByteArray, pos, 4);
-                pos += 4;
+                frame.putInt(sei_length);
                 if (degree == 90) {
                     sei_content = SEI_ROTATION_90;
                 } else if (degree == 180) {
@@ -379,62 +827,33 @@ public class RecoderVideoSource extends KsyMediaSource implements MediaRecorder.
                 } else if (degree == 270) {
                     sei_content = SEI_ROTATION_270;
                 }
-                System.arraycopy(sei_content, 0, flvFrameByteArray, pos, 7);
-                pos += 7;
+                frame.put(sei_content, 0, 7);
 
             }
-            byte[] real_data_length_array = intToByteArrayFull(length);
-            System.arraycopy(real_data_length_array, 0, flvFrameByteArray, pos, real_data_length_array.length);
-            pos += 4;
-        } else {
-            KsyRecordClient.startWaitTIme = System.currentTimeMillis() - KsyRecordClient.startTime;
+            frame.putInt(length);
         }
         //copy real frame  data
-
-        System.arraycopy(content.array(), 0, flvFrameByteArray, pos, length);
-        pos += length;
-
-        allFrameLengthArray = intToByteArrayFull(pos + FRAME_DEFINE_FOOTER_LENGTH);
-        System.arraycopy(allFrameLengthArray, 0, flvFrameByteArray, pos, allFrameLengthArray.length);
+        frame.put(data);
+        frame.putInt(frame.position() + FRAME_DEFINE_FOOTER_LENGTH);
 
         //添加视频数据到队列
-        KSYFlvData ksyVideo = new KSYFlvData();
-        ksyVideo.byteBuffer = flvFrameByteArray;
-        ksyVideo.size = flvFrameByteArray.length;
+        KSYFlvData ksyVideo = KSYFlvData.obtain();
+        ksyVideo.directBuffer = frame;
+        ksyVideo.size = frameTotalLength;
         ksyVideo.dts = (int) ts;
         ksyVideo.type = 11;
         if (type == FRAME_TYPE_SPS) {
             ksyVideo.frameType = KSYFlvData.NALU_TYPE_IDR;
+            ksyVideo.sequenceHeader = true;
         }else {
             ksyVideo.frameType = nalutype;
+            ksyVideo.nalRefIdc = nalRefIdc;
         }
         ksyVideoSender.addToQueue(ksyVideo, FROM_VIDEO_DATA);
     }
     // Add data here
 
 
-    private byte[] longToByteArray(long ts) {
-        byte[] result = new byte[4];
-//        result[0] = new Long(ts >> 56 & 0xff).byteValue();
-//        result[1] = new Long(ts >> 48 & 0xff).byteValue();
-//        result[2] = new Long(ts >> 40 & 0xff).byteValue();
-//        result[3] = new Long(ts >> 32 & 0xff).byteValue();
-        result[0] = new Long(ts >> 24 & 0xff).byteValue();
-        result[1] = new Long(ts >> 16 & 0xff).byteValue();
-        result[2] = new Long(ts >> 8 & 0xff).byteValue();
-        result[3] = new Long(ts >> 0 & 0xff).byteValue();
-        return result;
-    }
-
-    private byte[] intToByteArray(int length) {
-        byte[] result = new byte[3];
-//        result[0] = (byte) ((length >> 24) & 0xFF);
-        result[0] = (byte) ((length >> 16) & 0xFF);
-        result[1] = (byte) ((length >> 8) & 0xFF);
-        result[2] = (byte) ((length >> 0) & 0xFF);
-        return result;
-    }
-
     private byte[] intToByteArrayTwoByte(int length) {
         byte[] result = new byte[2];
 //        result[0] = (byte) ((length >> 24) & 0xFF);
@@ -444,15 +863,6 @@ public class RecoderVideoSource extends KsyMediaSource implements MediaRecorder.
         return result;
     }
 
-    private byte[] intToByteArrayFull(int length) {
-        byte[] result = new byte[4];
-        result[0] = (byte) ((length >> 24) & 0xFF);
-        result[1] = (byte) ((length >> 16) & 0xFF);
-        result[2] = (byte) ((length >> 8) & 0xFF);
-        result[3] = (byte) ((length >> 0) & 0xFF);
-        return result;
-    }
-
     private void sendFlv() {
 
     }
@@ -10,6 +10,7 @@ import com.ksy.recordlib.service.core.KsyMediaSource;
 import com.ksy.recordlib.service.core.KsyRecordClient;
 import com.ksy.recordlib.service.core.KsyRecordClientConfig;
 import com.ksy.recordlib.service.core.KsyRecordSender;
+import com.ksy.recordlib.service.core.KsyRecordSession;
 import com.ksy.recordlib.service.util.Constants;
 import com.ksy.recordlib.service.util.FileUtil;
 import com.ksy.recordlib.service.util.MP4Config;
@@ -36,14 +37,14 @@ public class RecoderVideoTempSource extends KsyMediaSource implements MediaRecor
 
     private KsyRecordSender ksyVideoTempSender;
 
-    public RecoderVideoTempSource(Camera mCamera, KsyRecordClientConfig mConfig, SurfaceView mSurfaceView, KsyRecordClient.RecordHandler mRecordHandler, Context mContext) {
+    public RecoderVideoTempSource(Camera mCamera, KsyRecordSession session, SurfaceView mSurfaceView, KsyRecordClient.RecordHandler mRecordHandler, Context mContext) {
 //        super(mConfig.getUrl(), VIDEO_TEMP);
         this.mCamera = mCamera;
-        this.mConfig = mConfig;
+        this.mConfig = session.getConfig();
         mRecorder = new MediaRecorder();
         mHandler = mRecordHandler;
         this.mContext = mContext;
-        ksyVideoTempSender = KsyRecordSender.getRecordInstance();
+        ksyVideoTempSender = session.getSender();
         ksyVideoTempSender.setRecorderData(mConfig.getUrl(), VIDEO_TEMP);
     }
 
@@ -179,19 +180,24 @@ public class RecoderVideoTempSource extends KsyMediaSource implements MediaRecor
         }
         if (file != null && file.exists() && file.length() > 0) {
             if (mRunning) {
+                MP4Config config = null;
                 try {
-                    MP4Config config = new MP4Config(path);
+                    config = new MP4Config(path);
                     // Delete dummy video
                     Log.e(Constants.LOG_TAG, "waiting use" + (System.currentTimeMillis() - startTime));
                     Log.d(Constants.LOG_TAG, "ProfileLevel = " + config.getProfileLevel() + ",B64SPS = " + config.getB64SPS() + ",B64PPS = " + config.getB64PPS());
-                    PrefUtil.saveMp4Config(mContext, config);
+                    if (config.getB64SPS() != null && config.getB64PPS() != null) {
+                        // the next start with this setup skips the probe
+                        PrefUtil.saveCachedMp4Config(mContext, mConfig.getParameterSetKey(), config);
+                    }
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
                 if (!file.delete()) {
                     Log.e(Constants.LOG_TAG, "Temp file could not be erased");
                 }
-                mHandler.sendEmptyMessage(Constants.MESSAGE_MP4CONFIG_FINISH);
+                // to the client that started the probe, not through the prefs other clients share
+                mHandler.obtainMessage(Constants.MESSAGE_MP4CONFIG_FINISH, config).sendToTarget();
             }
         } else {
             Log.e(Constants.LOG_TAG, "waiting for temp file failed");
@@ -0,0 +1,1069 @@
+package com.ksy.recordlib.service.rtmp;
+
+import android.util.Log;
+
+import com.ksy.recordlib.service.core.InterleavingTransport;
+import com.ksy.recordlib.service.core.KSYFlvData;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * RTMP publish client in plain java, a StreamTransport in place of the native
+ * librtmp push.
+ * <p/>
+ * open() does the simple handshake, connect, releaseStream, FCPublish,
+ * createStream and publish, then announces the configured outgoing chunk size.
+ * write() takes the flv tags the sender produces, each tag becomes one audio,
+ * video or data message on its own chunk stream. The chunk headers live in
+ * reusable buffers and the payload is sliced out of the tag buffer, so a batch
+ * of tags goes out in gathering writes without copying media bytes.
+ * <p/>
+ * With a PriorityTagSource set, video and data tags go out chunk by chunk, and
+ * after every chunk the audio of the batch plus whatever audio the source has
+ * due is sent on the audio chunk stream. Audio then waits for one chunk at
+ * most, not for a keyframe or for the video backlog it leaves behind. A small socket
+ * send buffer (setSendBufferSize()) keeps the kernel from queueing a whole
+ * keyframe ahead of that audio, at the cost of throughput on long round trips.
+ * <p/>
+ * Incoming messages are read whenever the client waits or writes: set chunk
+ * size, window acknowledgement size (answered with acknowledgements), pings
+ * and command results.
+ * <p/>
+ * The socket is non blocking, every wait is bounded by the timeout. Like the
+ * other transports it is used from one thread at a time.
+ */
+public class KSYRtmpPublisher implements InterleavingTransport {
+
+    private static final String TAG = "KSYRtmpPublisher";
+
+    public static final int DEFAULT_CHUNK_SIZE = 128;
+    public static final int DEFAULT_PORT = 1935;
+
+    static final int MSG_SET_CHUNK_SIZE = 1;
+    static final int MSG_ACK = 3;
+    static final int MSG_USER_CONTROL = 4;
+    static final int MSG_WINDOW_ACK_SIZE = 5;
+    static final int MSG_SET_PEER_BANDWIDTH = 6;
+    static final int MSG_AUDIO = 8;
+    static final int MSG_VIDEO = 9;
+    static final int MSG_DATA_AMF0 = 18;
+    static final int MSG_COMMAND_AMF0 = 20;
+
+    static final int CSID_PROTOCOL = 2;
+    static final int CSID_COMMAND = 3;
+    static final int CSID_AUDIO = 4;
+    static final int CSID_DATA = 5;
+    static final int CSID_VIDEO = 6;
+
+    private static final int HANDSHAKE_SIZE = 1536;
+    private static final int EXTENDED_TIMESTAMP = 0xffffff;
+    private static final int WINDOW_ACK_SIZE = 2500000;
+    private static final int USER_CONTROL_PING_REQUEST = 6;
+    private static final int USER_CONTROL_PING_RESPONSE = 7;
+    // iovecs handed to one gathering write, below the usual IOV_MAX of 1024
+    private static final int MAX_IOV = 512;
+    // fmt 0 with a 3 byte chunk stream id and an extended timestamp
+    private static final int MAX_CHUNK_HEADER = 3 + 11 + 4;
+    // the incoming buffer grows to hold a whole chunk of the server's chunk size up to this
+    private static final int MAX_IN_BUFFER = 4 * 1024 * 1024;
+    // close() gives the unpublish commands this long to reach the socket, the caller may be a ui thread
+    private static final int CLOSE_TIMEOUT_MS = 500;
+
+    private static final int TXN_CONNECT = 1;
+    private static final int TXN_CREATE_STREAM = 4;
+
+    private final int chunkSize;
+    private int timeoutMs = 10000;
+    private int sendBufferSize;
+    private volatile PriorityTagSource prioritySource;
+    private volatile boolean audioPriority = true;
+
+    private String host;
+    private int port;
+    private String app;
+    private String streamName;
+    private String tcUrl;
+
+    private SocketChannel channel;
+    private volatile Selector selector;
+    private SelectionKey key;
+    private boolean published;
+    private int streamId;
+    private String error;
+
+    // incoming
+    private ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+    private int inChunkSize = DEFAULT_CHUNK_SIZE;
+    private final Map<Integer, InboundChunkStream> inStreams = new HashMap<Integer, InboundChunkStream>();
+    private long received;
+    private long acknowledged;
+    private int peerWindowAckSize;
+    private boolean connectResult;
+    private boolean createStreamResult;
+
+    // outgoing, write() gathers chunk headers and payload slices here
+    private ByteBuffer[] iov = new ByteBuffer[MAX_IOV];
+    private ByteBuffer[] headerPool = new ByteBuffer[MAX_IOV / 2];
+    private int iovCount;
+    private int headerCount;
+    // offsets of the tags of the batch in write(), and whether they went out already
+    private int[] tagOffsets = new int[32];
+    private boolean[] tagSent = new boolean[32];
+    private final ByteBuffer command = ByteBuffer.allocate(4096);
+    private final ByteBuffer control = ByteBuffer.allocate(16);
+    // write() and close() come from different threads
+    private final Object writeLock = new Object();
+    // set while close() waits for a write to give up
+    private volatile boolean closing;
+
+    private long wireBytes;
+    private long payloadBytes;
+    private long messages;
+    private long chunks;
+    private long interleavedTags;
+
+    /**
+     * @param chunkSize outgoing chunk size announced to the server, 128 to 16777215
+     */
+    public KSYRtmpPublisher(int chunkSize) {
+        this.chunkSize = Math.max(DEFAULT_CHUNK_SIZE, Math.min(chunkSize, 0xffffff));
+        for (int i = 0; i < headerPool.length; i++) {
+            headerPool[i] = ByteBuffer.allocateDirect(MAX_CHUNK_HEADER);
+        }
+    }
+
+    public void setTimeoutMs(int timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * SO_SNDBUF for the next open(), 0 leaves the system default
+     */
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    /**
+     * false sends tags whole and in order even with a PriorityTagSource set
+     */
+    public void setAudioPriority(boolean audioPriority) {
+        this.audioPriority = audioPriority;
+    }
+
+    @Override
+    public void setPriorityTagSource(PriorityTagSource source) {
+        prioritySource = source;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * bytes written to the socket after the handshake, chunk headers and commands included
+     */
+    public long getWireBytes() {
+        return wireBytes;
+    }
+
+    /**
+     * flv tag bodies carried, the part of getWireBytes() that is media
+     */
+    public long getPayloadBytes() {
+        return payloadBytes;
+    }
+
+    /**
+     * audio tags sent in between the chunks of a longer tag
+     */
+    public long getInterleavedTags() {
+        return interleavedTags;
+    }
+
+    public long getMessages() {
+        return messages;
+    }
+
+    public long getChunks() {
+        return chunks;
+    }
+
+    /**
+     * why the last open() or write() failed, null if it did not
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * bytes a message of the given size takes on the wire with the given chunk size:
+     * a 12 byte first chunk header and a 1 byte header for every further chunk
+     */
+    public static long wireSize(int messageSize, int chunkSize) {
+        int count = messageSize == 0 ? 1 : (messageSize + chunkSize - 1) / chunkSize;
+        return 12 + (count - 1) + messageSize;
+    }
+
+    /**
+     * rtmp://host[:port]/app[/more/app]/stream[?query], the stream name is what follows the last slash
+     */
+    @Override
+    public int setOutputUrl(String url) {
+        String scheme = "rtmp://";
+        if (url == null || !url.startsWith(scheme)) {
+            return fail("not an rtmp url: " + url);
+        }
+        String rest = url.substring(scheme.length());
+        int slash = rest.indexOf('/');
+        int last = rest.lastIndexOf('/');
+        if (slash <= 0 || last == slash && last == rest.length() - 1) {
+            return fail("no app in " + url);
+        }
+        String authority = rest.substring(0, slash);
+        int colon = authority.indexOf(':');
+        host = colon < 0 ? authority : authority.substring(0, colon);
+        port = colon < 0 ? DEFAULT_PORT : Integer.parseInt(authority.substring(colon + 1));
+        if (last == slash) {
+            return fail("no stream name in " + url);
+        }
+        app = rest.substring(slash + 1, last);
+        streamName = rest.substring(last + 1);
+        tcUrl = scheme + host + ":" + port + "/" + app;
+        return 0;
+    }
+
+    @Override
+    public int open() {
+        close();
+        error = null;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            if (sendBufferSize > 0) {
+                channel.socket().setSendBufferSize(sendBufferSize);
+            }
+            selector = Selector.open();
+            if (!channel.connect(new InetSocketAddress(host, port))) {
+                key = channel.register(selector, SelectionKey.OP_CONNECT);
+                while (!channel.finishConnect()) {
+                    select(deadline);
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } else {
+                key = channel.register(selector, SelectionKey.OP_READ);
+            }
+            handshake(deadline);
+            sendSetChunkSize();
+            sendWindowAckSize();
+            sendConnect();
+            while (!connectResult) {
+                readIncoming(deadline);
+            }
+            sendCommand("releaseStream", 2, 0, streamName);
+            sendCommand("FCPublish", 3, 0, streamName);
+            sendCommand("createStream", TXN_CREATE_STREAM, 0, null);
+            while (!createStreamResult) {
+                readIncoming(deadline);
+            }
+            sendPublish();
+            while (!published) {
+                readIncoming(deadline);
+            }
+            Log.d(TAG, "publishing " + streamName + " on " + tcUrl + " stream " + streamId + " chunk size " + chunkSize);
+            return 0;
+        } catch (IOException e) {
+            fail("open " + tcUrl + " failed: " + e.getMessage());
+            closeChannel();
+            return -1;
+        }
+    }
+
+    @Override
+    public int close() {
+        // a write waiting for the socket gives up rather than hold the close for its timeout
+        closing = true;
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+        }
+        synchronized (writeLock) {
+            closing = false;
+            if (channel != null && published) {
+                long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MS;
+                try {
+                    queueCommand("FCUnpublish", 6, 0, streamName);
+                    flush(deadline);
+                    queueCommand("deleteStream", 7, 0, (double) streamId);
+                    flush(deadline);
+                } catch (IOException e) {
+                    // closing anyway
+                }
+            }
+            closeChannel();
+        }
+        return 0;
+    }
+
+    @Override
+    public int write(ByteBuffer buffer, int length) {
+        synchronized (writeLock) {
+            return writeLocked(buffer, length);
+        }
+    }
+
+    private int writeLocked(ByteBuffer buffer, int length) {
+        if (!published) {
+            return -1;
+        }
+        try {
+            readAvailable();
+            int count = splitTags(buffer, length);
+            boolean interleave = audioPriority && prioritySource != null;
+            for (int i = 0; i < count; i++) {
+                if (tagSent[i]) {
+                    continue;
+                }
+                int offset = tagOffsets[i];
+                if (interleave && tagType(buffer, offset) != MSG_AUDIO) {
+                    writeInterleaved(buffer, i, count);
+                } else {
+                    queueTag(buffer, offset);
+                }
+                tagSent[i] = true;
+            }
+            flush();
+            return length;
+        } catch (IOException e) {
+            fail("write failed: " + e.getMessage());
+            closeChannel();
+            return -1;
+        }
+    }
+
+    @Override
+    public int write(byte[] buffer, int length) {
+        return write(ByteBuffer.wrap(buffer), length);
+    }
+
+    /**
+     * find the flv tags in bytes 0 to length, absolute reads only since the tag buffer is shared
+     *
+     * @return number of whole tags, their offsets are in tagOffsets
+     */
+    private int splitTags(ByteBuffer buffer, int length) {
+        int count = 0;
+        int offset = 0;
+        while (offset + 11 <= length) {
+            int size = tagSize(buffer, offset);
+            if (offset + 11 + size > length) {
+                Log.w(TAG, "truncated tag at " + offset + " of " + length);
+                break;
+            }
+            if (count == tagOffsets.length) {
+                int[] grown = new int[count * 2];
+                System.arraycopy(tagOffsets, 0, grown, 0, count);
+                tagOffsets = grown;
+                tagSent = new boolean[count * 2];
+            }
+            tagOffsets[count] = offset;
+            tagSent[count] = false;
+            count++;
+            // tag header, body and previous tag size
+            offset += 11 + size + 4;
+        }
+        return count;
+    }
+
+    private static int tagType(ByteBuffer buffer, int offset) {
+        return buffer.get(offset) & 0x1f;
+    }
+
+    private static int tagSize(ByteBuffer buffer, int offset) {
+        return (buffer.get(offset + 1) & 0xff) << 16 | (buffer.get(offset + 2) & 0xff) << 8 | buffer.get(offset + 3) & 0xff;
+    }
+
+    private static int tagTimestamp(ByteBuffer buffer, int offset) {
+        return (buffer.get(offset + 4) & 0xff) << 16 | (buffer.get(offset + 5) & 0xff) << 8
+                | buffer.get(offset + 6) & 0xff | (buffer.get(offset + 7) & 0xff) << 24;
+    }
+
+    private static int chunkStreamFor(int type) {
+        return type == MSG_AUDIO ? CSID_AUDIO : type == MSG_VIDEO ? CSID_VIDEO : CSID_DATA;
+    }
+
+    /**
+     * queue the flv tag at offset as one message
+     */
+    private void queueTag(ByteBuffer buffer, int offset) throws IOException {
+        int type = tagType(buffer, offset);
+        int size = tagSize(buffer, offset);
+        queueMessage(chunkStreamFor(type), type, tagTimestamp(buffer, offset), streamId, buffer, offset + 11, size);
+        payloadBytes += size;
+    }
+
+    /**
+     * send tag index chunk by chunk, with the audio that is ready going out after every chunk
+     */
+    private void writeInterleaved(ByteBuffer buffer, int index, int count) throws IOException {
+        int offset = tagOffsets[index];
+        int type = tagType(buffer, offset);
+        int size = tagSize(buffer, offset);
+        int timestamp = tagTimestamp(buffer, offset);
+        int csid = chunkStreamFor(type);
+        int sent = 0;
+        while (sent < size) {
+            sent += queueChunk(csid, type, timestamp, streamId, buffer, offset + 11, size, sent);
+            flush();
+            sendPendingAudio(buffer, index, count);
+        }
+        messages++;
+        payloadBytes += size;
+    }
+
+    /**
+     * the audio left in the batch first, it is older than what the source has
+     */
+    private void sendPendingAudio(ByteBuffer buffer, int index, int count) throws IOException {
+        for (int i = index + 1; i < count; i++) {
+            if (!tagSent[i] && tagType(buffer, tagOffsets[i]) == MSG_AUDIO) {
+                queueTag(buffer, tagOffsets[i]);
+                tagSent[i] = true;
+                interleavedTags++;
+            }
+        }
+        flush();
+        PriorityTagSource source = prioritySource;
+        KSYFlvData tag;
+        while (source != null && (tag = source.pollPriorityTag()) != null) {
+            int result = -1;
+            try {
+                queueTag(tag.directBuffer != null ? tag.directBuffer : ByteBuffer.wrap(tag.byteBuffer), 0);
+                flush();
+                result = tag.size;
+                interleavedTags++;
+            } finally {
+                source.onPriorityTagWritten(tag, result);
+            }
+        }
+    }
+
+    private int fail(String message) {
+        error = message;
+        Log.e(TAG, message);
+        return -1;
+    }
+
+    private void closeChannel() {
+        published = false;
+        connectResult = false;
+        createStreamResult = false;
+        for (int i = 0; i < iovCount; i++) {
+            iov[i] = null;
+        }
+        iovCount = 0;
+        headerCount = 0;
+        inStreams.clear();
+        in.clear();
+        inChunkSize = DEFAULT_CHUNK_SIZE;
+        received = 0;
+        acknowledged = 0;
+        peerWindowAckSize = 0;
+        try {
+            if (selector != null) {
+                selector.close();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "close " + e);
+        }
+        selector = null;
+        channel = null;
+        key = null;
+    }
+
+    // ---- handshake
+
+    private void handshake(long deadline) throws IOException {
+        ByteBuffer c0c1 = ByteBuffer.allocate(1 + HANDSHAKE_SIZE);
+        c0c1.put((byte) 3);
+        c0c1.putInt((int) (System.currentTimeMillis() / 1000));
+        c0c1.putInt(0);
+        byte[] random = new byte[HANDSHAKE_SIZE - 8];
+        new Random().nextBytes(random);
+        c0c1.put(random);
+        c0c1.flip();
+        writeFully(c0c1, deadline);
+        // s0, s1 and s2
+        while (in.position() < 1 + 2 * HANDSHAKE_SIZE) {
+            readSome(deadline);
+        }
+        in.flip();
+        if (in.get() != 3) {
+            throw new IOException("unsupported rtmp version");
+        }
+        byte[] s1 = new byte[HANDSHAKE_SIZE];
+        in.get(s1);
+        in.position(in.position() + HANDSHAKE_SIZE);
+        in.compact();
+        // c2 echoes s1, the simple handshake
+        writeFully(ByteBuffer.wrap(s1), deadline);
+    }
+
+    // ---- outgoing
+
+    private void sendSetChunkSize() throws IOException {
+        control.clear();
+        control.putInt(chunkSize);
+        control.flip();
+        sendControl(MSG_SET_CHUNK_SIZE);
+    }
+
+    private void sendWindowAckSize() throws IOException {
+        control.clear();
+        control.putInt(WINDOW_ACK_SIZE);
+        control.flip();
+        sendControl(MSG_WINDOW_ACK_SIZE);
+    }
+
+    private void sendAck() throws IOException {
+        control.clear();
+        control.putInt((int) received);
+        control.flip();
+        acknowledged = received;
+        sendControl(MSG_ACK);
+    }
+
+    private void sendControl(int type) throws IOException {
+        queueMessage(CSID_PROTOCOL, type, 0, 0, control, 0, control.limit());
+        flush();
+    }
+
+    private void sendConnect() throws IOException {
+        command.clear();
+        Amf0.putString(command, "connect");
+        Amf0.putNumber(command, TXN_CONNECT);
+        Amf0.startObject(command);
+        Amf0.putProperty(command, "app", app);
+        Amf0.putProperty(command, "type", "nonprivate");
+        Amf0.putProperty(command, "flashVer", "FMLE/3.0 (compatible; KSYRtmpPublisher)");
+        Amf0.putProperty(command, "tcUrl", tcUrl);
+        Amf0.endObject(command);
+        sendCommandBuffer(0);
+    }
+
+    private void sendPublish() throws IOException {
+        command.clear();
+        Amf0.putString(command, "publish");
+        Amf0.putNumber(command, 5);
+        Amf0.putNull(command);
+        Amf0.putString(command, streamName);
+        Amf0.putString(command, "live");
+        sendCommandBuffer(streamId);
+    }
+
+    /**
+     * @param argument String, Double or null for none
+     */
+    private void sendCommand(String name, int transaction, int messageStreamId, Object argument) throws IOException {
+        queueCommand(name, transaction, messageStreamId, argument);
+        flush();
+    }
+
+    /**
+     * add a command to the gathering write, it has to be flushed before the next one is built
+     */
+    private void queueCommand(String name, int transaction, int messageStreamId, Object argument) throws IOException {
+        command.clear();
+        Amf0.putString(command, name);
+        Amf0.putNumber(command, transaction);
+        Amf0.putNull(command);
+        if (argument instanceof String) {
+            Amf0.putString(command, (String) argument);
+        } else if (argument instanceof Double) {
+            Amf0.putNumber(command, (Double) argument);
+        }
+        command.flip();
+        queueMessage(CSID_COMMAND, MSG_COMMAND_AMF0, 0, messageStreamId, command, 0, command.limit());
+    }
+
+    private void sendCommandBuffer(int messageStreamId) throws IOException {
+        command.flip();
+        queueMessage(CSID_COMMAND, MSG_COMMAND_AMF0, 0, messageStreamId, command, 0, command.limit());
+        flush();
+    }
+
+    /**
+     * add the chunks of one message to the gathering write, payload bytes stay where they are
+     */
+    private void queueMessage(int csid, int type, int timestamp, int messageStreamId, ByteBuffer payload, int offset, int size)
+            throws IOException {
+        int sent = 0;
+        do {
+            sent += queueChunk(csid, type, timestamp, messageStreamId, payload, offset, size, sent);
+        } while (sent < size);
+        messages++;
+    }
+
+    /**
+     * add the chunk of a message that starts sent bytes into it
+     *
+     * @return payload bytes in the chunk
+     */
+    private int queueChunk(int csid, int type, int timestamp, int messageStreamId, ByteBuffer payload, int offset, int size,
+                           int sent) throws IOException {
+        boolean extended = timestamp >= EXTENDED_TIMESTAMP || timestamp < 0;
+        if (iovCount + 2 > iov.length) {
+            flush();
+        }
+        int length = Math.min(chunkSize, size - sent);
+        ByteBuffer header = headerPool[headerCount++];
+        header.clear();
+        putBasicHeader(header, sent == 0 ? 0 : 3, csid);
+        if (sent == 0) {
+            put24(header, extended ? EXTENDED_TIMESTAMP : timestamp);
+            put24(header, size);
+            header.put((byte) type);
+            // the message stream id is little endian
+            header.put((byte) messageStreamId);
+            header.put((byte) (messageStreamId >> 8));
+            header.put((byte) (messageStreamId >> 16));
+            header.put((byte) (messageStreamId >> 24));
+        }
+        if (extended) {
+            header.putInt(timestamp);
+        }
+        header.flip();
+        iov[iovCount++] = header;
+        if (length > 0) {
+            iov[iovCount++] = slice(payload, offset + sent, length);
+        }
+        chunks++;
+        return length;
+    }
+
+    private static ByteBuffer slice(ByteBuffer payload, int offset, int length) {
+        ByteBuffer view;
+        synchronized (payload) {
+            view = payload.duplicate();
+        }
+        view.clear();
+        view.limit(offset + length);
+        view.position(offset);
+        return view;
+    }
+
+    private static void putBasicHeader(ByteBuffer header, int fmt, int csid) {
+        if (csid < 64) {
+            header.put((byte) (fmt << 6 | csid));
+        } else if (csid < 320) {
+            header.put((byte) (fmt << 6));
+            header.put((byte) (csid - 64));
+        } else {
+            header.put((byte) (fmt << 6 | 1));
+            header.put((byte) (csid - 64));
+            header.put((byte) ((csid - 64) >> 8));
+        }
+    }
+
+    private static void put24(ByteBuffer buffer, int value) {
+        buffer.put((byte) (value >> 16));
+        buffer.put((byte) (value >> 8));
+        buffer.put((byte) value);
+    }
+
+    /**
+     * one gathering write for everything queued, waiting for the socket as needed
+     */
+    private void flush() throws IOException {
+        flush(System.currentTimeMillis() + timeoutMs);
+    }
+
+    private void flush(long deadline) throws IOException {
+        int first = 0;
+        while (first < iovCount) {
+            long written = channel.write(iov, first, iovCount - first);
+            wireBytes += written;
+            while (first < iovCount && !iov[first].hasRemaining()) {
+                first++;
+            }
+            if (written == 0 && first < iovCount) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                select(deadline);
+                key.interestOps(SelectionKey.OP_READ);
+                readAvailable();
+            }
+        }
+        // no references to tag buffers are kept past the write
+        for (int i = 0; i < iovCount; i++) {
+            iov[i] = null;
+        }
+        iovCount = 0;
+        headerCount = 0;
+    }
+
+    private void writeFully(ByteBuffer buffer, long deadline) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                select(deadline);
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    private void select(long deadline) throws IOException {
+        long wait = deadline - System.currentTimeMillis();
+        if (wait <= 0) {
+            throw new IOException("timed out");
+        }
+        selector.select(wait);
+        selector.selectedKeys().clear();
+        if (closing) {
+            throw new IOException("closed");
+        }
+    }
+
+    // ---- incoming
+
+    /**
+     * wait for and handle at least one read
+     */
+    private void readIncoming(long deadline) throws IOException {
+        readSome(deadline);
+        parseIncoming();
+    }
+
+    /**
+     * handle whatever the server sent, without waiting
+     */
+    private void readAvailable() throws IOException {
+        while (true) {
+            growIfFull();
+            int read = channel.read(in);
+            if (read < 0) {
+                throw new IOException("connection closed by server");
+            }
+            if (read == 0) {
+                return;
+            }
+            received += read;
+            boolean filled = !in.hasRemaining();
+            parseIncoming();
+            if (!filled) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * make room for the rest of a chunk that fills the whole buffer
+     */
+    private void growIfFull() throws IOException {
+        if (in.hasRemaining()) {
+            return;
+        }
+        if (in.capacity() >= MAX_IN_BUFFER) {
+            throw new IOException("incoming chunk larger than " + MAX_IN_BUFFER + " bytes, chunk size " + inChunkSize);
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.min(in.capacity() * 2, MAX_IN_BUFFER));
+        in.flip();
+        grown.put(in);
+        in = grown;
+    }
+
+    private void readSome(long deadline) throws IOException {
+        while (true) {
+            growIfFull();
+            int read = channel.read(in);
+            if (read < 0) {
+                throw new IOException("connection closed by server");
+            }
+            if (read > 0) {
+                received += read;
+                return;
+            }
+            select(deadline);
+        }
+    }
+
+    private void parseIncoming() throws IOException {
+        in.flip();
+        while (parseChunk()) {
+            // one chunk at a time
+        }
+        in.compact();
+        if (peerWindowAckSize > 0 && received - acknowledged >= peerWindowAckSize) {
+            sendAck();
+        }
+    }
+
+    /**
+     * @return false if in does not hold a whole chunk, which is left in place
+     */
+    private boolean parseChunk() throws IOException {
+        int start = in.position();
+        if (in.remaining() < 1) {
+            return false;
+        }
+        int first = in.get() & 0xff;
+        int fmt = first >> 6;
+        int csid = first & 0x3f;
+        if (csid == 0) {
+            if (in.remaining() < 1) {
+                return rewind(start);
+            }
+            csid = 64 + (in.get() & 0xff);
+        } else if (csid == 1) {
+            if (in.remaining() < 2) {
+                return rewind(start);
+            }
+            csid = 64 + (in.get() & 0xff) + ((in.get() & 0xff) << 8);
+        }
+        int headerSize = fmt == 0 ? 11 : fmt == 1 ? 7 : fmt == 2 ? 3 : 0;
+        if (in.remaining() < headerSize) {
+            return rewind(start);
+        }
+        InboundChunkStream stream = inStreams.get(csid);
+        if (stream == null) {
+            stream = new InboundChunkStream();
+            inStreams.put(csid, stream);
+        }
+        int timestampField = stream.timestampField;
+        int length = stream.length;
+        int type = stream.type;
+        int messageStreamId = stream.messageStreamId;
+        if (fmt <= 2) {
+            timestampField = get24(in);
+        }
+        if (fmt <= 1) {
+            length = get24(in);
+            type = in.get() & 0xff;
+        }
+        if (fmt == 0) {
+            messageStreamId = (in.get() & 0xff) | (in.get() & 0xff) << 8 | (in.get() & 0xff) << 16 | (in.get() & 0xff) << 24;
+        }
+        if (timestampField == EXTENDED_TIMESTAMP) {
+            if (in.remaining() < 4) {
+                return rewind(start);
+            }
+            in.getInt();
+        }
+        boolean newMessage = stream.received == 0;
+        int size = Math.min(inChunkSize, (newMessage ? length : stream.length) - stream.received);
+        if (in.remaining() < size) {
+            return rewind(start);
+        }
+        if (newMessage) {
+            stream.timestampField = timestampField;
+            stream.length = length;
+            stream.type = type;
+            stream.messageStreamId = messageStreamId;
+            if (stream.body == null || stream.body.length < length) {
+                stream.body = new byte[Math.max(length, 256)];
+            }
+        }
+        in.get(stream.body, stream.received, size);
+        stream.received += size;
+        if (stream.received >= stream.length) {
+            stream.received = 0;
+            onMessage(stream.type, ByteBuffer.wrap(stream.body, 0, stream.length));
+        }
+        return true;
+    }
+
+    private boolean rewind(int start) {
+        in.position(start);
+        return false;
+    }
+
+    private static int get24(ByteBuffer buffer) {
+        return (buffer.get() & 0xff) << 16 | (buffer.get() & 0xff) << 8 | buffer.get() & 0xff;
+    }
+
+    private void onMessage(int type, ByteBuffer body) throws IOException {
+        switch (type) {
+            case MSG_SET_CHUNK_SIZE:
+                inChunkSize = body.getInt() & 0x7fffffff;
+                break;
+            case MSG_WINDOW_ACK_SIZE:
+                peerWindowAckSize = body.getInt();
+                break;
+            case MSG_SET_PEER_BANDWIDTH:
+                // how much we may send unacknowledged, the client does not throttle on it
+                break;
+            case MSG_USER_CONTROL:
+                if (body.remaining() >= 6 && body.getShort() == USER_CONTROL_PING_REQUEST) {
+                    control.clear();
+                    control.putShort((short) USER_CONTROL_PING_RESPONSE);
+                    control.putInt(body.getInt());
+                    control.flip();
+                    sendControl(MSG_USER_CONTROL);
+                }
+                break;
+            case MSG_COMMAND_AMF0:
+                onCommand(body);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onCommand(ByteBuffer body) throws IOException {
+        Object name = Amf0.read(body);
+        Object transaction = Amf0.read(body);
+        if ("_result".equals(name)) {
+            int txn = transaction instanceof Double ? ((Double) transaction).intValue() : -1;
+            if (txn == TXN_CONNECT) {
+                connectResult = true;
+            } else if (txn == TXN_CREATE_STREAM) {
+                Amf0.read(body);
+                Object id = Amf0.read(body);
+                streamId = id instanceof Double ? ((Double) id).intValue() : 1;
+                createStreamResult = true;
+            }
+        } else if ("onStatus".equals(name)) {
+            Amf0.read(body);
+            Object info = Amf0.read(body);
+            Object code = info instanceof Map ? ((Map<?, ?>) info).get("code") : null;
+            if ("NetStream.Publish.Start".equals(code)) {
+                published = true;
+            } else if (code != null && String.valueOf(code).contains("Publish") || "NetStream.Failed".equals(code)) {
+                throw new IOException("publish refused: " + code);
+            }
+        } else if ("_error".equals(name)) {
+            Amf0.read(body);
+            Object info = Amf0.read(body);
+            Object code = info instanceof Map ? ((Map<?, ?>) info).get("code") : info;
+            throw new IOException("server error: " + code);
+        }
+    }
+
+    private static class InboundChunkStream {
+        int timestampField;
+        int length;
+        int type;
+        int messageStreamId;
+        // bytes of the current message read so far
+        int received;
+        byte[] body;
+    }
+
+    /**
+     * the few AMF0 types rtmp commands use
+     */
+    static class Amf0 {
+        static final int NUMBER = 0;
+        static final int BOOLEAN = 1;
+        static final int STRING = 2;
+        static final int OBJECT = 3;
+        static final int NULL = 5;
+        static final int UNDEFINED = 6;
+        static final int ECMA_ARRAY = 8;
+        static final int OBJECT_END = 9;
+
+        static void putNumber(ByteBuffer buffer, double value) {
+            buffer.put((byte) NUMBER);
+            buffer.putDouble(value);
+        }
+
+        static void putString(ByteBuffer buffer, String value) {
+            buffer.put((byte) STRING);
+            putUtf8(buffer, value);
+        }
+
+        static void putNull(ByteBuffer buffer) {
+            buffer.put((byte) NULL);
+        }
+
+        static void startObject(ByteBuffer buffer) {
+            buffer.put((byte) OBJECT);
+        }
+
+        static void putProperty(ByteBuffer buffer, String name, String value) {
+            putUtf8(buffer, name);
+            putString(buffer, value);
+        }
+
+        static void endObject(ByteBuffer buffer) {
+            buffer.putShort((short) 0);
+            buffer.put((byte) OBJECT_END);
+        }
+
+        static void putUtf8(ByteBuffer buffer, String value) {
+            try {
+                byte[] bytes = value.getBytes("UTF-8");
+                buffer.putShort((short) bytes.length);
+                buffer.put(bytes);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static String getUtf8(ByteBuffer buffer) {
+            int length = buffer.getShort() & 0xffff;
+            try {
+                String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, "UTF-8");
+                buffer.position(buffer.position() + length);
+                return value;
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @return Double, Boolean, String, Map of the properties, or null; null as well at the end of the buffer
+         */
+        static Object read(ByteBuffer buffer) {
+            if (!buffer.hasRemaining()) {
+                return null;
+            }
+            int marker = buffer.get() & 0xff;
+            switch (marker) {
+                case NUMBER:
+                    return buffer.getDouble();
+                case BOOLEAN:
+                    return buffer.get() != 0;
+                case STRING:
+                    return getUtf8(buffer);
+                case ECMA_ARRAY:
+                    // the count is only a hint, properties follow like in an object
+                    buffer.getInt();
+                    return readProperties(buffer);
+                case OBJECT:
+                    return readProperties(buffer);
+                default:
+                    // null, undefined and what commands do not use
+                    return null;
+            }
+        }
+
+        /**
+         * name and value pairs up to the object end marker
+         */
+        static Map<String, Object> readProperties(ByteBuffer buffer) {
+            Map<String, Object> object = new HashMap<String, Object>();
+            while (buffer.remaining() >= 3) {
+                String name = getUtf8(buffer);
+                if (name.length() == 0 && buffer.get(buffer.position()) == OBJECT_END) {
+                    buffer.get();
+                    break;
+                }
+                object.put(name, read(buffer));
+            }
+            return object;
+        }
+    }
+}
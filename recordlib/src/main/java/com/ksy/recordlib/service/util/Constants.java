@@ -20,11 +20,15 @@ public class Constants {
     public static final int MESSAGE_MP4CONFIG_START_PREVIEW = 1;
     public static final int MESSAGE_SENDER_PUSH_FAILED = 2;
     public static final int MESSAGE_SWITCH_CAMERA_FINISH = 3;
+    public static final int MESSAGE_PARAMETER_SETS_REJECTED = 4;
+    public static final int MESSAGE_SENDER_TARGET_BITRATE = 5;
 
     public static final String PREFERENCE_KEY_MP4CONFIG_PROFILE_LEVEL = "profile_level";
     public static final String PREFERENCE_KEY_MP4CONFIG_B64PPS = "b64pps";
     public static final String PREFERENCE_KEY_MP4CONFIG_B64SPS = "b64sps";
     public static final String PREFERENCE_NAME = "preference_key";
+    // followed by KsyRecordClientConfig.getParameterSetKey(), one entry per camera and encoder setup
+    public static final String PREFERENCE_KEY_MP4CONFIG_CACHE_PREFIX = "mp4config/";
 
     //voice config
     public static final int CONFIG_AUDIO_SAMPLERATE_44100 = 44100;
@@ -50,6 +54,16 @@ public class Constants {
     public static final int CONFIG_VIDEO_FRAME_RATE_21 = 21;
     public static final int CONFIG_VIDEO_FRAME_RATE_30 = 30;
 
+    //sender config
+    public static final int CONFIG_MAX_BUFFERED_DURATION_MS = 3000;
+    public static final int CONFIG_SEND_BATCH_BYTES = 16 * 1024;
+    public static final int CONFIG_SEND_BATCH_LATENCY_MS = 40;
+    public static final int CONFIG_PACER_BURST_MS = 200;
+    public static final float CONFIG_PACER_CATCH_UP_SPEED = 1.5f;
+    public static final int CONFIG_GOP_CACHE_MAX_BYTES = 2 * 1024 * 1024;
+    public static final int CONFIG_RECONNECT_BASE_DELAY_MS = 500;
+    public static final int CONFIG_RECONNECT_MAX_DELAY_MS = 30 * 1000;
+
     public static final String NETWORK_STATE_CHANGED = "net_work_changed";
 
     public static final int SETTING_URL = 0;
@@ -32,4 +32,36 @@ public class PrefUtil {
         SharedPreferences preferences = context.getSharedPreferences(Constants.PREFERENCE_NAME, Context.MODE_PRIVATE);
         return preferences.getString(Constants.PREFERENCE_KEY_MP4CONFIG_B64SPS, null);
     }
+
+    /**
+     * the parameter sets a probe found for key, null if there is no entry
+     */
+    public static MP4Config getCachedMp4Config(Context context, String key) {
+        SharedPreferences preferences = context.getSharedPreferences(Constants.PREFERENCE_NAME, Context.MODE_PRIVATE);
+        String entry = preferences.getString(Constants.PREFERENCE_KEY_MP4CONFIG_CACHE_PREFIX + key, null);
+        if (entry == null) {
+            return null;
+        }
+        // profile level, sps and pps in base64, which has no commas
+        String[] fields = entry.split(",");
+        if (fields.length != 3) {
+            return null;
+        }
+        return new MP4Config(fields[0], fields[1], fields[2]);
+    }
+
+    public static void saveCachedMp4Config(Context context, String key, MP4Config config) {
+        SharedPreferences preferences = context.getSharedPreferences(Constants.PREFERENCE_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putString(Constants.PREFERENCE_KEY_MP4CONFIG_CACHE_PREFIX + key,
+                config.getProfileLevel() + "," + config.getB64SPS() + "," + config.getB64PPS());
+        editor.commit();
+    }
+
+    public static void removeCachedMp4Config(Context context, String key) {
+        SharedPreferences preferences = context.getSharedPreferences(Constants.PREFERENCE_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.remove(Constants.PREFERENCE_KEY_MP4CONFIG_CACHE_PREFIX + key);
+        editor.commit();
+    }
 }
@@ -0,0 +1,129 @@
+package com.ksy.recordlib.service.core;
+
+import com.ksy.recordlib.service.simulate.SyntheticTags;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The drop policies on a queue nobody sends from: frames keep coming in, the
+ * policy trims the way KsyRecordSender does before each poll, and the queue
+ * has to stay under the hard limit without giving up the audio of the video
+ * it keeps.
+ */
+public class DropPolicyTest {
+
+    private static final int MAX_MS = 3000;
+    private static final int FPS = 30;
+    private static final int GOP_MS = 2000;
+    private static final double AUDIO_FRAME_MS = 1024 * 1000.0 / 44100;
+
+    private final KsySenderQueue queue = new KsySenderQueue(1024);
+    private int video;
+    private int audio;
+
+    private static int level(KsySenderQueue queue) {
+        int duration = queue.durationMs();
+        if (duration > MAX_MS) {
+            return DropPolicy.CONGESTION_HARD;
+        }
+        return duration * 4 > MAX_MS * 3 ? DropPolicy.CONGESTION_SOFT : DropPolicy.CONGESTION_NONE;
+    }
+
+    /**
+     * what awaitNext() does: apply the policy until it has nothing to drop
+     */
+    private static void trim(DropPolicy policy, KsySenderQueue queue) {
+        int level = level(queue);
+        while (level != DropPolicy.CONGESTION_NONE && queue.apply(policy.onCongestion(level, queue)) > 0) {
+            level = level(queue);
+        }
+    }
+
+    /**
+     * queue the next frame of either track in dts order, trimming after each
+     *
+     * @param bounded check the queue is under the hard limit after every trim
+     */
+    private void feed(DropPolicy policy, int toMs, boolean bounded) {
+        while (true) {
+            int videoDts = video * 1000 / FPS;
+            int audioDts = (int) (audio * AUDIO_FRAME_MS);
+            if (videoDts >= toMs && audioDts >= toMs) {
+                return;
+            }
+            if (videoDts <= audioDts) {
+                queue.offerVideo(SyntheticTags.video(videoDts, 12500, videoDts % GOP_MS < 1000 / FPS, video++));
+            } else {
+                queue.offerAudio(SyntheticTags.audio(audioDts, 400, audio++));
+            }
+            trim(policy, queue);
+            assertTrue(policy.getName() + ": " + queue.durationMs() + "ms queued at " + Math.max(videoDts, audioDts),
+                    !bounded || queue.durationMs() <= MAX_MS);
+        }
+    }
+
+    private void assertKeepsAudio(DropPolicy policy) {
+        KSYFlvData head = queue.peekVideo();
+        KSYFlvData audioHead = queue.peekAudio();
+        assertTrue(policy.getName() + ": no video left", head != null);
+        assertTrue(policy.getName() + ": no audio left", audioHead != null);
+        assertTrue(policy.getName() + ": audio starts at " + audioHead.dts + ", video at " + head.dts,
+                audioHead.dts <= head.dts + AUDIO_FRAME_MS);
+    }
+
+    private void staysUnderHardLimit(DropPolicy policy) {
+        feed(policy, 20000, true);
+        assertTrue(policy.getName() + ": gop at the head", queue.peekVideo().isKeyframe());
+        assertKeepsAudio(policy);
+    }
+
+    @Test
+    public void dropToNextIdrStaysUnderHardLimit() {
+        staysUnderHardLimit(new DropToNextIDRPolicy());
+    }
+
+    @Test
+    public void dropOldestGopStaysUnderHardLimit() {
+        staysUnderHardLimit(new DropOldestGopPolicy());
+    }
+
+    @Test
+    public void dropNonReferenceFirstStaysUnderHardLimit() {
+        staysUnderHardLimit(new DropNonReferenceFirstPolicy());
+    }
+
+    @Test
+    public void audioNeverDropKeepsEveryAudioFrame() {
+        DropPolicy policy = new AudioNeverDropPolicy(new DropToNextIDRPolicy());
+        // nothing bounds the audio, but the video still goes a gop at a time
+        feed(policy, 20000, false);
+        assertTrue(queue.peekVideo().isKeyframe());
+        assertTrue(queue.videoSize() <= (MAX_MS + GOP_MS) * FPS / 1000);
+        assertEquals(0, queue.peekAudio().dts);
+        assertEquals(audio, queue.audioSize());
+    }
+
+    /**
+     * a single gop over the limit: audio older than the keyframe goes, the
+     * audio next to the video stays
+     */
+    @Test
+    public void shedsOnlyAudioAheadOfTheVideo() {
+        DropPolicy policy = new DropToNextIDRPolicy();
+        for (int i = 0; i < 200; i++) {
+            queue.offerAudio(SyntheticTags.audio((int) (i * AUDIO_FRAME_MS), 400, audio++));
+        }
+        // one gop from 1000ms to 5000ms
+        for (int i = 0; i < 4 * FPS; i++) {
+            queue.offerVideo(SyntheticTags.video(1000 + i * 1000 / FPS, 12500, i == 0, video++));
+        }
+        trim(policy, queue);
+        assertEquals(4 * FPS, queue.videoSize());
+        assertTrue(queue.peekAudio().dts >= 1000);
+        assertTrue(queue.peekAudio().dts < 1000 + AUDIO_FRAME_MS);
+        assertEquals(DropPolicy.DROP_NONE, policy.onCongestion(DropPolicy.CONGESTION_HARD, queue));
+    }
+}
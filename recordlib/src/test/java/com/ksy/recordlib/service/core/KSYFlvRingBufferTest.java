@@ -0,0 +1,126 @@
+package com.ksy.recordlib.service.core;
+
+import org.junit.Test;
+
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The ring's ownership rules: one producer, one consumer, and clear() from
+ * any thread, e.g. the source thread forcing an a/v sync on a camera switch.
+ */
+public class KSYFlvRingBufferTest {
+
+    private static final int TAGS = 200000;
+    // small, so the producer wraps around the clears all the time
+    private static final int CAPACITY = 16;
+
+    private static KSYFlvData tag(int dts, boolean keyframe) {
+        KSYFlvData tag = new KSYFlvData();
+        tag.type = KSYFlvData.FLV_TYPE_VIDEO;
+        tag.frameType = keyframe ? KSYFlvData.NALU_TYPE_IDR : 1;
+        tag.dts = dts;
+        tag.size = 100;
+        return tag;
+    }
+
+    @Test
+    public void offerFailsWhenFull() {
+        KSYFlvRingBuffer ring = new KSYFlvRingBuffer(CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) {
+            assertTrue(ring.offer(tag(i, i % 4 == 0)));
+        }
+        assertFalse(ring.offer(tag(CAPACITY, false)));
+        assertEquals(CAPACITY, ring.size());
+        assertEquals(CAPACITY * 100, ring.bytes());
+        assertEquals(CAPACITY / 4, ring.keyframeCount());
+        assertEquals(0, ring.poll().dts);
+        assertTrue(ring.offer(tag(CAPACITY, false)));
+    }
+
+    /**
+     * a clear() only frees its slots once the consumer got to them, until then
+     * the producer has to see the ring as full
+     */
+    @Test
+    public void clearedSlotsStayTakenUntilTheConsumerRuns() {
+        KSYFlvRingBuffer ring = new KSYFlvRingBuffer(CAPACITY);
+        KSYFlvData[] tags = new KSYFlvData[CAPACITY];
+        for (int i = 0; i < CAPACITY; i++) {
+            tags[i] = tag(i, false);
+            assertTrue(ring.offer(tags[i]));
+        }
+        ring.clear();
+        assertEquals(0, ring.size());
+        assertFalse(ring.offer(tag(CAPACITY, false)));
+        assertEquals(null, ring.poll());
+        for (KSYFlvData tag : tags) {
+            // recycled, the pool reset it
+            assertEquals(0, tag.size);
+        }
+        assertTrue(ring.offer(tag(CAPACITY, false)));
+        assertEquals(CAPACITY, ring.poll().dts);
+    }
+
+    @Test
+    public void clearWhileOffering() throws Exception {
+        final KSYFlvRingBuffer ring = new KSYFlvRingBuffer(CAPACITY);
+        final KSYFlvData[] tags = new KSYFlvData[TAGS];
+        for (int i = 0; i < TAGS; i++) {
+            tags[i] = tag(i, i % 30 == 0);
+        }
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (KSYFlvData tag : tags) {
+                    while (!ring.offer(tag)) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        Thread clearer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    ring.clear();
+                    // a burst of offers between the clears
+                    LockSupport.parkNanos(20000);
+                }
+            }
+        });
+        producer.start();
+        clearer.start();
+        boolean[] polled = new boolean[TAGS];
+        int last = -1;
+        int count = 0;
+        while (producer.isAlive() || ring.size() > 0) {
+            KSYFlvData data = ring.poll();
+            if (data == null) {
+                Thread.yield();
+                continue;
+            }
+            // a recycled tag has been reset by the pool
+            assertEquals("recycled tag polled after " + last, KSYFlvData.FLV_TYPE_VIDEO, data.type);
+            assertTrue(data.dts + " after " + last, data.dts > last);
+            last = data.dts;
+            polled[data.dts] = true;
+            count++;
+        }
+        clearer.interrupt();
+        clearer.join();
+        producer.join();
+        ring.clear();
+        assertEquals(null, ring.poll());
+        assertEquals(0, ring.bytes());
+        assertEquals(0, ring.keyframeCount());
+        // every tag either came out or was recycled by a clear, never both
+        for (int i = 0; i < TAGS; i++) {
+            assertTrue("tag " + i, polled[i] != (tags[i].type == 0));
+        }
+        System.out.println(count + " of " + TAGS + " tags polled around the clears");
+    }
+}
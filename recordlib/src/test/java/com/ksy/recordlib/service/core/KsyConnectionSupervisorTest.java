@@ -0,0 +1,126 @@
+package com.ksy.recordlib.service.core;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * CLOSED is terminal for the supervisor thread: only start() leaves it, and
+ * every way into it is told to the listener.
+ */
+public class KsyConnectionSupervisorTest {
+
+    private final List<int[]> transitions = new ArrayList<int[]>();
+    private volatile boolean connects;
+    private KsyConnectionSupervisor supervisor;
+
+    private KsyConnectionSupervisor supervisor(long baseDelayMs) {
+        supervisor = new KsyConnectionSupervisor(new KsyConnectionSupervisor.Connector() {
+            @Override
+            public boolean connect() {
+                return connects;
+            }
+        }, baseDelayMs, baseDelayMs * 2);
+        supervisor.setConnectionListener(new KsyConnectionSupervisor.ConnectionListener() {
+            @Override
+            public void onConnectionStateChanged(int oldState, int newState) {
+                synchronized (transitions) {
+                    transitions.add(new int[]{oldState, newState});
+                    transitions.notifyAll();
+                }
+            }
+        });
+        return supervisor;
+    }
+
+    @After
+    public void tearDown() {
+        if (supervisor != null) {
+            supervisor.close();
+        }
+    }
+
+    private int[] lastTransition() {
+        synchronized (transitions) {
+            return transitions.get(transitions.size() - 1);
+        }
+    }
+
+    /**
+     * transitions out of CLOSED after the first one
+     */
+    private int reopened() {
+        int reopened = 0;
+        synchronized (transitions) {
+            for (int i = 1; i < transitions.size(); i++) {
+                if (transitions.get(i)[0] == KsyConnectionSupervisor.STATE_CLOSED) {
+                    reopened++;
+                }
+            }
+        }
+        return reopened;
+    }
+
+    private void awaitState(int state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        synchronized (transitions) {
+            while (supervisor.getState() != state && System.currentTimeMillis() < deadline) {
+                transitions.wait(10);
+            }
+        }
+        assertEquals(KsyConnectionSupervisor.stateName(state),
+                KsyConnectionSupervisor.stateName(supervisor.getState()));
+    }
+
+    @Test
+    public void staysClosedWhileRetrying() throws InterruptedException {
+        supervisor(5);
+        assertFalse(supervisor.start());
+        // a few retries in
+        Thread.sleep(100);
+        assertTrue(supervisor.getAttempts() > 1);
+        supervisor.close();
+        int attempts = supervisor.getAttempts();
+        Thread thread = supervisor.getThread();
+        thread.join(1000);
+        assertFalse(thread.isAlive());
+        Thread.sleep(100);
+        assertEquals(KsyConnectionSupervisor.STATE_CLOSED, supervisor.getState());
+        // at most the attempt that was running when it closed
+        assertTrue(supervisor.getAttempts() <= attempts + 1);
+        assertEquals(0, reopened());
+        assertEquals(KsyConnectionSupervisor.STATE_CLOSED, lastTransition()[1]);
+    }
+
+    @Test
+    public void interruptClosesAndTells() throws InterruptedException {
+        supervisor(60000);
+        assertFalse(supervisor.start());
+        awaitState(KsyConnectionSupervisor.STATE_BACKOFF);
+        supervisor.getThread().interrupt();
+        awaitState(KsyConnectionSupervisor.STATE_CLOSED);
+        int[] last = lastTransition();
+        assertEquals(KsyConnectionSupervisor.STATE_BACKOFF, last[0]);
+        assertEquals(KsyConnectionSupervisor.STATE_CLOSED, last[1]);
+    }
+
+    @Test
+    public void startLeavesClosed() throws InterruptedException {
+        supervisor(60000);
+        assertFalse(supervisor.start());
+        Thread first = supervisor.getThread();
+        supervisor.close();
+        connects = true;
+        assertTrue(supervisor.start());
+        assertEquals(KsyConnectionSupervisor.STATE_LIVE, supervisor.getState());
+        first.join(1000);
+        assertFalse(first.isAlive());
+        assertEquals(1, reopened());
+    }
+}
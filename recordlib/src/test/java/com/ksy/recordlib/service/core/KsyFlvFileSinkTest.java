@@ -0,0 +1,229 @@
+package com.ksy.recordlib.service.core;
+
+import com.ksy.recordlib.service.simulate.SyntheticTags;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The archive file: a valid flv whatever the sources put in the previous tag
+ * sizes, synced at every gop, complete after stop(), and a sink that drops
+ * rather than hold up the sources.
+ */
+public class KsyFlvFileSinkTest {
+
+    private static final int FPS = 30;
+    private static final int GOP_FRAMES = 30;
+    private static final double AUDIO_FRAME_MS = 1024 * 1000.0 / 44100;
+    private static final int FILE_HEADER_SIZE = 13;
+    private static final long STOP_TIMEOUT_MS = 5000;
+
+    private File file;
+    private final List<KSYFlvData> tags = new ArrayList<KSYFlvData>();
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("ksy-sink", ".flv");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * gops of video and the audio next to it, in dts order, kept in tags
+     */
+    private List<KSYFlvData> media(int gops) {
+        List<KSYFlvData> media = new ArrayList<KSYFlvData>();
+        int frames = gops * GOP_FRAMES;
+        int audio = 0;
+        for (int video = 0; video < frames; video++) {
+            int videoDts = video * 1000 / FPS;
+            while (audio * AUDIO_FRAME_MS < videoDts) {
+                media.add(SyntheticTags.audio((int) (audio * AUDIO_FRAME_MS), 400, audio));
+                audio++;
+            }
+            media.add(SyntheticTags.video(videoDts, 5000, video % GOP_FRAMES == 0, video));
+        }
+        tags.addAll(media);
+        return media;
+    }
+
+    private static void offerAll(KsyFlvFileSink sink, List<KSYFlvData> media) {
+        for (KSYFlvData tag : media) {
+            assertTrue(sink.offer(tag));
+        }
+    }
+
+    private static void stop(KsyFlvFileSink sink) throws InterruptedException {
+        sink.stop();
+        assertTrue("sink thread still running", sink.awaitStop(STOP_TIMEOUT_MS));
+        assertEquals(null, sink.getError());
+    }
+
+    /**
+     * walk the file tag by tag
+     *
+     * @return the tags in it
+     */
+    private int assertValidFlv() throws IOException {
+        byte[] b = new byte[(int) file.length()];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.readFully(b);
+        } finally {
+            raf.close();
+        }
+        assertTrue(b.length >= FILE_HEADER_SIZE);
+        assertEquals('F', b[0]);
+        assertEquals('L', b[1]);
+        assertEquals('V', b[2]);
+        assertEquals(9, b[8]);
+        assertEquals(0, readInt(b, 9));
+        int count = 0;
+        int lastDts = -1;
+        int offset = FILE_HEADER_SIZE;
+        while (offset < b.length) {
+            int type = b[offset];
+            assertTrue("tag type " + type + " at " + offset, type == 8 || type == 9);
+            int dataSize = (b[offset + 1] & 0xff) << 16 | (b[offset + 2] & 0xff) << 8 | b[offset + 3] & 0xff;
+            int dts = (b[offset + 4] & 0xff) << 16 | (b[offset + 5] & 0xff) << 8 | b[offset + 6] & 0xff | (b[offset + 7] & 0xff) << 24;
+            assertTrue(dts + " after " + lastDts, dts >= lastDts);
+            lastDts = dts;
+            int end = offset + 11 + dataSize;
+            assertTrue("tag at " + offset + " cut off", end + 4 <= b.length);
+            assertEquals("previous tag size at " + end, 11 + dataSize, readInt(b, end));
+            offset = end + 4;
+            count++;
+        }
+        return count;
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return (b[offset] & 0xff) << 24 | (b[offset + 1] & 0xff) << 16 | (b[offset + 2] & 0xff) << 8 | b[offset + 3] & 0xff;
+    }
+
+    /**
+     * the sink gave back every reference it took: the test's own is the last,
+     * recycling it resets the tag
+     */
+    private void assertReleased() {
+        for (KSYFlvData tag : tags) {
+            assertTrue("recycled before the last owner let go", tag.size > 0);
+            tag.recycle();
+            assertEquals("reference leaked", 0, tag.size);
+        }
+    }
+
+    @Test
+    public void writesValidFlv() throws Exception {
+        KsyFlvFileSink sink = new KsyFlvFileSink(file);
+        sink.start();
+        List<KSYFlvData> media = media(3);
+        offerAll(sink, media);
+        stop(sink);
+        assertEquals(media.size(), sink.getWrittenTags());
+        assertEquals(media.size(), assertValidFlv());
+        assertEquals(0, sink.getDroppedTags());
+        assertReleased();
+    }
+
+    /**
+     * a sync before every keyframe but the first, and one when the file is closed
+     */
+    @Test
+    public void syncsAtEveryKeyframe() throws Exception {
+        int gops = 4;
+        KsyFlvFileSink sink = new KsyFlvFileSink(file);
+        sink.start();
+        offerAll(sink, media(gops));
+        stop(sink);
+        assertEquals(gops, sink.getSyncCount());
+        assertReleased();
+    }
+
+    /**
+     * offered before the sink thread ever ran, written by stop() all the same
+     */
+    @Test
+    public void stopWritesWhatIsQueued() throws Exception {
+        KsyFlvFileSink sink = new KsyFlvFileSink(file);
+        List<KSYFlvData> media = media(2);
+        offerAll(sink, media);
+        sink.start();
+        stop(sink);
+        assertEquals(media.size(), sink.getWrittenTags());
+        assertEquals(media.size(), assertValidFlv());
+        assertReleased();
+    }
+
+    @Test
+    public void fullQueueDrops() throws Exception {
+        KsyFlvFileSink sink = new KsyFlvFileSink(file);
+        // nothing takes from the queue before start()
+        int queued = 0;
+        while (true) {
+            KSYFlvData tag = SyntheticTags.video(queued * 1000 / FPS, 5000, queued % GOP_FRAMES == 0, queued);
+            tags.add(tag);
+            long begin = System.nanoTime();
+            boolean accepted = sink.offer(tag);
+            assertTrue("offer blocked", System.nanoTime() - begin < 100000000L);
+            if (!accepted) {
+                break;
+            }
+            queued++;
+        }
+        assertTrue(queued + " queued", queued > 0);
+        assertEquals(1, sink.getDroppedTags());
+        sink.start();
+        stop(sink);
+        assertEquals(queued, sink.getWrittenTags());
+        assertEquals(queued, assertValidFlv());
+        assertReleased();
+    }
+
+    /**
+     * the audio and video threads both count what they drop
+     */
+    @Test
+    public void countsDropsOfBothTracks() throws Exception {
+        final KsyFlvFileSink sink = new KsyFlvFileSink(file);
+        sink.start();
+        stop(sink);
+        final int perThread = 100000;
+        final KSYFlvData video = SyntheticTags.video(0, 5000, true, 0);
+        final KSYFlvData audio = SyntheticTags.audio(0, 400, 0);
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            final KSYFlvData tag = i == 0 ? video : audio;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < perThread; n++) {
+                        assertFalse(sink.offer(tag));
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(2 * perThread, sink.getDroppedTags());
+        tags.add(video);
+        tags.add(audio);
+        assertReleased();
+    }
+}
@@ -0,0 +1,178 @@
+package com.ksy.recordlib.service.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * KsyPacer on a fake clock.
+ */
+public class KsyPacerTest {
+
+    private static final long MS = 1000000L;
+    private static final int BURST_MS = 500;
+    private static final float CATCH_UP_SPEED = 2f;
+    private static final int AUDIO_INTERVAL_MS = 20;
+    // KsyPacer.MAX_LEAD_MS, SLOW_DOWN_SPEED and RESYNC_MS
+    private static final int MAX_LEAD_MS = 200;
+    private static final float SLOW_DOWN_SPEED = 0.8f;
+    private static final int RESYNC_MS = 5000;
+
+    /**
+     * run the same tags through two pacers, one of them peeked at before every
+     * tag, and compare what they hand out
+     */
+    private static void assertPeekLeavesNoTrace(long[] clock, int[] dts) {
+        KsyPacer peeked = new KsyPacer(500, 2f);
+        KsyPacer plain = new KsyPacer(500, 2f);
+        for (int i = 0; i < dts.length; i++) {
+            long now = clock[i] * MS;
+            long peek = peeked.peekDeadline(dts[i], now);
+            // a later tag peeked at too, like the audio interleaved into a video write
+            peeked.peekDeadline(dts[i] + 40, now);
+            long deadline = peeked.deadline(dts[i], now);
+            assertEquals("tag " + i, plain.deadline(dts[i], now), deadline);
+            assertEquals("tag " + i, deadline, peek);
+            assertEquals(plain.getMode(), peeked.getMode());
+            assertEquals(plain.getLagMs(), peeked.getLagMs());
+        }
+        assertEquals(plain.getResyncCount(), peeked.getResyncCount());
+    }
+
+    @Test
+    public void peekOnTime() {
+        assertPeekLeavesNoTrace(new long[]{0, 33, 66, 100, 133}, new int[]{0, 33, 66, 100, 133});
+    }
+
+    @Test
+    public void peekCatchingUp() {
+        // stalled for 2s, then the backlog drains
+        assertPeekLeavesNoTrace(new long[]{0, 2000, 2001, 2002, 2003}, new int[]{0, 33, 66, 100, 133});
+    }
+
+    @Test
+    public void peekSlowingDown() {
+        assertPeekLeavesNoTrace(new long[]{0, 1, 2, 3, 4}, new int[]{0, 300, 600, 900, 1200});
+    }
+
+    @Test
+    public void peekAcrossResync() {
+        assertPeekLeavesNoTrace(new long[]{0, 33, 66, 100}, new int[]{0, 33, 60000, 60033});
+    }
+
+    /**
+     * stalled for 2s: BURST_MS of wall time is spent at once, the backlog past
+     * it drains at CATCH_UP_SPEED, the rest once it is within the burst allowance
+     */
+    @Test
+    public void catchesUpAfterStall() {
+        KsyPacer pacer = new KsyPacer(BURST_MS, CATCH_UP_SPEED);
+        assertEquals(0, pacer.deadline(0, 0));
+        long stall = 2000 * MS;
+        long now = stall;
+        int dts = 0;
+        int dueAtOnce = 0;
+        long previous = 0;
+        while (true) {
+            dts += AUDIO_INTERVAL_MS;
+            long deadline = pacer.deadline(dts, now);
+            if (deadline > stall) {
+                break;
+            }
+            assertEquals(KsyPacer.MODE_CATCH_UP, pacer.getMode());
+            assertTrue("more than the burst allowance at once", deadline >= stall - BURST_MS * MS);
+            previous = deadline;
+            dueAtOnce++;
+        }
+        assertEquals((int) (BURST_MS * CATCH_UP_SPEED / AUDIO_INTERVAL_MS), dueAtOnce);
+        long step = (long) (AUDIO_INTERVAL_MS * MS / CATCH_UP_SPEED);
+        int caughtUp = 0;
+        while (true) {
+            long deadline = pacer.deadline(dts, now);
+            if (pacer.getMode() != KsyPacer.MODE_CATCH_UP) {
+                assertTrue(pacer.getLagMs() + "ms behind", pacer.getLagMs() <= BURST_MS);
+                // due already, the lag left is spent at once
+                assertTrue(deadline <= now);
+                break;
+            }
+            assertEquals("tag at " + dts, previous + step, deadline);
+            previous = deadline;
+            // the sender parks until the deadline
+            now = deadline;
+            dts += AUDIO_INTERVAL_MS;
+            caughtUp++;
+        }
+        assertTrue(caughtUp + " tags caught up", caughtUp > 0);
+        // back on the clock after the lag left
+        // then back on the clock, each tag due at its dts
+        while (dts * MS <= now) {
+            dts += AUDIO_INTERVAL_MS;
+            assertEquals(dts * MS, pacer.deadline(dts, now));
+            assertEquals(KsyPacer.MODE_NORMAL, pacer.getMode());
+        }
+        assertEquals(0, pacer.getResyncCount());
+    }
+
+    /**
+     * dts a second ahead of the clock: paced at SLOW_DOWN_SPEED until the lead is
+     * back within MAX_LEAD_MS, never held past the tag's own deadline
+     */
+    @Test
+    public void slowsDownWhenAhead() {
+        KsyPacer pacer = new KsyPacer(BURST_MS, CATCH_UP_SPEED);
+        assertEquals(0, pacer.deadline(0, 0));
+        long now = MS;
+        int dts = 1000;
+        long previous = pacer.deadline(dts, now);
+        assertEquals(KsyPacer.MODE_SLOW_DOWN, pacer.getMode());
+        long step = (long) (AUDIO_INTERVAL_MS * MS / SLOW_DOWN_SPEED);
+        int slowed = 1;
+        while (true) {
+            now = previous;
+            dts += AUDIO_INTERVAL_MS;
+            long deadline = pacer.deadline(dts, now);
+            assertTrue("tag at " + dts + " held past its deadline", deadline <= dts * MS);
+            if (pacer.getMode() != KsyPacer.MODE_SLOW_DOWN) {
+                assertTrue(-pacer.getLagMs() + "ms ahead", -pacer.getLagMs() <= MAX_LEAD_MS);
+                assertEquals(dts * MS, deadline);
+                break;
+            }
+            assertTrue(-pacer.getLagMs() + "ms ahead", -pacer.getLagMs() > MAX_LEAD_MS);
+            assertEquals("tag at " + dts, previous + step, deadline);
+            previous = deadline;
+            slowed++;
+        }
+        assertTrue(slowed + " tags slowed down", slowed > 1);
+        assertEquals(0, pacer.getResyncCount());
+    }
+
+    /**
+     * a gap over RESYNC_MS either way re-anchors on the tag, due at once
+     */
+    @Test
+    public void resyncsOnTimestampJumps() {
+        KsyPacer pacer = new KsyPacer(BURST_MS, CATCH_UP_SPEED);
+        assertEquals(0, pacer.deadline(0, 0));
+        assertEquals(20 * MS, pacer.deadline(20, 10 * MS));
+        // dts jumps ahead
+        int jump = 20 + RESYNC_MS + 1000;
+        assertEquals(20 * MS, pacer.deadline(jump, 20 * MS));
+        assertEquals(1, pacer.getResyncCount());
+        assertEquals(KsyPacer.MODE_NORMAL, pacer.getMode());
+        assertEquals(0, pacer.getLagMs());
+        assertEquals(40 * MS, pacer.deadline(jump + 20, 30 * MS));
+        // and back
+        assertEquals(40 * MS, pacer.deadline(0, 40 * MS));
+        assertEquals(2, pacer.getResyncCount());
+        assertEquals(60 * MS, pacer.deadline(20, 50 * MS));
+        // the clock jumps past the dts, e.g. a sender stalled for longer than RESYNC_MS
+        long stalled = (60 + RESYNC_MS + 1000) * MS;
+        assertEquals(stalled, pacer.deadline(40, stalled));
+        assertEquals(3, pacer.getResyncCount());
+        assertEquals(stalled + 20 * MS, pacer.deadline(60, stalled));
+        // within RESYNC_MS is pacing, not a resync
+        pacer.deadline(60 + RESYNC_MS - 1000, stalled + 20 * MS);
+        assertEquals(3, pacer.getResyncCount());
+    }
+}
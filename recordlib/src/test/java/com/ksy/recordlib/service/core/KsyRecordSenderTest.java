@@ -0,0 +1,430 @@
+package com.ksy.recordlib.service.core;
+
+import com.ksy.recordlib.service.simulate.MemoryTransport;
+import com.ksy.recordlib.service.simulate.SyntheticTags;
+import com.ksy.recordlib.service.simulate.ThrottledTransport;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The sender's worker thread: parked while there is nothing it can do, woken
+ * by what changes that.
+ */
+public class KsyRecordSenderTest {
+
+    private static final int FPS = 30;
+    private static final int GOP_MS = 2000;
+    private static final int VIDEO_FRAME_BYTES = 12500;
+    private static final int AUDIO_FRAME_BYTES = 400;
+    // aac frames of 1024 samples at 44100Hz
+    private static final double AUDIO_FRAME_MS = 1024 * 1000.0 / 44100;
+    // a worker that spins burns about all of this in cpu time
+    private static final long IDLE_MS = 1000;
+    private static final long MAX_IDLE_CPU_MS = 100;
+    private static final int FEED_MS = 3000;
+    // a wakeup per frame, a few more for the pacer's timed waits
+    private static final int MAX_WAKEUPS_PER_FRAME = 3;
+    private static final long MAX_IDLE_WAKEUPS = 2;
+
+    private KsyRecordSender sender;
+    private MemoryTransport transport;
+    private int videoSequence;
+    private int audioSequence;
+    // the tags fed, when a test checks they all went back to their pools
+    private List<KSYFlvData> tracked;
+
+    private KsyRecordSender start() throws Exception {
+        return start(null);
+    }
+
+    private KsyRecordSender start(KsyRecordClientConfig config) throws Exception {
+        return start(config, 0);
+    }
+
+    /**
+     * @param captureBytes what the transport keeps of the stream
+     */
+    private KsyRecordSender start(KsyRecordClientConfig config, int captureBytes) throws Exception {
+        transport = new MemoryTransport(captureBytes);
+        sender = new KsyRecordSender(transport);
+        if (config != null) {
+            sender.setConfig(config);
+        }
+        sender.start(null);
+        return sender;
+    }
+
+    @After
+    public void tearDown() {
+        if (sender != null) {
+            sender.disconnect();
+        }
+    }
+
+    /**
+     * hand the tag to the sender, moved to a pooled direct buffer and kept in
+     * tracked while that is set
+     */
+    private void queue(KSYFlvData tag, int from) {
+        if (tracked != null) {
+            ByteBuffer buffer = KsyDirectBufferPool.getDefault().acquire(tag.size);
+            buffer.put(tag.byteBuffer, 0, tag.size);
+            tag.directBuffer = buffer;
+            tag.byteBuffer = null;
+            tracked.add(tag);
+        }
+        sender.addToQueue(tag, from);
+    }
+
+    /**
+     * queue the frames of both tracks from fromMs to toMs media time, in dts order
+     */
+    private void feed(int fromMs, int toMs) {
+        int video = (fromMs * FPS + 999) / 1000;
+        int audio = (int) Math.ceil(fromMs / AUDIO_FRAME_MS);
+        while (true) {
+            int videoDts = video * 1000 / FPS;
+            int audioDts = (int) (audio * AUDIO_FRAME_MS);
+            if (videoDts >= toMs && audioDts >= toMs) {
+                return;
+            }
+            if (videoDts <= audioDts) {
+                boolean keyframe = videoDts % GOP_MS < 1000 / FPS;
+                queue(SyntheticTags.video(videoDts, VIDEO_FRAME_BYTES, keyframe, videoSequence++), KsyRecordSender.FROM_VIDEO);
+                video++;
+            } else {
+                queue(SyntheticTags.audio(audioDts, AUDIO_FRAME_BYTES, audioSequence++), KsyRecordSender.FROM_AUDIO);
+                audio++;
+            }
+        }
+    }
+
+    /**
+     * cpu time the worker takes while nothing happens for IDLE_MS
+     */
+    private long idleCpuMs() throws InterruptedException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long id = sender.getWorker().getId();
+        // let it finish what it was doing
+        Thread.sleep(100);
+        long start = threads.getThreadCpuTime(id);
+        Thread.sleep(IDLE_MS);
+        return (threads.getThreadCpuTime(id) - start) / 1000000;
+    }
+
+    private void assertParked() throws InterruptedException {
+        long cpuMs = idleCpuMs();
+        assertTrue("worker took " + cpuMs + "ms of cpu in " + IDLE_MS + "ms idle", cpuMs < MAX_IDLE_CPU_MS);
+        assertEquals(Thread.State.WAITING, sender.getWorker().getState());
+    }
+
+    @Test
+    public void parksWhileIdle() throws Exception {
+        start();
+        assertParked();
+        assertEquals(0, sender.getWorkerWakeups());
+    }
+
+    @Test
+    public void parksWhileDisconnected() throws Exception {
+        start();
+        feed(0, 1000);
+        assertParked();
+    }
+
+    /**
+     * a keyframe at the head, more media than maxBufferedDurationMs and a
+     * policy that may not drop audio: hard congestion the policy can do
+     * nothing about until the next frame comes
+     */
+    @Test
+    public void parksWhileCongestedAndNothingToDrop() throws Exception {
+        start();
+        sender.setDropPolicy(new AudioNeverDropPolicy());
+        feed(0, 6000);
+        // the trims the last frames woke it for
+        Thread.sleep(100);
+        long wakeups = sender.getWorkerWakeups();
+        assertParked();
+        assertEquals(wakeups, sender.getWorkerWakeups());
+    }
+
+    @Test
+    public void wakesOnEnqueue() throws Exception {
+        start();
+        sender.connect("rtmp://localhost/live/test");
+        assertTrue(transport.isOpen());
+        assertParked();
+        long wakeups = sender.getWorkerWakeups();
+        // a video and two audio frames left over keep the queue short of sendable
+        feed(0, 100);
+        long deadline = System.currentTimeMillis() + 2000;
+        while (transport.getWrites() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("nothing written", transport.getWrites() > 0);
+        assertTrue(sender.getWorkerWakeups() > wakeups);
+        assertParked();
+    }
+
+    @Test
+    public void disconnectWaitsForTheWorker() throws Exception {
+        start();
+        sender.connect("rtmp://localhost/live/test");
+        feed(0, 1000);
+        Thread first = sender.getWorker();
+        sender.disconnect();
+        assertFalse(first.isAlive());
+        // a restart resets the rings with no worker left on them
+        sender.start(null);
+        assertTrue(sender.getWorker() != first);
+        assertParked();
+    }
+
+    /**
+     * feed both tracks in real time, video at FPS and aac at 44100Hz, about 43
+     * frames a second, from fromMs for durationMs of media
+     */
+    private void feedRealTime(int fromMs, int durationMs) throws InterruptedException {
+        long begin = System.nanoTime();
+        int video = (fromMs * FPS + 999) / 1000;
+        int audio = (int) Math.ceil(fromMs / AUDIO_FRAME_MS);
+        int toMs = fromMs + durationMs;
+        while (true) {
+            int videoDts = video * 1000 / FPS;
+            int audioDts = (int) (audio * AUDIO_FRAME_MS);
+            if (videoDts >= toMs && audioDts >= toMs) {
+                return;
+            }
+            int dts = Math.min(videoDts, audioDts);
+            long waitMs = dts - fromMs - (System.nanoTime() - begin) / 1000000;
+            if (waitMs > 0) {
+                Thread.sleep(waitMs);
+            }
+            if (videoDts <= audioDts) {
+                boolean keyframe = videoDts % GOP_MS < 1000 / FPS;
+                queue(SyntheticTags.video(videoDts, VIDEO_FRAME_BYTES, keyframe, videoSequence++), KsyRecordSender.FROM_VIDEO);
+                video++;
+            } else {
+                queue(SyntheticTags.audio(audioDts, AUDIO_FRAME_BYTES, audioSequence++), KsyRecordSender.FROM_AUDIO);
+                audio++;
+            }
+        }
+    }
+
+    /**
+     * 30fps video and 43fps audio arriving in real time: about one wakeup per
+     * frame, never a spin, and none once the frames stop
+     */
+    @Test
+    public void wakeupsFollowTheFrameRate() throws Exception {
+        start();
+        sender.connect("rtmp://localhost/live/test");
+        assertParked();
+        long wakeups = sender.getWorkerWakeups();
+        long begin = System.nanoTime();
+        feedRealTime(0, FEED_MS);
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        double perSecond = (sender.getWorkerWakeups() - wakeups) / seconds;
+        double frameRate = FPS + 1000 / AUDIO_FRAME_MS;
+        System.out.println(String.format("%.0f wakeups/s for %.0f frames/s", perSecond, frameRate));
+        assertTrue(perSecond + " wakeups/s", perSecond <= MAX_WAKEUPS_PER_FRAME * frameRate);
+        assertTrue("nothing written", transport.getWrites() > 0);
+        // the pacer may still hold the last frames back
+        Thread.sleep(500);
+        wakeups = sender.getWorkerWakeups();
+        assertParked();
+        long idleWakeups = sender.getWorkerWakeups() - wakeups;
+        assertTrue(idleWakeups + " wakeups in " + IDLE_MS + "ms idle", idleWakeups <= MAX_IDLE_WAKEUPS);
+    }
+
+    /**
+     * avc and aac sequence headers, told from the media by their packet type 0
+     */
+    private void feedSequenceHeaders() {
+        KSYFlvData video = SyntheticTags.video(0, VIDEO_FRAME_BYTES, true, -1);
+        video.byteBuffer[12] = 0;
+        video.sequenceHeader = true;
+        sender.addToQueue(video, KsyRecordSender.FROM_VIDEO);
+        KSYFlvData audio = SyntheticTags.audio(0, AUDIO_FRAME_BYTES, -1);
+        audio.byteBuffer[12] = 0;
+        audio.sequenceHeader = true;
+        sender.addToQueue(audio, KsyRecordSender.FROM_AUDIO);
+    }
+
+    /**
+     * a tag as it went over the transport
+     */
+    private static class SentTag {
+        int type;
+        int dts;
+        boolean sequenceHeader;
+        boolean keyframe;
+        int sequence;
+    }
+
+    private static List<SentTag> parseTags(byte[] b, int offset) {
+        List<SentTag> tags = new ArrayList<SentTag>();
+        while (offset < b.length) {
+            SentTag tag = new SentTag();
+            tag.type = b[offset];
+            int dataSize = (b[offset + 1] & 0xff) << 16 | (b[offset + 2] & 0xff) << 8 | b[offset + 3] & 0xff;
+            tag.dts = (b[offset + 4] & 0xff) << 16 | (b[offset + 5] & 0xff) << 8 | b[offset + 6] & 0xff | (b[offset + 7] & 0xff) << 24;
+            byte[] body = Arrays.copyOfRange(b, offset + 11, offset + 11 + dataSize);
+            tag.sequenceHeader = body[1] == 0;
+            tag.keyframe = tag.type == 9 && (body[0] & 0xf0) == 0x10;
+            tag.sequence = SyntheticTags.sequence(tag.type, body, dataSize);
+            tags.add(tag);
+            offset += 11 + dataSize + 4;
+        }
+        return tags;
+    }
+
+    /**
+     * a write fails and the sender reconnects: the new session starts with both
+     * sequence headers and the gop sent so far, rebased to end just before the
+     * tags still queued
+     */
+    @Test
+    public void replaysGopAfterReconnect() throws Exception {
+        start(new KsyRecordClientConfig.Builder().setReconnectBaseDelayMs(50).build(), 16 * 1024 * 1024);
+        sender.connect("rtmp://localhost/live/test");
+        feedSequenceHeaders();
+        feedRealTime(0, 1000);
+        // the pacer may still hold the last frames back
+        Thread.sleep(500);
+        int mark = transport.toByteArray().length;
+        List<SentTag> first = parseTags(transport.toByteArray(), 0);
+        int lastSentVideo = -1;
+        for (SentTag tag : first) {
+            if (tag.type == 9 && !tag.sequenceHeader) {
+                lastSentVideo = tag.sequence;
+            }
+        }
+        assertTrue("nothing sent", lastSentVideo > 0);
+        int opens = transport.getOpens();
+        transport.failNextWrites(1);
+        feedRealTime(1000, 1000);
+        Thread.sleep(500);
+        assertEquals(opens + 1, transport.getOpens());
+
+        List<SentTag> second = parseTags(transport.toByteArray(), mark);
+        assertTrue(second.size() + " tags after the reconnect", second.size() > lastSentVideo + 3);
+        SentTag videoHeader = second.get(0);
+        SentTag audioHeader = second.get(1);
+        assertTrue(videoHeader.type == 9 && videoHeader.sequenceHeader);
+        assertTrue(audioHeader.type == 8 && audioHeader.sequenceHeader);
+        // the gop from its keyframe, which went out with frame 0
+        for (int i = 0; i <= lastSentVideo; i++) {
+            SentTag tag = second.get(2 + i);
+            assertEquals(9, tag.type);
+            assertEquals(i, tag.sequence);
+            assertEquals(i == 0, tag.keyframe);
+        }
+        SentTag gopStart = second.get(2);
+        SentTag gopEnd = second.get(2 + lastSentVideo);
+        SentTag next = second.get(3 + lastSentVideo);
+        assertEquals(gopStart.dts, videoHeader.dts);
+        assertEquals(gopStart.dts, audioHeader.dts);
+        assertTrue("gop rebased to " + gopEnd.dts + ", next tag at " + next.dts, gopEnd.dts < next.dts);
+        // the gop keeps its spacing, only shifted
+        assertEquals(lastSentVideo * 1000 / FPS, gopEnd.dts - gopStart.dts);
+        assertTrue(next.sequence > lastSentVideo || next.type == 8);
+    }
+
+    /**
+     * a backup whose uplink is gone: it drops its own frames while the primary
+     * goes on, and once both are disconnected every reference the fan-out took
+     * is given back exactly once
+     */
+    @Test
+    public void stalledBackupDropsWhilePrimaryKeepsSending() throws Exception {
+        start(new KsyRecordClientConfig.Builder().setReconnectBaseDelayMs(50).build());
+        ThrottledTransport stalled = ThrottledTransport.constant(new MemoryTransport(0), 0, 0);
+        stalled.setStallTimeoutMs(60000);
+        KsyRecordSender backup = sender.addDestination("rtmp://localhost/live/backup", stalled);
+        sender.connect("rtmp://localhost/live/test");
+        KsyDirectBufferPool pool = KsyDirectBufferPool.getDefault();
+        long acquired = pool.getAllocated() + pool.getReused();
+        long released = pool.getReleased();
+        tracked = new ArrayList<KSYFlvData>();
+
+        long begin = System.nanoTime();
+        feedRealTime(0, FEED_MS);
+        double lateMs = (System.nanoTime() - begin) / 1e6 - FEED_MS;
+        // the stuck write of the backup held up neither the sources nor the primary
+        assertTrue("feed " + lateMs + "ms late", lateMs < 200);
+        Thread.sleep(500);
+        KsySenderMetrics.Snapshot snapshot = new KsySenderMetrics.Snapshot();
+        sender.getMetrics().snapshot(snapshot);
+        long primaryDrops = snapshot.counters[KsySenderMetrics.COUNTER_VIDEO_DROPS];
+        long primarySent = snapshot.counters[KsySenderMetrics.COUNTER_VIDEO_TAGS_SENT];
+        backup.getMetrics().snapshot(snapshot);
+        long backupSent = snapshot.counters[KsySenderMetrics.COUNTER_VIDEO_TAGS_SENT];
+        assertEquals(0, primaryDrops);
+        assertTrue(primarySent + " video tags sent", primarySent >= FEED_MS * FPS / 1000 - FPS);
+        assertEquals(0, backupSent);
+        // the stuck worker can not trim, the backup sheds once its queue is full
+        begin = System.nanoTime();
+        feed(FEED_MS, FEED_MS + 20000);
+        long burstMs = (System.nanoTime() - begin) / 1000000;
+        assertTrue("burst took " + burstMs + "ms", burstMs < 1000);
+        backup.getMetrics().snapshot(snapshot);
+        assertTrue("backup dropped nothing", snapshot.counters[KsySenderMetrics.COUNTER_VIDEO_DROPS] > 0);
+
+        sender.disconnect();
+        sender = null;
+        for (KSYFlvData tag : tracked) {
+            assertEquals("tag at " + tag.dts + " still referenced", 0, tag.getRefCount());
+        }
+        assertEquals(pool.getAllocated() + pool.getReused() - acquired, pool.getReleased() - released);
+    }
+
+    /**
+     * fill the queue far past both limits while nothing is sent, the worker
+     * has to trim it back under them
+     */
+    private void assertTrimmedUnder(KsyRecordClientConfig config) throws Exception {
+        start(config);
+        feed(0, 10000);
+        // the trim the last frame woke it for
+        Thread.sleep(100);
+        KsySenderMetrics.Snapshot snapshot = new KsySenderMetrics.Snapshot();
+        sender.getMetrics().snapshot(snapshot);
+        long queuedMs = snapshot.gauges[KsySenderMetrics.GAUGE_QUEUE_MS];
+        long queuedBytes = snapshot.gauges[KsySenderMetrics.GAUGE_QUEUE_BYTES];
+        assertTrue(queuedMs + "ms queued", queuedMs <= config.getMaxBufferedDurationMs());
+        assertTrue(queuedBytes + " bytes queued", queuedBytes <= config.getMaxBufferedBytes());
+        assertFalse("nothing dropped", snapshot.counters[KsySenderMetrics.COUNTER_VIDEO_DROPS] == 0);
+        // trimmed, not emptied
+        assertTrue(snapshot.gauges[KsySenderMetrics.GAUGE_QUEUE_VIDEO_FRAMES] > 0);
+        assertTrue(snapshot.gauges[KsySenderMetrics.GAUGE_QUEUE_AUDIO_FRAMES] > 0);
+    }
+
+    @Test
+    public void staysUnderMaxBufferedDuration() throws Exception {
+        assertTrimmedUnder(new KsyRecordClientConfig.Builder()
+                .setMaxBufferedDurationMs(3000).setMaxBufferedBytes(4 * 1024 * 1024).build());
+    }
+
+    /**
+     * the 10s fed fit in 20s, but 1.5MB only holds two of the 750KB gops
+     */
+    @Test
+    public void staysUnderMaxBufferedBytes() throws Exception {
+        assertTrimmedUnder(new KsyRecordClientConfig.Builder()
+                .setMaxBufferedDurationMs(20000).setMaxBufferedBytes(1500 * 1024).build());
+    }
+}
@@ -0,0 +1,176 @@
+package com.ksy.recordlib.service.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The sender queue against the mutex guarded PriorityQueue it replaced: a
+ * video and an audio thread offer frames as the sources do while the sender
+ * thread takes them, and each run reports ns per frame.
+ * <p/>
+ * Both must hand over every frame, each track in dts order. The timings are
+ * printed only, they depend too much on the machine to fail a build.
+ */
+public class KsySenderQueueBenchmarkTest {
+
+    private static final int VIDEO_FRAMES = 100000;
+    // aac at 44100Hz comes about 1.4 times as often as 30fps video
+    private static final int AUDIO_FRAMES = 140000;
+    private static final int ROUNDS = 5;
+    private static final int CAPACITY = 1024;
+
+    /**
+     * what each side of the benchmark runs against
+     */
+    private interface Queue {
+        boolean offerVideo(KSYFlvData data);
+
+        boolean offerAudio(KSYFlvData data);
+
+        KSYFlvData poll();
+    }
+
+    /**
+     * the queue of the old KsyRecordSender: one PriorityQueue ordered by dts,
+     * every access under the same lock, addToQueue synchronized on top
+     */
+    private static class PriorityQueueQueue implements Queue {
+
+        private final Object mutex = new Object();
+        private final PriorityQueue<KSYFlvData> recordPQueue = new PriorityQueue<>(10, new Comparator<KSYFlvData>() {
+            @Override
+            public int compare(KSYFlvData lhs, KSYFlvData rhs) {
+                return lhs.dts - rhs.dts;
+            }
+        });
+
+        private synchronized boolean addToQueue(KSYFlvData data) {
+            synchronized (mutex) {
+                return recordPQueue.add(data);
+            }
+        }
+
+        @Override
+        public boolean offerVideo(KSYFlvData data) {
+            return addToQueue(data);
+        }
+
+        @Override
+        public boolean offerAudio(KSYFlvData data) {
+            return addToQueue(data);
+        }
+
+        @Override
+        public KSYFlvData poll() {
+            synchronized (mutex) {
+                return recordPQueue.poll();
+            }
+        }
+    }
+
+    private static class SenderQueue implements Queue {
+
+        private final KsySenderQueue queue = new KsySenderQueue(CAPACITY);
+
+        @Override
+        public boolean offerVideo(KSYFlvData data) {
+            return queue.offerVideo(data);
+        }
+
+        @Override
+        public boolean offerAudio(KSYFlvData data) {
+            return queue.offerAudio(data);
+        }
+
+        @Override
+        public KSYFlvData poll() {
+            return queue.poll();
+        }
+    }
+
+    private static KSYFlvData[] frames(int count, int type, double frameMs) {
+        KSYFlvData[] frames = new KSYFlvData[count];
+        for (int i = 0; i < count; i++) {
+            KSYFlvData frame = new KSYFlvData();
+            frame.type = type;
+            frame.dts = (int) (i * frameMs);
+            frame.size = type == KSYFlvData.FLV_TYPE_VIDEO ? 12500 : 400;
+            frame.frameType = type == KSYFlvData.FLV_TYPE_VIDEO && i % 60 == 0 ? KSYFlvData.NALU_TYPE_IDR : 1;
+            frames[i] = frame;
+        }
+        return frames;
+    }
+
+    private static Thread producer(final Queue queue, final KSYFlvData[] frames, final boolean video) {
+        return new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (KSYFlvData frame : frames) {
+                    // the ring is bounded, wait for the sender like a congested source would
+                    while (!(video ? queue.offerVideo(frame) : queue.offerAudio(frame))) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * ns per frame handed over, after checking every frame came out in track order
+     */
+    private static long run(Queue queue) throws InterruptedException {
+        KSYFlvData[] video = frames(VIDEO_FRAMES, KSYFlvData.FLV_TYPE_VIDEO, 1000.0 / 30);
+        KSYFlvData[] audio = frames(AUDIO_FRAMES, KSYFlvData.FLV_TYTPE_AUDIO, 1024 * 1000.0 / 44100);
+        Thread videoThread = producer(queue, video, true);
+        Thread audioThread = producer(queue, audio, false);
+        int videoTaken = 0;
+        int audioTaken = 0;
+        long start = System.nanoTime();
+        videoThread.start();
+        audioThread.start();
+        while (videoTaken < VIDEO_FRAMES || audioTaken < AUDIO_FRAMES) {
+            KSYFlvData frame = queue.poll();
+            if (frame == null) {
+                Thread.yield();
+            } else if (frame.type == KSYFlvData.FLV_TYPE_VIDEO) {
+                assertTrue("video out of order at " + videoTaken, frame == video[videoTaken]);
+                videoTaken++;
+            } else {
+                assertTrue("audio out of order at " + audioTaken, frame == audio[audioTaken]);
+                audioTaken++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        videoThread.join();
+        audioThread.join();
+        assertEquals(null, queue.poll());
+        return elapsed / (VIDEO_FRAMES + AUDIO_FRAMES);
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    @Test
+    public void senderQueueAgainstPriorityQueue() throws InterruptedException {
+        long[] old = new long[ROUNDS];
+        long[] ring = new long[ROUNDS];
+        // the first round of each warms up the jit
+        run(new PriorityQueueQueue());
+        run(new SenderQueue());
+        for (int round = 0; round < ROUNDS; round++) {
+            old[round] = run(new PriorityQueueQueue());
+            ring[round] = run(new SenderQueue());
+        }
+        System.out.println("priority queue " + median(old) + "ns/frame, sender queue " + median(ring)
+                + "ns/frame, median of " + ROUNDS);
+    }
+}
@@ -0,0 +1,76 @@
+package com.ksy.recordlib.service.rtmp;
+
+import com.ksy.recordlib.service.simulate.RtmpIngestServer;
+import com.ksy.recordlib.service.simulate.SyntheticTags;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The publisher against a loopback RtmpIngestServer.
+ */
+public class KSYRtmpPublisherTest {
+
+    private RtmpIngestServer server;
+    private KSYRtmpPublisher publisher;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new RtmpIngestServer(0);
+        publisher = new KSYRtmpPublisher(4096);
+    }
+
+    @After
+    public void tearDown() {
+        publisher.close();
+        server.stop();
+    }
+
+    private void open() {
+        server.start();
+        assertEquals(0, publisher.setOutputUrl(server.getUrl("live", "test")));
+        assertEquals(0, publisher.open());
+    }
+
+    private int write(int dts) {
+        ByteBuffer tag = ByteBuffer.wrap(SyntheticTags.audio(dts, 400, dts).byteBuffer);
+        return publisher.write(tag, tag.remaining());
+    }
+
+    /**
+     * write for ms, the publisher reads what the server sent on the way
+     *
+     * @return pongs the server got by the end
+     */
+    private long writeFor(long ms, int[] dts) throws InterruptedException {
+        long end = System.currentTimeMillis() + ms;
+        while (System.currentTimeMillis() < end) {
+            assertTrue(write(dts[0]++) > 0);
+            Thread.sleep(5);
+        }
+        return server.getPongs();
+    }
+
+    /**
+     * a single chunk bigger than the incoming buffer has to be read whole, or
+     * everything the server sends behind it, pings included, goes unanswered
+     */
+    @Test
+    public void readsChunksLargerThanItsBuffer() throws Exception {
+        server.setChunkSize(256 * 1024);
+        server.setPingIntervalMs(20);
+        open();
+        int[] dts = {0};
+        assertTrue(writeFor(200, dts) > 0);
+        assertTrue(server.sendToClient(KSYRtmpPublisher.MSG_DATA_AMF0, new byte[200 * 1024]));
+        // pings sent ahead of the big message may still come through
+        long pongs = writeFor(200, dts);
+        assertTrue(writeFor(500, dts) > pongs + 2);
+    }
+}
@@ -0,0 +1,355 @@
+package com.ksy.recordlib.service.simulate;
+
+import com.ksy.recordlib.service.core.KSYFlvData;
+import com.ksy.recordlib.service.core.KsyDirectBufferPool;
+import com.ksy.recordlib.service.core.KsyRecordClientConfig;
+import com.ksy.recordlib.service.core.KsyRecordSender;
+import com.ksy.recordlib.service.recoder.RecoderAudioSource;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the adts parser of RecoderAudioSource with the loop it replaced,
+ * on the same adts file: SECONDS of a SyntheticAdtsStream, and a recording
+ * off a device when one is given by -Dksy.adts=&lt;path&gt;.
+ * <p/>
+ * The old loop is kept here as it was: two byte reads through the
+ * FileInputStream until a sync word, new arrays for the header rest and the
+ * payload of every frame, a new byte[] or pooled buffer per tag and the
+ * header bytes through intToByteArray and longToByteArray. It still has its
+ * frame_length sign bug, so it falls over on frames of 1024 bytes and more.
+ * <p/>
+ * Both parse the file on the calling thread into a sender that recycles every
+ * tag at once. The first round checks both queue the same tags, by a crc over
+ * their bytes; the timed rounds after it report the best time and what the
+ * thread allocated per frame.
+ * <p/>
+ * The timings are printed only. The tags have to be the same, and the new
+ * parser has to allocate less per frame where the JVM can tell.
+ */
+public class AdtsParserBenchmarkTest {
+
+    private static final int ROUNDS = 5;
+    private static final int SAMPLE_RATE = 44100;
+    private static final int SECONDS = 120;
+    // a recorded adts file, 44100Hz like the synthetic ones
+    private static final String RECORDED_PROPERTY = "ksy.adts";
+
+    private static class Result {
+        String parser;
+        long frames;
+        long bytes;
+        long bestNanos = Long.MAX_VALUE;
+        long allocatedBytes = -1;
+        long checksum;
+        String failure;
+
+        @Override
+        public String toString() {
+            if (failure != null) {
+                return parser + ": failed after " + frames + " frames, " + failure;
+            }
+            return parser + ": " + frames + " frames in " + bestNanos / 1000000 + "ms, "
+                    + String.format("%.2f", bestNanos / 1000.0 / Math.max(1, frames)) + "us/frame, "
+                    + (allocatedBytes < 0 ? "no allocation counter"
+                    : String.format("%.1f", (double) allocatedBytes / Math.max(1, frames)) + " bytes/frame allocated")
+                    + ", crc " + Long.toHexString(checksum);
+        }
+    }
+
+    /**
+     * takes the tags of one run, crcs them while verifying and recycles them
+     */
+    private static class CountingSender extends KsyRecordSender {
+        private final CRC32 crc = new CRC32();
+        private final byte[] scratch = new byte[16 * 1024];
+        private final ByteBuffer scratchBuffer = ByteBuffer.wrap(scratch);
+        boolean verify;
+        long tags;
+        long bytes;
+
+        CountingSender() {
+            super(new MemoryTransport(0));
+        }
+
+        void reset(boolean verify) {
+            this.verify = verify;
+            crc.reset();
+            tags = 0;
+            bytes = 0;
+        }
+
+        @Override
+        public void addToQueue(KSYFlvData tag, int k) {
+            if (tag == null) {
+                return;
+            }
+            tags++;
+            bytes += tag.size;
+            if (verify) {
+                scratchBuffer.clear();
+                tag.copyTo(scratchBuffer);
+                crc.update(scratch, 0, tag.size);
+            }
+            tag.recycle();
+        }
+    }
+
+    /**
+     * the per frame body of RecoderAudioSource before the streaming parser
+     */
+    private static class LegacyAdtsLoop {
+        private final KsyRecordSender sender;
+        private final double delay;
+        private final byte aac_flag = (byte) 0xAF;
+        private final int videoExtraSize = 2;
+        private FileInputStream is;
+        private long ts;
+        private boolean isSpecialFrame = true;
+
+        LegacyAdtsLoop(KsyRecordSender sender, int sampleRate) {
+            this.sender = sender;
+            delay = 1024 * 1000 / sampleRate;
+        }
+
+        void run(FileInputStream in) throws IOException {
+            is = in;
+            try {
+                while (true) {
+                    parseAndSend();
+                }
+            } catch (EOFException e) {
+                // done
+            }
+        }
+
+        private void parseAndSend() throws IOException {
+            byte[] judge_buffer = null;
+            boolean isNeedLoop = true;
+            while (isNeedLoop) {
+                judge_buffer = new byte[2];
+                fill(judge_buffer, 0, 2);
+                if (judge_buffer[0] == (byte) 0xff && (judge_buffer[1] & (byte) 0xF0) == (byte) 0xF0) {
+                    isNeedLoop = false;
+                }
+            }
+            int header_type = judge_buffer[1] & (byte) 0x01;
+            int header_size = (header_type == 1 ? 7 : 9);
+            byte[] header_buffer_rest = new byte[header_size - 2];
+            fill(header_buffer_rest, 0, header_size - 2);
+            int length = ((header_buffer_rest[1] & 0x00000003) << 11) | (header_buffer_rest[2] << 3) | ((header_buffer_rest[3] >> 5) & (byte) 0x07);
+            int frame_length = length - header_size;
+            byte[] frame_content = new byte[frame_length];
+            fill(frame_content, 0, frame_length);
+            if (isSpecialFrame) {
+                frame_content = new byte[]{
+                        0x12, 0x10
+                };
+                frame_length = frame_content.length;
+            }
+            ts += delay;
+            int frameTotalLength = 11 + frame_length + videoExtraSize + 4;
+            byte[] flvFrameByteArray;
+            ByteBuffer frame;
+            if (KsyRecordSender.isDirectWriteSupported()) {
+                frame = KsyDirectBufferPool.getDefault().acquire(frameTotalLength);
+                flvFrameByteArray = null;
+            } else {
+                flvFrameByteArray = new byte[frameTotalLength];
+                frame = ByteBuffer.wrap(flvFrameByteArray);
+            }
+            frame.put((byte) 8);
+            byte[] dataLengthArray = intToByteArray(frame_length + videoExtraSize);
+            frame.put(dataLengthArray, 0, 3);
+            byte[] timestampArray = longToByteArray(ts);
+            frame.put(timestampArray[1]);
+            frame.put(timestampArray[2]);
+            frame.put(timestampArray[3]);
+            frame.put(timestampArray[0]);
+            frame.put((byte) 0);
+            frame.put((byte) 0);
+            frame.put((byte) 0);
+            frame.put(aac_flag);
+            boolean sequenceHeader = isSpecialFrame;
+            frame.put(isSpecialFrame ? (byte) 0x00 : (byte) 0x01);
+            frame.put(frame_content, 0, frame_length);
+            frame.putInt(frameTotalLength);
+
+            KSYFlvData ksyAudio = new KSYFlvData();
+            ksyAudio.byteBuffer = flvFrameByteArray;
+            ksyAudio.directBuffer = frame.isDirect() ? frame : null;
+            ksyAudio.size = frameTotalLength;
+            ksyAudio.dts = (int) ts;
+            ksyAudio.type = 12;
+            ksyAudio.sequenceHeader = sequenceHeader;
+            sender.addToQueue(ksyAudio, 8);
+            isSpecialFrame = false;
+        }
+
+        private void fill(byte[] buffer, int offset, int length) throws IOException {
+            int sum = 0, len;
+            while (sum < length) {
+                len = is.read(buffer, offset + sum, length - sum);
+                if (len < 0) {
+                    throw new EOFException("End of stream");
+                } else sum += len;
+            }
+        }
+
+        // the boxing per byte is the old loop's, kept as part of the baseline
+        @SuppressWarnings("deprecation")
+        private byte[] longToByteArray(long ts) {
+            byte[] result = new byte[4];
+            result[0] = new Long(ts >> 24 & 0xff).byteValue();
+            result[1] = new Long(ts >> 16 & 0xff).byteValue();
+            result[2] = new Long(ts >> 8 & 0xff).byteValue();
+            result[3] = new Long(ts >> 0 & 0xff).byteValue();
+            return result;
+        }
+
+        private byte[] intToByteArray(int length) {
+            byte[] result = new byte[3];
+            result[0] = (byte) ((length >> 16) & 0xFF);
+            result[1] = (byte) ((length >> 8) & 0xFF);
+            result[2] = (byte) ((length >> 0) & 0xFF);
+            return result;
+        }
+    }
+
+    private File file;
+    private final KsyRecordClientConfig config = new KsyRecordClientConfig.Builder()
+            .setAudioSampleRate(SAMPLE_RATE).build();
+
+    private Result run(boolean legacy) throws IOException {
+        Result result = new Result();
+        result.parser = legacy ? "old loop" : "streaming parser";
+        CountingSender sender = new CountingSender();
+        AllocationCounter counter = new AllocationCounter();
+        for (int round = 0; round <= ROUNDS; round++) {
+            boolean verify = round == 0;
+            sender.reset(verify);
+            FileInputStream in = new FileInputStream(file);
+            try {
+                long allocatedAtStart = counter.read();
+                long start = System.nanoTime();
+                if (legacy) {
+                    new LegacyAdtsLoop(sender, config.getAudioSampleRate()).run(in);
+                } else {
+                    new RecoderAudioSource(config, sender).runFrom(in);
+                }
+                long nanos = System.nanoTime() - start;
+                long allocated = counter.since(allocatedAtStart);
+                if (verify) {
+                    result.checksum = sender.crc.getValue();
+                } else if (nanos < result.bestNanos) {
+                    result.bestNanos = nanos;
+                    result.allocatedBytes = allocated;
+                }
+            } catch (RuntimeException e) {
+                result.failure = e.toString();
+                result.frames = sender.tags;
+                return result;
+            } finally {
+                in.close();
+            }
+            result.frames = sender.tags;
+            result.bytes = sender.bytes;
+        }
+        return result;
+    }
+
+    /**
+     * record SECONDS of a SyntheticAdtsStream into file, returns its frames
+     */
+    private int record(int bitrate, boolean crc) throws IOException {
+        SyntheticAdtsStream stream = new SyntheticAdtsStream(SAMPLE_RATE, 2, bitrate).setCrc(crc);
+        int frames = (int) ((long) SECONDS * SAMPLE_RATE / SyntheticAdtsStream.SAMPLES_PER_FRAME);
+        file = File.createTempFile("ksy-adts-", ".aac");
+        file.deleteOnExit();
+        OutputStream os = new FileOutputStream(file);
+        try {
+            stream.write(os, frames, false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            os.close();
+        }
+        return frames;
+    }
+
+    /**
+     * @param frames frames in file, -1 where they are not known
+     */
+    private void compare(String name, int frames) throws IOException {
+        Result old = run(true);
+        Result current = run(false);
+        System.out.println(name + ", " + file.length() + " bytes");
+        System.out.println(old);
+        System.out.println(current);
+        assertTrue(old.toString(), old.failure == null);
+        assertTrue(current.toString(), current.failure == null);
+        if (frames >= 0) {
+            assertEquals(frames, current.frames);
+        }
+        assertEquals(old.frames, current.frames);
+        assertEquals("tags differ", old.checksum, current.checksum);
+        if (old.allocatedBytes >= 0) {
+            assertTrue(current.allocatedBytes < old.allocatedBytes);
+        }
+    }
+
+    private void compare(int bitrate, boolean crc) throws IOException {
+        int frames = record(bitrate, crc);
+        try {
+            compare(SECONDS + "s of " + SAMPLE_RATE + "Hz stereo " + bitrate / 1000 + "kbps" + (crc ? " with crc" : ""), frames);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void streamingParserAgainstOldLoop() throws IOException {
+        compare(128000, false);
+    }
+
+    @Test
+    public void streamingParserAgainstOldLoopWithCrc() throws IOException {
+        compare(128000, true);
+    }
+
+    @Test
+    public void recordedFileAgainstOldLoop() throws IOException {
+        String path = System.getProperty(RECORDED_PROPERTY);
+        Assume.assumeTrue("no recorded adts file, run with -D" + RECORDED_PROPERTY + "=<path>", path != null);
+        file = new File(path);
+        compare(path, -1);
+    }
+
+    /**
+     * frames of more than 1024 bytes, where the old loop reads a negative frame_length
+     */
+    @Test
+    public void parsesFramesTheOldLoopCannot() throws IOException {
+        int frames = record(400000, false);
+        try {
+            Result current = run(false);
+            assertTrue(current.toString(), current.failure == null);
+            assertEquals(frames, current.frames);
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.ksy.recordlib.service.simulate;
+
+import java.lang.reflect.Method;
+
+/**
+ * Bytes the thread that created it has allocated so far, from HotSpot's per
+ * thread counter. Android has no java.lang.management, so it is reached by
+ * reflection and isAvailable() is false where it is missing.
+ * <p/>
+ * read() itself allocates the same few bytes each time; measure(start) takes
+ * them off again.
+ */
+class AllocationCounter {
+    private final Object bean;
+    private final Method method;
+    private final Object[] args;
+    private long readCost;
+
+    AllocationCounter() {
+        Object b = null;
+        Method m = null;
+        try {
+            Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+            b = factory.getMethod("getThreadMXBean").invoke(null);
+            m = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+        } catch (Exception e) {
+            b = null;
+        }
+        bean = b;
+        method = b != null ? m : null;
+        args = new Object[]{Thread.currentThread().getId()};
+        if (method != null) {
+            // twice back to back, what the reading costs
+            long first = read();
+            readCost = read() - first;
+        }
+    }
+
+    boolean isAvailable() {
+        return method != null;
+    }
+
+    long read() {
+        try {
+            return (Long) method.invoke(bean, args);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param start what read() returned before the work
+     * @return bytes allocated since, -1 without a counter
+     */
+    long since(long start) {
+        return method != null ? Math.max(0, read() - start - readCost) : -1;
+    }
+}
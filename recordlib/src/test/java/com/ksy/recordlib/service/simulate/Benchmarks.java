@@ -0,0 +1,35 @@
+package com.ksy.recordlib.service.simulate;
+
+import org.junit.Assume;
+
+/**
+ * Switch for the wall clock benchmarks. What they time depends on the machine
+ * and on whatever else runs on it, so by default only their deterministic
+ * checks run; gradle test -Dksy.benchmarks=true runs the timings too.
+ */
+final class Benchmarks {
+
+    static final String PROPERTY = "ksy.benchmarks";
+
+    private Benchmarks() {
+    }
+
+    static boolean enabled() {
+        return Boolean.getBoolean(PROPERTY);
+    }
+
+    /**
+     * skip the calling test unless the benchmarks are on
+     */
+    static void assume() {
+        Assume.assumeTrue("wall clock benchmark, run with -D" + PROPERTY + "=true", enabled());
+    }
+
+    /**
+     * @param sorted the first count values in ascending order
+     * @return the value percent of them are at or below, 100 for the max
+     */
+    static long percentile(long[] sorted, int count, int percent) {
+        return sorted[Math.min(count - 1, count * percent / 100)];
+    }
+}
@@ -0,0 +1,197 @@
+package com.ksy.recordlib.service.simulate;
+
+import com.ksy.recordlib.service.core.KsyBitrateController;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays an uplink bandwidth trace against KsyBitrateController.
+ * <p/>
+ * An encoder produces video and audio frames, a fake transport drains them at
+ * the bandwidth of the trace, and once a second the controller is fed the same
+ * numbers KsyRecordSender measures. Queued media older than the sender's
+ * buffering limit is dropped like the sender would.
+ * <p/>
+ * Like MediaRecorder the encoder keeps its rate until it is restarted, which
+ * KsyRecordClient does when getEncoderRestartDelay() says so: the video stops
+ * for a second and the forced a/v sync clears the queue.
+ * <p/>
+ * On a step trace the encoder has to follow the uplink down fast enough that
+ * nothing is dropped, settle under it in every step without leaving most of it
+ * unused, and the target has to climb back to the maximum once the uplink returns.
+ */
+public class BitrateSimulatorTest {
+
+    private static final int TICK_MS = 10;
+    private static final int VIDEO_INTERVAL_MS = 40;
+    private static final int AUDIO_INTERVAL_MS = 20;
+    private static final int SAMPLE_INTERVAL_MS = 1000;
+    // camera and recorder reopened, no video meanwhile
+    private static final int RESTART_GAP_MS = 1000;
+
+    private static final int MIN_BITRATE = 200000;
+    private static final int MAX_BITRATE = 1000000;
+    private static final int START_BITRATE = 800000;
+    private static final int AUDIO_BITRATE = 32000;
+    private static final int MAX_BUFFERED_MS = 3000;
+    // seconds per step of the trace
+    private static final int STEP_SECONDS = 20;
+    // the last seconds of a step, where the target has to have settled
+    private static final int SETTLED_SECONDS = 5;
+    // a step down has to be drained within this
+    private static final int DRAIN_SECONDS = 10;
+    // share of the uplink left for the video the settled encoder has to use,
+    // an increase waits out the restart rate limit
+    private static final float MIN_USAGE = 0.5f;
+
+    private static class Sample {
+        long timeMs;
+        int targetBitrate;
+        int queueMs;
+        // age of the last frame fully sent when the sample was taken
+        int latencyMs;
+        int droppedFrames;
+        int encoderBitrate;
+    }
+
+    private static class Frame {
+        final long dts;
+        int remaining;
+
+        Frame(long dts, int size) {
+            this.dts = dts;
+            this.remaining = size;
+        }
+    }
+
+    /**
+     * @param trace uplink bandwidth in bits per second, one entry per second
+     */
+    private static List<Sample> run(KsyBitrateController controller, int[] trace) {
+        List<Sample> samples = new ArrayList<Sample>(trace.length);
+        ArrayDeque<Frame> queue = new ArrayDeque<Frame>();
+        long sentBytes = 0;
+        double busyMs = 0;
+        int latency = 0;
+        int dropped = 0;
+        int encoderBitrate = controller.getTargetBitrate();
+        long lastRestart = 0;
+        long videoGapUntil = 0;
+        long duration = (long) trace.length * SAMPLE_INTERVAL_MS;
+        for (long now = 0; now < duration; now += TICK_MS) {
+            int bandwidth = trace[(int) (now / SAMPLE_INTERVAL_MS)];
+            if (now % VIDEO_INTERVAL_MS == 0 && now >= videoGapUntil) {
+                queue.addLast(new Frame(now, encoderBitrate / 8 * VIDEO_INTERVAL_MS / 1000));
+            }
+            if (now % AUDIO_INTERVAL_MS == 0) {
+                queue.addLast(new Frame(now, AUDIO_BITRATE / 8 * AUDIO_INTERVAL_MS / 1000));
+            }
+            while (!queue.isEmpty() && now - queue.peekFirst().dts > MAX_BUFFERED_MS) {
+                queue.pollFirst();
+                dropped++;
+            }
+            // drain what the link carries during this tick
+            double budget = bandwidth / 8.0 * TICK_MS / 1000;
+            double used = 0;
+            while (!queue.isEmpty() && used < budget) {
+                Frame head = queue.peekFirst();
+                int chunk = (int) Math.min(head.remaining, Math.ceil(budget - used));
+                head.remaining -= chunk;
+                used += chunk;
+                if (head.remaining == 0) {
+                    queue.pollFirst();
+                    latency = (int) (now + TICK_MS - head.dts);
+                }
+            }
+            sentBytes += (long) used;
+            if (bandwidth > 0) {
+                busyMs += used * 8000 / bandwidth;
+            }
+            if ((now + TICK_MS) % SAMPLE_INTERVAL_MS == 0) {
+                int queueMs = queue.isEmpty() ? 0 : (int) (queue.peekLast().dts - queue.peekFirst().dts);
+                controller.onSample(sentBytes, Math.max(1, Math.round(busyMs)), queueMs, now + TICK_MS);
+                if (controller.getEncoderRestartDelay(encoderBitrate, lastRestart, now + TICK_MS) == 0) {
+                    // what KsyRecordClient does: prepare the recorder again at the target
+                    encoderBitrate = controller.getTargetBitrate();
+                    lastRestart = now + TICK_MS;
+                    videoGapUntil = lastRestart + RESTART_GAP_MS;
+                    queue.clear();
+                }
+                Sample sample = new Sample();
+                sample.timeMs = now + TICK_MS;
+                sample.targetBitrate = controller.getTargetBitrate();
+                sample.queueMs = queueMs;
+                sample.latencyMs = latency;
+                sample.droppedFrames = dropped;
+                sample.encoderBitrate = encoderBitrate;
+                samples.add(sample);
+                sentBytes = 0;
+                busyMs = 0;
+                dropped = 0;
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * STEP_SECONDS at each of the given bandwidths
+     */
+    private static int[] stepTrace(int... steps) {
+        int[] trace = new int[steps.length * STEP_SECONDS];
+        for (int i = 0; i < trace.length; i++) {
+            trace[i] = steps[i / STEP_SECONDS];
+        }
+        return trace;
+    }
+
+    @Test
+    public void followsStepTrace() {
+        int[] steps = {1500000, 400000, 900000, 1500000};
+        KsyBitrateController controller = new KsyBitrateController(MIN_BITRATE, MAX_BITRATE, START_BITRATE, AUDIO_BITRATE);
+        List<Sample> samples = run(controller, stepTrace(steps));
+        int maxLatency = 0;
+        int restarts = 0;
+        int encoderBitrate = START_BITRATE;
+        for (Sample sample : samples) {
+            assertEquals("dropped at " + sample.timeMs + "ms", 0, sample.droppedFrames);
+            maxLatency = Math.max(maxLatency, sample.latencyMs);
+            if (sample.encoderBitrate != encoderBitrate) {
+                restarts++;
+                encoderBitrate = sample.encoderBitrate;
+            }
+        }
+        assertTrue("latency up to " + maxLatency + "ms", maxLatency < MAX_BUFFERED_MS);
+        // one or two per step, the rest waits out the rate limit
+        assertTrue(restarts + " restarts", restarts <= 2 * steps.length);
+        for (int step = 0; step < steps.length; step++) {
+            int bandwidth = steps[step];
+            int videoShare = Math.min(MAX_BITRATE, bandwidth - AUDIO_BITRATE);
+            int maxQueueMs = 0;
+            for (int second = 0; second < STEP_SECONDS; second++) {
+                maxQueueMs = Math.max(maxQueueMs, samples.get(step * STEP_SECONDS + second).queueMs);
+            }
+            Sample last = samples.get((step + 1) * STEP_SECONDS - 1);
+            System.out.println(bandwidth / 1000 + "kbps: target " + last.targetBitrate / 1000 + "kbps, encoder "
+                    + last.encoderBitrate / 1000 + "kbps, queue up to " + maxQueueMs + "ms");
+            for (int second = DRAIN_SECONDS; second < STEP_SECONDS; second++) {
+                Sample sample = samples.get(step * STEP_SECONDS + second);
+                assertEquals("queued at " + sample.timeMs + "ms", 0, sample.queueMs);
+            }
+            for (int second = STEP_SECONDS - SETTLED_SECONDS; second < STEP_SECONDS; second++) {
+                Sample sample = samples.get(step * STEP_SECONDS + second);
+                assertTrue("encoder " + sample.encoderBitrate + " over " + videoShare + " at " + sample.timeMs + "ms",
+                        sample.encoderBitrate <= videoShare);
+                assertTrue("encoder " + sample.encoderBitrate + " leaves " + videoShare + " unused at " + sample.timeMs + "ms",
+                        sample.encoderBitrate >= videoShare * MIN_USAGE);
+            }
+        }
+        assertEquals(MAX_BITRATE, samples.get(samples.size() - 1).targetBitrate);
+    }
+}
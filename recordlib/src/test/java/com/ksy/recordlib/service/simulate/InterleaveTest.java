@@ -0,0 +1,139 @@
+package com.ksy.recordlib.service.simulate;
+
+import com.ksy.recordlib.service.core.KsyRecordSender;
+import com.ksy.recordlib.service.rtmp.KSYRtmpPublisher;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures how long audio waits behind keyframes on a slow uplink, with and
+ * without chunk level interleaving.
+ * <p/>
+ * A KsyRecordSender publishes through KSYRtmpPublisher to a RtmpIngestServer
+ * that reads no faster than the uplink, with small socket buffers on both
+ * ends. A producer feeds synthetic tags in real time: 30 fps video with a
+ * large keyframe every two seconds and an AAC sized audio tag every 23 ms.
+ * The audio delay of a tag is the time from addToQueue() to its arrival at
+ * the server.
+ * <p/>
+ * Both variants run on a 2000kbps uplink with a 150KB keyframe, about 600ms
+ * on the wire. Interleaved, the audio p99 has to stay well below what a
+ * keyframe costs the audio when it goes out whole. A wall clock benchmark, see
+ * Benchmarks.
+ */
+public class InterleaveTest {
+
+    private static final int VIDEO_INTERVAL_MS = 33;
+    private static final int AUDIO_INTERVAL_MS = 23;
+    private static final int GOP_MS = 2000;
+    private static final int AUDIO_TAG_SIZE = 300;
+    // both ends of the loopback link
+    private static final int SOCKET_BUFFER = 8 * 1024;
+    private static final int DURATION_MS = 6000;
+
+    private final int uplinkBps = 2000000;
+    private final int keyframeBytes = 150 * 1024;
+    private final int frameBytes = 3 * 1024;
+    private final int chunkSize = 4096;
+
+    private static class Result {
+        boolean interleaved;
+        int audioTags;
+        long p50Ms;
+        long p99Ms;
+        long maxMs;
+        long interleavedTags;
+
+        @Override
+        public String toString() {
+            return (interleaved ? "interleaved" : "whole tags") + ": audio=" + audioTags + " p50=" + p50Ms + "ms p99=" + p99Ms
+                    + "ms max=" + maxMs + "ms interleavedTags=" + interleavedTags;
+        }
+    }
+
+    private Result run(boolean interleave, int durationMs) throws IOException, InterruptedException {
+        final int audioCount = durationMs / AUDIO_INTERVAL_MS;
+        final long[] queuedAt = new long[audioCount];
+        final long[] arrivedAt = new long[audioCount];
+        RtmpIngestServer server = new RtmpIngestServer(0);
+        server.setReadBytesPerSecond(uplinkBps / 8);
+        server.setReceiveBufferSize(SOCKET_BUFFER);
+        server.setTagListener(new RtmpIngestServer.TagListener() {
+            @Override
+            public void onTag(int type, int timestamp, byte[] body, int length, long arrivalNanos) {
+                int seq = type == 8 ? SyntheticTags.sequence(type, body, length) : -1;
+                if (seq >= 0 && seq < arrivedAt.length) {
+                    arrivedAt[seq] = arrivalNanos;
+                }
+            }
+        });
+        server.start();
+        KSYRtmpPublisher publisher = new KSYRtmpPublisher(chunkSize);
+        publisher.setSendBufferSize(SOCKET_BUFFER);
+        publisher.setAudioPriority(interleave);
+        KsyRecordSender sender = new KsyRecordSender(publisher);
+        Result result = new Result();
+        result.interleaved = interleave;
+        try {
+            sender.start(null);
+            sender.connect(server.getUrl("live", "interleave"));
+            long start = System.nanoTime();
+            int nextVideo = 0;
+            int nextAudio = 0;
+            int audioSeq = 0;
+            while (audioSeq < audioCount) {
+                int now = (int) ((System.nanoTime() - start) / 1000000);
+                if (nextVideo <= now) {
+                    boolean key = nextVideo % GOP_MS < VIDEO_INTERVAL_MS;
+                    // the first keyframe is small, or the pacer would anchor audio behind it and hide every later stall
+                    int size = key && nextVideo > 0 ? keyframeBytes : frameBytes;
+                    sender.addToQueue(SyntheticTags.video(nextVideo, size, key, 0), KsyRecordSender.FROM_VIDEO);
+                    nextVideo += VIDEO_INTERVAL_MS;
+                }
+                if (nextAudio <= now) {
+                    queuedAt[audioSeq] = System.nanoTime();
+                    sender.addToQueue(SyntheticTags.audio(nextAudio, AUDIO_TAG_SIZE, audioSeq++), KsyRecordSender.FROM_AUDIO);
+                    nextAudio += AUDIO_INTERVAL_MS;
+                }
+                Thread.sleep(1);
+            }
+            // let the queue drain
+            Thread.sleep(2000);
+            result.interleavedTags = publisher.getInterleavedTags();
+        } finally {
+            sender.disconnect();
+            server.stop();
+        }
+        long[] delays = new long[audioCount];
+        int arrived = 0;
+        for (int i = 0; i < audioCount; i++) {
+            if (arrivedAt[i] != 0) {
+                delays[arrived++] = (arrivedAt[i] - queuedAt[i]) / 1000000;
+            }
+        }
+        Arrays.sort(delays, 0, arrived);
+        result.audioTags = arrived;
+        if (arrived > 0) {
+            result.p50Ms = Benchmarks.percentile(delays, arrived, 50);
+            result.p99Ms = Benchmarks.percentile(delays, arrived, 99);
+            result.maxMs = Benchmarks.percentile(delays, arrived, 100);
+        }
+        return result;
+    }
+
+    @Test
+    public void interleavingCutsTheAudioDelay() throws IOException, InterruptedException {
+        Benchmarks.assume();
+        Result whole = run(false, DURATION_MS);
+        Result interleaved = run(true, DURATION_MS);
+        System.out.println("uplink " + uplinkBps / 1000 + "kbps, 150KB keyframe every " + GOP_MS + "ms: " + whole);
+        System.out.println("uplink " + uplinkBps / 1000 + "kbps, 150KB keyframe every " + GOP_MS + "ms: " + interleaved);
+        assertTrue(interleaved.toString(), interleaved.interleavedTags > 0);
+        assertTrue(whole + ", " + interleaved, interleaved.p99Ms * 2 < whole.p99Ms);
+    }
+}
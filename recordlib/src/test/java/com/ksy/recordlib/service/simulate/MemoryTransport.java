@@ -0,0 +1,151 @@
+package com.ksy.recordlib.service.simulate;
+
+import com.ksy.recordlib.service.core.StreamTransport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps everything the sender writes in memory, for headless runs and checks on
+ * the produced byte stream. Beyond maxBytes only the counters go on.
+ * <p/>
+ * open() and write() can be told to fail, to drive the sender's reconnects.
+ */
+public class MemoryTransport implements StreamTransport {
+
+    private final int maxBytes;
+    private ByteBuffer captured = ByteBuffer.allocate(64 * 1024);
+    private String url;
+    private boolean opened;
+    private int openResult;
+    private int failingWrites;
+    private long bytes;
+    private long writes;
+    private int opens;
+
+    public MemoryTransport(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * what open() returns from now on, non zero makes it fail
+     */
+    public synchronized void setOpenResult(int result) {
+        openResult = result;
+    }
+
+    /**
+     * let the next count writes fail and close the session
+     */
+    public synchronized void failNextWrites(int count) {
+        failingWrites = count;
+    }
+
+    @Override
+    public synchronized int setOutputUrl(String url) {
+        this.url = url;
+        return 0;
+    }
+
+    @Override
+    public synchronized int open() {
+        opens++;
+        opened = openResult == 0;
+        return openResult;
+    }
+
+    @Override
+    public synchronized int close() {
+        opened = false;
+        return 0;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer buffer, int length) {
+        if (!accept(length)) {
+            return -1;
+        }
+        int kept = keep(length);
+        if (kept > 0) {
+            synchronized (buffer) {
+                buffer.clear();
+                buffer.limit(kept);
+                captured.put(buffer);
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public synchronized int write(byte[] buffer, int length) {
+        if (!accept(length)) {
+            return -1;
+        }
+        // keep() may replace captured, it has to run before captured is read
+        int kept = keep(length);
+        captured.put(buffer, 0, kept);
+        return length;
+    }
+
+    public synchronized String getUrl() {
+        return url;
+    }
+
+    public synchronized boolean isOpen() {
+        return opened;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getWrites() {
+        return writes;
+    }
+
+    public synchronized int getOpens() {
+        return opens;
+    }
+
+    /**
+     * copy of what was kept so far
+     */
+    public synchronized byte[] toByteArray() {
+        byte[] copy = new byte[captured.position()];
+        System.arraycopy(captured.array(), 0, copy, 0, copy.length);
+        return copy;
+    }
+
+    public synchronized void clear() {
+        captured.clear();
+        bytes = 0;
+        writes = 0;
+    }
+
+    private boolean accept(int length) {
+        if (!opened) {
+            return false;
+        }
+        if (failingWrites > 0) {
+            failingWrites--;
+            opened = false;
+            return false;
+        }
+        writes++;
+        bytes += length;
+        return true;
+    }
+
+    /**
+     * make room for what is kept of length more bytes
+     */
+    private int keep(int length) {
+        int kept = Math.max(0, Math.min(length, maxBytes - captured.position()));
+        if (captured.remaining() < kept) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.min(maxBytes, Math.max(captured.capacity() * 2, captured.position() + kept)));
+            captured.flip();
+            grown.put(captured);
+            captured = grown;
+        }
+        return kept;
+    }
+}
@@ -0,0 +1,232 @@
+package com.ksy.recordlib.service.simulate;
+
+import com.ksy.recordlib.service.core.KSYFlvData;
+import com.ksy.recordlib.service.core.KsyRecordClientConfig;
+import com.ksy.recordlib.service.core.KsyRecordSender;
+import com.ksy.recordlib.service.core.KsySenderMetrics;
+import com.ksy.recordlib.service.recoder.RecoderVideoSource;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds the mp4 parser of RecoderVideoSource the box layouts and the damage
+ * a recorder's pipe can come with, and checks what gets through.
+ * <p/>
+ * Every case is a SyntheticMp4Stream laid out in memory, written to a temp
+ * file and parsed by a headless source into a sender that counts the tags and
+ * recycles them. A clean case has to give every frame and no parse error.
+ * In a damaged one, every damaged spot has to cost one parse error and at
+ * most the frame it hit.
+ */
+public class Mp4ParseTest {
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int FPS = 30;
+    private static final int BITRATE = 2500000;
+    private static final int FRAMES = 600;
+    // a damaged spot every this many frames
+    private static final int DAMAGE_INTERVAL = 50;
+
+    private static class Result {
+        String name;
+        int frames;
+        int damaged;
+        long tags;
+        long parseErrors;
+
+        /**
+         * every frame the damage did not hit, one error per damaged spot
+         */
+        boolean passed() {
+            return tags - 1 >= frames - damaged && tags - 1 <= frames && parseErrors == damaged;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": frames " + (tags - 1) + "/" + frames
+                    + ", damaged " + damaged + ", parse errors " + parseErrors;
+        }
+    }
+
+    private final SyntheticMp4Stream video = new SyntheticMp4Stream(WIDTH, HEIGHT, FPS, BITRATE, 2 * FPS);
+    private final byte[] scratch = new byte[4 + video.frameSize(0) * 2];
+
+    private void frames(ByteArrayOutputStream out, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            video.writeFrame(out, i, scratch);
+        }
+    }
+
+    /**
+     * a box of type with size bytes, its body zeros
+     */
+    private static void box(ByteArrayOutputStream out, String type, int size) throws IOException {
+        byte[] b = new byte[size];
+        SyntheticMp4Stream.putInt(b, 0, size);
+        for (int i = 0; i < 4; i++) {
+            b[4 + i] = (byte) type.charAt(i);
+        }
+        out.write(b);
+    }
+
+    private Result run(String name, int frames) throws IOException {
+        Result result = new Result();
+        result.name = name;
+        result.frames = frames;
+        Random random = new Random(name.hashCode());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if ("open mdat".equals(name)) {
+            video.writeHeader(out, 0);
+            frames(out, 0, frames);
+        } else if ("largesize mdat".equals(name)) {
+            video.setLargeSize(true).writeHeader(out, frames);
+            video.setLargeSize(false);
+            frames(out, 0, frames);
+        } else if ("wide before mdat".equals(name)) {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            video.writeHeader(header, frames);
+            byte[] h = header.toByteArray();
+            // MediaRecorder reserves room for a 64 bit mdat header with a wide box
+            out.write(h, 0, h.length - 8);
+            box(out, "wide", 8);
+            out.write(h, h.length - 8, 8);
+            frames(out, 0, frames);
+        } else if ("sized mdat, moov, mdat".equals(name)) {
+            int first = frames / 2;
+            video.writeHeader(out, first);
+            frames(out, 0, first);
+            box(out, "moov", 8 + 108);
+            long body = 0;
+            for (int i = first; i < frames; i++) {
+                body += 4 + video.frameSize(i);
+            }
+            byte[] mdat = new byte[8];
+            SyntheticMp4Stream.putInt(mdat, 0, (int) (8 + body));
+            mdat[4] = 'm';
+            mdat[5] = 'd';
+            mdat[6] = 'a';
+            mdat[7] = 't';
+            out.write(mdat);
+            frames(out, first, frames);
+        } else if ("bad nal lengths".equals(name)) {
+            video.writeHeader(out, 0);
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            for (int i = 0; i < frames; i++) {
+                frame.reset();
+                video.writeFrame(frame, i, scratch);
+                byte[] b = frame.toByteArray();
+                if (i % DAMAGE_INTERVAL == DAMAGE_INTERVAL / 2) {
+                    // a length far beyond any frame
+                    SyntheticMp4Stream.putInt(b, 0, 0x40000000 | random.nextInt(0x40000000));
+                    result.damaged++;
+                }
+                out.write(b);
+            }
+        } else if ("junk between nals".equals(name)) {
+            video.writeHeader(out, 0);
+            for (int i = 0; i < frames; i++) {
+                video.writeFrame(out, i, scratch);
+                if (i % DAMAGE_INTERVAL == DAMAGE_INTERVAL / 2) {
+                    byte[] junk = new byte[1 + random.nextInt(512)];
+                    random.nextBytes(junk);
+                    out.write(junk);
+                    result.damaged++;
+                }
+            }
+        } else if ("junk before ftyp".equals(name)) {
+            byte[] junk = new byte[1 + random.nextInt(64)];
+            random.nextBytes(junk);
+            // no printable box type, so it can not pass for a box
+            junk[4] = 0;
+            out.write(junk);
+            result.damaged++;
+            video.writeHeader(out, 0);
+            frames(out, 0, frames);
+        } else {
+            throw new IllegalArgumentException(name);
+        }
+
+        File file = File.createTempFile("ksy-mp4-", ".mp4");
+        try {
+            FileOutputStream os = new FileOutputStream(file);
+            try {
+                out.writeTo(os);
+            } finally {
+                os.close();
+            }
+            final long[] tags = new long[1];
+            KsyRecordSender sender = new KsyRecordSender(new MemoryTransport(0)) {
+                @Override
+                public void addToQueue(KSYFlvData tag, int k) {
+                    if (tag != null) {
+                        tags[0]++;
+                        tag.recycle();
+                    }
+                }
+            };
+            KsyRecordClientConfig config = new KsyRecordClientConfig.Builder()
+                    .setVideoWidth(WIDTH).setVideoHeigh(HEIGHT).setVideoFrameRate(FPS).setVideoBitRate(BITRATE).build();
+            FileInputStream in = new FileInputStream(file);
+            try {
+                new RecoderVideoSource(config, sender, video.getSps(), video.getPps()).runFrom(in);
+            } finally {
+                in.close();
+            }
+            result.tags = tags[0];
+            result.parseErrors = sender.getMetrics().get(KsySenderMetrics.COUNTER_VIDEO_PARSE_ERRORS);
+        } finally {
+            file.delete();
+        }
+        return result;
+    }
+
+    private void assertParsed(String name) throws IOException {
+        Result result = run(name, FRAMES);
+        assertTrue(result.toString(), result.passed());
+    }
+
+    @Test
+    public void openMdat() throws IOException {
+        assertParsed("open mdat");
+    }
+
+    @Test
+    public void largesizeMdat() throws IOException {
+        assertParsed("largesize mdat");
+    }
+
+    @Test
+    public void wideBeforeMdat() throws IOException {
+        assertParsed("wide before mdat");
+    }
+
+    @Test
+    public void sizedMdatMoovMdat() throws IOException {
+        assertParsed("sized mdat, moov, mdat");
+    }
+
+    @Test
+    public void badNalLengths() throws IOException {
+        assertParsed("bad nal lengths");
+    }
+
+    @Test
+    public void junkBetweenNals() throws IOException {
+        assertParsed("junk between nals");
+    }
+
+    @Test
+    public void junkBeforeFtyp() throws IOException {
+        assertParsed("junk before ftyp");
+    }
+}
@@ -0,0 +1,203 @@
+package com.ksy.recordlib.service.simulate;
+
+import com.ksy.recordlib.service.core.KsyRecordSender;
+import com.ksy.recordlib.service.core.KsySenderMetrics;
+import com.ksy.recordlib.service.rtmp.KSYRtmpPublisher;
+import com.ksy.recordlib.service.util.Constants;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * End to end publish benchmark for a plain Linux JVM: KsyRecordSender on a
+ * KSYRtmpPublisher against a loopback RtmpIngestServer.
+ * <p/>
+ * A producer feeds synthetic tags in real time at the configured video and
+ * audio bitrates, with a keyframe four times the size of the other frames.
+ * Every tag carries a sequence number that is matched against the server's
+ * arrival log: the enqueue to wire latency of a tag is the time from
+ * addToQueue() to the arrival of its last chunk. Tags that never arrive are
+ * counted as drops, the sender's drop counters tell how many it dropped on
+ * purpose.
+ * <p/>
+ * Both socket buffers are cut to 16KB. With the defaults the kernel takes
+ * seconds of a throttled stream and the sender's queue, where the drop
+ * policies work, stays empty.
+ * <p/>
+ * On an open loopback every tag has to arrive, which the default test run
+ * checks on a short run. The latencies, and the drops on an uplink below the
+ * bitrate, are Benchmarks: the sender has to drop there, and no tag may arrive
+ * later than the queue limit allows.
+ */
+public class PublishBenchmarkTest {
+
+    private static final int AUDIO_INTERVAL_MS = 23;
+    private static final int KEYFRAME_WEIGHT = 4;
+    private static final int DRAIN_TIMEOUT_MS = 5000;
+    private static final int SOCKET_BUFFER = 16 * 1024;
+    // what the socket buffers and the throttle add to the time in the queue
+    private static final int MAX_WIRE_MS = 1000;
+
+    private final int fps = 30;
+    private final int gopFrames = 2000 * fps / 1000;
+    private final int audioBitrate = 128000;
+    private final int chunkSize = 4096;
+
+    private static class Result {
+        int videoBitrate;
+        int queuedTags;
+        int receivedTags;
+        // dropped by the sender's policies, part of the lost tags
+        long senderDrops;
+        double mbps;
+        long p50Ms;
+        long p99Ms;
+        long maxMs;
+
+        int lostTags() {
+            return queuedTags - receivedTags;
+        }
+
+        @Override
+        public String toString() {
+            return videoBitrate / 1000 + "kbps: " + String.format("%.2f", mbps) + "Mbps p50=" + p50Ms + "ms p99=" + p99Ms + "ms max="
+                    + maxMs + "ms tags=" + receivedTags + "/" + queuedTags + " drops=" + lostTags() + " (sender " + senderDrops + ")";
+        }
+    }
+
+    /**
+     * @param uplinkBps read rate of the server, 0 for as fast as loopback goes
+     */
+    private Result run(int videoBitrate, int uplinkBps, int durationMs) throws IOException, InterruptedException {
+        // room for the tags fed after the measurement, until the measured ones are through
+        int capacity = (durationMs + DRAIN_TIMEOUT_MS) * fps / 1000 + (durationMs + DRAIN_TIMEOUT_MS) / AUDIO_INTERVAL_MS + 2;
+        final long[] queuedAt = new long[capacity];
+        final long[] arrivedAt = new long[capacity];
+        final int[] sizes = new int[capacity];
+        // a gop carries gopFrames frames' worth of bytes, the keyframe takes KEYFRAME_WEIGHT shares
+        int frameBytes = videoBitrate / 8 / fps * gopFrames / (gopFrames + KEYFRAME_WEIGHT - 1);
+        int keyframeBytes = frameBytes * KEYFRAME_WEIGHT;
+        int audioBytes = audioBitrate / 8 * AUDIO_INTERVAL_MS / 1000;
+
+        RtmpIngestServer server = new RtmpIngestServer(0);
+        server.setReadBytesPerSecond(uplinkBps / 8);
+        server.setReceiveBufferSize(SOCKET_BUFFER);
+        server.setTagListener(new RtmpIngestServer.TagListener() {
+            @Override
+            public void onTag(int type, int timestamp, byte[] body, int length, long arrivalNanos) {
+                int seq = SyntheticTags.sequence(type, body, length);
+                if (seq >= 0 && seq < arrivedAt.length) {
+                    arrivedAt[seq] = arrivalNanos;
+                    sizes[seq] = length;
+                }
+            }
+        });
+        server.start();
+        KSYRtmpPublisher publisher = new KSYRtmpPublisher(chunkSize);
+        publisher.setSendBufferSize(SOCKET_BUFFER);
+        KsyRecordSender sender = new KsyRecordSender(publisher);
+        Result result = new Result();
+        result.videoBitrate = videoBitrate;
+        int sequence = 0;
+        long start = System.nanoTime();
+        try {
+            sender.start(null);
+            sender.connect(server.getUrl("live", "benchmark"));
+            start = System.nanoTime();
+            int video = 0;
+            int audio = 0;
+            int measured = -1;
+            KsySenderMetrics.Snapshot snapshot = new KsySenderMetrics.Snapshot();
+            while (sequence < capacity) {
+                long nowMs = (System.nanoTime() - start) / 1000000;
+                if (measured < 0 && nowMs >= durationMs) {
+                    measured = sequence;
+                }
+                if (measured >= 0) {
+                    // the sender holds the last tag of a track back, so feeding goes on until the measured ones are through
+                    sender.getMetrics().snapshot(snapshot);
+                    result.senderDrops = snapshot.counters[KsySenderMetrics.COUNTER_VIDEO_DROPS]
+                            + snapshot.counters[KsySenderMetrics.COUNTER_AUDIO_DROPS];
+                    if (arrived(arrivedAt, measured) + result.senderDrops >= measured || nowMs >= durationMs + DRAIN_TIMEOUT_MS) {
+                        break;
+                    }
+                }
+                int videoDts = video * 1000 / fps;
+                int audioDts = audio * AUDIO_INTERVAL_MS;
+                if (videoDts <= nowMs) {
+                    boolean key = video % gopFrames == 0;
+                    queuedAt[sequence] = System.nanoTime();
+                    sender.addToQueue(SyntheticTags.video(videoDts, key ? keyframeBytes : frameBytes, key, sequence++),
+                            KsyRecordSender.FROM_VIDEO);
+                    video++;
+                } else if (audioDts <= nowMs) {
+                    queuedAt[sequence] = System.nanoTime();
+                    sender.addToQueue(SyntheticTags.audio(audioDts, audioBytes, sequence++), KsyRecordSender.FROM_AUDIO);
+                    audio++;
+                } else {
+                    Thread.sleep(1);
+                }
+            }
+            sequence = measured >= 0 ? measured : sequence;
+        } finally {
+            sender.disconnect();
+            server.stop();
+        }
+        result.queuedTags = sequence;
+        long[] latencies = new long[sequence];
+        int received = 0;
+        long bytes = 0;
+        long last = start;
+        for (int i = 0; i < sequence; i++) {
+            if (arrivedAt[i] == 0) {
+                continue;
+            }
+            latencies[received++] = (arrivedAt[i] - queuedAt[i]) / 1000000;
+            bytes += sizes[i];
+            last = Math.max(last, arrivedAt[i]);
+        }
+        result.receivedTags = received;
+        Arrays.sort(latencies, 0, received);
+        if (received > 0) {
+            result.p50Ms = Benchmarks.percentile(latencies, received, 50);
+            result.p99Ms = Benchmarks.percentile(latencies, received, 99);
+            result.maxMs = Benchmarks.percentile(latencies, received, 100);
+            result.mbps = bytes * 8.0 / ((last - start) / 1000.0);
+        }
+        return result;
+    }
+
+    private static int arrived(long[] arrivedAt, int count) {
+        int arrived = 0;
+        for (int i = 0; i < count; i++) {
+            if (arrivedAt[i] != 0) {
+                arrived++;
+            }
+        }
+        return arrived;
+    }
+
+    @Test
+    public void openLoopbackLosesNothing() throws IOException, InterruptedException {
+        Result result = run(2500000, 0, Benchmarks.enabled() ? 5000 : 2000);
+        System.out.println("30fps, 2s gop, 128kbps audio, unthrottled: " + result);
+        assertEquals(result.toString(), 0, result.lostTags());
+        if (Benchmarks.enabled()) {
+            assertTrue(result.toString(), result.p99Ms < MAX_WIRE_MS);
+        }
+    }
+
+    @Test
+    public void slowUplinkDropsToTheQueueLimit() throws IOException, InterruptedException {
+        Benchmarks.assume();
+        Result result = run(2500000, 1500000, 10000);
+        System.out.println("30fps, 2s gop, 128kbps audio, uplink 1500kbps: " + result);
+        assertTrue(result.toString(), result.senderDrops > 0);
+        assertTrue(result.toString(), result.maxMs < Constants.CONFIG_MAX_BUFFERED_DURATION_MS + MAX_WIRE_MS);
+    }
+}
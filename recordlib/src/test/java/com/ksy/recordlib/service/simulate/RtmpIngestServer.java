@@ -0,0 +1,611 @@
+package com.ksy.recordlib.service.simulate;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Loopback stand-in for an rtmp ingest server, enough of one for a publisher.
+ * <p/>
+ * It accepts one publishing connection at a time on 127.0.0.1: handshake,
+ * connect, createStream and publish are answered, the rest of the commands are
+ * ignored. Audio, video and data messages are turned back into flv tags, each
+ * one stamped with its arrival time. They go to the TagListener, into the
+ * arrival log (recordArrivals()) and, as an flv file, to setFlvOutput().
+ * <p/>
+ * The server asks for acknowledgements with its own window size and can send
+ * pings, so the client's side of both gets exercised. A read rate limit makes
+ * it a slow uplink at the chunk level.
+ */
+public class RtmpIngestServer {
+
+    private static final String TAG = "RtmpIngestServer";
+
+    private static final int HANDSHAKE_SIZE = 1536;
+    private static final int EXTENDED_TIMESTAMP = 0xffffff;
+
+    /**
+     * called on the server thread for every tag, body is only valid during the call
+     */
+    public interface TagListener {
+        void onTag(int type, int timestamp, byte[] body, int length, long arrivalNanos);
+    }
+
+    private final ServerSocket serverSocket;
+    private Thread thread;
+    private volatile boolean running;
+    private volatile Socket client;
+    private volatile Session session;
+    private TagListener listener;
+    private OutputStream flvOutput;
+    private boolean flvHeaderWritten;
+    // arrival log, written by the server thread, recorded is published last
+    private long[] arrivalNanos = new long[0];
+    private int[] arrivalTimestamps = new int[0];
+    private int[] arrivalSizes = new int[0];
+    private byte[] arrivalTypes = new byte[0];
+    private volatile int recorded;
+    private int windowAckSize = 2500000;
+    private volatile int chunkSize = 4096;
+    private int pingIntervalMs;
+    private long readBytesPerSecond;
+
+    // stats, written by the server thread
+    private volatile long tags;
+    private volatile long audioTags;
+    private volatile long videoTags;
+    private volatile long bytes;
+    private volatile long acks;
+    private volatile long pongs;
+    private volatile int clientChunkSize;
+    private volatile String publishedName;
+    private volatile int connections;
+
+    /**
+     * @param port 0 picks a free one, see getPort()
+     */
+    public RtmpIngestServer(int port) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress("127.0.0.1", port));
+    }
+
+    public void setTagListener(TagListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * write the tags received from now on as an flv file, the header goes first
+     */
+    public void setFlvOutput(OutputStream output) {
+        flvOutput = output;
+        flvHeaderWritten = false;
+    }
+
+    /**
+     * keep type, timestamp, size and arrival time of the next capacity tags,
+     * from a fresh log. Call before start() or between sessions.
+     */
+    public void recordArrivals(int capacity) {
+        arrivalNanos = new long[capacity];
+        arrivalTimestamps = new int[capacity];
+        arrivalSizes = new int[capacity];
+        arrivalTypes = new byte[capacity];
+        recorded = 0;
+    }
+
+    /**
+     * tags in the arrival log so far
+     */
+    public int getRecorded() {
+        return recorded;
+    }
+
+    /**
+     * System.nanoTime() the last chunk of tag index arrived
+     */
+    public long getArrivalNanos(int index) {
+        return arrivalNanos[index];
+    }
+
+    public int getArrivalTimestamp(int index) {
+        return arrivalTimestamps[index];
+    }
+
+    /**
+     * flv tag type, 8 audio, 9 video, 18 script data
+     */
+    public int getArrivalType(int index) {
+        return arrivalTypes[index];
+    }
+
+    public int getArrivalSize(int index) {
+        return arrivalSizes[index];
+    }
+
+    /**
+     * window announced to the client, it has to acknowledge every that many bytes
+     */
+    public void setWindowAckSize(int windowAckSize) {
+        this.windowAckSize = windowAckSize;
+    }
+
+    /**
+     * chunk size the server sends with, announced after connect
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * send a ping request every interval, 0 for none
+     */
+    public void setPingIntervalMs(int pingIntervalMs) {
+        this.pingIntervalMs = pingIntervalMs;
+    }
+
+    /**
+     * read no faster than this, 0 for as fast as possible
+     */
+    public void setReadBytesPerSecond(long readBytesPerSecond) {
+        this.readBytesPerSecond = readBytesPerSecond;
+    }
+
+    /**
+     * SO_RCVBUF of connections accepted from now on, small to keep a throttled
+     * link from buffering much more than the network would
+     */
+    public void setReceiveBufferSize(int size) throws IOException {
+        serverSocket.setReceiveBufferSize(size);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public String getUrl(String app, String stream) {
+        return "rtmp://127.0.0.1:" + getPort() + "/" + app + "/" + stream;
+    }
+
+    public long getTags() {
+        return tags;
+    }
+
+    public long getAudioTags() {
+        return audioTags;
+    }
+
+    public long getVideoTags() {
+        return videoTags;
+    }
+
+    /**
+     * bytes received after the handshake, chunk headers included
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getAcks() {
+        return acks;
+    }
+
+    public long getPongs() {
+        return pongs;
+    }
+
+    public int getClientChunkSize() {
+        return clientChunkSize;
+    }
+
+    public String getPublishedName() {
+        return publishedName;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        client = socket;
+                        connections++;
+                        serve(socket);
+                    } catch (IOException e) {
+                        if (running) {
+                            Log.w(TAG, "session ended " + e);
+                        }
+                    } finally {
+                        closeClient();
+                    }
+                }
+            }
+        }, TAG);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // closing
+        }
+        closeClient();
+        if (thread != null) {
+            try {
+                thread.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+
+    /**
+     * send a message of the given type to the connected client on chunk stream
+     * 3, split at the server's chunk size like every other message
+     *
+     * @return false if no client is connected
+     */
+    public boolean sendToClient(int type, byte[] body) throws IOException {
+        Session s = session;
+        if (s == null) {
+            return false;
+        }
+        s.send(3, type, 0, body, body.length);
+        return true;
+    }
+
+    /**
+     * drop the current connection, as a failing server would
+     */
+    public void dropClient() {
+        closeClient();
+    }
+
+    private void closeClient() {
+        Socket socket = client;
+        client = null;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closing
+            }
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        Session s = new Session(socket);
+        s.handshake();
+        session = s;
+        try {
+            while (running) {
+                s.readChunk();
+            }
+        } finally {
+            session = null;
+        }
+    }
+
+    private static class ChunkStream {
+        int timestampField;
+        int timestamp;
+        int length;
+        int type;
+        int received;
+        byte[] body = new byte[256];
+    }
+
+    private class Session {
+        private final DataInputStream in;
+        private final OutputStream out;
+        private final Map<Integer, ChunkStream> streams = new HashMap<Integer, ChunkStream>();
+        private final ByteBuffer message = ByteBuffer.allocate(4096);
+        private int inChunkSize = 128;
+        private long received;
+        private long lastPingMs = System.currentTimeMillis();
+        // when the throttled link is done with what was read so far
+        private long linkFreeNanos;
+
+        Session(Socket socket) throws IOException {
+            // a throttled read must not pull much more than it accounts for off the socket
+            int buffer = readBytesPerSecond > 0 ? 4096 : 64 * 1024;
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), buffer));
+            out = socket.getOutputStream();
+        }
+
+        void handshake() throws IOException {
+            byte[] c0c1 = new byte[1 + HANDSHAKE_SIZE];
+            in.readFully(c0c1);
+            byte[] s0s1s2 = new byte[1 + 2 * HANDSHAKE_SIZE];
+            s0s1s2[0] = 3;
+            // s1 with zero time and zero random, s2 echoes c1
+            System.arraycopy(c0c1, 1, s0s1s2, 1 + HANDSHAKE_SIZE, HANDSHAKE_SIZE);
+            out.write(s0s1s2);
+            out.flush();
+            in.readFully(new byte[HANDSHAKE_SIZE]);
+        }
+
+        void readChunk() throws IOException {
+            int first = in.readUnsignedByte();
+            int fmt = first >> 6;
+            int csid = first & 0x3f;
+            int header = 1;
+            if (csid == 0) {
+                csid = 64 + in.readUnsignedByte();
+                header++;
+            } else if (csid == 1) {
+                csid = 64 + in.readUnsignedByte() + (in.readUnsignedByte() << 8);
+                header += 2;
+            }
+            ChunkStream stream = streams.get(csid);
+            if (stream == null) {
+                stream = new ChunkStream();
+                streams.put(csid, stream);
+            }
+            boolean newMessage = stream.received == 0;
+            if (fmt <= 2) {
+                stream.timestampField = read24();
+                header += 3;
+            }
+            if (fmt <= 1) {
+                stream.length = read24();
+                stream.type = in.readUnsignedByte();
+                header += 4;
+            }
+            if (fmt == 0) {
+                // message stream id, little endian, not needed
+                in.readInt();
+                header += 4;
+            }
+            int timestamp = stream.timestampField;
+            if (stream.timestampField == EXTENDED_TIMESTAMP) {
+                timestamp = in.readInt();
+                header += 4;
+            }
+            if (newMessage) {
+                // fmt 0 is absolute, the others carry a delta, fmt 3 repeats the last one
+                stream.timestamp = fmt == 0 ? timestamp : stream.timestamp + timestamp;
+                if (stream.body.length < stream.length) {
+                    stream.body = new byte[stream.length];
+                }
+            }
+            int size = Math.min(inChunkSize, stream.length - stream.received);
+            in.readFully(stream.body, stream.received, size);
+            stream.received += size;
+            count(header + size);
+            if (stream.received >= stream.length) {
+                stream.received = 0;
+                onMessage(stream);
+            }
+            if (pingIntervalMs > 0 && System.currentTimeMillis() - lastPingMs >= pingIntervalMs) {
+                lastPingMs = System.currentTimeMillis();
+                message.clear();
+                message.putShort((short) 6);
+                message.putInt((int) lastPingMs);
+                send(2, 4, 0, message);
+            }
+        }
+
+        private int read24() throws IOException {
+            return in.readUnsignedByte() << 16 | in.readUnsignedByte() << 8 | in.readUnsignedByte();
+        }
+
+        /**
+         * account for bytes read and hold back to the read rate, an idle link saves up no credit
+         */
+        private void count(int size) {
+            received += size;
+            bytes = received;
+            if (readBytesPerSecond > 0) {
+                long now = System.nanoTime();
+                linkFreeNanos = Math.max(now, linkFreeNanos) + size * 1000000000L / readBytesPerSecond;
+                long waitNanos = linkFreeNanos - now;
+                if (waitNanos > 0) {
+                    try {
+                        Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+
+        private void onMessage(ChunkStream stream) throws IOException {
+            ByteBuffer body = ByteBuffer.wrap(stream.body, 0, stream.length);
+            switch (stream.type) {
+                case 1:
+                    inChunkSize = body.getInt() & 0x7fffffff;
+                    clientChunkSize = inChunkSize;
+                    break;
+                case 3:
+                    acks++;
+                    break;
+                case 4:
+                    if (body.getShort() == 7) {
+                        pongs++;
+                    }
+                    break;
+                case 8:
+                case 9:
+                case 18:
+                    onTag(stream);
+                    break;
+                case 20:
+                    onCommand(body);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void onTag(ChunkStream stream) throws IOException {
+            long arrival = System.nanoTime();
+            tags++;
+            if (stream.type == 8) {
+                audioTags++;
+            } else if (stream.type == 9) {
+                videoTags++;
+            }
+            int index = recorded;
+            if (index < arrivalNanos.length) {
+                arrivalNanos[index] = arrival;
+                arrivalTimestamps[index] = stream.timestamp;
+                arrivalSizes[index] = stream.length;
+                arrivalTypes[index] = (byte) stream.type;
+                recorded = index + 1;
+            }
+            if (flvOutput != null) {
+                writeFlvTag(stream);
+            }
+            TagListener l = listener;
+            if (l != null) {
+                l.onTag(stream.type, stream.timestamp, stream.body, stream.length, arrival);
+            }
+        }
+
+        private void writeFlvTag(ChunkStream stream) throws IOException {
+            if (!flvHeaderWritten) {
+                flvOutput.write(new byte[]{'F', 'L', 'V', 1, 5, 0, 0, 0, 9, 0, 0, 0, 0});
+                flvHeaderWritten = true;
+            }
+            int length = stream.length;
+            int timestamp = stream.timestamp;
+            byte[] header = {(byte) stream.type, (byte) (length >> 16), (byte) (length >> 8), (byte) length,
+                    (byte) (timestamp >> 16), (byte) (timestamp >> 8), (byte) timestamp, (byte) (timestamp >> 24), 0, 0, 0};
+            flvOutput.write(header);
+            flvOutput.write(stream.body, 0, length);
+            int tagSize = 11 + length;
+            flvOutput.write(new byte[]{(byte) (tagSize >> 24), (byte) (tagSize >> 16), (byte) (tagSize >> 8), (byte) tagSize});
+        }
+
+        private void onCommand(ByteBuffer body) throws IOException {
+            String name = readString(body);
+            double transaction = body.get() == 0 ? body.getDouble() : 0;
+            if ("connect".equals(name)) {
+                message.clear();
+                message.putInt(windowAckSize);
+                send(2, 5, 0, message);
+                message.clear();
+                message.putInt(windowAckSize);
+                message.put((byte) 2);
+                send(2, 6, 0, message);
+                message.clear();
+                message.putInt(chunkSize);
+                send(2, 1, 0, message);
+                message.clear();
+                putString(message, "_result");
+                putNumber(message, transaction);
+                message.put((byte) 5);
+                putStatus(message, "NetConnection.Connect.Success");
+                send(3, 20, 0, message);
+            } else if ("createStream".equals(name)) {
+                message.clear();
+                putString(message, "_result");
+                putNumber(message, transaction);
+                message.put((byte) 5);
+                putNumber(message, 1);
+                send(3, 20, 0, message);
+            } else if ("publish".equals(name)) {
+                // skip the null command object
+                body.get();
+                publishedName = readString(body);
+                message.clear();
+                putString(message, "onStatus");
+                putNumber(message, 0);
+                message.put((byte) 5);
+                putStatus(message, "NetStream.Publish.Start");
+                send(3, 20, 1, message);
+            }
+        }
+
+        /**
+         * one message as a single fmt 0 chunk, or more if it is longer than the chunk size
+         */
+        private void send(int csid, int type, int streamId, ByteBuffer payload) throws IOException {
+            payload.flip();
+            send(csid, type, streamId, payload.array(), payload.remaining());
+            // server chunk size applies from the message after the announcement
+            if (type == 1) {
+                chunkSize = payload.getInt(0);
+            }
+        }
+
+        /**
+         * also called by sendToClient() from other threads
+         */
+        synchronized void send(int csid, int type, int streamId, byte[] payload, int length) throws IOException {
+            byte[] header = {(byte) csid, 0, 0, 0, (byte) (length >> 16), (byte) (length >> 8), (byte) length, (byte) type,
+                    (byte) streamId, (byte) (streamId >> 8), (byte) (streamId >> 16), (byte) (streamId >> 24)};
+            out.write(header);
+            int sent = 0;
+            while (sent < length) {
+                int size = Math.min(chunkSize, length - sent);
+                if (sent > 0) {
+                    out.write(0xc0 | csid);
+                }
+                out.write(payload, sent, size);
+                sent += size;
+            }
+            out.flush();
+        }
+
+        private String readString(ByteBuffer body) throws UnsupportedEncodingException {
+            if (body.get() != 2) {
+                return null;
+            }
+            int length = body.getShort() & 0xffff;
+            String value = new String(body.array(), body.position(), length, "UTF-8");
+            body.position(body.position() + length);
+            return value;
+        }
+
+        private void putString(ByteBuffer buffer, String value) throws UnsupportedEncodingException {
+            buffer.put((byte) 2);
+            putUtf8(buffer, value);
+        }
+
+        private void putUtf8(ByteBuffer buffer, String value) throws UnsupportedEncodingException {
+            byte[] bytes = value.getBytes("UTF-8");
+            buffer.putShort((short) bytes.length);
+            buffer.put(bytes);
+        }
+
+        private void putNumber(ByteBuffer buffer, double value) {
+            buffer.put((byte) 0);
+            buffer.putDouble(value);
+        }
+
+        private void putStatus(ByteBuffer buffer, String code) throws UnsupportedEncodingException {
+            buffer.put((byte) 3);
+            putUtf8(buffer, "level");
+            putString(buffer, "status");
+            putUtf8(buffer, "code");
+            putString(buffer, code);
+            buffer.putShort((short) 0);
+            buffer.put((byte) 9);
+        }
+    }
+}
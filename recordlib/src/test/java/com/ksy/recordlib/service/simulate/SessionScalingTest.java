@@ -0,0 +1,267 @@
+package com.ksy.recordlib.service.simulate;
+
+import com.ksy.recordlib.service.core.KSYFlvData;
+import com.ksy.recordlib.service.core.KsyRecordClientConfig;
+import com.ksy.recordlib.service.core.KsyRecordSender;
+import com.ksy.recordlib.service.core.KsySenderMetrics;
+import com.ksy.recordlib.service.recoder.RecoderAudioSource;
+import com.ksy.recordlib.service.recoder.RecoderVideoSource;
+import com.ksy.recordlib.service.rtmp.KSYRtmpPublisher;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs N publishing sessions side by side in one JVM and tells how throughput
+ * and latency scale with N.
+ * <p/>
+ * Every session is what a broadcaster has on a device: a SyntheticMp4Stream
+ * and a SyntheticAdtsStream writing in real time into named pipes, a headless
+ * RecoderVideoSource and RecoderAudioSource parsing them, and a KsyRecordSender
+ * of its own, with its own clock, publishing through a KSYRtmpPublisher to a
+ * RtmpIngestServer of its own on the loopback. Nothing is shared between the
+ * sessions but the direct buffer pool.
+ * <p/>
+ * The latency of a tag is the time from the source's addToQueue() to its
+ * arrival at the server, tags are matched by track and timestamp. A session
+ * keeps up while its latency stays flat; once the cores run out the p99 and
+ * the sender's drops go up.
+ * <p/>
+ * A few 720p sessions have to keep up even on a single core: nothing dropped,
+ * everything but the last tags held back for interleaving arrives, and the
+ * p99 stays far below a second. A wall clock benchmark, see Benchmarks.
+ */
+public class SessionScalingTest {
+
+    private static final int GOP_MS = 2000;
+    private static final int SAMPLE_RATE = 44100;
+    private static final int AUDIO_BITRATE = 128000;
+    private static final int DRAIN_MS = 1000;
+    private static final int DURATION_MS = 3000;
+    // the tail of a session the interleaving still holds when the pipes close
+    private static final int MAX_TAGS_LEFT = 8;
+    private static final long MAX_P99_MS = 500;
+
+    private final int width = 1280;
+    private final int height = 720;
+    private final int fps = 30;
+    private final int videoBitrate = 2500000;
+
+    private static class Result {
+        int sessions;
+        int cores;
+        long elapsedMs;
+        long queuedTags;
+        long receivedTags;
+        long receivedBytes;
+        long senderDrops;
+        long p50Ms;
+        long p99Ms;
+        long maxMs;
+
+        double mbps() {
+            return elapsedMs > 0 ? receivedBytes * 8.0 / elapsedMs / 1000 : 0;
+        }
+
+        @Override
+        public String toString() {
+            return sessions + " sessions on " + cores + " cores: " + String.format("%.1f", mbps()) + "Mbps ("
+                    + String.format("%.2f", mbps() / sessions) + " each) p50=" + p50Ms + "ms p99=" + p99Ms + "ms max=" + maxMs
+                    + "ms tags=" + receivedTags + "/" + queuedTags + " drops=" + senderDrops;
+        }
+    }
+
+    /**
+     * enqueue times of one track, filled by its parser, matched by the server's thread
+     */
+    private static class Track {
+        final int[] dts;
+        final long[] queuedAt;
+        final long[] latencies;
+        volatile int queued;
+        int cursor;
+        int received;
+        long bytes;
+
+        Track(int capacity) {
+            dts = new int[capacity];
+            queuedAt = new long[capacity];
+            latencies = new long[capacity];
+        }
+
+        void onQueued(int timestamp) {
+            int i = queued;
+            if (i < dts.length) {
+                dts[i] = timestamp;
+                queuedAt[i] = System.nanoTime();
+                queued = i + 1;
+            }
+        }
+
+        /**
+         * tags of a track arrive in order, the ones skipped over were dropped
+         */
+        void onArrived(int timestamp, int length, long arrivalNanos) {
+            int end = queued;
+            for (int i = cursor; i < end; i++) {
+                if (dts[i] == timestamp) {
+                    latencies[received++] = (arrivalNanos - queuedAt[i]) / 1000000;
+                    bytes += length;
+                    cursor = i + 1;
+                    return;
+                }
+            }
+        }
+    }
+
+    private class Session {
+        final RtmpIngestServer server;
+        final KsyRecordSender sender;
+        final RecoderVideoSource videoSource;
+        final RecoderAudioSource audioSource;
+        final SyntheticMp4Stream video;
+        final SyntheticAdtsStream audio;
+        final Track videoTrack;
+        final Track audioTrack;
+        final File videoPipe;
+        final File audioPipe;
+
+        Session(int index, int durationMs) throws IOException {
+            videoTrack = new Track(durationMs * fps / 1000 + 16);
+            audioTrack = new Track(durationMs * SAMPLE_RATE / 1000 / SyntheticAdtsStream.SAMPLES_PER_FRAME + 16);
+            server = new RtmpIngestServer(0);
+            server.setTagListener(new RtmpIngestServer.TagListener() {
+                @Override
+                public void onTag(int type, int timestamp, byte[] body, int length, long arrivalNanos) {
+                    (type == 9 ? videoTrack : audioTrack).onArrived(timestamp, length, arrivalNanos);
+                }
+            });
+            sender = new KsyRecordSender(new KSYRtmpPublisher(4096)) {
+                @Override
+                public void addToQueue(KSYFlvData tag, int k) {
+                    if (tag != null) {
+                        (k == FROM_VIDEO ? videoTrack : audioTrack).onQueued(tag.dts);
+                    }
+                    super.addToQueue(tag, k);
+                }
+            };
+            // sessions differ in their bytes, not only in their ports
+            video = new SyntheticMp4Stream(width, height, fps, videoBitrate, GOP_MS * fps / 1000).setSeed(index + 1);
+            audio = new SyntheticAdtsStream(SAMPLE_RATE, 2, AUDIO_BITRATE).setSeed(index + 1);
+            KsyRecordClientConfig config = new KsyRecordClientConfig.Builder()
+                    .setVideoWidth(width).setVideoHeigh(height).setVideoFrameRate(fps).setVideoBitRate(videoBitrate)
+                    .setAudioSampleRate(SAMPLE_RATE).setAudioBitRate(AUDIO_BITRATE).build();
+            videoSource = new RecoderVideoSource(config, sender, video.getSps(), video.getPps());
+            audioSource = new RecoderAudioSource(config, sender);
+            File dir = new File(System.getProperty("java.io.tmpdir"));
+            videoPipe = new File(dir, "ksy-session-" + index + "-" + System.nanoTime() + ".mp4");
+            audioPipe = new File(dir, "ksy-session-" + index + "-" + System.nanoTime() + ".aac");
+            Assume.assumeTrue("the sessions need named pipes",
+                    SourceLoadTest.mkfifo(videoPipe) && SourceLoadTest.mkfifo(audioPipe));
+        }
+
+        void close() {
+            sender.disconnect();
+            server.stop();
+            videoPipe.delete();
+            audioPipe.delete();
+        }
+    }
+
+    private Result run(int sessions, int durationMs) throws IOException, InterruptedException {
+        Session[] all = new Session[sessions];
+        Thread[] threads = new Thread[sessions * 4];
+        IOException[] failure = new IOException[1];
+        Result result = new Result();
+        result.sessions = sessions;
+        result.cores = Runtime.getRuntime().availableProcessors();
+        try {
+            for (int i = 0; i < sessions; i++) {
+                Session s = new Session(i, durationMs);
+                all[i] = s;
+                s.server.start();
+                s.sender.start(null);
+                s.sender.connect(s.server.getUrl("live", "session" + i));
+            }
+            int videoFrames = durationMs * fps / 1000;
+            int audioFrames = durationMs * SAMPLE_RATE / 1000 / SyntheticAdtsStream.SAMPLES_PER_FRAME;
+            long start = System.nanoTime();
+            for (int i = 0; i < sessions; i++) {
+                Session s = all[i];
+                threads[4 * i] = SourceLoadTest.reader(s.videoSource, null, s.videoPipe, failure);
+                threads[4 * i + 1] = SourceLoadTest.reader(null, s.audioSource, s.audioPipe, failure);
+                threads[4 * i + 2] = SourceLoadTest.writer(s.video, null, s.videoPipe, videoFrames, true, failure);
+                threads[4 * i + 3] = SourceLoadTest.writer(null, s.audio, s.audioPipe, audioFrames, true, failure);
+            }
+            for (Thread t : threads) {
+                t.start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            Thread.sleep(DRAIN_MS);
+            result.elapsedMs = (System.nanoTime() - start) / 1000000 - DRAIN_MS;
+            KsySenderMetrics.Snapshot snapshot = new KsySenderMetrics.Snapshot();
+            int count = 0;
+            for (Session s : all) {
+                count += s.videoTrack.received + s.audioTrack.received;
+            }
+            long[] latencies = new long[count];
+            int n = 0;
+            for (Session s : all) {
+                for (Track track : new Track[]{s.videoTrack, s.audioTrack}) {
+                    System.arraycopy(track.latencies, 0, latencies, n, track.received);
+                    n += track.received;
+                    result.queuedTags += track.queued;
+                    result.receivedBytes += track.bytes;
+                }
+                s.sender.getMetrics().snapshot(snapshot);
+                result.senderDrops += snapshot.counters[KsySenderMetrics.COUNTER_VIDEO_DROPS]
+                        + snapshot.counters[KsySenderMetrics.COUNTER_AUDIO_DROPS];
+            }
+            result.receivedTags = count;
+            Arrays.sort(latencies);
+            if (count > 0) {
+                result.p50Ms = Benchmarks.percentile(latencies, count, 50);
+                result.p99Ms = Benchmarks.percentile(latencies, count, 99);
+                result.maxMs = Benchmarks.percentile(latencies, count, 100);
+            }
+        } finally {
+            for (Session s : all) {
+                if (s != null) {
+                    s.close();
+                }
+            }
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return result;
+    }
+
+    private void assertKeepsUp(int sessions) throws IOException, InterruptedException {
+        Benchmarks.assume();
+        Result result = run(sessions, DURATION_MS);
+        System.out.println("720p30 2500kbps + 128kbps aac per session, " + DURATION_MS / 1000 + "s: " + result);
+        assertEquals(result.toString(), 0, result.senderDrops);
+        assertTrue(result.toString(), result.queuedTags - result.receivedTags <= MAX_TAGS_LEFT * sessions);
+        assertTrue(result.toString(), result.p99Ms < MAX_P99_MS);
+    }
+
+    @Test
+    public void oneSessionKeepsUp() throws IOException, InterruptedException {
+        assertKeepsUp(1);
+    }
+
+    @Test
+    public void fourSessionsKeepUp() throws IOException, InterruptedException {
+        assertKeepsUp(4);
+    }
+}
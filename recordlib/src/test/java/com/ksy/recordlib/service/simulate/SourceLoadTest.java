@@ -0,0 +1,280 @@
+package com.ksy.recordlib.service.simulate;
+
+import com.ksy.recordlib.service.core.KSYFlvData;
+import com.ksy.recordlib.service.core.KsyRecordClientConfig;
+import com.ksy.recordlib.service.core.KsyRecordSender;
+import com.ksy.recordlib.service.core.KsySenderMetrics;
+import com.ksy.recordlib.service.recoder.RecoderAudioSource;
+import com.ksy.recordlib.service.recoder.RecoderVideoSource;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Load test of the source side on a plain Linux JVM: the mp4 and adts parsers,
+ * flv muxing and the sender, without MediaRecorder.
+ * <p/>
+ * A SyntheticMp4Stream and a SyntheticAdtsStream write into two named pipes,
+ * as MediaRecorder writes into its ParcelFileDescriptor pipes. A headless
+ * RecoderVideoSource and RecoderAudioSource parse them and queue their tags
+ * on a KsyRecordSender over a MemoryTransport. Without mkfifo the streams go
+ * through temp files instead, written ahead of the parse.
+ * <p/>
+ * Flat out, the generators write as fast as the parsers read and the result
+ * tells how many times real time the pipeline keeps up with. The audio of such
+ * a run is far ahead of the wall clock, so the pacer holds it and the sender
+ * drops what its queue can not take; in real time runs nothing should drop.
+ * Either way the parsers have to queue every frame, 1080p60 at 12000kbps
+ * included, which the default test run checks on a short flat out run. The
+ * speed and the real time runs are Benchmarks. writer(), reader() and mkfifo()
+ * serve the other pipe based tests.
+ */
+public class SourceLoadTest {
+
+    private static final int GOP_MS = 2000;
+    private static final int CHANNELS = 2;
+
+    private final int width;
+    private final int height;
+    private final int fps;
+    private final int videoBitrate;
+    private final int sampleRate;
+    private final int audioBitrate;
+
+    private static class Result {
+        boolean realTime;
+        int mediaMs;
+        int videoFrames;
+        int audioFrames;
+        long elapsedMs;
+        long videoTags;
+        long audioTags;
+        long videoBytes;
+        long audioBytes;
+        long sentTags;
+        long senderDrops;
+
+        /**
+         * media time parsed per wall clock time, 1 or more keeps up
+         */
+        double speed() {
+            return elapsedMs > 0 ? (double) mediaMs / elapsedMs : 0;
+        }
+
+        double mbps() {
+            return elapsedMs > 0 ? (videoBytes + audioBytes) * 8.0 / elapsedMs / 1000 : 0;
+        }
+
+        @Override
+        public String toString() {
+            return (realTime ? "real time" : "flat out") + ": " + mediaMs / 1000 + "s of media in " + elapsedMs + "ms, "
+                    + String.format("%.1fx", speed()) + " real time, " + String.format("%.1f", mbps()) + "Mbps, video "
+                    + videoTags + " tags " + String.format("%.0f", videoTags * 1000.0 / Math.max(1, elapsedMs)) + "/s, audio "
+                    + audioTags + " tags, sent " + sentTags + " drops " + senderDrops;
+        }
+    }
+
+    public SourceLoadTest() {
+        this(1920, 1080, 60, 12000000, 44100, 128000);
+    }
+
+    private SourceLoadTest(int width, int height, int fps, int videoBitrate, int sampleRate, int audioBitrate) {
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+        this.videoBitrate = videoBitrate;
+        this.sampleRate = sampleRate;
+        this.audioBitrate = audioBitrate;
+    }
+
+    private Result run(int mediaMs, boolean realTime) throws IOException, InterruptedException {
+        final int videoFrames = mediaMs * fps / 1000;
+        final int audioFrames = (int) ((long) mediaMs * sampleRate / 1000 / SyntheticAdtsStream.SAMPLES_PER_FRAME);
+        final SyntheticMp4Stream video = new SyntheticMp4Stream(width, height, fps, videoBitrate, GOP_MS * fps / 1000)
+                .setNonReferenceInterval(2);
+        final SyntheticAdtsStream audio = new SyntheticAdtsStream(sampleRate, CHANNELS, audioBitrate);
+        KsyRecordClientConfig config = new KsyRecordClientConfig.Builder()
+                .setVideoWidth(width).setVideoHeigh(height).setVideoFrameRate(fps).setVideoBitRate(videoBitrate)
+                .setAudioSampleRate(sampleRate).setAudioBitRate(audioBitrate).build();
+
+        final Result result = new Result();
+        result.realTime = realTime;
+        result.mediaMs = mediaMs;
+        result.videoFrames = videoFrames;
+        result.audioFrames = audioFrames;
+        final AtomicLong videoTags = new AtomicLong();
+        final AtomicLong audioTags = new AtomicLong();
+        final AtomicLong videoBytes = new AtomicLong();
+        final AtomicLong audioBytes = new AtomicLong();
+        KsyRecordSender sender = new KsyRecordSender(new MemoryTransport(0)) {
+            @Override
+            public void addToQueue(KSYFlvData tag, int k) {
+                if (tag != null) {
+                    (k == FROM_VIDEO ? videoTags : audioTags).incrementAndGet();
+                    (k == FROM_VIDEO ? videoBytes : audioBytes).addAndGet(tag.size);
+                }
+                super.addToQueue(tag, k);
+            }
+        };
+        final RecoderVideoSource videoSource = new RecoderVideoSource(config, sender, video.getSps(), video.getPps());
+        final RecoderAudioSource audioSource = new RecoderAudioSource(config, sender);
+
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+        final File videoPipe = new File(dir, "ksy-load-" + System.nanoTime() + ".mp4");
+        final File audioPipe = new File(dir, "ksy-load-" + System.nanoTime() + ".aac");
+        boolean fifo = mkfifo(videoPipe) && mkfifo(audioPipe);
+        final IOException[] failure = new IOException[1];
+        Thread videoWriter = writer(video, null, videoPipe, videoFrames, realTime, failure);
+        Thread audioWriter = writer(null, audio, audioPipe, audioFrames, realTime, failure);
+        try {
+            if (!fifo) {
+                // plain files: written in full before the parse starts
+                videoWriter.start();
+                audioWriter.start();
+                videoWriter.join();
+                audioWriter.join();
+            }
+            sender.start(null);
+            sender.connect("rtmp://127.0.0.1/live/load");
+            long start = System.nanoTime();
+            Thread videoReader = reader(videoSource, null, videoPipe, failure);
+            Thread audioReader = reader(null, audioSource, audioPipe, failure);
+            videoReader.start();
+            audioReader.start();
+            if (fifo) {
+                videoWriter.start();
+                audioWriter.start();
+            }
+            videoReader.join();
+            audioReader.join();
+            result.elapsedMs = (System.nanoTime() - start) / 1000000;
+            videoWriter.join();
+            audioWriter.join();
+            // what the parsers queued last
+            Thread.sleep(500);
+            KsySenderMetrics.Snapshot snapshot = new KsySenderMetrics.Snapshot();
+            sender.getMetrics().snapshot(snapshot);
+            result.sentTags = snapshot.counters[KsySenderMetrics.COUNTER_VIDEO_TAGS_SENT]
+                    + snapshot.counters[KsySenderMetrics.COUNTER_AUDIO_TAGS_SENT];
+            result.senderDrops = snapshot.counters[KsySenderMetrics.COUNTER_VIDEO_DROPS]
+                    + snapshot.counters[KsySenderMetrics.COUNTER_AUDIO_DROPS];
+        } finally {
+            sender.disconnect();
+            videoPipe.delete();
+            audioPipe.delete();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        result.videoTags = videoTags.get();
+        result.audioTags = audioTags.get();
+        result.videoBytes = videoBytes.get();
+        result.audioBytes = audioBytes.get();
+        return result;
+    }
+
+    static Thread writer(final SyntheticMp4Stream video, final SyntheticAdtsStream audio, final File pipe,
+                         final int frames, final boolean realTime, final IOException[] failure) {
+        return new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    OutputStream out = new FileOutputStream(pipe);
+                    try {
+                        if (video != null) {
+                            video.write(out, frames, realTime);
+                        } else {
+                            audio.write(out, frames, realTime);
+                        }
+                    } finally {
+                        out.close();
+                    }
+                } catch (IOException e) {
+                    failure[0] = e;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, video != null ? "mp4-writer" : "adts-writer");
+    }
+
+    static Thread reader(final RecoderVideoSource video, final RecoderAudioSource audio, final File pipe,
+                         final IOException[] failure) {
+        return new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    FileInputStream in = new FileInputStream(pipe);
+                    try {
+                        if (video != null) {
+                            video.runFrom(in);
+                        } else {
+                            audio.runFrom(in);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        }, video != null ? "mp4-parser" : "adts-parser");
+    }
+
+    /**
+     * @return false where there is no mkfifo, the caller falls back to a plain file
+     */
+    static boolean mkfifo(File file) {
+        try {
+            Process p = new ProcessBuilder("mkfifo", file.getAbsolutePath()).redirectErrorStream(true).start();
+            return p.waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * every frame queued, the video behind its sequence header
+     */
+    private static void assertAllQueued(Result result) {
+        assertEquals(result.toString(), result.videoFrames + 1, result.videoTags);
+        assertEquals(result.toString(), result.audioFrames, result.audioTags);
+    }
+
+    @Test
+    public void parsersQueueEveryFrame() throws IOException, InterruptedException {
+        Result result = run(2000, false);
+        System.out.println(width + "x" + height + "@" + fps + " " + videoBitrate / 1000 + "kbps: " + result);
+        assertAllQueued(result);
+    }
+
+    @Test
+    public void flatOutKeepsUpWithRealTime() throws IOException, InterruptedException {
+        Benchmarks.assume();
+        Result result = run(20000, false);
+        System.out.println(width + "x" + height + "@" + fps + " " + videoBitrate / 1000 + "kbps: " + result);
+        assertAllQueued(result);
+        assertTrue(result.toString(), result.speed() > 1);
+    }
+
+    @Test
+    public void realTimeDropsNothing() throws IOException, InterruptedException {
+        Benchmarks.assume();
+        Result result = run(5000, true);
+        System.out.println(width + "x" + height + "@" + fps + " " + videoBitrate / 1000 + "kbps: " + result);
+        assertAllQueued(result);
+        assertEquals(result.toString(), 0, result.senderDrops);
+    }
+}
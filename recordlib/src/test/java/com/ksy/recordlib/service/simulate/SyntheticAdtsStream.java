@@ -0,0 +1,146 @@
+package com.ksy.recordlib.service.simulate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * A deterministic stand-in for what MediaRecorder writes into its pipe in
+ * AAC_ADTS mode: back to back AAC LC frames of 1024 samples, each behind an
+ * ADTS header. The frame sizes average out to the bitrate.
+ * <p/>
+ * With setCrc() the headers have protection_absent cleared and carry a 16 bit
+ * CRC, 9 bytes instead of 7. The CRC covers the header only, nothing on the
+ * device side checks it.
+ */
+public class SyntheticAdtsStream {
+
+    public static final int SAMPLES_PER_FRAME = 1024;
+    // the sampling_frequency_index table
+    static final int[] SAMPLE_RATES = {96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350};
+    // 13 bit frame_length, header included
+    static final int MAX_FRAME_LENGTH = 0x1fff;
+
+    private final int sampleRate;
+    private final int channels;
+    private final int bitrate;
+    private final int frequencyIndex;
+    private boolean crc;
+    private long seed = 1;
+    private byte[] payload;
+    private long bytesWritten;
+
+    public SyntheticAdtsStream(int sampleRate, int channels, int bitrate) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.bitrate = bitrate;
+        int index = -1;
+        for (int i = 0; i < SAMPLE_RATES.length; i++) {
+            if (SAMPLE_RATES[i] == sampleRate) {
+                index = i;
+            }
+        }
+        if (index < 0) {
+            throw new IllegalArgumentException("no adts sampling frequency index for " + sampleRate);
+        }
+        frequencyIndex = index;
+    }
+
+    public SyntheticAdtsStream setCrc(boolean crc) {
+        this.crc = crc;
+        return this;
+    }
+
+    public SyntheticAdtsStream setSeed(long seed) {
+        this.seed = seed;
+        payload = null;
+        return this;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public int headerSize() {
+        return crc ? 9 : 7;
+    }
+
+    /**
+     * raw aac bytes of a frame, without the header; the rounding is carried
+     * from frame to frame so the bitrate comes out exact
+     */
+    public int payloadSize(int frame) {
+        long bits = (long) bitrate * SAMPLES_PER_FRAME;
+        long before = bits * frame / sampleRate / 8;
+        long after = bits * (frame + 1) / sampleRate / 8;
+        return (int) Math.max(1, Math.min(after - before, MAX_FRAME_LENGTH - headerSize()));
+    }
+
+    /**
+     * header and payload of one frame, scratch must hold frameLength(frame) bytes
+     */
+    public int writeFrame(OutputStream out, int frame, byte[] scratch) throws IOException {
+        if (payload == null) {
+            payload = new byte[MAX_FRAME_LENGTH * 4];
+            new Random(seed).nextBytes(payload);
+        }
+        int header = headerSize();
+        int length = header + payloadSize(frame);
+        scratch[0] = (byte) 0xff;
+        // mpeg-4, layer 0, protection_absent
+        scratch[1] = (byte) (crc ? 0xf0 : 0xf1);
+        // profile LC is object type 2 minus one, then the frequency index and the high channel bit
+        scratch[2] = (byte) (1 << 6 | frequencyIndex << 2 | (channels >> 2 & 1));
+        scratch[3] = (byte) ((channels & 3) << 6 | length >> 11 & 3);
+        scratch[4] = (byte) (length >> 3);
+        // buffer fullness 0x7ff, variable rate, one raw data block
+        scratch[5] = (byte) ((length & 7) << 5 | 0x1f);
+        scratch[6] = (byte) 0xfc;
+        if (crc) {
+            int c = crc16(scratch, 7);
+            scratch[7] = (byte) (c >> 8);
+            scratch[8] = (byte) c;
+        }
+        System.arraycopy(payload, (int) ((frame * 131L) % (payload.length - MAX_FRAME_LENGTH)), scratch, header, length - header);
+        out.write(scratch, 0, length);
+        bytesWritten += length;
+        return length;
+    }
+
+    /**
+     * frames frames, in real time at the sample rate when realTime is set, as
+     * fast as out takes them otherwise
+     */
+    public void write(OutputStream out, int frames, boolean realTime) throws IOException, InterruptedException {
+        byte[] scratch = new byte[MAX_FRAME_LENGTH];
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            if (realTime) {
+                long wait = start + i * SAMPLES_PER_FRAME * 1000000000L / sampleRate - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                }
+            }
+            writeFrame(out, i, scratch);
+        }
+        out.flush();
+    }
+
+    /**
+     * crc-16 with the 0x8005 polynomial, msb first
+     */
+    private static int crc16(byte[] b, int length) {
+        int crc = 0xffff;
+        for (int i = 0; i < length; i++) {
+            crc ^= (b[i] & 0xff) << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x8005 : crc << 1;
+            }
+        }
+        return crc & 0xffff;
+    }
+}
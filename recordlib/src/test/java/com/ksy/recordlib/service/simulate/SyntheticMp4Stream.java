@@ -0,0 +1,455 @@
+package com.ksy.recordlib.service.simulate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * A deterministic stand-in for what MediaRecorder writes into its pipe in
+ * 3GPP/MP4 mode: ftyp, a minimal moov and free box, then an mdat of 4 byte
+ * length prefixed H.264 NAL units.
+ * <p/>
+ * Every gop starts with an IDR slice followed by P slices, every
+ * nonReferenceInterval-th P slice can be a non reference one. Frame sizes
+ * follow from bitrate, fps and gop, the keyframe takes keyframeWeight shares
+ * of a gop and every frame is jittered by a few percent. The same seed gives
+ * the same bytes, so two runs feed the parsers identical input.
+ * <p/>
+ * getSps() and getPps() return a baseline SPS and PPS that match the stream,
+ * what the temp mp4 probe would have found. Some encoders also repeat them in
+ * the mdat ahead of every IDR slice, see setInBandParameterSets().
+ */
+public class SyntheticMp4Stream {
+
+    static final int NAL_SLICE = 1;
+    static final int NAL_IDR = 5;
+    static final int NAL_SPS = 7;
+    static final int NAL_PPS = 8;
+
+    // random bytes the slice payloads are cut from
+    private static final int PAYLOAD_POOL = 256 * 1024;
+    private static final int MIN_FRAME = 16;
+
+    private final int width;
+    private final int height;
+    private final int fps;
+    private final int bitrate;
+    private final int gopFrames;
+    private int keyframeWeight = 4;
+    private int jitterPercent = 10;
+    private int nonReferenceInterval;
+    private boolean largeSize;
+    private boolean inBandParameterSets;
+    private int log2MaxFrameNum = 4;
+    private long seed = 1;
+    private byte[] payload;
+    private byte[] sps;
+    private byte[] pps;
+    private byte[] idrSliceHeader;
+    private long bytesWritten;
+
+    /**
+     * @param gopFrames frames from one IDR to the next
+     */
+    public SyntheticMp4Stream(int width, int height, int fps, int bitrate, int gopFrames) {
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+        this.bitrate = bitrate;
+        this.gopFrames = Math.max(1, gopFrames);
+    }
+
+    /**
+     * the keyframe is this many times the size of a P frame, 4 by default
+     */
+    public SyntheticMp4Stream setKeyframeWeight(int keyframeWeight) {
+        this.keyframeWeight = Math.max(1, keyframeWeight);
+        return this;
+    }
+
+    /**
+     * frame sizes vary by up to this many percent around their mean, 10 by default
+     */
+    public SyntheticMp4Stream setJitterPercent(int jitterPercent) {
+        this.jitterPercent = Math.max(0, Math.min(jitterPercent, 90));
+        return this;
+    }
+
+    /**
+     * every n-th P frame goes out with nal_ref_idc 0, 0 for none
+     */
+    public SyntheticMp4Stream setNonReferenceInterval(int nonReferenceInterval) {
+        this.nonReferenceInterval = Math.max(0, nonReferenceInterval);
+        return this;
+    }
+
+    /**
+     * write the mdat size as a 64 bit largesize even when it fits in 32 bits
+     */
+    public SyntheticMp4Stream setLargeSize(boolean largeSize) {
+        this.largeSize = largeSize;
+        return this;
+    }
+
+    /**
+     * write the sps and pps as nal units of their own ahead of every IDR slice
+     */
+    public SyntheticMp4Stream setInBandParameterSets(boolean inBandParameterSets) {
+        this.inBandParameterSets = inBandParameterSets;
+        return this;
+    }
+
+    /**
+     * bits of frame_num in the slice headers, as the sps says, 4 by default
+     */
+    public SyntheticMp4Stream setLog2MaxFrameNum(int log2MaxFrameNum) {
+        this.log2MaxFrameNum = Math.max(4, Math.min(log2MaxFrameNum, 16));
+        sps = null;
+        idrSliceHeader = null;
+        return this;
+    }
+
+    public SyntheticMp4Stream setSeed(long seed) {
+        this.seed = seed;
+        payload = null;
+        return this;
+    }
+
+    public int getFps() {
+        return fps;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * sps nal unit with its header byte, no start code
+     */
+    public byte[] getSps() {
+        if (sps == null) {
+            int mbWidth = (width + 15) / 16;
+            int mbHeight = (height + 15) / 16;
+            int cropRight = (mbWidth * 16 - width) / 2;
+            int cropBottom = (mbHeight * 16 - height) / 2;
+            BitWriter w = new BitWriter();
+            w.bits(66, 8);      // profile_idc baseline
+            w.bits(0xc0, 8);    // constraint_set0 and set1
+            w.bits(40, 8);      // level_idc 4.0
+            w.ue(0);            // seq_parameter_set_id
+            w.ue(log2MaxFrameNum - 4);
+            w.ue(2);            // pic_order_cnt_type
+            w.ue(1);            // max_num_ref_frames
+            w.bits(0, 1);       // gaps_in_frame_num_value_allowed_flag
+            w.ue(mbWidth - 1);
+            w.ue(mbHeight - 1);
+            w.bits(1, 1);       // frame_mbs_only_flag
+            w.bits(1, 1);       // direct_8x8_inference_flag
+            if (cropRight > 0 || cropBottom > 0) {
+                w.bits(1, 1);
+                w.ue(0);
+                w.ue(cropRight);
+                w.ue(0);
+                w.ue(cropBottom);
+            } else {
+                w.bits(0, 1);
+            }
+            w.bits(0, 1);       // vui_parameters_present_flag
+            sps = w.nal(3, NAL_SPS);
+        }
+        return sps;
+    }
+
+    /**
+     * pps nal unit with its header byte, no start code
+     */
+    public byte[] getPps() {
+        if (pps == null) {
+            BitWriter w = new BitWriter();
+            w.ue(0);            // pic_parameter_set_id
+            w.ue(0);            // seq_parameter_set_id
+            w.bits(0, 1);       // entropy_coding_mode_flag, cavlc
+            w.bits(0, 1);       // bottom_field_pic_order_in_frame_present_flag
+            w.ue(0);            // num_slice_groups_minus1
+            w.ue(0);            // num_ref_idx_l0_default_active_minus1
+            w.ue(0);            // num_ref_idx_l1_default_active_minus1
+            w.bits(0, 1);       // weighted_pred_flag
+            w.bits(0, 2);       // weighted_bipred_idc
+            w.se(0);            // pic_init_qp_minus26
+            w.se(0);            // pic_init_qs_minus26
+            w.se(0);            // chroma_qp_index_offset
+            w.bits(1, 1);       // deblocking_filter_control_present_flag
+            w.bits(0, 1);       // constrained_intra_pred_flag
+            w.bits(0, 1);       // redundant_pic_cnt_present_flag
+            pps = w.nal(3, NAL_PPS);
+        }
+        return pps;
+    }
+
+    /**
+     * the start of an IDR slice header up to idr_pic_id, padded with zero bits
+     */
+    private byte[] getIdrSliceHeader() {
+        if (idrSliceHeader == null) {
+            BitWriter w = new BitWriter();
+            w.ue(0);            // first_mb_in_slice
+            w.ue(7);            // slice_type I, all slices of the picture
+            w.ue(0);            // pic_parameter_set_id
+            w.bits(0, log2MaxFrameNum);     // frame_num
+            w.ue(0);            // idr_pic_id
+            idrSliceHeader = w.bytes();
+        }
+        return idrSliceHeader;
+    }
+
+    public boolean isKeyframe(int frame) {
+        return frame % gopFrames == 0;
+    }
+
+    /**
+     * size of the nal unit of a frame, without its length prefix; the same
+     * frame always gets the same size
+     */
+    public int frameSize(int frame) {
+        // a gop carries gopFrames frames' worth of bytes, the keyframe takes keyframeWeight shares
+        long gopBytes = (long) bitrate / 8 * gopFrames / fps;
+        long share = gopBytes / (gopFrames + keyframeWeight - 1);
+        long size = isKeyframe(frame) ? share * keyframeWeight : share;
+        if (jitterPercent > 0) {
+            // -jitter..+jitter percent, from the frame number alone
+            int h = mix(seed, frame);
+            size += size * ((h & 0x7fffffff) % (2 * jitterPercent + 1) - jitterPercent) / 100;
+        }
+        return (int) Math.max(MIN_FRAME, size);
+    }
+
+    /**
+     * @return nal_unit_type | nal_ref_idc << 5 of the frame's only nal unit
+     */
+    public int nalHeader(int frame) {
+        if (isKeyframe(frame)) {
+            return 3 << 5 | NAL_IDR;
+        }
+        if (nonReferenceInterval > 0 && frame % gopFrames % nonReferenceInterval == 0) {
+            return NAL_SLICE;
+        }
+        return 2 << 5 | NAL_SLICE;
+    }
+
+    /**
+     * the boxes ahead of the frames; the mdat size covers frames frames, or
+     * runs to the end of the stream for frames <= 0
+     */
+    public void writeHeader(OutputStream out, int frames) throws IOException {
+        byte[] b = new byte[256];
+        int p = 0;
+        // ftyp
+        p = putInt(b, p, 24);
+        p = putType(b, p, "ftyp");
+        p = putType(b, p, "3gp4");
+        p = putInt(b, p, 0);
+        p = putType(b, p, "isom");
+        p = putType(b, p, "3gp4");
+        // moov with an mvhd, the parsers skip both
+        p = putInt(b, p, 8 + 108);
+        p = putType(b, p, "moov");
+        p = putInt(b, p, 108);
+        p = putType(b, p, "mvhd");
+        p = putInt(b, p, 0);        // version and flags
+        p = putInt(b, p, 0);        // creation time
+        p = putInt(b, p, 0);        // modification time
+        p = putInt(b, p, 1000);     // timescale
+        p = putInt(b, p, frames > 0 ? frames * 1000 / fps : 0);
+        p = putInt(b, p, 0x00010000);   // rate 1.0
+        b[p++] = 1;                     // volume 1.0
+        b[p++] = 0;
+        p += 10;                        // reserved
+        p = putInt(b, p, 0x00010000);   // unity matrix
+        p += 12;
+        p = putInt(b, p, 0x00010000);
+        p += 12;
+        p = putInt(b, p, 0x40000000);
+        p += 24;                        // pre_defined
+        p = putInt(b, p, 2);            // next_track_ID
+        // free
+        p = putInt(b, p, 8);
+        p = putType(b, p, "free");
+        long mdatBody = 0;
+        for (int i = 0; i < frames; i++) {
+            mdatBody += 4 + frameSize(i) + parameterSetBytes(i);
+        }
+        if (largeSize || 8 + mdatBody > 0xffffffffL) {
+            p = putInt(b, p, 1);
+            p = putType(b, p, "mdat");
+            p = putInt(b, p, (int) ((16 + mdatBody) >>> 32));
+            p = putInt(b, p, (int) (16 + mdatBody));
+        } else {
+            p = putInt(b, p, frames > 0 ? (int) (8 + mdatBody) : 0);
+            p = putType(b, p, "mdat");
+        }
+        out.write(b, 0, p);
+        bytesWritten += p;
+    }
+
+    /**
+     * the in-band sps and pps units ahead of a frame, with their length prefixes
+     */
+    private int parameterSetBytes(int frame) {
+        return inBandParameterSets && isKeyframe(frame) ? 8 + getSps().length + getPps().length : 0;
+    }
+
+    /**
+     * one length prefixed nal unit, after the sps and pps when they go in-band;
+     * scratch must hold 4 + frameSize(frame) bytes
+     */
+    public int writeFrame(OutputStream out, int frame, byte[] scratch) throws IOException {
+        int written = parameterSetBytes(frame);
+        if (written > 0) {
+            byte[] units = new byte[written];
+            int p = putInt(units, 0, getSps().length);
+            System.arraycopy(sps, 0, units, p, sps.length);
+            p = putInt(units, p + sps.length, getPps().length);
+            System.arraycopy(pps, 0, units, p, pps.length);
+            out.write(units);
+            bytesWritten += written;
+        }
+        if (payload == null) {
+            payload = new byte[PAYLOAD_POOL];
+            new Random(seed).nextBytes(payload);
+        }
+        int size = frameSize(frame);
+        putInt(scratch, 0, size);
+        scratch[4] = (byte) nalHeader(frame);
+        int p = 5;
+        if (isKeyframe(frame)) {
+            byte[] header = getIdrSliceHeader();
+            System.arraycopy(header, 0, scratch, p, header.length);
+            p += header.length;
+        } else {
+            // first_mb_in_slice 0, slice_type P, pps 0: the bits a slice header starts with
+            scratch[p++] = (byte) 0x9a;
+        }
+        int from = (int) ((frame * 7919L) % PAYLOAD_POOL);
+        while (p < 4 + size) {
+            int n = Math.min(4 + size - p, PAYLOAD_POOL - from);
+            System.arraycopy(payload, from, scratch, p, n);
+            p += n;
+            from = 0;
+        }
+        out.write(scratch, 0, 4 + size);
+        bytesWritten += 4 + size;
+        return written + 4 + size;
+    }
+
+    /**
+     * header and frames frames, in real time at fps when realTime is set, as
+     * fast as out takes them otherwise
+     */
+    public void write(OutputStream out, int frames, boolean realTime) throws IOException, InterruptedException {
+        writeHeader(out, frames);
+        int max = 0;
+        for (int i = 0; i < Math.min(frames, gopFrames); i++) {
+            max = Math.max(max, frameSize(i));
+        }
+        byte[] scratch = new byte[4 + max];
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            if (realTime) {
+                long wait = start + i * 1000000000L / fps - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                }
+            }
+            if (4 + frameSize(i) > scratch.length) {
+                scratch = new byte[4 + frameSize(i)];
+            }
+            writeFrame(out, i, scratch);
+        }
+        out.flush();
+    }
+
+    static int mix(long seed, int n) {
+        long z = seed * 0x9e3779b97f4a7c15L + n;
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return (int) (z ^ (z >>> 33));
+    }
+
+    static int putInt(byte[] b, int p, int value) {
+        b[p] = (byte) (value >> 24);
+        b[p + 1] = (byte) (value >> 16);
+        b[p + 2] = (byte) (value >> 8);
+        b[p + 3] = (byte) value;
+        return p + 4;
+    }
+
+    private static int putType(byte[] b, int p, String type) {
+        for (int i = 0; i < 4; i++) {
+            b[p + i] = (byte) type.charAt(i);
+        }
+        return p + 4;
+    }
+
+    /**
+     * msb first bit writer for the parameter sets, with exp-golomb codes
+     */
+    private static class BitWriter {
+        private byte[] rbsp = new byte[64];
+        private int bitPos;
+
+        void bits(int value, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                if (bitPos / 8 == rbsp.length) {
+                    byte[] grown = new byte[rbsp.length * 2];
+                    System.arraycopy(rbsp, 0, grown, 0, rbsp.length);
+                    rbsp = grown;
+                }
+                if ((value >> i & 1) != 0) {
+                    rbsp[bitPos / 8] |= 0x80 >> (bitPos % 8);
+                }
+                bitPos++;
+            }
+        }
+
+        void ue(int value) {
+            int v = value + 1;
+            int len = 32 - Integer.numberOfLeadingZeros(v);
+            bits(0, len - 1);
+            bits(v, len);
+        }
+
+        void se(int value) {
+            ue(value <= 0 ? -2 * value : 2 * value - 1);
+        }
+
+        byte[] bytes() {
+            byte[] out = new byte[(bitPos + 7) / 8];
+            System.arraycopy(rbsp, 0, out, 0, out.length);
+            return out;
+        }
+
+        /**
+         * trailing bits, the nal header and emulation prevention bytes
+         */
+        byte[] nal(int refIdc, int type) {
+            bits(1, 1);
+            int length = (bitPos + 7) / 8;
+            byte[] out = new byte[1 + length + length / 2];
+            int p = 0;
+            out[p++] = (byte) (refIdc << 5 | type);
+            int zeros = 0;
+            for (int i = 0; i < length; i++) {
+                int b = rbsp[i] & 0xff;
+                if (zeros >= 2 && b <= 3) {
+                    out[p++] = 3;
+                    zeros = 0;
+                }
+                out[p++] = (byte) b;
+                zeros = b == 0 ? zeros + 1 : 0;
+            }
+            byte[] nal = new byte[p];
+            System.arraycopy(out, 0, nal, 0, p);
+            return nal;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.ksy.recordlib.service.simulate;
+
+import com.ksy.recordlib.service.core.KSYFlvData;
+
+/**
+ * Flv tags shaped like the ones the sources build, for driving the sender
+ * without a camera or microphone.
+ * <p/>
+ * Each tag carries a sequence number in its body, behind the avc or aac
+ * packet header, so a receiver can tell which tag it got and when it was
+ * queued. The rest of the body is zero.
+ */
+public class SyntheticTags {
+
+    // flv video: frame type and codec, avc packet type, composition time
+    static final int VIDEO_SEQUENCE_OFFSET = 5;
+    // flv audio: sound format and rate, aac packet type
+    static final int AUDIO_SEQUENCE_OFFSET = 2;
+
+    /**
+     * avc nalu tag of dataSize body bytes, at least 9
+     */
+    public static KSYFlvData video(int dts, int dataSize, boolean keyframe, int sequence) {
+        KSYFlvData tag = tag(9, dts, Math.max(dataSize, VIDEO_SEQUENCE_OFFSET + 4));
+        byte[] b = tag.byteBuffer;
+        b[11] = (byte) (keyframe ? 0x17 : 0x27);
+        b[12] = 1;
+        putInt(b, 11 + VIDEO_SEQUENCE_OFFSET, sequence);
+        tag.type = KSYFlvData.FLV_TYPE_VIDEO;
+        tag.frameType = keyframe ? KSYFlvData.NALU_TYPE_IDR : 1;
+        return tag;
+    }
+
+    /**
+     * aac raw frame tag of dataSize body bytes, at least 6
+     */
+    public static KSYFlvData audio(int dts, int dataSize, int sequence) {
+        KSYFlvData tag = tag(8, dts, Math.max(dataSize, AUDIO_SEQUENCE_OFFSET + 4));
+        byte[] b = tag.byteBuffer;
+        b[11] = (byte) 0xaf;
+        b[12] = 1;
+        putInt(b, 11 + AUDIO_SEQUENCE_OFFSET, sequence);
+        tag.type = KSYFlvData.FLV_TYTPE_AUDIO;
+        return tag;
+    }
+
+    /**
+     * the sequence number of a tag body as it arrives, -1 if it carries none
+     */
+    public static int sequence(int flvType, byte[] body, int length) {
+        int offset = flvType == 9 ? VIDEO_SEQUENCE_OFFSET : flvType == 8 ? AUDIO_SEQUENCE_OFFSET : -1;
+        if (offset < 0 || length < offset + 4) {
+            return -1;
+        }
+        return (body[offset] & 0xff) << 24 | (body[offset + 1] & 0xff) << 16 | (body[offset + 2] & 0xff) << 8 | body[offset + 3] & 0xff;
+    }
+
+    /**
+     * tag header, dataSize zero bytes and the previous tag size the sources write
+     */
+    private static KSYFlvData tag(int flvType, int dts, int dataSize) {
+        int size = 11 + dataSize + 4;
+        byte[] b = new byte[size];
+        b[0] = (byte) flvType;
+        b[1] = (byte) (dataSize >> 16);
+        b[2] = (byte) (dataSize >> 8);
+        b[3] = (byte) dataSize;
+        b[4] = (byte) (dts >> 16);
+        b[5] = (byte) (dts >> 8);
+        b[6] = (byte) dts;
+        b[7] = (byte) (dts >> 24);
+        putInt(b, size - 4, size);
+        KSYFlvData tag = new KSYFlvData();
+        tag.byteBuffer = b;
+        tag.size = size;
+        tag.dts = dts;
+        return tag;
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >> 24);
+        b[offset + 1] = (byte) (value >> 16);
+        b[offset + 2] = (byte) (value >> 8);
+        b[offset + 3] = (byte) value;
+    }
+}
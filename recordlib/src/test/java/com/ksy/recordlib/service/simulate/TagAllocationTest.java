@@ -0,0 +1,132 @@
+package com.ksy.recordlib.service.simulate;
+
+import com.ksy.recordlib.service.core.KSYFlvData;
+import com.ksy.recordlib.service.core.KsyDirectBufferPool;
+import com.ksy.recordlib.service.core.KsyRecordClientConfig;
+import com.ksy.recordlib.service.core.KsyRecordSender;
+import com.ksy.recordlib.service.recoder.RecoderVideoSource;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Counts what the parser thread of a source allocates per tag once it is warm.
+ * <p/>
+ * A SyntheticMp4Stream writes into a named pipe as fast as a headless
+ * RecoderVideoSource parses it. The sender takes each tag and recycles it at
+ * once, as flushBatch() does after a write, so the tags and their buffers go
+ * round the pools the way they do while publishing.
+ * <p/>
+ * The bytes come from an AllocationCounter, read on the parser thread inside
+ * addToQueue() after the warm up tags and after the last one. The pool
+ * counters tell whether tags or buffers were still created after the warm up.
+ * Once warm, no tag may be created any more, hardly a buffer, and what the
+ * parser allocates has to stay a few bytes per tag.
+ */
+public class TagAllocationTest {
+
+    private static final int GOP_MS = 2000;
+    // two gops fill the pools with every size class the stream needs
+    private static final int WARM_UP_GOPS = 2;
+    private static final int FRAMES = 3000;
+    // the counter reads about half a byte a tag, what the parser thread does besides
+    private static final double MAX_BYTES_PER_TAG = 16;
+
+    private static class Result {
+        long tags;
+        long measuredTags;
+        long allocatedBytes = -1;
+        long tagsCreated;
+        long buffersCreated;
+        long buffersReused;
+
+        double bytesPerTag() {
+            return measuredTags > 0 ? (double) allocatedBytes / measuredTags : 0;
+        }
+
+        @Override
+        public String toString() {
+            return tags + " tags, " + measuredTags + " after warm up: "
+                    + (allocatedBytes < 0 ? "no allocation counter on this JVM"
+                    : allocatedBytes + " bytes, " + String.format("%.1f", bytesPerTag()) + " bytes/tag")
+                    + ", tags created " + tagsCreated + ", buffers created " + buffersCreated + " reused " + buffersReused;
+        }
+    }
+
+    private Result run(int width, int height, int fps, int videoBitrate, int frames)
+            throws IOException, InterruptedException {
+        int gopFrames = GOP_MS * fps / 1000;
+        SyntheticMp4Stream video = new SyntheticMp4Stream(width, height, fps, videoBitrate, gopFrames)
+                .setNonReferenceInterval(2);
+        KsyRecordClientConfig config = new KsyRecordClientConfig.Builder()
+                .setVideoWidth(width).setVideoHeigh(height).setVideoFrameRate(fps).setVideoBitRate(videoBitrate).build();
+        // the sequence header comes first
+        final long warmUpTags = 1 + (long) WARM_UP_GOPS * gopFrames;
+        final long lastTag = 1 + frames;
+        final Result result = new Result();
+        final long[] marks = new long[3];
+        final KsyDirectBufferPool pool = KsyDirectBufferPool.forTags();
+        KsyRecordSender sender = new KsyRecordSender(new MemoryTransport(0)) {
+            private AllocationCounter counter;
+
+            @Override
+            public void addToQueue(KSYFlvData tag, int k) {
+                if (tag == null) {
+                    return;
+                }
+                tag.recycle();
+                long n = ++result.tags;
+                if (n == warmUpTags) {
+                    counter = new AllocationCounter();
+                    marks[0] = counter.read();
+                    marks[1] = KSYFlvData.getCreated();
+                    marks[2] = pool.getAllocated();
+                    result.buffersReused = -pool.getReused();
+                } else if (n == lastTag && n > warmUpTags) {
+                    result.allocatedBytes = counter.since(marks[0]);
+                    result.measuredTags = n - warmUpTags;
+                    result.tagsCreated = KSYFlvData.getCreated() - marks[1];
+                    result.buffersCreated = pool.getAllocated() - marks[2];
+                    result.buffersReused += pool.getReused();
+                }
+            }
+        };
+        RecoderVideoSource source = new RecoderVideoSource(config, sender, video.getSps(), video.getPps());
+
+        File pipe = new File(System.getProperty("java.io.tmpdir"), "ksy-alloc-" + System.nanoTime() + ".mp4");
+        Assume.assumeTrue("the check needs a named pipe", SourceLoadTest.mkfifo(pipe));
+        IOException[] failure = new IOException[1];
+        Thread writer = SourceLoadTest.writer(video, null, pipe, frames, false, failure);
+        Thread reader = SourceLoadTest.reader(source, null, pipe, failure);
+        try {
+            reader.start();
+            writer.start();
+            reader.join();
+            writer.join();
+        } finally {
+            pipe.delete();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return result;
+    }
+
+    @Test
+    public void warmParserAllocatesNoTags() throws IOException, InterruptedException {
+        Assume.assumeTrue("no allocation counter on this JVM", new AllocationCounter().isAvailable());
+        Result result = run(1920, 1080, 30, 8000000, FRAMES);
+        System.out.println("1080p30 8000kbps, direct tags " + KsyRecordSender.isDirectWriteSupported() + ": " + result);
+        assertEquals(1 + FRAMES, result.tags);
+        assertEquals(result.toString(), 0, result.tagsCreated);
+        // a keyframe bigger than the warm up saw may still add a buffer of a larger class
+        assertTrue(result.toString(), result.buffersCreated * 100 < result.measuredTags);
+        assertTrue(result.toString(), result.bytesPerTag() < MAX_BYTES_PER_TAG);
+    }
+}
@@ -0,0 +1,185 @@
+package com.ksy.recordlib.service.simulate;
+
+import com.ksy.recordlib.service.core.StreamTransport;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Puts a simulated uplink in front of another transport.
+ * <p/>
+ * Writes block like a socket with a small send buffer: until the link, following
+ * a bandwidth trace, has carried the bytes, plus a fixed latency per write. A
+ * trace step of 0 is an outage, a write that stays stuck for longer than the
+ * stall timeout fails like a socket timeout would. Every write may also fail at
+ * random with the given loss rate, which closes the session until the next open().
+ * <p/>
+ * The trace clock starts at open(). The last trace value holds once it ends.
+ */
+public class ThrottledTransport implements StreamTransport {
+
+    private final StreamTransport target;
+    private final int[] bandwidthBps;
+    private final int stepMs;
+    private final int latencyMs;
+    private final float lossRate;
+    private final Random random;
+    private int stallTimeoutMs = 10000;
+
+    private boolean opened;
+    private long startMs;
+    // trace time the link is busy until
+    private double linkFreeMs;
+    private long lostWrites;
+    private long blockedMs;
+
+    /**
+     * @param bandwidthBps bits per second for each step of the trace
+     * @param stepMs       length of a trace step in ms
+     * @param latencyMs    added to every write
+     * @param lossRate     share of writes that fail and drop the session, 0 to 1
+     * @param seed         for the loss, runs with the same seed fail the same writes
+     */
+    public ThrottledTransport(StreamTransport target, int[] bandwidthBps, int stepMs, int latencyMs, float lossRate, long seed) {
+        this.target = target;
+        this.bandwidthBps = bandwidthBps;
+        this.stepMs = stepMs;
+        this.latencyMs = latencyMs;
+        this.lossRate = lossRate;
+        this.random = new Random(seed);
+    }
+
+    public static ThrottledTransport constant(StreamTransport target, int bandwidthBps, int latencyMs) {
+        return new ThrottledTransport(target, new int[]{bandwidthBps}, 1000, latencyMs, 0, 0);
+    }
+
+    public void setStallTimeoutMs(int stallTimeoutMs) {
+        this.stallTimeoutMs = stallTimeoutMs;
+    }
+
+    @Override
+    public int setOutputUrl(String url) {
+        return target.setOutputUrl(url);
+    }
+
+    @Override
+    public synchronized int open() {
+        int result = target.open();
+        opened = result == 0;
+        if (startMs == 0) {
+            startMs = System.currentTimeMillis();
+        }
+        linkFreeMs = System.currentTimeMillis() - startMs;
+        return result;
+    }
+
+    @Override
+    public synchronized int close() {
+        opened = false;
+        return target.close();
+    }
+
+    @Override
+    public int write(ByteBuffer buffer, int length) {
+        if (!throttle(length)) {
+            return -1;
+        }
+        return target.write(buffer, length);
+    }
+
+    @Override
+    public int write(byte[] buffer, int length) {
+        if (!throttle(length)) {
+            return -1;
+        }
+        return target.write(buffer, length);
+    }
+
+    public synchronized long getLostWrites() {
+        return lostWrites;
+    }
+
+    /**
+     * total time writes spent blocked on the simulated link
+     */
+    public synchronized long getBlockedMs() {
+        return blockedMs;
+    }
+
+    /**
+     * bandwidth of the trace at the given time since open()
+     */
+    public int bandwidthAt(long ms) {
+        return bandwidthBps[(int) Math.min(ms / stepMs, bandwidthBps.length - 1)];
+    }
+
+    /**
+     * block until the link carried length bytes
+     *
+     * @return false if the write fails
+     */
+    private boolean throttle(int length) {
+        long now;
+        long until;
+        synchronized (this) {
+            if (!opened) {
+                return false;
+            }
+            if (lossRate > 0 && random.nextFloat() < lossRate) {
+                lostWrites++;
+                opened = false;
+                target.close();
+                return false;
+            }
+            now = System.currentTimeMillis() - startMs;
+            double t = Math.max(now, linkFreeMs);
+            double bits = length * 8.0;
+            while (bits > 0) {
+                int step = (int) Math.min((long) t / stepMs, bandwidthBps.length - 1);
+                int bps = bandwidthBps[step];
+                double stepEnd = step < bandwidthBps.length - 1 ? (step + 1) * (double) stepMs : Double.MAX_VALUE;
+                if (bps <= 0) {
+                    if (stepEnd == Double.MAX_VALUE) {
+                        t = Double.MAX_VALUE;
+                        break;
+                    }
+                    t = stepEnd;
+                    continue;
+                }
+                double needMs = bits * 1000 / bps;
+                if (t + needMs <= stepEnd) {
+                    t += needMs;
+                    bits = 0;
+                } else {
+                    bits -= (stepEnd - t) * bps / 1000;
+                    t = stepEnd;
+                }
+            }
+            if (t - now > stallTimeoutMs) {
+                // stuck in an outage, the write times out and the session is gone
+                until = now + stallTimeoutMs;
+                opened = false;
+            } else {
+                linkFreeMs = t;
+                until = (long) t + latencyMs;
+            }
+        }
+        long waitMs = until - now;
+        if (waitMs > 0) {
+            try {
+                Thread.sleep(waitMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        synchronized (this) {
+            blockedMs += Math.max(0, waitMs);
+            if (!opened) {
+                target.close();
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,69 @@
+package com.ksy.recordlib.service.simulate;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The simulated uplink: writes take as long as the trace says, an outage
+ * fails them after the stall timeout and the loss rate drops the session.
+ */
+public class ThrottledTransportTest {
+
+    private static final int WRITE_BYTES = 2000;
+
+    @Test
+    public void blocksForTheBandwidth() {
+        MemoryTransport memory = new MemoryTransport(0);
+        // 100KB/s, 20KB take 200ms
+        ThrottledTransport transport = ThrottledTransport.constant(memory, 800000, 0);
+        assertEquals(0, transport.open());
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(WRITE_BYTES, transport.write(new byte[WRITE_BYTES], WRITE_BYTES));
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println("20KB at 800kbps in " + elapsed + "ms");
+        assertTrue(elapsed + "ms", elapsed >= 190);
+        assertTrue(elapsed + "ms", elapsed < 1000);
+        assertEquals(10 * WRITE_BYTES, memory.getBytes());
+    }
+
+    @Test
+    public void outageTimesOut() {
+        MemoryTransport memory = new MemoryTransport(0);
+        // 100ms at 100KB/s, then nothing
+        ThrottledTransport transport = new ThrottledTransport(memory, new int[]{800000, 0}, 100, 0, 0, 0);
+        transport.setStallTimeoutMs(200);
+        assertEquals(0, transport.open());
+        long start = System.currentTimeMillis();
+        assertEquals(-1, transport.write(new byte[20000], 20000));
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue(elapsed + "ms", elapsed >= 190);
+        assertFalse(memory.isOpen());
+        // the session is gone until the next open()
+        assertEquals(-1, transport.write(new byte[1], 1));
+        assertEquals(0, memory.getWrites());
+    }
+
+    @Test
+    public void lossDropsTheSession() {
+        MemoryTransport memory = new MemoryTransport(0);
+        ThrottledTransport transport = new ThrottledTransport(memory, new int[]{1000000000}, 1000, 0, 0.25f, 1);
+        int failed = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (!memory.isOpen()) {
+                assertEquals(0, transport.open());
+            }
+            if (transport.write(new byte[1], 1) < 0) {
+                failed++;
+                assertFalse(memory.isOpen());
+            }
+        }
+        assertEquals(failed, transport.getLostWrites());
+        assertEquals(1000 - failed, memory.getWrites());
+        assertTrue(failed + " of 1000 lost", failed > 150 && failed < 350);
+    }
+}
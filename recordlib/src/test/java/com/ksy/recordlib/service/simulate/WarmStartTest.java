@@ -0,0 +1,323 @@
+package com.ksy.recordlib.service.simulate;
+
+import com.ksy.recordlib.service.core.KSYFlvData;
+import com.ksy.recordlib.service.core.KsyRecordClientConfig;
+import com.ksy.recordlib.service.core.KsyRecordSender;
+import com.ksy.recordlib.service.recoder.RecoderVideoSource;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A start of the video source with the temp mp4 probe against one with the
+ * parameter sets from the cache, and how a warm start checks them.
+ * <p/>
+ * A start runs from the call to the first video frame queued behind the
+ * sequence header. The cold one goes the way of RecoderVideoTempSource first:
+ * a SyntheticMp4Stream records in real time into a temp file, polled every
+ * 100ms until it holds more than 50KB or 5s went by, and its sps and pps go
+ * into the cache. The warm one finds them there, keyed by getParameterSetKey().
+ * Both then record in real time into a named pipe for a headless
+ * RecoderVideoSource. What MediaRecorder and the camera take to prepare, stop
+ * and reconnect for the probe only adds to the cold start on a device.
+ * <p/>
+ * The checks start a source with right and with stale parameter sets, with
+ * and without the sps and pps in-band, and look at what its
+ * ParameterSetListener is told, which sequence headers it queues and whether
+ * it goes on with the frames. Stale sets mostly carry the same ids as the
+ * right ones, what gives them away is the frame size or how the slice
+ * headers read with them.
+ * <p/>
+ * The timings are printed, the cache only has to beat the probe. They are
+ * Benchmarks, the checks run by default.
+ */
+public class WarmStartTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int FPS = 30;
+    private static final int GOP_MS = 2000;
+    private static final int BITRATE = 1000000;
+    private static final int ROUNDS = 3;
+    // what RecoderVideoTempSource waits for
+    private static final int PROBE_MIN_BYTES = 50 * 1024;
+    private static final int PROBE_POLL_MS = 100;
+    private static final int PROBE_TIMEOUT_MS = 5000;
+    // frames recorded after the start, enough for the first one to come through
+    private static final int RECORD_FRAMES = FPS / 2;
+
+    private static class Check {
+        String name;
+        boolean expectConfirmed;
+        boolean expectInBand;
+        boolean checked;
+        boolean confirmed;
+        byte[] sps;
+        byte[] pps;
+        int headers;
+        boolean lastHeaderHasLiveSps;
+        long frames;
+        int expectedFrames;
+
+        boolean passed() {
+            boolean sets = expectInBand ? sps != null && pps != null : sps == null && pps == null;
+            boolean headersRight = expectConfirmed ? headers == 1 : headers == (expectInBand ? 2 : 1);
+            return checked && confirmed == expectConfirmed && sets && headersRight
+                    && (expectInBand ? lastHeaderHasLiveSps : true) && frames == expectedFrames;
+        }
+
+        @Override
+        public String toString() {
+            return name + ":" + (checked ? (confirmed ? " confirmed" : " rejected") : " never checked")
+                    + (sps != null ? ", in-band sets reported" : "") + ", " + headers + " sequence header"
+                    + (headers == 1 ? "" : "s") + ", frames " + frames + "/" + expectedFrames;
+        }
+    }
+
+    // stands in for the preferences the client keeps the cache in
+    private final Map<String, byte[][]> cache = new HashMap<String, byte[][]>();
+
+    private static KsyRecordClientConfig config(int width, int height, int bitrate) {
+        return new KsyRecordClientConfig.Builder()
+                .setVideoWidth(width).setVideoHeigh(height).setVideoFrameRate(FPS).setVideoBitRate(bitrate).build();
+    }
+
+    /**
+     * what RecoderVideoTempSource does ahead of a cold start, the recorder
+     * stands in by a real time writer
+     */
+    private byte[][] probe(SyntheticMp4Stream video) throws IOException, InterruptedException {
+        File file = File.createTempFile("ksy-probe-", ".mp4");
+        IOException[] failure = new IOException[1];
+        Thread writer = SourceLoadTest.writer(video, null, file, PROBE_TIMEOUT_MS * FPS / 1000, true, failure);
+        writer.start();
+        long start = System.currentTimeMillis();
+        try {
+            do {
+                if (file.length() > PROBE_MIN_BYTES) {
+                    break;
+                }
+                Thread.sleep(PROBE_POLL_MS);
+            } while (System.currentTimeMillis() - start < PROBE_TIMEOUT_MS);
+        } finally {
+            writer.interrupt();
+            writer.join();
+            file.delete();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return new byte[][]{video.getSps(), video.getPps()};
+    }
+
+    /**
+     * ms from the call to the first video frame queued
+     */
+    private long start(int bitrate, boolean useCache) throws IOException, InterruptedException {
+        long startedAt = System.nanoTime();
+        KsyRecordClientConfig config = config(WIDTH, HEIGHT, bitrate);
+        SyntheticMp4Stream video = new SyntheticMp4Stream(WIDTH, HEIGHT, FPS, bitrate, GOP_MS * FPS / 1000);
+        String key = config.getParameterSetKey();
+        byte[][] sets = useCache ? cache.get(key) : null;
+        if (sets == null) {
+            sets = probe(video);
+            cache.put(key, sets);
+        }
+        final long[] firstFrameAt = new long[1];
+        KsyRecordSender sender = new KsyRecordSender(new MemoryTransport(0)) {
+            @Override
+            public void addToQueue(KSYFlvData tag, int k) {
+                if (tag == null) {
+                    return;
+                }
+                if (!tag.sequenceHeader && firstFrameAt[0] == 0) {
+                    firstFrameAt[0] = System.nanoTime();
+                }
+                tag.recycle();
+            }
+        };
+        RecoderVideoSource source = new RecoderVideoSource(config, sender, sets[0], sets[1]);
+        File pipe = new File(System.getProperty("java.io.tmpdir"), "ksy-warm-" + System.nanoTime() + ".mp4");
+        Assume.assumeTrue("the timing needs a named pipe", SourceLoadTest.mkfifo(pipe));
+        IOException[] failure = new IOException[1];
+        Thread writer = SourceLoadTest.writer(video, null, pipe, RECORD_FRAMES, true, failure);
+        Thread reader = SourceLoadTest.reader(source, null, pipe, failure);
+        try {
+            reader.start();
+            writer.start();
+            reader.join();
+            writer.join();
+        } finally {
+            pipe.delete();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return (firstFrameAt[0] - startedAt) / 1000000;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static boolean contains(byte[] data, int length, byte[] part) {
+        for (int i = 0; i + part.length <= length; i++) {
+            boolean match = true;
+            for (int j = 0; match && j < part.length; j++) {
+                match = data[i + j] == part[j];
+            }
+            if (match) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * start a source with sps and pps on frames of video and see how it checks them
+     */
+    private Check check(String name, SyntheticMp4Stream video, boolean inBand, byte[] sps, byte[] pps,
+                       boolean expectConfirmed, int frames) throws IOException {
+        final Check check = new Check();
+        check.name = name;
+        check.expectConfirmed = expectConfirmed;
+        check.expectInBand = inBand;
+        // rejected sets the stream does not bring in-band stop the source at its first slice
+        check.expectedFrames = expectConfirmed || inBand ? frames : 0;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            video.setInBandParameterSets(inBand).write(out, frames, false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        final byte[] liveSps = video.getSps();
+        final byte[] scratch = new byte[4096];
+        final ByteBuffer scratchBuffer = ByteBuffer.wrap(scratch);
+        File file = File.createTempFile("ksy-warm-", ".mp4");
+        try {
+            FileOutputStream os = new FileOutputStream(file);
+            try {
+                out.writeTo(os);
+            } finally {
+                os.close();
+            }
+            KsyRecordSender sender = new KsyRecordSender(new MemoryTransport(0)) {
+                @Override
+                public void addToQueue(KSYFlvData tag, int k) {
+                    if (tag == null) {
+                        return;
+                    }
+                    if (tag.sequenceHeader) {
+                        check.headers++;
+                        scratchBuffer.clear();
+                        tag.copyTo(scratchBuffer);
+                        check.lastHeaderHasLiveSps = contains(scratch, tag.size, liveSps);
+                    } else if (tag.frameType == 1 || tag.frameType == 5) {
+                        check.frames++;
+                    }
+                    tag.recycle();
+                }
+            };
+            RecoderVideoSource source = new RecoderVideoSource(config(WIDTH, HEIGHT, BITRATE), sender, sps, pps);
+            source.setParameterSetListener(new RecoderVideoSource.ParameterSetListener() {
+                @Override
+                public void onParameterSetsChecked(boolean confirmed, byte[] sps, byte[] pps) {
+                    check.checked = true;
+                    check.confirmed = confirmed;
+                    check.sps = sps;
+                    check.pps = pps;
+                }
+            });
+            FileInputStream in = new FileInputStream(file);
+            try {
+                source.runFrom(in);
+            } finally {
+                in.close();
+            }
+        } finally {
+            file.delete();
+        }
+        return check;
+    }
+
+    private static SyntheticMp4Stream video(int width, int height) {
+        return new SyntheticMp4Stream(width, height, FPS, BITRATE, GOP_MS * FPS / 1000);
+    }
+
+    private void assertChecked(String name, boolean inBand, byte[] sps, byte[] pps, boolean expectConfirmed)
+            throws IOException {
+        Check c = check(name, video(WIDTH, HEIGHT), inBand, sps, pps, expectConfirmed, 90);
+        assertTrue(c.toString(), c.passed());
+    }
+
+    @Test
+    public void rightSetsAreConfirmed() throws IOException {
+        SyntheticMp4Stream video = video(WIDTH, HEIGHT);
+        assertChecked("right sets", false, video.getSps(), video.getPps(), true);
+    }
+
+    @Test
+    public void rightSetsInBandAreConfirmed() throws IOException {
+        SyntheticMp4Stream video = video(WIDTH, HEIGHT);
+        assertChecked("right sets, in-band too", true, video.getSps(), video.getPps(), true);
+    }
+
+    @Test
+    public void inBandSetsTakeOver() throws IOException {
+        assertChecked("sps of another size, in-band sets", true, video(1280, 720).getSps(),
+                video(WIDTH, HEIGHT).getPps(), false);
+    }
+
+    @Test
+    public void staleSpsOfAnotherSizeStopsTheSource() throws IOException {
+        assertChecked("sps of another size, same ids", false, video(1280, 720).getSps(),
+                video(WIDTH, HEIGHT).getPps(), false);
+    }
+
+    /**
+     * same size and ids, frame_num takes 8 bits instead of 4
+     */
+    @Test
+    public void staleSpsOfAnotherFrameNumSizeStopsTheSource() throws IOException {
+        assertChecked("sps of another frame_num size", false, video(WIDTH, HEIGHT).setLog2MaxFrameNum(8).getSps(),
+                video(WIDTH, HEIGHT).getPps(), false);
+    }
+
+    @Test
+    public void ppsTheSlicesDoNotNameStopsTheSource() throws IOException {
+        // a baseline pps with pic_parameter_set_id 1
+        byte[] otherPps = {0x68, 0x53, (byte) 0x8f, 0x20};
+        assertChecked("pps the slices do not name", false, video(WIDTH, HEIGHT).getSps(), otherPps, false);
+    }
+
+    @Test
+    public void cacheStartsBeforeTheProbe() throws IOException, InterruptedException {
+        Benchmarks.assume();
+        long[] cold = new long[ROUNDS];
+        long[] warm = new long[ROUNDS];
+        for (int round = 0; round < ROUNDS; round++) {
+            cache.clear();
+            cold[round] = start(BITRATE, false);
+            warm[round] = start(BITRATE, true);
+        }
+        long coldMs = median(cold);
+        long warmMs = median(warm);
+        System.out.println(WIDTH + "x" + HEIGHT + "@" + FPS + " " + BITRATE / 1000 + "kbps, first frame after the start: probe "
+                + coldMs + "ms, cache " + warmMs + "ms, median of " + ROUNDS);
+        assertTrue("cache " + warmMs + "ms, probe " + coldMs + "ms", warmMs < coldMs);
+    }
+}